@@ -0,0 +1,108 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.shibboleth.metadata.dom.snapshot.ShardWorker;
+import net.shibboleth.metadata.dom.snapshot.ShardedPipelineStage;
+import net.shibboleth.metadata.pipeline.Pipeline;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+import org.w3c.dom.Element;
+
+/**
+ * The worker process started by a {@link ShardedPipelineStage}.
+ *
+ * This class takes two parameters, the first is the file path to the Spring configuration file. The second parameter
+ * is the name of bean ID of the Pipeline to be executed on each shard. The shard's items are read from standard input
+ * and the results written to standard output; standard output is reserved for this, so all logging goes to standard
+ * error.
+ *
+ * @since 0.10.0
+ */
+public final class ShardWorkerCommandLine {
+
+    /** Class logger. */
+    private static Logger log;
+
+    /** Constructor. */
+    private ShardWorkerCommandLine() {
+
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+        // claim standard output for the results before anything else can write to it
+        final OutputStream results = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out));
+        System.setOut(System.err);
+
+        if (System.getProperty("logback.configurationFile") == null) {
+            System.setProperty("logback.configurationFile", "net/shibboleth/metadata/cli/logger-normal.xml");
+        }
+        log = LoggerFactory.getLogger(ShardWorkerCommandLine.class);
+
+        if (args.length != 2) {
+            log.error("Usage: ShardWorkerCommandLine <configuration file> <pipeline name>");
+            System.exit(SimpleCommandLine.RC_INIT);
+        }
+
+        FileSystemXmlApplicationContext appCtx = null;
+        try {
+            appCtx = new FileSystemXmlApplicationContext(new File(args[0]).toURI().toString());
+            appCtx.registerShutdownHook();
+        } catch (final BeansException e) {
+            log.error("Unable to initialize Spring context", e);
+            System.exit(SimpleCommandLine.RC_INIT);
+        }
+
+        try {
+            final Pipeline<Element> pipeline = (Pipeline<Element>) appCtx.getBean(args[1], Pipeline.class);
+            if (!pipeline.isInitialized()) {
+                pipeline.initialize();
+            }
+
+            final var parserPool = new BasicParserPool();
+            parserPool.initialize();
+
+            try (InputStream in = new BufferedInputStream(System.in)) {
+                ShardWorker.process(pipeline, parserPool, in, results);
+            }
+            results.close();
+            System.exit(SimpleCommandLine.RC_OK);
+
+        } catch (final Exception e) {
+            log.error("Error processing shard", e);
+            System.exit(SimpleCommandLine.RC_UNKNOWN);
+        }
+    }
+}
@@ -38,6 +38,9 @@ public abstract class AbstractItem<T> implements Item<T> {
     /** Additional processing information associated with this {@code Item}. */
     @Nonnull @NonnullElements private final ClassToInstanceMultiMap<ItemMetadata> metadata;
 
+    /** Number of times the data held by the item has been marked as possibly modified. */
+    private int modificationCount;
+
     /**
      * Constructor.
      *
@@ -58,4 +61,37 @@ public abstract class AbstractItem<T> implements Item<T> {
     @Nonnull @NonnullElements public final ClassToInstanceMultiMap<ItemMetadata> getItemMetadata() {
         return metadata;
     }
+
+    /**
+     * Gets the number of times the data held by the item has been marked as possibly modified.
+     *
+     * <p>
+     * Anything derived from the data, such as a serialized form, remains valid for as long as this
+     * count is unchanged.
+     * </p>
+     *
+     * @return the modification count
+     *
+     * @since 0.10.0
+     */
+    public final int getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Marks the data held by the item as possibly modified.
+     *
+     * <p>
+     * This is done for each item by {@link net.shibboleth.metadata.pipeline.AbstractStage} after the stage
+     * has executed, and by {@link net.shibboleth.metadata.pipeline.SimplePipeline} and
+     * {@link net.shibboleth.metadata.pipeline.StreamingPipeline} after executing a stage of any other class,
+     * unless the stage is a {@link net.shibboleth.metadata.pipeline.ReadOnlyStage}. Any other code modifying
+     * the data directly, outside a stage, must call this itself.
+     * </p>
+     *
+     * @since 0.10.0
+     */
+    public final void markModified() {
+        modificationCount++;
+    }
 }
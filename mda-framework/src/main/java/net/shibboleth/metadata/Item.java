@@ -60,6 +60,15 @@ import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
  * relationship is still required to guarantee that the receiving thread sees a consistent state
  * for the object transferred.
  * </p>
+ *
+ * <p>
+ * Implementations may cache forms derived from the data, such as the serialized form cached by
+ * {@link net.shibboleth.metadata.dom.DOMElementItem}. Such caches rely on being told when the data may
+ * have changed: stages and pipelines do this for {@link AbstractItem}s as described in
+ * {@link AbstractItem#markModified()}, but any other code which modifies the result of {@link #unwrap()}
+ * must call {@link AbstractItem#markModified()} itself, or the cached form will be used in place of
+ * the modified data.
+ * </p>
  * 
  * @see <a href="https://docs.oracle.com/en/java/javase/11/docs/api/java.base/java/util/concurrent/package-summary.html#MemoryVisibility"
  * >Memory Consistency Properties; <code>java.util.concurrent</code> package documentation</a>
@@ -22,12 +22,14 @@ import java.util.List;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
 
+import net.shibboleth.metadata.pipeline.ComponentContainer;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.metadata.validate.Validator;
 import net.shibboleth.metadata.validate.ValidatorSequence;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
 
 /**
  * An abstract stage to apply a collection of validators to each object from each item.
@@ -39,7 +41,7 @@ import net.shibboleth.utilities.java.support.component.ComponentInitializationEx
  */
 @ThreadSafe
 public abstract class AbstractDOMValidationStage<V, C extends DOMTraversalContext>
-    extends AbstractDOMTraversalStage<C> {
+    extends AbstractDOMTraversalStage<C> implements ComponentContainer {
 
     /**
      * The validator sequence to apply.
@@ -72,6 +74,12 @@ public abstract class AbstractDOMValidationStage<V, C extends DOMTraversalContex
         return validators.getValidators();
     }
 
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public List<? extends InitializableComponent> getContainedComponents() {
+        return getValidators();
+    }
+
     /**
      * Apply each of the configured validators in turn to the provided object.
      * 
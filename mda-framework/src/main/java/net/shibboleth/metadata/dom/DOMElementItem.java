@@ -18,6 +18,7 @@
 package net.shibboleth.metadata.dom;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
 import org.w3c.dom.DOMImplementation;
@@ -34,10 +35,27 @@ import net.shibboleth.utilities.java.support.xml.ElementSupport;
  * 
  * The {@link Element} wrapped by this {@link Item} is always the document element of the document that owns the
  * {@link Element}.
+ *
+ * <p>
+ * An item can hold a cached copy of the serialized form of its document, as produced by
+ * {@link DOMElementSerializer}, so that an unchanged item serialized more than once is only
+ * serialized once. The cached form is only used while the item's {@link #getModificationCount()}
+ * is unchanged: it is discarded after the item passes through any stage which is not a
+ * {@link net.shibboleth.metadata.pipeline.ReadOnlyStage}, or when {@link #markModified()} is called.
+ * Code which modifies the document outside a stage executed by a pipeline must call
+ * {@link #markModified()} itself, as the cached form will otherwise be used in place of the modified
+ * document.
+ * </p>
  */
 @NotThreadSafe
 public class DOMElementItem extends AbstractItem<Element> {
 
+    /** Cached serialized form of the document, or <code>null</code> if there is none. */
+    @Nullable private byte[] serialization;
+
+    /** Modification count of the item when its serialized form was cached. */
+    private int serializationModificationCount;
+
     /**
      * Constructor.
      * 
@@ -109,6 +127,28 @@ public class DOMElementItem extends AbstractItem<Element> {
         return newDocumentRoot;
     }
 
+    /**
+     * Gets the cached serialized form of the document, if it is still valid.
+     *
+     * @return the cached serialized form, or <code>null</code> if there is none
+     */
+    @Nullable byte[] getCachedSerialization() {
+        if (serialization != null && serializationModificationCount != getModificationCount()) {
+            serialization = null;
+        }
+        return serialization;
+    }
+
+    /**
+     * Caches the serialized form of the document.
+     *
+     * @param bytes serialized form of the document
+     */
+    void setCachedSerialization(@Nonnull final byte[] bytes) {
+        serialization = bytes;
+        serializationModificationCount = getModificationCount();
+    }
+
     @Override
     public Item<Element> copy() {
         final DOMElementItem clone = new DOMElementItem(unwrap());
@@ -17,6 +17,7 @@
 
 package net.shibboleth.metadata.dom;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collection;
@@ -33,10 +34,12 @@ import javax.xml.transform.stream.StreamResult;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemCollectionSerializer;
 import net.shibboleth.metadata.ItemSerializer;
+import net.shibboleth.metadata.dom.impl.UTF8DocumentWriter;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 /**
@@ -45,6 +48,12 @@ import org.w3c.dom.Element;
  * 
  * When used as an {@link ItemCollectionSerializer}, just serializes the first {@link Item} in the collection.
  * This will result in well-formed XML, but any other items in the collection will simply be ignored.
+ *
+ * <p>
+ * The output is that of the JAXP identity transform, but most documents are written directly by a
+ * {@link UTF8DocumentWriter} kept for each thread; the identity transform itself is only used for documents
+ * that writer does not handle.
+ * </p>
  */
 @ThreadSafe
 public class DOMElementSerializer implements ItemSerializer<Element>, ItemCollectionSerializer<Element> {
@@ -52,21 +61,73 @@ public class DOMElementSerializer implements ItemSerializer<Element>, ItemCollec
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(DOMElementSerializer.class);
 
+    /** Writer used by each thread for documents it can serialize. */
+    @Nonnull private static final ThreadLocal<UTF8DocumentWriter> WRITERS =
+            ThreadLocal.withInitial(UTF8DocumentWriter::new);
+
     @Override
     public void serialize(@Nonnull final Item<Element> item, @Nonnull final OutputStream output)
         throws IOException {
+        output.write(serializeToBytes(item));
+    }
 
-        final Element documentRoot = item.unwrap();
+    /**
+     * Serializes an item to an array of bytes.
+     *
+     * <p>
+     * If the item is a {@link DOMElementItem}, its cached serialized form is returned if it
+     * is still valid; otherwise, the newly serialized form is cached in the item.
+     * </p>
+     *
+     * <p>
+     * The returned array may be shared, and must not be modified by the caller.
+     * </p>
+     *
+     * @param item the {@link Item} to serialize
+     * @return the serialized form of the item
+     * @throws IOException if the item can not be serialized
+     *
+     * @since 0.10.0
+     */
+    @Nonnull public byte[] serializeToBytes(@Nonnull final Item<Element> item) throws IOException {
+        final DOMElementItem domItem = item instanceof DOMElementItem ? (DOMElementItem) item : null;
+        if (domItem != null) {
+            final byte[] cached = domItem.getCachedSerialization();
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final Document document = item.unwrap().getOwnerDocument();
+        byte[] bytes = WRITERS.get().write(document);
+        if (bytes == null) {
+            bytes = transform(document);
+        }
+        if (domItem != null) {
+            domItem.setCachedSerialization(bytes);
+        }
+        return bytes;
+    }
 
+    /**
+     * Serializes a document using the identity transform.
+     *
+     * @param document the document to serialize
+     * @return the serialized document
+     * @throws IOException if the document can not be serialized
+     */
+    @Nonnull private byte[] transform(@Nonnull final Document document) throws IOException {
+        final var output = new ByteArrayOutputStream();
         try {
             final TransformerFactory tfac = TransformerFactory.newInstance();
             final Transformer serializer = tfac.newTransformer();
             serializer.setOutputProperty("encoding", "UTF-8");
-            serializer.transform(new DOMSource(documentRoot.getOwnerDocument()), new StreamResult(output));
+            serializer.transform(new DOMSource(document), new StreamResult(output));
         } catch (final TransformerException e) {
             log.error("Unable to write out XML", e);
             throw new IOException(e);
         }
+        return output.toByteArray();
     }
 
     @Override
@@ -62,6 +62,10 @@ public class DOMFilesystemSourceStage extends AbstractStage<Element> {
     @NonnullAfterInit @GuardedBy("this")
     private ParserPool parserPool;
 
+    /** Deduplicator applied to each parsed document, if any. Default value: <code>null</code> */
+    @Nullable @GuardedBy("this")
+    private StringDeduplicator stringDeduplicator;
+
     /** The file path to the DOM material provided by this source. May be a file or a directory. */
     @NonnullAfterInit @GuardedBy("this")
     private File sourceFile;
@@ -90,6 +94,39 @@ public class DOMFilesystemSourceStage extends AbstractStage<Element> {
     @GuardedBy("this")
     private boolean errorCausesSourceFailure = true;
 
+    /**
+     * Gets the deduplicator applied to each parsed document.
+     *
+     * @return the deduplicator applied to each parsed document, or <code>null</code>
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized StringDeduplicator getStringDeduplicator() {
+        return stringDeduplicator;
+    }
+
+    /**
+     * Sets the deduplicator applied to each parsed document.
+     *
+     * <p>
+     * A single deduplicator may be shared by several stages, so that values are shared
+     * across all of the documents they parse.
+     * </p>
+     *
+     * <p>
+     * Each document is deduplicated as soon as it has been parsed, before the next one is
+     * parsed, so that the memory held by duplicate values is not accumulated across documents.
+     * </p>
+     *
+     * @param deduplicator the deduplicator applied to each parsed document, or <code>null</code>
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setStringDeduplicator(@Nullable final StringDeduplicator deduplicator) {
+        checkSetterPreconditions();
+        stringDeduplicator = deduplicator;
+    }
+
     /**
      * Gets the pool of DOM parsers used to parse the XML file in to a DOM.
      * 
@@ -280,6 +317,7 @@ public class DOMFilesystemSourceStage extends AbstractStage<Element> {
         log.debug("{} pipeline source parsing XML file {}", getId(), source.getPath());
         try (FileInputStream xmlIn = new FileInputStream(source)) {
             final Document doc = getParserPool().parse(xmlIn);
+            deduplicateStrings(doc);
             return new DOMElementItem(doc);
         } catch (final Exception e) {
             if (getErrorCausesSourceFailure()) {
@@ -292,6 +330,18 @@ public class DOMFilesystemSourceStage extends AbstractStage<Element> {
         }
     }
 
+    /**
+     * Applies the {@link StringDeduplicator}, if any, to a parsed document.
+     *
+     * @param doc the parsed document
+     */
+    private void deduplicateStrings(@Nonnull final Document doc) {
+        final var deduplicator = getStringDeduplicator();
+        if (deduplicator != null) {
+            deduplicator.deduplicate(doc);
+        }
+    }
+
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -309,5 +359,14 @@ public class DOMFilesystemSourceStage extends AbstractStage<Element> {
             throw new ComponentInitializationException("Unable to initialize " + getId() + ", source file/directory "
                     + sourceFile.getPath() + " can not be read");
         }
+
+        if (stringDeduplicator != null) {
+            // the deduplicator may be shared with stages being initialized concurrently
+            synchronized (stringDeduplicator) {
+                if (!stringDeduplicator.isInitialized()) {
+                    stringDeduplicator.initialize();
+                }
+            }
+        }
     }
 }
@@ -29,6 +29,7 @@ import javax.annotation.concurrent.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import net.shibboleth.metadata.Item;
@@ -65,6 +66,10 @@ public class DOMResourceSourceStage extends AbstractStage<Element> {
     @NonnullAfterInit @GuardedBy("this")
     private ParserPool parserPool;
 
+    /** Deduplicator applied to each parsed document, if any. Default value: <code>null</code> */
+    @Nullable @GuardedBy("this")
+    private StringDeduplicator stringDeduplicator;
+
     /**
      * Whether an error parsing one source file causes this entire {@link net.shibboleth.metadata.pipeline.Stage} to
      * fail, or just excludes the material from the offending source file. Default value: <code>true</code>
@@ -91,6 +96,39 @@ public class DOMResourceSourceStage extends AbstractStage<Element> {
         domResource = Constraint.isNotNull(resource, "DOM resource can not be null");
     }
 
+    /**
+     * Gets the deduplicator applied to each parsed document.
+     *
+     * @return the deduplicator applied to each parsed document, or <code>null</code>
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized StringDeduplicator getStringDeduplicator() {
+        return stringDeduplicator;
+    }
+
+    /**
+     * Sets the deduplicator applied to each parsed document.
+     *
+     * <p>
+     * A single deduplicator may be shared by several stages, so that values are shared
+     * across all of the documents they parse.
+     * </p>
+     *
+     * <p>
+     * The document is deduplicated as soon as it has been parsed. Subclasses which build their
+     * documents from parse events may instead apply the deduplicator while building them.
+     * </p>
+     *
+     * @param deduplicator the deduplicator applied to each parsed document, or <code>null</code>
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setStringDeduplicator(@Nullable final StringDeduplicator deduplicator) {
+        checkSetterPreconditions();
+        stringDeduplicator = deduplicator;
+    }
+
     /**
      * Gets the pool of DOM parsers used to parse the XML file in to a DOM.
      * 
@@ -163,7 +201,9 @@ public class DOMResourceSourceStage extends AbstractStage<Element> {
             @Nonnull final InputStream data, @Nonnull final Resource resource) throws StageProcessingException {
         try {
             log.debug("Parsing XML document retrieved from '{}'", resource.getDescription());
-            items.add(new DOMElementItem(getParserPool().parse(data)));
+            final Document doc = getParserPool().parse(data);
+            deduplicateStrings(doc);
+            items.add(new DOMElementItem(doc));
         } catch (final XMLParserException e) {
             if (getErrorCausesSourceFailure()) {
                 throw new StageProcessingException(getId() + " unable to parse returned XML document " +
@@ -174,6 +214,18 @@ public class DOMResourceSourceStage extends AbstractStage<Element> {
         }
     }
 
+    /**
+     * Applies the {@link StringDeduplicator}, if any, to a parsed document.
+     *
+     * @param doc the parsed document
+     */
+    private void deduplicateStrings(@Nonnull final Document doc) {
+        final var deduplicator = getStringDeduplicator();
+        if (deduplicator != null) {
+            deduplicator.deduplicate(doc);
+        }
+    }
+
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -187,6 +239,15 @@ public class DOMResourceSourceStage extends AbstractStage<Element> {
             throw new ComponentInitializationException("Unable to initialize " + getId()
                     + ", either a DomResource must be specified");
         }
+
+        if (stringDeduplicator != null) {
+            // the deduplicator may be shared with stages being initialized concurrently
+            synchronized (stringDeduplicator) {
+                if (!stringDeduplicator.isInitialized()) {
+                    stringDeduplicator.initialize();
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,406 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.XMLSignature;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.NodeList;
+
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.xml.ElementSupport;
+
+/**
+ * A stage which moves commonly repeated namespace declarations to the document element of each item,
+ * and removes namespace declarations which are redundant because the same declaration is already in scope.
+ *
+ * <p>
+ * Assembling an aggregate from separately parsed entities leaves each entity with its own copies of the
+ * same namespace declarations. A declaration of a prefix made on at least <code>minimumOccurrences</code>
+ * descendants of the document element is instead made once, on the document element, unless the document
+ * element already binds that prefix to a different namespace. Where a prefix is declared for several
+ * namespaces, only the most common is moved; the declarations of the others remain in place and continue
+ * to take precedence. The default namespace is only moved if no element in the document is in no namespace.
+ * </p>
+ *
+ * <p>
+ * The namespace of every element and attribute is unchanged, as is the binding of every prefix in scope
+ * on every element; elements only gain bindings for prefixes which were not previously in scope. This
+ * preserves signatures made using exclusive canonicalization, so the stage may run either before or after
+ * signing in the usual case. Gaining a binding would alter the inclusive canonicalization of a signed element,
+ * so a declaration is not moved if that would happen to the element containing any signature not made
+ * entirely with exclusive canonicalization.
+ * </p>
+ *
+ * <p>
+ * An {@link InfoStatus} is added to each item changed, giving the approximate number of bytes saved in its
+ * serialized form.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class NamespaceHoistingStage extends AbstractIteratingStage<Element> {
+
+    /** Algorithms which make a canonicalization or transform exclusive. */
+    private static final List<String> EXCLUSIVE_ALGORITHMS =
+            List.of(CanonicalizationMethod.EXCLUSIVE, CanonicalizationMethod.EXCLUSIVE_WITH_COMMENTS);
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(NamespaceHoistingStage.class);
+
+    /**
+     * Minimum number of declarations of the same prefix and namespace below the document element for the
+     * declaration to be moved to the document element. Default value: 2
+     */
+    @GuardedBy("this") private int minimumOccurrences = 2;
+
+    /**
+     * Gets the minimum number of declarations of a prefix and namespace for the declaration to be moved to
+     * the document element.
+     *
+     * @return the minimum number of declarations
+     */
+    public final synchronized int getMinimumOccurrences() {
+        return minimumOccurrences;
+    }
+
+    /**
+     * Sets the minimum number of declarations of a prefix and namespace for the declaration to be moved to
+     * the document element.
+     *
+     * @param minimum the minimum number of declarations
+     */
+    public synchronized void setMinimumOccurrences(final int minimum) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, minimum, "Minimum occurrences must be at least 1");
+        minimumOccurrences = minimum;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull final Item<Element> item) {
+        final Element root = item.unwrap();
+
+        // prefix -> namespace -> number of declarations below the document element
+        final Map<String, Map<String, Integer>> declarations = new LinkedHashMap<>();
+        final boolean unqualified = countDeclarations(root, declarations, true);
+        final List<Element> signedElements = findInclusivelySignedElements(root);
+        final Map<String, String> originalScope = new HashMap<>();
+        originalScope.put("", "");
+        addDeclarations(root, originalScope);
+
+        long saved = 0;
+        int hoisted = 0;
+        for (final Map.Entry<String, Map<String, Integer>> entry : declarations.entrySet()) {
+            final String prefix = entry.getKey();
+            final String namespace = mostCommon(entry.getValue());
+            if (entry.getValue().get(namespace) < getMinimumOccurrences() ||
+                    prefix.isEmpty() && unqualified ||
+                    root.lookupNamespaceURI(prefix.isEmpty() ? null : prefix) != null) {
+                // an existing declaration on the document element is left to the redundancy check
+                continue;
+            }
+            if (!isSafeForSignatures(prefix, namespace, signedElements)) {
+                log.debug("{}: not hoisting declaration of prefix '{}' as it would alter a signed element",
+                        getId(), prefix);
+                continue;
+            }
+            final String name = prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE :
+                    XMLConstants.XMLNS_ATTRIBUTE + ':' + prefix;
+            root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name, namespace);
+            saved -= declarationSize(name, namespace);
+            hoisted++;
+        }
+
+        final Map<String, String> scope = new HashMap<>();
+        scope.put("", "");
+        addDeclarations(root, scope);
+        final int[] removed = new int[1];
+        for (final Element child : ElementSupport.getChildElements(root)) {
+            saved += removeRedundantDeclarations(child, scope, originalScope, removed);
+        }
+
+        if (hoisted > 0 || removed[0] > 0) {
+            final String message = "hoisted " + hoisted + " namespace declarations and removed " + removed[0] +
+                    " redundant declarations, saving about " + saved + " bytes";
+            log.debug("{}: {}", getId(), message);
+            item.getItemMetadata().put(new InfoStatus(getId(), message));
+        }
+    }
+
+    /**
+     * Counts the namespace declarations made below an element.
+     *
+     * @param element the element
+     * @param declarations the number of declarations of each prefix and namespace, added to
+     * @param root whether the element is the document element, whose own declarations are not counted
+     * @return <code>true</code> if the element or any of its descendants is in no namespace
+     */
+    private static boolean countDeclarations(@Nonnull final Element element,
+            @Nonnull final Map<String, Map<String, Integer>> declarations, final boolean root) {
+        boolean unqualified = element.getNamespaceURI() == null;
+        if (!root) {
+            final NamedNodeMap attributes = element.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                final Attr attribute = (Attr) attributes.item(i);
+                final String prefix = declaredPrefix(attribute);
+                if (prefix != null && (prefix.isEmpty() || !attribute.getValue().isEmpty())) {
+                    declarations.computeIfAbsent(prefix, p -> new LinkedHashMap<>())
+                            .merge(attribute.getValue(), 1, Integer::sum);
+                }
+            }
+        }
+        for (final Element child : ElementSupport.getChildElements(element)) {
+            unqualified |= countDeclarations(child, declarations, false);
+        }
+        return unqualified;
+    }
+
+    /**
+     * Gets the prefix declared by an attribute.
+     *
+     * @param attribute the attribute
+     * @return the prefix, which is empty for the default namespace, or <code>null</code> if the attribute
+     *      is not a namespace declaration or declares the <code>xml</code> prefix
+     */
+    @Nullable private static String declaredPrefix(@Nonnull final Attr attribute) {
+        if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+            return null;
+        }
+        final String prefix = attribute.getPrefix() == null ? "" : attribute.getLocalName();
+        return XMLConstants.XML_NS_PREFIX.equals(prefix) ? null : prefix;
+    }
+
+    /**
+     * Gets the namespace declared most often for a prefix, preferring the first seen in the event of a tie.
+     *
+     * @param counts the number of declarations of each namespace
+     * @return the most common namespace
+     */
+    @Nonnull private static String mostCommon(@Nonnull final Map<String, Integer> counts) {
+        String best = null;
+        int bestCount = 0;
+        for (final Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > bestCount) {
+                best = entry.getKey();
+                bestCount = entry.getValue();
+            }
+        }
+        assert best != null;
+        return best;
+    }
+
+    /**
+     * Finds the elements containing signatures which depend on the namespaces in scope on those elements,
+     * because they are not made entirely with exclusive canonicalization.
+     *
+     * @param root the document element
+     * @return the elements containing such signatures
+     */
+    @Nonnull private static List<Element> findInclusivelySignedElements(@Nonnull final Element root) {
+        final List<Element> elements = new ArrayList<>();
+        final NodeList signatures = root.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+        for (int i = 0; i < signatures.getLength(); i++) {
+            final Element signature = (Element) signatures.item(i);
+            if (!isExclusive(signature) && signature.getParentNode() instanceof Element) {
+                elements.add((Element) signature.getParentNode());
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Determines whether a signature is made entirely with exclusive canonicalization, with no inclusive
+     * namespace prefixes, so that it does not depend on namespaces in scope which it does not use.
+     *
+     * <p>
+     * This requires both the canonicalization of the <code>SignedInfo</code> and the final transform of each
+     * reference to be exclusive; a reference whose transforms do not end in a canonicalization is implicitly
+     * canonicalized inclusively.
+     * </p>
+     *
+     * @param signature the <code>Signature</code> element
+     * @return <code>true</code> if the signature is made entirely with exclusive canonicalization
+     */
+    private static boolean isExclusive(@Nonnull final Element signature) {
+        final Element signedInfo = ElementSupport.getFirstChildElement(signature);
+        if (signedInfo == null) {
+            return false;
+        }
+        boolean canonicalized = false;
+        for (final Element child : ElementSupport.getChildElements(signedInfo)) {
+            if ("CanonicalizationMethod".equals(child.getLocalName())) {
+                if (!isExclusiveAlgorithm(child)) {
+                    return false;
+                }
+                canonicalized = true;
+            } else if ("Reference".equals(child.getLocalName())) {
+                final Element transforms = ElementSupport.getFirstChildElement(child);
+                if (transforms == null || !"Transforms".equals(transforms.getLocalName())) {
+                    return false;
+                }
+                final List<Element> transformList = ElementSupport.getChildElements(transforms);
+                if (transformList.isEmpty() || !isExclusiveAlgorithm(transformList.get(transformList.size() - 1))) {
+                    return false;
+                }
+            }
+        }
+        return canonicalized;
+    }
+
+    /**
+     * Determines whether a <code>CanonicalizationMethod</code> or <code>Transform</code> element specifies
+     * exclusive canonicalization with no inclusive namespace prefixes.
+     *
+     * @param method the element
+     * @return <code>true</code> if the element specifies exclusive canonicalization
+     */
+    private static boolean isExclusiveAlgorithm(@Nonnull final Element method) {
+        return EXCLUSIVE_ALGORITHMS.contains(method.getAttributeNS(null, "Algorithm")) &&
+                ElementSupport.getFirstChildElement(method) == null;
+    }
+
+    /**
+     * Determines whether declaring a prefix on the document element leaves the namespaces in scope on each
+     * inclusively signed element unchanged.
+     *
+     * @param prefix the prefix, or an empty string for the default namespace
+     * @param namespace the namespace to which the prefix would be bound
+     * @param signedElements the elements containing inclusively canonicalized signatures
+     * @return <code>true</code> if each of the elements already has the prefix bound to the namespace
+     */
+    private static boolean isSafeForSignatures(@Nonnull final String prefix, @Nonnull final String namespace,
+            @Nonnull final List<Element> signedElements) {
+        for (final Element element : signedElements) {
+            if (!namespace.equals(element.lookupNamespaceURI(prefix.isEmpty() ? null : prefix))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the namespace declarations made by an element to a scope.
+     *
+     * @param element the element
+     * @param scope the namespace bound to each prefix in scope, added to
+     */
+    private static void addDeclarations(@Nonnull final Element element, @Nonnull final Map<String, String> scope) {
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            final String prefix = declaredPrefix(attribute);
+            if (prefix != null) {
+                scope.put(prefix, attribute.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes the namespace declarations from an element and its descendants which declare a prefix already
+     * bound to the same namespace.
+     *
+     * <p>
+     * Serialization already omits declarations which were redundant before any were moved, so only the
+     * removal of other declarations counts towards the bytes saved.
+     * </p>
+     *
+     * @param element the element
+     * @param scope the namespace bound to each prefix in scope on the element's parent
+     * @param originalScope the namespace bound to each prefix in scope on the element's parent before any
+     *      declarations were moved
+     * @param removed the number of declarations removed, incremented
+     * @return the approximate number of bytes saved
+     */
+    private long removeRedundantDeclarations(@Nonnull final Element element, @Nonnull final Map<String, String> scope,
+            @Nonnull final Map<String, String> originalScope, @Nonnull final int[] removed) {
+        long saved = 0;
+        Map<String, String> elementScope = scope;
+        Map<String, String> elementOriginalScope = originalScope;
+        final List<Attr> redundant = new ArrayList<>();
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            final String prefix = declaredPrefix(attribute);
+            if (prefix == null) {
+                continue;
+            }
+            final String namespace = attribute.getValue();
+            if (namespace.equals(scope.get(prefix))) {
+                redundant.add(attribute);
+                if (!namespace.equals(originalScope.get(prefix))) {
+                    saved += declarationSize(attribute.getName(), namespace);
+                }
+            } else {
+                if (elementScope == scope) {
+                    elementScope = new HashMap<>(scope);
+                }
+                elementScope.put(prefix, namespace);
+            }
+            if (!namespace.equals(originalScope.get(prefix))) {
+                if (elementOriginalScope == originalScope) {
+                    elementOriginalScope = new HashMap<>(originalScope);
+                }
+                elementOriginalScope.put(prefix, namespace);
+            }
+        }
+        for (final Attr attribute : redundant) {
+            log.trace("{}: removing redundant declaration {}", getId(), attribute.getName());
+            element.removeAttributeNode(attribute);
+            removed[0]++;
+        }
+
+        for (final Element child : ElementSupport.getChildElements(element)) {
+            saved += removeRedundantDeclarations(child, elementScope, elementOriginalScope, removed);
+        }
+        return saved;
+    }
+
+    /**
+     * Gets the approximate number of bytes taken by a namespace declaration in serialized form.
+     *
+     * @param name the name of the declaration's attribute
+     * @param namespace the declared namespace
+     * @return the number of bytes
+     */
+    private static int declarationSize(@Nonnull final String name, @Nonnull final String namespace) {
+        // a preceding space, and the equals sign and quotes
+        return name.getBytes(StandardCharsets.UTF_8).length + namespace.getBytes(StandardCharsets.UTF_8).length + 4;
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom;
+
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Recognises a small number of simple XPath expressions and provides equivalent
+ * {@link Predicate}s which operate directly on the DOM without involving an XPath engine.
+ *
+ * The expressions recognised, each optionally wrapped in <code>not(...)</code>, are:
+ *
+ * <ul>
+ * <li><code>@name</code>: the context element has the named attribute,</li>
+ * <li><code>@name = 'value'</code>: the context element has the named attribute with the given value,</li>
+ * <li><code>name</code>: the context element has a child element with the given name.</li>
+ * </ul>
+ *
+ * Names may be prefixed, in which case the prefix is resolved using the supplied
+ * {@link NamespaceContext}. As in XPath 1.0, unprefixed names are in no namespace.
+ */
+@ThreadSafe
+final class SimpleXPathPredicates {
+
+    /** Qualified name, approximating the XML rules using ASCII characters. */
+    private static final String QNAME = "([A-Za-z_][\\w.\\-]*)(?::([A-Za-z_][\\w.\\-]*))?";
+
+    /** Expression wrapped in <code>not(...)</code>. */
+    private static final Pattern NOT = Pattern.compile("not\\s*\\((.*)\\)");
+
+    /** Attribute existence or equality. */
+    private static final Pattern ATTRIBUTE =
+            Pattern.compile("@" + QNAME + "(?:\\s*=\\s*(?:'([^']*)'|\"([^\"]*)\"))?");
+
+    /** Child element existence. */
+    private static final Pattern CHILD = Pattern.compile(QNAME);
+
+    /** Constructor. */
+    private SimpleXPathPredicates() {
+    }
+
+    /**
+     * Returns a {@link Predicate} equivalent to the boolean value of an XPath expression
+     * evaluated with an element as the context node, if the expression is simple enough.
+     *
+     * @param expression the XPath expression
+     * @param namespaceContext context used to resolve namespace prefixes
+     * @return an equivalent {@link Predicate}, or <code>null</code> if the expression is not recognised
+     */
+    @Nullable
+    static Predicate<Element> forExpression(@Nonnull final String expression,
+            @Nonnull final NamespaceContext namespaceContext) {
+        final String trimmed = expression.trim();
+
+        final Matcher not = NOT.matcher(trimmed);
+        if (not.matches()) {
+            final Predicate<Element> inner = forExpression(not.group(1), namespaceContext);
+            return inner == null ? null : inner.negate();
+        }
+
+        final Matcher attribute = ATTRIBUTE.matcher(trimmed);
+        if (attribute.matches()) {
+            final QName name = resolve(attribute.group(1), attribute.group(2), namespaceContext);
+            if (name == null) {
+                return null;
+            }
+            final String value = attribute.group(3) != null ? attribute.group(3) : attribute.group(4);
+            return element -> {
+                final Attr attr = element.getAttributeNodeNS(namespace(name), name.getLocalPart());
+                return attr != null && (value == null || value.equals(attr.getValue()));
+            };
+        }
+
+        final Matcher child = CHILD.matcher(trimmed);
+        if (child.matches()) {
+            final QName name = resolve(child.group(1), child.group(2), namespaceContext);
+            if (name == null) {
+                return null;
+            }
+            return element -> hasChildElement(element, name);
+        }
+
+        return null;
+    }
+
+    /**
+     * Resolve the components of a qualified name.
+     *
+     * @param first the prefix if there is a second component, otherwise the local name
+     * @param second the local name, or <code>null</code>
+     * @param namespaceContext context used to resolve namespace prefixes
+     * @return the resolved name, or <code>null</code> if the prefix can not be resolved
+     */
+    @Nullable
+    private static QName resolve(@Nonnull final String first, @Nullable final String second,
+            @Nonnull final NamespaceContext namespaceContext) {
+        if (second == null) {
+            return new QName(first);
+        }
+        final String uri = namespaceContext.getNamespaceURI(first);
+        if (uri == null || XMLConstants.NULL_NS_URI.equals(uri) || XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(uri)) {
+            return null;
+        }
+        return new QName(uri, second);
+    }
+
+    /**
+     * Returns the namespace URI of a name in the form used by DOM methods.
+     *
+     * @param name the name
+     * @return the namespace URI, or <code>null</code> for no namespace
+     */
+    @Nullable
+    private static String namespace(@Nonnull final QName name) {
+        final String uri = name.getNamespaceURI();
+        return XMLConstants.NULL_NS_URI.equals(uri) ? null : uri;
+    }
+
+    /**
+     * Determine whether an element has a child element with a given name.
+     *
+     * @param element the parent element
+     * @param name the name of the child element
+     * @return <code>true</code> if such a child element exists
+     */
+    private static boolean hasChildElement(@Nonnull final Element element, @Nonnull final QName name) {
+        final String uri = namespace(name);
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && name.getLocalPart().equals(child.getLocalName())) {
+                final String childUri = child.getNamespaceURI();
+                if (uri == null ? childUri == null || childUri.isEmpty() : uri.equals(childUri)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
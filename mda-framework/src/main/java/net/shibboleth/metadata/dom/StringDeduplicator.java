@@ -0,0 +1,318 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.pipeline.impl.BaseInitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Replaces equal attribute values and text in DOM trees by a single shared {@link String} instance.
+ *
+ * <p>
+ * Aggregates repeat the same values many times: binding URIs, <code>use="signing"</code>,
+ * entity category values, the whitespace used for indentation and certificates shared between
+ * entities. A single instance of this class can be shared between source stages, so that each
+ * distinct value is held in memory only once however many documents it appears in.
+ * </p>
+ *
+ * <p>
+ * Values are held weakly: a value stays in the table only for as long as some document still
+ * refers to it, so that the table does not outlive the documents it was built from. The table is
+ * also bounded by the total length of the values it holds. Once that reaches <code>maxSize</code>
+ * characters, values already in the table continue to be shared but no new values are added until
+ * others have been released. Values longer than <code>maxLength</code> characters are never shared.
+ * </p>
+ *
+ * <p>
+ * Element and attribute names and namespace URIs are not handled here, as the parser already
+ * shares those through its symbol table.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class StringDeduplicator extends BaseInitializableComponent {
+
+    /** Maximum total length, in characters, of the values held in the table. Default value: 4194304 */
+    @GuardedBy("this") private long maxSize = 4L * 1024 * 1024;
+
+    /** Maximum length of a value to be shared. Default value: 8192 */
+    @GuardedBy("this") private int maxLength = 8192;
+
+    /** The shared values, each mapped to a reference to itself. */
+    @Nonnull @GuardedBy("table") private final Map<String, SharedValue> table = new WeakHashMap<>();
+
+    /** Queue on which the references to shared values are placed once the values have been released. */
+    @Nonnull private final ReferenceQueue<String> released = new ReferenceQueue<>();
+
+    /** Total length of the values held in the table. */
+    @GuardedBy("table") private long size;
+
+    /** Number of values replaced by a shared instance. */
+    @Nonnull private final LongAdder hits = new LongAdder();
+
+    /**
+     * Gets the maximum total length, in characters, of the values held in the table.
+     *
+     * @return the maximum total length of the values held in the table
+     */
+    public final synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum total length, in characters, of the values held in the table.
+     *
+     * @param max the maximum total length of the values held in the table
+     */
+    public synchronized void setMaxSize(final long max) {
+        throwSetterPreconditionExceptions();
+        Constraint.isGreaterThanOrEqual(0, max, "Maximum size can not be negative");
+        maxSize = max;
+    }
+
+    /**
+     * Gets the maximum length of a value to be shared.
+     *
+     * @return the maximum length of a value to be shared
+     */
+    public final synchronized int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Sets the maximum length of a value to be shared.
+     *
+     * @param max the maximum length of a value to be shared
+     */
+    public synchronized void setMaxLength(final int max) {
+        throwSetterPreconditionExceptions();
+        Constraint.isGreaterThanOrEqual(0, max, "Maximum length can not be negative");
+        maxLength = max;
+    }
+
+    /**
+     * Gets the number of values held in the table.
+     *
+     * @return the number of values held in the table
+     */
+    public int getSize() {
+        synchronized (table) {
+            expungeReleased();
+            return table.size();
+        }
+    }
+
+    /**
+     * Gets the total length, in characters, of the values held in the table.
+     *
+     * @return the total length of the values held in the table
+     */
+    public long getTotalLength() {
+        synchronized (table) {
+            expungeReleased();
+            return size;
+        }
+    }
+
+    /**
+     * Gets the number of values which have been replaced by a shared instance.
+     *
+     * @return the number of values which have been replaced by a shared instance
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the shared instance of a value.
+     *
+     * @param value the value
+     * @return the shared instance equal to the value, or the value itself if it is not shared
+     */
+    @Nonnull public String deduplicate(@Nonnull final String value) {
+        throwComponentStateExceptions();
+        final int maxLen = getMaxLength();
+        final long maxSz = getMaxSize();
+        synchronized (table) {
+            return share(value, maxLen, maxSz);
+        }
+    }
+
+    /**
+     * Returns the shared instance of a value.
+     *
+     * <p>
+     * The caller must hold the lock on the table.
+     * </p>
+     *
+     * @param value the value
+     * @param maxLen the maximum length of a value to be shared
+     * @param maxSz the maximum total length of the values held in the table
+     * @return the shared instance equal to the value, or the value itself if it is not shared
+     */
+    @Nonnull private String share(@Nonnull final String value, final int maxLen, final long maxSz) {
+        if (value.length() > maxLen) {
+            return value;
+        }
+        final SharedValue ref = table.get(value);
+        if (ref != null) {
+            final String shared = ref.get();
+            if (shared != null) {
+                if (shared != value) {
+                    hits.increment();
+                }
+                return shared;
+            }
+        }
+        expungeReleased();
+        if (size + value.length() > maxSz) {
+            return value;
+        }
+        table.put(value, new SharedValue(value, released));
+        size += value.length();
+        return value;
+    }
+
+    /**
+     * Deducts the length of each value released since the last call from the size of the table.
+     *
+     * <p>
+     * The caller must hold the lock on the table.
+     * </p>
+     */
+    private void expungeReleased() {
+        Reference<? extends String> ref;
+        while ((ref = released.poll()) != null) {
+            size -= ((SharedValue) ref).length;
+        }
+    }
+
+    /**
+     * Replaces the attribute values and text within a DOM subtree by their shared instances.
+     *
+     * @param root the root of the subtree
+     */
+    public void deduplicate(@Nonnull final Node root) {
+        throwComponentStateExceptions();
+        final int maxLen = getMaxLength();
+        final long maxSz = getMaxSize();
+        synchronized (table) {
+            deduplicate(root, maxLen, maxSz);
+        }
+    }
+
+    /**
+     * Replaces the attribute values and text within a DOM subtree by their shared instances.
+     *
+     * <p>
+     * The caller must hold the lock on the table.
+     * </p>
+     *
+     * @param root the root of the subtree
+     * @param maxLen the maximum length of a value to be shared
+     * @param maxSz the maximum total length of the values held in the table
+     */
+    private void deduplicate(@Nonnull final Node root, final int maxLen, final long maxSz) {
+        Node node = root;
+        while (node != null) {
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    final NamedNodeMap attributes = node.getAttributes();
+                    for (int i = 0; i < attributes.getLength(); i++) {
+                        final Attr attribute = (Attr) attributes.item(i);
+                        final String value = attribute.getValue();
+                        final String shared = share(value, maxLen, maxSz);
+                        if (shared != value) {
+                            attribute.setValue(shared);
+                        }
+                    }
+                    break;
+
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    final String data = node.getNodeValue();
+                    final String shared = share(data, maxLen, maxSz);
+                    if (shared != data) {
+                        node.setNodeValue(shared);
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+            node = next(node, root);
+        }
+    }
+
+    /**
+     * Returns the next node in document order within a subtree.
+     *
+     * @param node the current node
+     * @param root the root of the subtree
+     * @return the next node, or <code>null</code> if the subtree has been traversed
+     */
+    private static Node next(@Nonnull final Node node, @Nonnull final Node root) {
+        final Node child = node.getFirstChild();
+        if (child != null) {
+            return child;
+        }
+        Node current = node;
+        while (current != root) {
+            final Node sibling = current.getNextSibling();
+            if (sibling != null) {
+                return sibling;
+            }
+            current = current.getParentNode();
+        }
+        return null;
+    }
+
+    /** A weak reference to a shared value, which remembers the value's length once it has been released. */
+    private static final class SharedValue extends WeakReference<String> {
+
+        /** Length of the value. */
+        private final int length;
+
+        /**
+         * Constructor.
+         *
+         * @param value the shared value
+         * @param queue queue on which the reference is placed once the value has been released
+         */
+        SharedValue(@Nonnull final String value, @Nonnull final ReferenceQueue<String> queue) {
+            super(value, queue);
+            length = value.length();
+        }
+    }
+}
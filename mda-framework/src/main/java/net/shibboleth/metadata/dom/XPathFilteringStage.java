@@ -17,8 +17,12 @@
 
 package net.shibboleth.metadata.dom;
 
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -55,6 +59,16 @@ import net.shibboleth.utilities.java.support.xml.SimpleNamespaceContext;
  * <li><code>xpathExpression</code></li>
  * <li><code>namespaceContext</code></li>
  * </ul>
+ *
+ * <p>
+ * The expression is compiled once, at initialization time, and each thread evaluating it
+ * uses its own compiled instance. Some simple expressions, such as the presence or value of
+ * an attribute on the document element or the presence of a child element, are evaluated
+ * directly against the DOM without using the XPath engine.
+ *
+ * <p>
+ * If an {@link ExecutorService} is provided, the expression is evaluated against the items in
+ * parallel using that service. The order of the remaining items is unaffected.
  */
 @ThreadSafe
 public class XPathFilteringStage extends AbstractStage<Element> {
@@ -70,6 +84,78 @@ public class XPathFilteringStage extends AbstractStage<Element> {
     @Nonnull @GuardedBy("this")
     private NamespaceContext namespaceContext = new SimpleNamespaceContext();
 
+    /** Service used to evaluate the expression in parallel, or <code>null</code> for serial evaluation. */
+    @Nullable @GuardedBy("this")
+    private ExecutorService executorService;
+
+    /** Predicate equivalent to the XPath expression, established at initialization time. */
+    @NonnullAfterInit @GuardedBy("this")
+    private Predicate<Element> condition;
+
+    /**
+     * A {@link Predicate} which evaluates an XPath expression using a compiled instance
+     * for each thread.
+     */
+    private static final class XPathCondition implements Predicate<Element> {
+
+        /** Compiled expression for each thread. */
+        @Nonnull private final ThreadLocal<XPathExpression> expressions;
+
+        /**
+         * Constructor.
+         *
+         * @param initial expression already compiled for the current thread
+         * @param expression the XPath expression
+         * @param namespaceContext the {@link NamespaceContext} to use in interpreting the expression
+         */
+        XPathCondition(@Nonnull final XPathExpression initial, @Nonnull final String expression,
+                @Nonnull final NamespaceContext namespaceContext) {
+            expressions = ThreadLocal.withInitial(() -> {
+                try {
+                    return compile(expression, namespaceContext);
+                } catch (final XPathExpressionException e) {
+                    // This should never occur, as the same expression has already been compiled.
+                    throw new IllegalStateException("error compiling XPath expression", e);
+                }
+            });
+            expressions.set(initial);
+        }
+
+        @Override
+        public boolean test(@Nonnull final Element element) {
+            try {
+                return expressions.get().evaluateExpression(element, Boolean.class);
+            } catch (final XPathExpressionException e) {
+                // Rare in practice; happens, for example, if you use a $variable, as there is
+                // no variable resolver attached to our XPath object.
+                throw new XPathEvaluationException(e);
+            }
+        }
+    }
+
+    /**
+     * Unchecked wrapper for an {@link XPathExpressionException} thrown during evaluation.
+     */
+    private static final class XPathEvaluationException extends RuntimeException {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 4785386436307542617L;
+
+        /**
+         * Constructor.
+         *
+         * @param cause the underlying exception
+         */
+        XPathEvaluationException(@Nonnull final XPathExpressionException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized XPathExpressionException getCause() {
+            return (XPathExpressionException) super.getCause();
+        }
+    }
+
     /**
      * Gets the XPath expression to execute on each {@link DOMElementItem}.
      * 
@@ -113,37 +199,194 @@ public class XPathFilteringStage extends AbstractStage<Element> {
         }
     }
 
-    @Override
-    public void doExecute(@Nonnull @NonnullElements final List<Item<Element>> metadataCollection)
-            throws StageProcessingException {
+    /**
+     * Gets the {@link ExecutorService} used to evaluate the expression in parallel.
+     *
+     * @return the {@link ExecutorService}, or <code>null</code> if evaluation is serial
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Sets the {@link ExecutorService} used to evaluate the expression in parallel.
+     *
+     * The default is <code>null</code>, meaning that items are evaluated serially
+     * on the calling thread.
+     *
+     * @param service the {@link ExecutorService} to use, or <code>null</code>
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setExecutorService(@Nullable final ExecutorService service) {
+        checkSetterPreconditions();
+        executorService = service;
+    }
+
+    /**
+     * Compile an XPath expression.
+     *
+     * @param expression the XPath expression
+     * @param context the {@link NamespaceContext} to use in interpreting the expression
+     * @return the compiled expression
+     * @throws XPathExpressionException if the expression can not be compiled
+     */
+    @Nonnull
+    private static XPathExpression compile(@Nonnull final String expression, @Nonnull final NamespaceContext context)
+            throws XPathExpressionException {
         final XPathFactory factory = XPathFactory.newInstance();
         final XPath xpath = factory.newXPath();
-        xpath.setNamespaceContext(getNamespaceContext());
+        xpath.setNamespaceContext(context);
+        return xpath.compile(expression);
+    }
 
-        final XPathExpression compiledExpression;
+    /**
+     * Build a {@link Predicate} equivalent to the XPath expression.
+     *
+     * @param expression the XPath expression
+     * @param context the {@link NamespaceContext} to use in interpreting the expression
+     * @return the equivalent {@link Predicate}
+     * @throws XPathExpressionException if the expression can not be compiled
+     */
+    @Nonnull
+    private Predicate<Element> buildCondition(@Nonnull final String expression,
+            @Nonnull final NamespaceContext context) throws XPathExpressionException {
+        // Always compile the expression, so that invalid expressions are detected.
+        final XPathExpression compiled = compile(expression, context);
+
+        final Predicate<Element> simple = SimpleXPathPredicates.forExpression(expression, context);
+        if (simple != null) {
+            log.debug("{} pipeline stage evaluating XPath expression directly", getId());
+            return simple;
+        }
+        return new XPathCondition(compiled, expression, context);
+    }
+
+    /**
+     * Gets the {@link Predicate} equivalent to the XPath expression.
+     *
+     * @return the {@link Predicate}
+     * @throws StageProcessingException if the expression can not be compiled
+     */
+    @Nonnull
+    private Predicate<Element> getCondition() throws StageProcessingException {
+        synchronized (this) {
+            if (condition != null) {
+                return condition;
+            }
+        }
+
+        // Not initialized: build a condition for this execution only.
         try {
-            compiledExpression = xpath.compile(getXPathExpression());
+            return buildCondition(getXPathExpression(), getNamespaceContext());
         } catch (final XPathExpressionException e) {
-            // This should never occur, as we attempted the same operation at initialization time.
             throw new StageProcessingException("error compiling XPath expression", e);
         }
+    }
 
-        final Iterator<Item<Element>> iterator = metadataCollection.iterator();
-        while (iterator.hasNext()) {
-            final Item<Element> item = iterator.next();
-            try {
-                if (compiledExpression.evaluateExpression(item.unwrap(), Boolean.class)) {
-                    log.debug("removing item matching XPath condition");
-                    iterator.remove();
+    /**
+     * Evaluate a condition against a range of items.
+     *
+     * @param items the items to evaluate the condition against
+     * @param cond the condition to evaluate
+     * @param results array in which to record the result for each item
+     * @param from index of the first item to evaluate
+     * @param to index after the last item to evaluate
+     */
+    private static void evaluate(@Nonnull @NonnullElements final List<Item<Element>> items,
+            @Nonnull final Predicate<Element> cond, @Nonnull final boolean[] results,
+            final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            results[i] = cond.test(items.get(i).unwrap());
+        }
+    }
+
+    /**
+     * Evaluate a condition against a list of items in parallel.
+     *
+     * @param items the items to evaluate the condition against
+     * @param cond the condition to evaluate
+     * @param results array in which to record the result for each item
+     * @param service the {@link ExecutorService} to use
+     * @throws StageProcessingException if evaluation is interrupted
+     */
+    private void evaluateInParallel(@Nonnull @NonnullElements final List<Item<Element>> items,
+            @Nonnull final Predicate<Element> cond, @Nonnull final boolean[] results,
+            @Nonnull final ExecutorService service) throws StageProcessingException {
+        final int tasks = Math.min(items.size(), Runtime.getRuntime().availableProcessors() * 4);
+        final List<Future<?>> futures = new ArrayList<>(tasks);
+        for (int task = 0; task < tasks; task++) {
+            final int from = (int) ((long) items.size() * task / tasks);
+            final int to = (int) ((long) items.size() * (task + 1) / tasks);
+            futures.add(service.submit(() -> evaluate(items, cond, results, from, to)));
+        }
+
+        boolean success = false;
+        try {
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            success = true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StageProcessingException("interrupted while evaluating XPath expression", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new StageProcessingException("error evaluating XPath expression", e);
+        } finally {
+            // once any range has failed, the others are of no use
+            if (!success) {
+                for (final Future<?> future : futures) {
+                    future.cancel(true);
                 }
-            } catch (final XPathExpressionException e) {
-                // Rare in practice; happens, for example, if you use a $variable, as there is
-                // no variable resolver attached to our XPath object.
-                throw new StageProcessingException("error evaluating XPath expression", e);
             }
         }
     }
 
+    @Override
+    public void doExecute(@Nonnull @NonnullElements final List<Item<Element>> metadataCollection)
+            throws StageProcessingException {
+        final Predicate<Element> cond = getCondition();
+        final ExecutorService service = getExecutorService();
+        final boolean[] results = new boolean[metadataCollection.size()];
+
+        try {
+            if (service == null || metadataCollection.size() < 2) {
+                evaluate(metadataCollection, cond, results, 0, metadataCollection.size());
+            } else {
+                evaluateInParallel(metadataCollection, cond, results, service);
+            }
+        } catch (final XPathEvaluationException e) {
+            throw new StageProcessingException("error evaluating XPath expression", e.getCause());
+        }
+
+        // Remove the matching items in a single pass, preserving the order of the others.
+        final List<Item<Element>> retained = new ArrayList<>(metadataCollection.size());
+        for (int i = 0; i < results.length; i++) {
+            if (results[i]) {
+                log.debug("removing item matching XPath condition");
+            } else {
+                retained.add(metadataCollection.get(i));
+            }
+        }
+        if (retained.size() != metadataCollection.size()) {
+            metadataCollection.clear();
+            metadataCollection.addAll(retained);
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        condition = null;
+
+        super.doDestroy();
+    }
+
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -152,12 +395,9 @@ public class XPathFilteringStage extends AbstractStage<Element> {
             throw new ComponentInitializationException("XPath expression can not be null or empty");
         }
         
-        // Check to see if the expression is valid
-        final var factory = XPathFactory.newInstance();
-        final var xpath = factory.newXPath();
-        xpath.setNamespaceContext(namespaceContext);
+        // Compile the expression, which also checks that it is valid
         try {
-            xpath.compile(xpathExpression);
+            condition = buildCondition(xpathExpression, namespaceContext);
         } catch (final XPathExpressionException e) {
             throw new ComponentInitializationException("error compiling XPath expression", e);
         }
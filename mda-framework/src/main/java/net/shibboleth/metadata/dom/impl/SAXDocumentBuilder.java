@@ -0,0 +1,316 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import net.shibboleth.metadata.dom.StringDeduplicator;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * A SAX content handler which builds DOM documents from the events it receives.
+ *
+ * <p>
+ * By default, a single document is built for the whole of the parsed input. If an item element name is
+ * supplied, a separate document is built instead for each element of that name which is either the document
+ * element or nested within container elements all the way up to the document element. Everything else is
+ * discarded without being built, so that the input as a whole is never held in memory. Each item element
+ * declares all the namespaces it had in scope in the input.
+ * </p>
+ *
+ * <p>
+ * As with the default settings of the parser pools used elsewhere, comments are discarded and adjacent
+ * character data, including CDATA sections, is coalesced into a single text node.
+ * </p>
+ *
+ * <p>
+ * If a {@link StringDeduplicator} is supplied, attribute values and text are replaced by their shared
+ * instances as each node is built, so that duplicate values are never held by the documents at all.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@NotThreadSafe
+public final class SAXDocumentBuilder extends DefaultHandler {
+
+    /** Pool used to create new documents. */
+    @Nonnull private final ParserPool parserPool;
+
+    /** Name of the container elements, or <code>null</code>. */
+    @Nullable private final QName containerName;
+
+    /** Name of the item elements, or <code>null</code> if the whole document is built. */
+    @Nullable private final QName itemName;
+
+    /** Deduplicator applied to attribute values and text, or <code>null</code>. */
+    @Nullable private final StringDeduplicator deduplicator;
+
+    /** Documents built so far. */
+    @Nonnull private final List<Document> documents = new ArrayList<>();
+
+    /** Namespace declarations reported for the next element, as prefix and URI pairs. */
+    @Nonnull private final List<String> pendingDeclarations = new ArrayList<>();
+
+    /** In-scope namespaces of each open element, innermost first. */
+    @Nonnull private final Deque<Map<String, String>> scopes = new ArrayDeque<>();
+
+    /** Character data not yet added to the current node. */
+    @Nonnull private final StringBuilder text = new StringBuilder();
+
+    /** Document being built, if any. */
+    @Nullable private Document document;
+
+    /** Node to which content is being added, or <code>null</code> if content is being discarded. */
+    @Nullable private Node current;
+
+    /** Depth of the current element, with the document element at depth 1. */
+    private int depth;
+
+    /** Depth of the item element being built. */
+    private int itemDepth;
+
+    /** Number of open elements, starting with the document element, which are all containers. */
+    private int containerDepth;
+
+    /**
+     * Constructor.
+     *
+     * @param pool pool used to create new documents
+     * @param container name of the container elements, or <code>null</code>
+     * @param item name of the item elements, or <code>null</code> to build the whole document
+     * @param dedup deduplicator applied to attribute values and text, or <code>null</code>
+     */
+    public SAXDocumentBuilder(@Nonnull final ParserPool pool, @Nullable final QName container,
+            @Nullable final QName item, @Nullable final StringDeduplicator dedup) {
+        parserPool = Constraint.isNotNull(pool, "parser pool can not be null");
+        containerName = container;
+        itemName = item;
+        deduplicator = dedup;
+    }
+
+    /**
+     * Gets the documents built.
+     *
+     * @return the documents built, in document order
+     */
+    @Nonnull @NonnullElements @Unmodifiable public List<Document> getDocuments() {
+        return Collections.unmodifiableList(documents);
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        if (itemName == null) {
+            document = newDocument();
+            current = document;
+        }
+    }
+
+    @Override
+    public void endDocument() {
+        if (itemName == null) {
+            documents.add(document);
+            current = null;
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(final String prefix, final String uri) {
+        pendingDeclarations.add(prefix);
+        pendingDeclarations.add(uri);
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts)
+            throws SAXException {
+        final Map<String, String> parentScope = scopes.isEmpty() ? Map.of() : scopes.peek();
+        Map<String, String> scope = parentScope;
+        if (!pendingDeclarations.isEmpty()) {
+            scope = new HashMap<>(parentScope);
+            for (int i = 0; i < pendingDeclarations.size(); i += 2) {
+                scope.put(pendingDeclarations.get(i), pendingDeclarations.get(i + 1));
+            }
+        }
+        scopes.push(scope);
+        depth++;
+
+        if (current != null) {
+            flushText();
+            final Element element = createElement(uri, qName, atts);
+            declareNamespaces(element, pendingDeclarations);
+            current = current.appendChild(element);
+        } else if (containerDepth == depth - 1) {
+            if (isNamed(itemName, uri, localName)) {
+                document = newDocument();
+                final Element element = createElement(uri, qName, atts);
+                final List<String> inScope = new ArrayList<>();
+                for (final var entry : scope.entrySet()) {
+                    if (!entry.getValue().isEmpty()) {
+                        inScope.add(entry.getKey());
+                        inScope.add(entry.getValue());
+                    }
+                }
+                declareNamespaces(element, inScope);
+                current = document.appendChild(element);
+                itemDepth = depth;
+            } else if (isNamed(containerName, uri, localName)) {
+                containerDepth = depth;
+            }
+        }
+        pendingDeclarations.clear();
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) {
+        if (current != null) {
+            flushText();
+            if (itemName != null && depth == itemDepth) {
+                documents.add(document);
+                current = null;
+            } else {
+                current = current.getParentNode();
+            }
+        } else if (containerDepth == depth) {
+            containerDepth--;
+        }
+        scopes.pop();
+        depth--;
+    }
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length) {
+        if (current != null && depth > 0) {
+            text.append(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(final char[] ch, final int start, final int length) {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(final String target, final String data) {
+        if (current != null) {
+            flushText();
+            current.appendChild(document.createProcessingInstruction(target, data));
+        }
+    }
+
+    /**
+     * Creates a new document.
+     *
+     * @return the new document
+     * @throws SAXException if the document can not be created
+     */
+    @Nonnull private Document newDocument() throws SAXException {
+        try {
+            return parserPool.newDocument();
+        } catch (final XMLParserException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    /**
+     * Creates an element in the current document.
+     *
+     * @param uri the element's namespace URI, or the empty string
+     * @param qName the element's qualified name
+     * @param atts the element's attributes
+     * @return the new element
+     */
+    @Nonnull private Element createElement(@Nonnull final String uri, @Nonnull final String qName,
+            @Nonnull final Attributes atts) {
+        final Element element = document.createElementNS(uri.isEmpty() ? null : uri, qName);
+        for (int i = 0; i < atts.getLength(); i++) {
+            final String attributeURI = atts.getURI(i);
+            element.setAttributeNS(attributeURI.isEmpty() ? null : attributeURI, atts.getQName(i),
+                    share(atts.getValue(i)));
+        }
+        return element;
+    }
+
+    /**
+     * Adds namespace declarations to an element.
+     *
+     * @param element the element
+     * @param declarations the declarations, as prefix and URI pairs
+     */
+    private static void declareNamespaces(@Nonnull final Element element, @Nonnull final List<String> declarations) {
+        for (int i = 0; i < declarations.size(); i += 2) {
+            final String prefix = declarations.get(i);
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                    prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix,
+                    declarations.get(i + 1));
+        }
+    }
+
+    /** Adds any pending character data to the current node. */
+    private void flushText() {
+        if (text.length() > 0) {
+            current.appendChild(document.createTextNode(share(text.toString())));
+            text.setLength(0);
+        }
+    }
+
+    /**
+     * Returns the shared instance of a value, if a deduplicator has been supplied.
+     *
+     * @param value the value
+     * @return the shared instance of the value, or the value itself
+     */
+    @Nonnull private String share(@Nonnull final String value) {
+        return deduplicator == null ? value : deduplicator.deduplicate(value);
+    }
+
+    /**
+     * Checks whether an element has a given name.
+     *
+     * @param name the name, or <code>null</code>
+     * @param uri the element's namespace URI
+     * @param localName the element's local name
+     * @return whether the element has the given name
+     */
+    private static boolean isNamed(@Nullable final QName name, @Nonnull final String uri,
+            @Nonnull final String localName) {
+        return name != null && name.getNamespaceURI().equals(uri) && name.getLocalPart().equals(localName);
+    }
+
+}
@@ -0,0 +1,880 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.XMLConstants;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.spec.ExcC14NParameterSpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import net.shibboleth.metadata.dom.ds.XMLDSIGSupport;
+import net.shibboleth.metadata.dom.impl.XMLSignatureValidator.ValidationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A SAX filter which verifies the enveloped signature on a document element while the document is being parsed.
+ *
+ * <p>
+ * The events passing through the filter are canonicalized and digested as they arrive, so that the reference
+ * digest has been computed by the time the end of the document is reached, without the document having to be
+ * held in memory. Only the <code>ds:Signature</code> element itself is captured as a DOM, so that its
+ * <code>SignedInfo</code> can be canonicalized and its signature value checked as soon as it has been read.
+ * </p>
+ *
+ * <p>
+ * The same checks are applied as by {@link XMLSignatureValidator}: the signature must be a child of the document
+ * element and have exactly one reference, to the document element, with only the enveloped signature transform
+ * and, optionally, an exclusive canonicalization transform. Blacklisted digest and signature algorithms are
+ * rejected. In addition, an exclusive canonicalization transform must follow the enveloped signature transform,
+ * as the document is only ever canonicalized once.
+ * </p>
+ *
+ * <p>
+ * The events preceding the <code>ds:Signature</code> element are buffered until the canonicalization
+ * algorithm is known. In SAML metadata the signature is always the first child element, so this amounts to the
+ * document element's start tag. A signature appearing after another child element can not be verified in a
+ * single pass, and is reported as a failure.
+ * </p>
+ *
+ * <p>
+ * Comments are not seen by a SAX content handler. They are never part of the digest, as both permitted forms
+ * of reference URI exclude them, but a <code>SignedInfo</code> containing comments and canonicalized with
+ * comments will fail to verify.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@NotThreadSafe
+public final class StreamingXMLSignatureVerifier extends XMLFilterImpl {
+
+    /** Number of characters of canonical form accumulated before they are digested. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Java names of the supported digest algorithms, indexed by XML signature algorithm URI. */
+    private static final Map<String, String> DIGEST_ALGORITHMS = Map.of(
+            DigestMethod.SHA1, "SHA-1",
+            DigestMethod.SHA224, "SHA-224",
+            DigestMethod.SHA256, "SHA-256",
+            DigestMethod.SHA384, "SHA-384",
+            DigestMethod.SHA512, "SHA-512",
+            DigestMethod.SHA3_224, "SHA3-224",
+            DigestMethod.SHA3_256, "SHA3-256",
+            DigestMethod.SHA3_384, "SHA3-384",
+            DigestMethod.SHA3_512, "SHA3-512");
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(StreamingXMLSignatureVerifier.class);
+
+    /** Public key used to verify signatures. */
+    @Nonnull private final PublicKey verificationKey;
+
+    /** Set of blacklisted digest algorithms. */
+    @Nonnull private final Set<String> blacklistedDigests;
+
+    /** Set of blacklisted signature methods. */
+    @Nonnull private final Set<String> blacklistedSignatureMethods;
+
+    /** Whether an empty reference is permitted. */
+    private final boolean emptyReferencePermitted;
+
+    /** Whether a failure stops the parse by throwing a {@link SAXException}. */
+    private final boolean stoppingOnFailure;
+
+    /** Document used to hold the captured signature. */
+    @Nonnull private final Document captureDocument;
+
+    /** Namespace declarations reported for the next element, as prefix and URI pairs. */
+    @Nonnull private final List<String> pendingDeclarations = new ArrayList<>();
+
+    /** In-scope namespaces of each open element, innermost first. */
+    @Nonnull private final Deque<Map<String, String>> scopes = new ArrayDeque<>();
+
+    /** Values of the document element's attributes, any of which may be referenced as its ID. */
+    @Nonnull private final Set<String> rootAttributeValues = new HashSet<>();
+
+    /** Events awaiting a canonicalizer, or <code>null</code> if they are no longer being recorded. */
+    @Nullable private List<Consumer<Canonicalizer>> buffered = new ArrayList<>();
+
+    /** Canonicalizer for the signed content, once the signature has been read. */
+    @Nullable private Canonicalizer canonicalizer;
+
+    /** Copy of the document element's start tag, to which the captured signature is attached. */
+    @Nullable private Element captureRoot;
+
+    /** Node to which captured content is being added, or <code>null</code> if not capturing. */
+    @Nullable private Node captureParent;
+
+    /** Depth of the current element, with the document element at depth 1. */
+    private int depth;
+
+    /** Whether the document element has been closed. */
+    private boolean afterRoot;
+
+    /** Whether a <code>ds:Signature</code> child of the document element has been seen. */
+    private boolean signed;
+
+    /** Whether a child of the document element other than a signature has been seen. */
+    private boolean sawOtherChild;
+
+    /** Expected value of the reference digest, once the signature has been read. */
+    @Nullable private byte[] expectedDigest;
+
+    /** Whether the signature has been completely verified. */
+    private boolean verified;
+
+    /** First failure detected, if any. */
+    @Nullable private ValidationException failure;
+
+    /**
+     * Constructor.
+     *
+     * @param key public key with which to verify signatures
+     * @param blacklistDigests set of blacklisted digest algorithm URIs
+     * @param blacklistSignatureMethods set of blacklisted signature method URIs
+     * @param emptyRefPermitted true if empty references are permitted
+     * @param stopOnFailure true if a failure should stop the parse
+     * @param document document used to hold a copy of the signature element
+     */
+    public StreamingXMLSignatureVerifier(@Nonnull final PublicKey key, @Nonnull final Set<String> blacklistDigests,
+            @Nonnull final Set<String> blacklistSignatureMethods, final boolean emptyRefPermitted,
+            final boolean stopOnFailure, @Nonnull final Document document) {
+        verificationKey = Constraint.isNotNull(key, "public key can not be null");
+        blacklistedDigests = Set.copyOf(blacklistDigests);
+        blacklistedSignatureMethods = Set.copyOf(blacklistSignatureMethods);
+        emptyReferencePermitted = emptyRefPermitted;
+        stoppingOnFailure = stopOnFailure;
+        captureDocument = Constraint.isNotNull(document, "capture document can not be null");
+    }
+
+    /**
+     * Gets whether the document element carried a signature.
+     *
+     * @return whether the document element carried a signature
+     */
+    public boolean isSigned() {
+        return signed;
+    }
+
+    /**
+     * Checks the result of verifying the signature, once the document has been parsed.
+     *
+     * @throws ValidationException if the signature could not be verified, or the document was not signed
+     */
+    public void checkSignature() throws ValidationException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (!verified) {
+            throw new ValidationException("XML document was not signed");
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(final String prefix, final String uri) throws SAXException {
+        pendingDeclarations.add(prefix);
+        pendingDeclarations.add(uri);
+        super.startPrefixMapping(prefix, uri);
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts)
+            throws SAXException {
+        final Map<String, String> parentScope = scopes.isEmpty() ? Map.of() : scopes.peek();
+        Map<String, String> scope = parentScope;
+        if (!pendingDeclarations.isEmpty()) {
+            scope = new HashMap<>(parentScope);
+            for (int i = 0; i < pendingDeclarations.size(); i += 2) {
+                scope.put(pendingDeclarations.get(i), pendingDeclarations.get(i + 1));
+            }
+        }
+        scopes.push(scope);
+        depth++;
+
+        if (captureParent != null) {
+            captureParent = captureParent.appendChild(captureElement(uri, qName, atts));
+        } else if (depth == 1) {
+            for (int i = 0; i < atts.getLength(); i++) {
+                rootAttributeValues.add(atts.getValue(i));
+            }
+            captureRoot = captureElement(uri, qName, xmlAttributes(atts));
+            startCanonicalElement(uri, qName, atts, scope, parentScope);
+        } else if (depth == 2 && XMLDSIGSupport.SIGNATURE_NAME.getNamespaceURI().equals(uri)
+                && XMLDSIGSupport.SIGNATURE_NAME.getLocalPart().equals(localName)) {
+            if (signed) {
+                fail(new ValidationException("XML document contained more than one signature, unable to process"));
+            } else {
+                signed = true;
+                if (sawOtherChild) {
+                    fail(new ValidationException("Signature element must be the first child element of the "
+                            + "document element to be verified while streaming"));
+                }
+            }
+            captureParent = captureRoot.appendChild(captureElement(uri, qName, atts));
+        } else {
+            if (depth == 2 && !signed && !sawOtherChild) {
+                // any signature now arrives too late to be verified, so stop recording
+                sawOtherChild = true;
+                buffered = null;
+            }
+            startCanonicalElement(uri, qName, atts, scope, parentScope);
+        }
+        pendingDeclarations.clear();
+
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+        if (captureParent != null) {
+            final Node parent = captureParent.getParentNode();
+            if (parent == captureRoot) {
+                final Element signatureElement = (Element) captureParent;
+                captureParent = null;
+                if (failure == null) {
+                    try {
+                        canonicalizer = processSignature(signatureElement);
+                    } catch (final ValidationException e) {
+                        fail(e);
+                    }
+                }
+            } else {
+                captureParent = parent;
+            }
+        } else {
+            emit(c -> c.endElement(qName));
+            if (depth == 1) {
+                afterRoot = true;
+            }
+        }
+        scopes.pop();
+        depth--;
+
+        super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length) throws SAXException {
+        addText(ch, start, length);
+        super.characters(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(final char[] ch, final int start, final int length) throws SAXException {
+        addText(ch, start, length);
+        super.ignorableWhitespace(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(final String target, final String data) throws SAXException {
+        if (captureParent != null) {
+            captureParent.appendChild(captureDocument.createProcessingInstruction(target, data));
+        } else if (depth > 0) {
+            emit(c -> c.processingInstruction(target, data));
+        } else {
+            final boolean beforeRoot = !afterRoot;
+            emit(c -> c.documentProcessingInstruction(target, data, beforeRoot));
+        }
+        super.processingInstruction(target, data);
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        if (failure == null && canonicalizer != null) {
+            if (MessageDigest.isEqual(canonicalizer.finish(), expectedDigest)) {
+                log.debug("XML document signature verified.");
+                verified = true;
+            } else {
+                fail(new ValidationException("Signature Reference digest did not match the document element"));
+            }
+        }
+        super.endDocument();
+    }
+
+    /**
+     * Adds character data to the captured signature or the canonical form, as appropriate.
+     *
+     * @param ch the characters
+     * @param start the start position in the character array
+     * @param length the number of characters to use from the character array
+     */
+    private void addText(@Nonnull final char[] ch, final int start, final int length) {
+        if (captureParent != null) {
+            final Node last = captureParent.getLastChild();
+            if (last instanceof Text) {
+                ((Text) last).appendData(new String(ch, start, length));
+            } else {
+                captureParent.appendChild(captureDocument.createTextNode(new String(ch, start, length)));
+            }
+        } else if (depth > 0) {
+            final String text = new String(ch, start, length);
+            emit(c -> c.text(text));
+        }
+    }
+
+    /**
+     * Sends an element start event to the canonicalizer.
+     *
+     * @param uri the element's namespace URI, or the empty string
+     * @param qName the element's qualified name
+     * @param atts the element's attributes
+     * @param scope the element's in-scope namespaces
+     * @param parentScope the in-scope namespaces of the element's parent
+     */
+    private void startCanonicalElement(@Nonnull final String uri, @Nonnull final String qName,
+            @Nonnull final Attributes atts, @Nonnull final Map<String, String> scope,
+            @Nonnull final Map<String, String> parentScope) {
+        if (failure != null || (canonicalizer == null && buffered == null)) {
+            return;
+        }
+        final Attributes copy = canonicalizer == null ? new AttributesImpl(atts) : atts;
+        emit(c -> c.startElement(qName, copy, scope, parentScope));
+    }
+
+    /**
+     * Passes an event to the canonicalizer, or records it until there is one.
+     *
+     * @param event the event
+     */
+    private void emit(@Nonnull final Consumer<Canonicalizer> event) {
+        if (failure != null) {
+            return;
+        }
+        if (canonicalizer != null) {
+            event.accept(canonicalizer);
+        } else if (buffered != null) {
+            buffered.add(event);
+        }
+    }
+
+    /**
+     * Records a failure, stopping the parse if required.
+     *
+     * @param e the failure
+     * @throws SAXException to stop the parse, if required
+     */
+    private void fail(@Nonnull final ValidationException e) throws SAXException {
+        if (failure == null) {
+            log.debug("streaming signature verification failed: {}", e.getMessage());
+            failure = e;
+        }
+        buffered = null;
+        canonicalizer = null;
+        if (stoppingOnFailure) {
+            throw new SAXException(e);
+        }
+    }
+
+    /**
+     * Creates a copy of an element for the captured signature.
+     *
+     * @param uri the element's namespace URI, or the empty string
+     * @param qName the element's qualified name
+     * @param atts the element's attributes
+     * @return the copy
+     */
+    @Nonnull private Element captureElement(@Nonnull final String uri, @Nonnull final String qName,
+            @Nonnull final Attributes atts) {
+        final Element element = captureDocument.createElementNS(uri.isEmpty() ? null : uri, qName);
+        for (int i = 0; i < pendingDeclarations.size(); i += 2) {
+            final String prefix = pendingDeclarations.get(i);
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                    prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix,
+                    pendingDeclarations.get(i + 1));
+        }
+        for (int i = 0; i < atts.getLength(); i++) {
+            final String attributeURI = atts.getURI(i);
+            element.setAttributeNS(attributeURI.isEmpty() ? null : attributeURI, atts.getQName(i), atts.getValue(i));
+        }
+        return element;
+    }
+
+    /**
+     * Selects the attributes in the XML namespace, which are inherited by the signature when it is canonicalized.
+     *
+     * @param atts all attributes
+     * @return the attributes in the XML namespace
+     */
+    @Nonnull private static Attributes xmlAttributes(@Nonnull final Attributes atts) {
+        final var selected = new AttributesImpl();
+        for (int i = 0; i < atts.getLength(); i++) {
+            if (XMLConstants.XML_NS_URI.equals(atts.getURI(i))) {
+                selected.addAttribute(atts.getURI(i), atts.getLocalName(i), atts.getQName(i), atts.getType(i),
+                        atts.getValue(i));
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Checks a captured signature and verifies its signature value.
+     *
+     * @param signatureElement the captured signature
+     * @return a canonicalizer for the signed content, primed with any buffered events
+     * @throws ValidationException if any of a number of invalid conditions are detected
+     */
+    @Nonnull private Canonicalizer processSignature(@Nonnull final Element signatureElement)
+            throws ValidationException {
+        final var context = new DOMValidateContext(verificationKey, signatureElement);
+        // algorithms are restricted by the blacklists, as for XMLSignatureValidator
+        context.setProperty("org.jcp.xml.dsig.secureValidation", Boolean.FALSE);
+        final XMLSignature signature;
+        try {
+            signature = XMLSignatureFactory.getInstance("DOM").unmarshalXMLSignature(context);
+        } catch (final MarshalException e) {
+            throw new ValidationException("Unable to read XML signature", e);
+        }
+
+        if (!signature.getObjects().isEmpty()) {
+            throw new ValidationException("Signature contained an Object element, this is not allowed");
+        }
+
+        final List<Reference> references = signature.getSignedInfo().getReferences();
+        if (references.size() != 1) {
+            throw new ValidationException("Signature SignedInfo had invalid number of References: "
+                    + references.size());
+        }
+        final Reference reference = references.get(0);
+        final String referenceURI = reference.getURI() == null ? "" : reference.getURI();
+        if (referenceURI.isEmpty()) {
+            if (!emptyReferencePermitted) {
+                throw new ValidationException("empty references are not permitted");
+            }
+        } else if (!referenceURI.startsWith("#")) {
+            throw new ValidationException("Signature Reference URI was not a document fragment reference: " +
+                    referenceURI);
+        } else if (!rootAttributeValues.contains(referenceURI.substring(1))) {
+            throw new ValidationException("Signature Reference URI \"" + referenceURI
+                    + "\" was resolved to a node other than the document element");
+        }
+
+        final String digestAlgorithm = reference.getDigestMethod().getAlgorithm();
+        log.debug("blacklist checking digest {}", digestAlgorithm);
+        if (blacklistedDigests.contains(digestAlgorithm)) {
+            throw new ValidationException("Digest algorithm " + digestAlgorithm + " is blacklisted");
+        }
+
+        final String signatureAlgorithm = signature.getSignedInfo().getSignatureMethod().getAlgorithm();
+        log.debug("blacklist checking signature method {}", signatureAlgorithm);
+        if (blacklistedSignatureMethods.contains(signatureAlgorithm)) {
+            throw new ValidationException("Signature algorithm " + signatureAlgorithm + " is blacklisted");
+        }
+
+        try {
+            if (!signature.getSignatureValue().validate(context)) {
+                throw new ValidationException("XML document signature verification failed");
+            }
+        } catch (final XMLSignatureException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to validate signature", e);
+            }
+            throw new ValidationException("XML document signature verification failed with an error: " +
+                    e.getMessage());
+        }
+
+        final Canonicalizer result = new Canonicalizer(newDigest(digestAlgorithm),
+                exclusivePrefixes(reference.getTransforms()), referenceURI.isEmpty());
+        expectedDigest = reference.getDigestValue();
+        if (buffered != null) {
+            for (final var event : buffered) {
+                event.accept(result);
+            }
+            buffered = null;
+        }
+        return result;
+    }
+
+    /**
+     * Validate the transforms included in the Signature Reference, returning the exclusive canonicalization
+     * prefix list, if any.
+     *
+     * The Reference may contain at most 2 transforms. The first must be the Enveloped signature transform. An
+     * Exclusive Canonicalization transform (with or without comments) may follow it. No other transforms are
+     * allowed.
+     *
+     * @param transforms the transforms from the Signature reference
+     * @return the inclusive namespace prefixes of an exclusive canonicalization transform, or <code>null</code>
+     *  if there is no such transform and inclusive canonicalization applies
+     * @throws ValidationException if the transforms are incorrect
+     */
+    @Nullable private Set<String> exclusivePrefixes(@Nonnull final List<Transform> transforms)
+            throws ValidationException {
+        if (transforms.size() > 2) {
+            throw new ValidationException("Invalid number of Transforms was present: " + transforms.size());
+        }
+
+        boolean sawEnveloped = false;
+        boolean canonicalizedFirst = false;
+        Set<String> prefixes = null;
+        for (final Transform transform : transforms) {
+            final String uri = transform.getAlgorithm();
+            if (Transform.ENVELOPED.equals(uri)) {
+                log.debug("Saw Enveloped signature transform");
+                sawEnveloped = true;
+            } else if (CanonicalizationMethod.EXCLUSIVE.equals(uri)
+                    || CanonicalizationMethod.EXCLUSIVE_WITH_COMMENTS.equals(uri)) {
+                log.debug("Saw Exclusive C14N signature transform");
+                canonicalizedFirst = !sawEnveloped;
+                prefixes = new HashSet<>();
+                if (transform.getParameterSpec() instanceof ExcC14NParameterSpec) {
+                    for (final String prefix : ((ExcC14NParameterSpec) transform.getParameterSpec()).getPrefixList()) {
+                        prefixes.add("#default".equals(prefix) ? "" : prefix);
+                    }
+                }
+            } else {
+                throw new ValidationException("Saw invalid signature transform: " + uri);
+            }
+        }
+
+        if (!sawEnveloped) {
+            throw new ValidationException("Signature was missing the required Enveloped signature transform");
+        }
+        if (canonicalizedFirst) {
+            throw new ValidationException(
+                    "Exclusive C14N transform preceding the Enveloped signature transform is not supported");
+        }
+        return prefixes;
+    }
+
+    /**
+     * Creates a message digest for a digest algorithm.
+     *
+     * @param algorithm XML signature digest algorithm URI
+     * @return a new message digest
+     * @throws ValidationException if the algorithm is not supported
+     */
+    @Nonnull private static MessageDigest newDigest(@Nonnull final String algorithm) throws ValidationException {
+        final String name = DIGEST_ALGORITHMS.get(algorithm);
+        if (name == null) {
+            throw new ValidationException("Digest algorithm " + algorithm + " is not supported");
+        }
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new ValidationException("Digest algorithm " + algorithm + " is not supported", e);
+        }
+    }
+
+    /**
+     * Produces the canonical form of the signed content, after the enveloped signature transform,
+     * and digests it.
+     *
+     * <p>
+     * Canonical XML 1.0 is used if the exclusive prefix list is <code>null</code>, and Exclusive XML
+     * Canonicalization 1.0 otherwise. Comments are never seen, as both permitted reference forms exclude them.
+     * </p>
+     */
+    private static final class Canonicalizer {
+
+        /** Digest of the canonical form. */
+        @Nonnull private final MessageDigest digest;
+
+        /** Inclusive namespace prefixes for exclusive canonicalization, or <code>null</code> for inclusive. */
+        @Nullable private final Set<String> exclusivePrefixes;
+
+        /** Whether the whole document is signed, rather than just its document element. */
+        private final boolean wholeDocument;
+
+        /** Canonical form not yet digested. */
+        @Nonnull private final StringBuilder out = new StringBuilder(BUFFER_SIZE + 1024);
+
+        /** Namespaces rendered on each open element, innermost first, for exclusive canonicalization. */
+        @Nonnull private final Deque<Map<String, String>> rendered = new ArrayDeque<>();
+
+        /**
+         * Constructor.
+         *
+         * @param messageDigest digest of the canonical form
+         * @param prefixes inclusive namespace prefixes for exclusive canonicalization, or <code>null</code>
+         * @param document whether the whole document is signed
+         */
+        Canonicalizer(@Nonnull final MessageDigest messageDigest, @Nullable final Set<String> prefixes,
+                final boolean document) {
+            digest = messageDigest;
+            exclusivePrefixes = prefixes;
+            wholeDocument = document;
+        }
+
+        /**
+         * Canonicalizes an element start tag.
+         *
+         * @param qName the element's qualified name
+         * @param atts the element's attributes
+         * @param scope the element's in-scope namespaces
+         * @param parentScope the in-scope namespaces of the element's parent
+         */
+        void startElement(@Nonnull final String qName, @Nonnull final Attributes atts,
+                @Nonnull final Map<String, String> scope, @Nonnull final Map<String, String> parentScope) {
+            final Map<String, String> declarations = new TreeMap<>();
+            if (exclusivePrefixes == null) {
+                for (final var entry : scope.entrySet()) {
+                    declare(declarations, entry.getKey(), scope, parentScope);
+                }
+            } else {
+                final Map<String, String> parentRendered = rendered.isEmpty() ? Map.of() : rendered.peek();
+                declare(declarations, prefix(qName), scope, parentRendered);
+                for (int i = 0; i < atts.getLength(); i++) {
+                    final String prefix = prefix(atts.getQName(i));
+                    if (!prefix.isEmpty()) {
+                        declare(declarations, prefix, scope, parentRendered);
+                    }
+                }
+                for (final String prefix : exclusivePrefixes) {
+                    declare(declarations, prefix, scope, parentRendered);
+                }
+                if (declarations.isEmpty()) {
+                    rendered.push(parentRendered);
+                } else {
+                    final Map<String, String> nowRendered = new HashMap<>(parentRendered);
+                    nowRendered.putAll(declarations);
+                    rendered.push(nowRendered);
+                }
+            }
+
+            out.append('<').append(qName);
+            for (final var entry : declarations.entrySet()) {
+                out.append(' ').append(XMLConstants.XMLNS_ATTRIBUTE);
+                if (!entry.getKey().isEmpty()) {
+                    out.append(':').append(entry.getKey());
+                }
+                out.append("=\"");
+                appendAttributeValue(entry.getValue());
+                out.append('"');
+            }
+
+            final Integer[] order = new Integer[atts.getLength()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.<Integer, String>comparing(atts::getURI).thenComparing(atts::getLocalName));
+            for (final int i : order) {
+                out.append(' ').append(atts.getQName(i)).append("=\"");
+                appendAttributeValue(atts.getValue(i));
+                out.append('"');
+            }
+            out.append('>');
+            flushIfFull();
+        }
+
+        /**
+         * Adds a namespace declaration to be rendered, if the namespace is in scope and has not already been
+         * rendered with the same value.
+         *
+         * @param declarations the declarations to be rendered
+         * @param prefix the namespace prefix, or the empty string for the default namespace
+         * @param scope the in-scope namespaces
+         * @param previous the namespaces already rendered
+         */
+        private static void declare(@Nonnull final Map<String, String> declarations, @Nonnull final String prefix,
+                @Nonnull final Map<String, String> scope, @Nonnull final Map<String, String> previous) {
+            String value = scope.get(prefix);
+            String previousValue = previous.get(prefix);
+            if (prefix.isEmpty()) {
+                // an absent default namespace is rendered as xmlns=""
+                value = value == null ? "" : value;
+                previousValue = previousValue == null ? "" : previousValue;
+            } else if (value == null) {
+                return;
+            }
+            if (!value.equals(previousValue)) {
+                declarations.put(prefix, value);
+            }
+        }
+
+        /**
+         * Canonicalizes an element end tag.
+         *
+         * @param qName the element's qualified name
+         */
+        void endElement(@Nonnull final String qName) {
+            out.append("</").append(qName).append('>');
+            if (exclusivePrefixes != null) {
+                rendered.pop();
+            }
+            flushIfFull();
+        }
+
+        /**
+         * Canonicalizes character data.
+         *
+         * @param text the character data
+         */
+        void text(@Nonnull final String text) {
+            for (int i = 0; i < text.length(); i++) {
+                final char c = text.charAt(i);
+                switch (c) {
+                    case '&':
+                        out.append("&amp;");
+                        break;
+                    case '<':
+                        out.append("&lt;");
+                        break;
+                    case '>':
+                        out.append("&gt;");
+                        break;
+                    case '\r':
+                        out.append("&#xD;");
+                        break;
+                    default:
+                        out.append(c);
+                }
+            }
+            flushIfFull();
+        }
+
+        /**
+         * Canonicalizes a processing instruction within the document element.
+         *
+         * @param target the processing instruction target
+         * @param data the processing instruction data
+         */
+        void processingInstruction(@Nonnull final String target, @Nullable final String data) {
+            out.append("<?").append(target);
+            if (data != null && !data.isEmpty()) {
+                out.append(' ').append(data);
+            }
+            out.append("?>");
+            flushIfFull();
+        }
+
+        /**
+         * Canonicalizes a processing instruction outside the document element, which is only signed
+         * if the whole document is.
+         *
+         * @param target the processing instruction target
+         * @param data the processing instruction data
+         * @param beforeRoot whether the processing instruction precedes the document element
+         */
+        void documentProcessingInstruction(@Nonnull final String target, @Nullable final String data,
+                final boolean beforeRoot) {
+            if (wholeDocument) {
+                if (!beforeRoot) {
+                    out.append('\n');
+                }
+                processingInstruction(target, data);
+                if (beforeRoot) {
+                    out.append('\n');
+                }
+            }
+        }
+
+        /**
+         * Completes the digest of the canonical form.
+         *
+         * @return the digest value
+         */
+        @Nonnull byte[] finish() {
+            digest.update(out.toString().getBytes(StandardCharsets.UTF_8));
+            out.setLength(0);
+            return digest.digest();
+        }
+
+        /**
+         * Canonicalizes an attribute or namespace declaration value.
+         *
+         * @param value the value
+         */
+        private void appendAttributeValue(@Nonnull final String value) {
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                switch (c) {
+                    case '&':
+                        out.append("&amp;");
+                        break;
+                    case '<':
+                        out.append("&lt;");
+                        break;
+                    case '"':
+                        out.append("&quot;");
+                        break;
+                    case '\t':
+                        out.append("&#x9;");
+                        break;
+                    case '\n':
+                        out.append("&#xA;");
+                        break;
+                    case '\r':
+                        out.append("&#xD;");
+                        break;
+                    default:
+                        out.append(c);
+                }
+            }
+        }
+
+        /** Digests the accumulated canonical form once there is enough of it. */
+        private void flushIfFull() {
+            if (out.length() >= BUFFER_SIZE) {
+                // keep a trailing high surrogate back so that its pair is encoded together
+                final int end = Character.isHighSurrogate(out.charAt(out.length() - 1)) ? out.length() - 1
+                        : out.length();
+                digest.update(out.substring(0, end).getBytes(StandardCharsets.UTF_8));
+                out.delete(0, end);
+            }
+        }
+
+        /**
+         * Gets the prefix of a qualified name.
+         *
+         * @param qName the qualified name
+         * @return the prefix, or the empty string if there is none
+         */
+        @Nonnull private static String prefix(@Nonnull final String qName) {
+            final int colon = qName.indexOf(':');
+            return colon < 0 ? "" : qName.substring(0, colon);
+        }
+    }
+
+}
@@ -0,0 +1,685 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * Writes a DOM {@link Document} as UTF-8 encoded XML, producing exactly the same bytes as the JAXP identity
+ * transform with the <code>encoding</code> output property set to <code>UTF-8</code>.
+ *
+ * <p>
+ * Names are encoded once and cached, and the output buffer is reused between documents, so that an
+ * instance can serialize many documents cheaply. Documents whose serialization by the identity transform
+ * involves anything other than straightforward escaping are not written; these include documents which are
+ * not XML 1.0, which rely on namespace prefixes not declared by attributes, which contain entity references,
+ * or whose comments, processing instructions or CDATA sections would be altered in serialization. The caller
+ * is expected to fall back to the identity transform for these.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@NotThreadSafe
+public final class UTF8DocumentWriter {
+
+    /** Initial size of the output buffer. */
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    /** Largest output buffer retained between documents. */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    /** Largest number of encoded names cached. */
+    private static final int MAX_CACHED_NAMES = 4096;
+
+    /** Largest number of bytes which may be written for a single character. */
+    private static final int MAX_CHARACTER_BYTES = 10;
+
+    /** Prefix of the names of namespace declaration attributes. */
+    private static final String XMLNS = XMLConstants.XMLNS_ATTRIBUTE;
+
+    /** Prefix reserved for XML; the identity transform never declares prefixes beginning with it. */
+    private static final String XML = XMLConstants.XML_NS_PREFIX;
+
+    /** Prefix of the targets of processing instructions which control the identity transform's output. */
+    private static final String TRANSFORM_PI_PREFIX = "javax.xml.transform.";
+
+    /** Characters below this may be replaced by {@link #TEXT_ESCAPES} or {@link #ATTRIBUTE_ESCAPES}. */
+    private static final int ESCAPES_SIZE = 0xa0;
+
+    /** Replacements for characters in character data, or <code>null</code> where none is needed. */
+    private static final byte[][] TEXT_ESCAPES = new byte[ESCAPES_SIZE][];
+
+    /** Replacements for characters in attribute values, or <code>null</code> where none is needed. */
+    private static final byte[][] ATTRIBUTE_ESCAPES = new byte[ESCAPES_SIZE][];
+
+    /** Encoded form of the platform line separator, with which the identity transform replaces newlines. */
+    private static final byte[] LINE_SEPARATOR = bytes(System.lineSeparator());
+
+    /** Encoded XML declaration for a document which is declared to be standalone. */
+    private static final byte[] STANDALONE_DECLARATION = bytes("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+
+    /** Encoded XML declaration for a document which is not declared to be standalone. */
+    private static final byte[] DECLARATION =
+            bytes("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
+
+    /** Encoded start of a CDATA section. */
+    private static final byte[] CDATA_START = bytes("<![CDATA[");
+
+    /** Encoded end of a CDATA section. */
+    private static final byte[] CDATA_END = bytes("]]>");
+
+    /** Encoded start of a comment. */
+    private static final byte[] COMMENT_START = bytes("<!--");
+
+    /** Encoded end of a comment. */
+    private static final byte[] COMMENT_END = bytes("-->");
+
+    /** Encoded start of a processing instruction. */
+    private static final byte[] PI_START = bytes("<?");
+
+    /** Encoded end of a processing instruction. */
+    private static final byte[] PI_END = bytes("?>");
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            TEXT_ESCAPES[c] = reference(c);
+            ATTRIBUTE_ESCAPES[c] = reference(c);
+        }
+        TEXT_ESCAPES['\t'] = null;
+        TEXT_ESCAPES['\n'] = LINE_SEPARATOR;
+        TEXT_ESCAPES['&'] = bytes("&amp;");
+        TEXT_ESCAPES['<'] = bytes("&lt;");
+        TEXT_ESCAPES['>'] = bytes("&gt;");
+        // the C1 controls, and delete, are only escaped in character data
+        for (int c = 0x7f; c < ESCAPES_SIZE; c++) {
+            TEXT_ESCAPES[c] = reference(c);
+        }
+        ATTRIBUTE_ESCAPES['&'] = TEXT_ESCAPES['&'];
+        ATTRIBUTE_ESCAPES['<'] = TEXT_ESCAPES['<'];
+        ATTRIBUTE_ESCAPES['>'] = TEXT_ESCAPES['>'];
+        ATTRIBUTE_ESCAPES['"'] = bytes("&quot;");
+    }
+
+    /** Encoded names of elements and attributes, by name. */
+    @Nonnull private final Map<String, byte[]> names = new HashMap<>();
+
+    /** Prefixes of the namespace declarations in scope, innermost last. */
+    @Nonnull private final List<String> scopePrefixes = new ArrayList<>();
+
+    /** Namespace names of the namespace declarations in scope, parallel to {@link #scopePrefixes}. */
+    @Nonnull private final List<String> scopeURIs = new ArrayList<>();
+
+    /** Output buffer. */
+    @Nonnull private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /** Number of bytes written to the output buffer. */
+    private int length;
+
+    /**
+     * Serializes a document.
+     *
+     * @param document the document to serialize
+     * @return the serialized document, or <code>null</code> if the document can not be serialized
+     *      identically to the identity transform by this writer
+     */
+    @Nullable public byte[] write(@Nonnull final Document document) {
+        try {
+            return writeDocument(document) ? Arrays.copyOf(buffer, length) : null;
+        } finally {
+            length = 0;
+            scopePrefixes.clear();
+            scopeURIs.clear();
+            if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                buffer = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+    }
+
+    /**
+     * Writes a document to the output buffer.
+     *
+     * @param document the document to write
+     * @return <code>true</code> if the document has been written
+     */
+    private boolean writeDocument(@Nonnull final Document document) {
+        final Element root = document.getDocumentElement();
+        if (root == null || !"1.0".equals(document.getXmlVersion()) || isHTML(root)) {
+            return false;
+        }
+
+        // the identity transform's initial namespace context
+        scopePrefixes.add("");
+        scopeURIs.add("");
+        append(document.getXmlStandalone() ? STANDALONE_DECLARATION : DECLARATION);
+        for (Node child = document.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    if (!writeElement((Element) child, true)) {
+                        return false;
+                    }
+                    break;
+
+                case Node.COMMENT_NODE:
+                    if (!writeComment(((CharacterData) child).getData())) {
+                        return false;
+                    }
+                    break;
+
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    if (!writeProcessingInstruction((ProcessingInstruction) child)) {
+                        return false;
+                    }
+                    break;
+
+                case Node.DOCUMENT_TYPE_NODE:
+                    // not serialized by the identity transform
+                    break;
+
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether the identity transform would serialize a document as HTML, which it does if the
+     * document element is called <code>html</code> in no namespace.
+     *
+     * @param root the document element
+     * @return <code>true</code> if the document would be serialized as HTML
+     */
+    private static boolean isHTML(@Nonnull final Element root) {
+        final String uri = root.getNamespaceURI();
+        final String name = root.getLocalName() != null ? root.getLocalName() : root.getNodeName();
+        return (uri == null || uri.isEmpty()) && "html".equalsIgnoreCase(name);
+    }
+
+    /**
+     * Writes an element and its descendants to the output buffer.
+     *
+     * @param element the element to write
+     * @param root whether the element is the document element
+     * @return <code>true</code> if the element has been written
+     */
+    private boolean writeElement(@Nonnull final Element element, final boolean root) {
+        if (element.getLocalName() == null) {
+            return false;
+        }
+        final int scopeSize = scopePrefixes.size();
+        final byte[] name = name(element.getNodeName());
+        append((byte) '<');
+        append(name);
+
+        // namespace declarations come first, omitting any which are already in scope
+        Attr ownDeclaration = null;
+        if (root) {
+            // the identity transform moves the declaration of the document element's own prefix to the front
+            final String prefix = element.getPrefix();
+            ownDeclaration = element.getAttributeNode(prefix == null ? XMLNS : XMLNS + ':' + prefix);
+            if (ownDeclaration != null && !writeDeclaration(ownDeclaration)) {
+                return false;
+            }
+        }
+        final NamedNodeMap attributes = element.getAttributes();
+        final int attributeCount = attributes.getLength();
+        for (int i = 0; i < attributeCount; i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            if (attribute != ownDeclaration && attribute.getName().startsWith(XMLNS) &&
+                    !writeDeclaration(attribute)) {
+                return false;
+            }
+        }
+
+        // the identity transform would declare the element's namespace itself if it were not in scope
+        if (!isInScope(element.getPrefix(), element.getNamespaceURI())) {
+            return false;
+        }
+
+        for (int i = 0; i < attributeCount; i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            final String attributeName = attribute.getName();
+            if (!attributeName.startsWith(XMLNS)) {
+                if (attribute.getLocalName() == null) {
+                    return false;
+                }
+                final String uri = attribute.getNamespaceURI();
+                if (uri != null && !uri.isEmpty()) {
+                    final String prefix = attribute.getPrefix();
+                    if (prefix == null || !isInScope(prefix, uri)) {
+                        return false;
+                    }
+                }
+                if (!writeAttribute(attributeName, attribute.getValue())) {
+                    return false;
+                }
+            }
+        }
+
+        boolean startTagOpen = true;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            final short type = child.getNodeType();
+            if (type == Node.TEXT_NODE && ((CharacterData) child).getLength() == 0) {
+                // writes nothing, so does not close the start tag
+                continue;
+            }
+            if (startTagOpen) {
+                append((byte) '>');
+                startTagOpen = false;
+            }
+            final boolean written;
+            switch (type) {
+                case Node.ELEMENT_NODE:
+                    written = writeElement((Element) child, false);
+                    break;
+
+                case Node.TEXT_NODE:
+                    written = writeEscaped(((CharacterData) child).getData(), TEXT_ESCAPES);
+                    break;
+
+                case Node.CDATA_SECTION_NODE:
+                    written = writeCDATASection(((CharacterData) child).getData());
+                    break;
+
+                case Node.COMMENT_NODE:
+                    written = writeComment(((CharacterData) child).getData());
+                    break;
+
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    written = writeProcessingInstruction((ProcessingInstruction) child);
+                    break;
+
+                default:
+                    written = false;
+            }
+            if (!written) {
+                return false;
+            }
+        }
+
+        if (startTagOpen) {
+            append((byte) '/');
+        } else {
+            append((byte) '<');
+            append((byte) '/');
+            append(name);
+        }
+        append((byte) '>');
+
+        scopePrefixes.subList(scopeSize, scopePrefixes.size()).clear();
+        scopeURIs.subList(scopeSize, scopeURIs.size()).clear();
+        return true;
+    }
+
+    /**
+     * Writes a namespace declaration to the output buffer, unless it is already in scope.
+     *
+     * @param attribute the namespace declaration attribute
+     * @return <code>true</code> if the declaration has been written or is already in scope
+     */
+    private boolean writeDeclaration(@Nonnull final Attr attribute) {
+        final String attributeName = attribute.getName();
+        final String prefix;
+        if (attributeName.length() == XMLNS.length()) {
+            prefix = "";
+        } else if (attributeName.length() > XMLNS.length() + 1 && attributeName.charAt(XMLNS.length()) == ':') {
+            prefix = attributeName.substring(XMLNS.length() + 1);
+        } else {
+            return false;
+        }
+        final String uri = attribute.getValue();
+        if (XML.equals(prefix) && XMLConstants.XML_NS_URI.equals(uri)) {
+            // the identity transform never declares the xml prefix
+            return true;
+        }
+        if (prefix.startsWith(XML) || !prefix.isEmpty() && uri.isEmpty()) {
+            return false;
+        }
+        if (!uri.equals(lookup(prefix))) {
+            scopePrefixes.add(prefix);
+            scopeURIs.add(uri);
+            return writeAttribute(attributeName, uri);
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether a node's namespace is already in scope with the node's prefix.
+     *
+     * @param prefix the node's prefix, or <code>null</code> if it has none
+     * @param uri the node's namespace name, or <code>null</code> if it has none
+     * @return <code>true</code> if the namespace is in scope
+     */
+    private boolean isInScope(@Nullable final String prefix, @Nullable final String uri) {
+        final String p = prefix == null ? "" : prefix;
+        final String u = uri == null ? "" : uri;
+        if (XML.equals(p)) {
+            return XMLConstants.XML_NS_URI.equals(u);
+        }
+        return !p.startsWith(XML) && u.equals(lookup(p));
+    }
+
+    /**
+     * Looks up the namespace name bound to a prefix.
+     *
+     * @param prefix the prefix
+     * @return the namespace name, or <code>null</code> if the prefix is not bound
+     */
+    @Nullable private String lookup(@Nonnull final String prefix) {
+        for (int i = scopePrefixes.size() - 1; i >= 0; i--) {
+            if (scopePrefixes.get(i).equals(prefix)) {
+                return scopeURIs.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes an attribute to the output buffer.
+     *
+     * @param name the attribute's name
+     * @param value the attribute's value
+     * @return <code>true</code> if the attribute has been written
+     */
+    private boolean writeAttribute(@Nonnull final String name, @Nonnull final String value) {
+        append((byte) ' ');
+        append(name(name));
+        append((byte) '=');
+        append((byte) '"');
+        if (!writeEscaped(value, ATTRIBUTE_ESCAPES)) {
+            return false;
+        }
+        append((byte) '"');
+        return true;
+    }
+
+    /**
+     * Writes a CDATA section to the output buffer.
+     *
+     * @param data the content of the section
+     * @return <code>true</code> if the section has been written
+     */
+    private boolean writeCDATASection(@Nonnull final String data) {
+        // the identity transform omits empty sections, and splits those it can not represent directly
+        if (data.isEmpty() || data.contains("]]>") || !isPlain(data)) {
+            return false;
+        }
+        append(CDATA_START);
+        for (int start = 0; start <= data.length();) {
+            final int newline = data.indexOf('\n', start);
+            final int end = newline < 0 ? data.length() : newline;
+            if (!writeUnescaped(data, start, end)) {
+                return false;
+            }
+            if (newline < 0) {
+                break;
+            }
+            append(LINE_SEPARATOR);
+            start = newline + 1;
+        }
+        append(CDATA_END);
+        return true;
+    }
+
+    /**
+     * Writes a comment to the output buffer.
+     *
+     * @param data the content of the comment
+     * @return <code>true</code> if the comment has been written
+     */
+    private boolean writeComment(@Nonnull final String data) {
+        // the identity transform inserts spaces to make such comments well-formed
+        if (data.contains("--") || data.endsWith("-")) {
+            return false;
+        }
+        append(COMMENT_START);
+        if (!writeUnescaped(data, 0, data.length())) {
+            return false;
+        }
+        append(COMMENT_END);
+        return true;
+    }
+
+    /**
+     * Writes a processing instruction to the output buffer.
+     *
+     * @param instruction the processing instruction
+     * @return <code>true</code> if the processing instruction has been written
+     */
+    private boolean writeProcessingInstruction(@Nonnull final ProcessingInstruction instruction) {
+        final String target = instruction.getTarget();
+        final String data = instruction.getData();
+        if (target.startsWith(TRANSFORM_PI_PREFIX) || data.contains("?>") ||
+                !data.isEmpty() && Character.isWhitespace(data.charAt(0))) {
+            return false;
+        }
+        append(PI_START);
+        if (!writeUnescaped(target, 0, target.length())) {
+            return false;
+        }
+        if (!data.isEmpty()) {
+            append((byte) ' ');
+            if (!writeUnescaped(data, 0, data.length())) {
+                return false;
+            }
+        }
+        append(PI_END);
+        return true;
+    }
+
+    /**
+     * Determines whether a string contains only characters which the identity transform writes directly
+     * in CDATA sections, which excludes the C0 control characters other than whitespace and characters
+     * outside the Basic Multilingual Plane.
+     *
+     * @param data the string
+     * @return <code>true</code> if the string contains only such characters
+     */
+    private static boolean isPlain(@Nonnull final String data) {
+        for (int i = 0; i < data.length(); i++) {
+            final char c = data.charAt(i);
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' || Character.isSurrogate(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a string to the output buffer, escaping characters as the identity transform would.
+     *
+     * <p>
+     * Beyond the given replacements, characters outside the Basic Multilingual Plane are always written
+     * as character references.
+     * </p>
+     *
+     * @param data the string to write
+     * @param escapes replacements for characters below {@link #ESCAPES_SIZE}
+     * @return <code>true</code> if the string has been written, <code>false</code> if it contains an
+     *      unpaired surrogate
+     */
+    private boolean writeEscaped(@Nonnull final String data, @Nonnull final byte[][] escapes) {
+        final int dataLength = data.length();
+        for (int i = 0; i < dataLength; i++) {
+            if (length + MAX_CHARACTER_BYTES > buffer.length) {
+                grow(MAX_CHARACTER_BYTES);
+            }
+            final char c = data.charAt(i);
+            if (c < ESCAPES_SIZE) {
+                final byte[] escape = escapes[c];
+                if (escape != null) {
+                    append(escape);
+                } else {
+                    encode(c);
+                }
+            } else if (Character.isSurrogate(c)) {
+                if (!Character.isHighSurrogate(c) || i + 1 == dataLength ||
+                        !Character.isLowSurrogate(data.charAt(i + 1))) {
+                    return false;
+                }
+                append(reference(Character.toCodePoint(c, data.charAt(++i))));
+            } else {
+                encode(c);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes part of a string to the output buffer without escaping it.
+     *
+     * @param data the string
+     * @param start index of the first character to write
+     * @param end index after the last character to write
+     * @return <code>true</code> if the string has been written, <code>false</code> if it contains an
+     *      unpaired surrogate
+     */
+    private boolean writeUnescaped(@Nonnull final String data, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (length + MAX_CHARACTER_BYTES > buffer.length) {
+                grow(MAX_CHARACTER_BYTES);
+            }
+            final char c = data.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (Character.isSurrogate(c)) {
+                if (!Character.isHighSurrogate(c) || i + 1 == end || !Character.isLowSurrogate(data.charAt(i + 1))) {
+                    return false;
+                }
+                final int codePoint = Character.toCodePoint(c, data.charAt(++i));
+                buffer[length++] = (byte) (0xf0 | codePoint >> 18);
+                buffer[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                buffer[length++] = (byte) (0x80 | codePoint & 0x3f);
+            } else {
+                encode(c);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the UTF-8 encoding of a character in the Basic Multilingual Plane, other than a surrogate,
+     * to the output buffer, which must have space for it.
+     *
+     * @param c the character
+     */
+    private void encode(final char c) {
+        if (c < 0x80) {
+            buffer[length++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[length++] = (byte) (0xc0 | c >> 6);
+            buffer[length++] = (byte) (0x80 | c & 0x3f);
+        } else {
+            buffer[length++] = (byte) (0xe0 | c >> 12);
+            buffer[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+            buffer[length++] = (byte) (0x80 | c & 0x3f);
+        }
+    }
+
+    /**
+     * Gets the encoded form of an element or attribute name.
+     *
+     * @param name the name
+     * @return the encoded name
+     */
+    @Nonnull private byte[] name(@Nonnull final String name) {
+        final byte[] cached = names.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        final byte[] encoded = bytes(name);
+        if (names.size() < MAX_CACHED_NAMES) {
+            names.put(name, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Appends a byte to the output buffer.
+     *
+     * @param b the byte to append
+     */
+    private void append(final byte b) {
+        if (length == buffer.length) {
+            grow(1);
+        }
+        buffer[length++] = b;
+    }
+
+    /**
+     * Appends bytes to the output buffer.
+     *
+     * @param bytes the bytes to append
+     */
+    private void append(@Nonnull final byte[] bytes) {
+        if (length + bytes.length > buffer.length) {
+            grow(bytes.length);
+        }
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    /**
+     * Enlarges the output buffer.
+     *
+     * @param needed number of bytes which must fit after those already written
+     */
+    private void grow(final int needed) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + needed));
+    }
+
+    /**
+     * Encodes a string as UTF-8.
+     *
+     * @param s the string
+     * @return the encoded string
+     */
+    @Nonnull private static byte[] bytes(@Nonnull final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the encoded form of a decimal character reference, as written by the identity transform.
+     *
+     * @param codePoint the character's code point
+     * @return the encoded character reference
+     */
+    @Nonnull private static byte[] reference(final int codePoint) {
+        return bytes("&#" + codePoint + ';');
+    }
+
+}
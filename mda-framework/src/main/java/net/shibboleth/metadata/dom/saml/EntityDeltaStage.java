@@ -0,0 +1,524 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.cryptacular.util.CodecUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.DOMElementSerializer;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.ComponentContainer;
+import net.shibboleth.metadata.pipeline.Pipeline;
+import net.shibboleth.metadata.pipeline.PipelineProcessingException;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.metadata.util.FileSupport;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+import net.shibboleth.utilities.java.support.xml.AttributeSupport;
+import net.shibboleth.utilities.java.support.xml.ElementSupport;
+import net.shibboleth.utilities.java.support.xml.NamespaceSupport;
+
+/**
+ * A stage which compares the entities in the item collection with those seen by the previous run,
+ * producing a delta document describing the differences.
+ *
+ * <p>
+ * Each <code>EntityDescriptor</code> item is keyed by its first {@link ItemId} and described by a
+ * digest of its serialized form. The keys and digests from the previous run are read from a manifest
+ * file; if the manifest does not exist, every entity is regarded as having been added.
+ * </p>
+ *
+ * <p>
+ * The delta document has the following form:
+ * </p>
+ *
+ * <pre>
+ * &lt;delta:EntitiesDelta xmlns:delta="urn:mace:shibboleth:metadata:delta"
+ *         baseManifestDigest="..." manifestDigest="..."&gt;
+ *     &lt;delta:Added&gt; ...EntityDescriptor elements... &lt;/delta:Added&gt;
+ *     &lt;delta:Changed&gt; ...EntityDescriptor elements... &lt;/delta:Changed&gt;
+ *     &lt;delta:Removed&gt; &lt;delta:Entity id="..."/&gt; ... &lt;/delta:Removed&gt;
+ * &lt;/delta:EntitiesDelta&gt;
+ * </pre>
+ *
+ * <p>
+ * The manifest digests allow a consumer to check that a delta applies to the state it holds.
+ * The delta document is passed as a single item to the <code>deltaPipeline</code>, which would
+ * normally sign it and write it out. The manifest is only replaced once that pipeline has completed,
+ * so that a failed run is regarded as not having happened.
+ * </p>
+ *
+ * <p>
+ * The item collection itself is not changed by this stage. Items which are not
+ * <code>EntityDescriptor</code> elements, or which have no {@link ItemId}, are ignored, as are entities
+ * whose identifier contains a line break and so could not be recorded in the manifest.
+ * </p>
+ *
+ * <p>
+ * This stage requires the following properties be set prior to initialization:
+ * <ul>
+ * <li><code>manifestFile</code></li>
+ * <li><code>deltaPipeline</code></li>
+ * </ul>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class EntityDeltaStage extends AbstractStage<Element> implements ComponentContainer {
+
+    /** Namespace of the delta document. */
+    public static final String DELTA_NS = "urn:mace:shibboleth:metadata:delta";
+
+    /** Conventional prefix for the delta document namespace. */
+    public static final String DELTA_PREFIX = "delta";
+
+    /** Name of the delta document element. */
+    public static final QName ENTITIES_DELTA_NAME = new QName(DELTA_NS, "EntitiesDelta", DELTA_PREFIX);
+
+    /** Name of the element containing added entities. */
+    public static final QName ADDED_NAME = new QName(DELTA_NS, "Added", DELTA_PREFIX);
+
+    /** Name of the element containing changed entities. */
+    public static final QName CHANGED_NAME = new QName(DELTA_NS, "Changed", DELTA_PREFIX);
+
+    /** Name of the element containing removed entities. */
+    public static final QName REMOVED_NAME = new QName(DELTA_NS, "Removed", DELTA_PREFIX);
+
+    /** Name of the element identifying a removed entity. */
+    public static final QName ENTITY_NAME = new QName(DELTA_NS, "Entity", DELTA_PREFIX);
+
+    /** Name of the attribute identifying a removed entity. */
+    public static final QName ID_ATTRIB_NAME = new QName("id");
+
+    /** Name of the attribute carrying the digest of the previous manifest. */
+    public static final QName BASE_MANIFEST_DIGEST_ATTRIB_NAME = new QName("baseManifestDigest");
+
+    /** Name of the attribute carrying the digest of the new manifest. */
+    public static final QName MANIFEST_DIGEST_ATTRIB_NAME = new QName("manifestDigest");
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(EntityDeltaStage.class);
+
+    /** Serializer used to compute entity digests; reuses cached serializations. */
+    @Nonnull private final DOMElementSerializer serializer = new DOMElementSerializer();
+
+    /** File holding the manifest from the previous run. */
+    @NonnullAfterInit @GuardedBy("this") private File manifestFile;
+
+    /** Pipeline through which the delta document is passed. */
+    @NonnullAfterInit @GuardedBy("this") private Pipeline<Element> deltaPipeline;
+
+    /** Name of the digest algorithm used for entities and manifests. Default value: <code>SHA-256</code> */
+    @Nonnull @NotEmpty @GuardedBy("this") private String digestAlgorithm = "SHA-256";
+
+    /**
+     * Gets the file holding the manifest from the previous run.
+     *
+     * @return the manifest file
+     */
+    @NonnullAfterInit public final synchronized File getManifestFile() {
+        return manifestFile;
+    }
+
+    /**
+     * Sets the file holding the manifest from the previous run.
+     *
+     * The file is replaced by the manifest for the current run after each successful execution.
+     *
+     * @param file the manifest file
+     */
+    public synchronized void setManifestFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        manifestFile = Constraint.isNotNull(file, "Manifest file can not be null");
+    }
+
+    /**
+     * Gets the pipeline through which the delta document is passed.
+     *
+     * @return the delta pipeline
+     */
+    @NonnullAfterInit public final synchronized Pipeline<Element> getDeltaPipeline() {
+        return deltaPipeline;
+    }
+
+    /**
+     * Sets the pipeline through which the delta document is passed.
+     *
+     * @param pipeline the delta pipeline
+     */
+    public synchronized void setDeltaPipeline(@Nonnull final Pipeline<Element> pipeline) {
+        checkSetterPreconditions();
+        deltaPipeline = Constraint.isNotNull(pipeline, "Delta pipeline can not be null");
+    }
+
+    /**
+     * Gets the name of the digest algorithm used for entities and manifests.
+     *
+     * @return the digest algorithm name
+     */
+    @Nonnull @NotEmpty public final synchronized String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Sets the name of the digest algorithm used for entities and manifests.
+     *
+     * @param algorithm a {@link MessageDigest} algorithm name
+     */
+    public synchronized void setDigestAlgorithm(@Nonnull @NotEmpty final String algorithm) {
+        checkSetterPreconditions();
+        digestAlgorithm = Constraint.isNotNull(StringSupport.trimOrNull(algorithm),
+                "Digest algorithm can not be null or empty");
+    }
+
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public List<? extends InitializableComponent> getContainedComponents() {
+        final var pipeline = getDeltaPipeline();
+        return pipeline == null ? List.of() : List.of(pipeline);
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final Path manifestPath = getManifestFile().toPath();
+        final byte[] previousManifest = readManifest(manifestPath);
+        final Map<String, String> previous = previousManifest == null ? new TreeMap<>() :
+                parseManifest(previousManifest, manifestPath);
+
+        final Map<String, Item<Element>> entities = new TreeMap<>();
+        final Map<String, String> current = new TreeMap<>();
+        for (final Item<Element> item : items) {
+            if (!SAMLMetadataSupport.isEntityDescriptor(item.unwrap())) {
+                continue;
+            }
+            final List<ItemId> ids = item.getItemMetadata().get(ItemId.class);
+            if (ids.isEmpty()) {
+                log.warn("{} ignoring entity with no ItemId", getId());
+                continue;
+            }
+            final String id = ids.get(0).getId();
+            if (id.indexOf('\n') >= 0 || id.indexOf('\r') >= 0) {
+                log.warn("{} ignoring entity whose identifier contains a line break", getId());
+                continue;
+            }
+            if (entities.containsKey(id)) {
+                log.warn("{} ignoring duplicate entity {}", getId(), id);
+                continue;
+            }
+            entities.put(id, item);
+            current.put(id, digestItem(item));
+        }
+
+        final byte[] manifest = formatManifest(current);
+        final Document document = buildDelta(previous, current, entities, manifest, previousManifest);
+
+        final List<Item<Element>> delta = new ArrayList<>();
+        delta.add(new DOMElementItem(document));
+        try {
+            getDeltaPipeline().execute(delta);
+        } catch (final PipelineProcessingException e) {
+            throw new StageProcessingException("Error processing delta document", e);
+        }
+
+        writeManifest(manifestPath, manifest);
+    }
+
+    /**
+     * Builds the delta document.
+     *
+     * @param previous the previous manifest, in identifier order
+     * @param current the current manifest, in identifier order
+     * @param entities the current entities, by identifier
+     * @param manifest the serialized current manifest
+     * @param previousManifest the serialized previous manifest, or <code>null</code> if there was none
+     * @return the delta document
+     * @throws StageProcessingException if the delta document can not be created
+     */
+    @Nonnull private Document buildDelta(@Nonnull final Map<String, String> previous,
+            @Nonnull final Map<String, String> current, @Nonnull final Map<String, Item<Element>> entities,
+            @Nonnull final byte[] manifest, @Nullable final byte[] previousManifest)
+                    throws StageProcessingException {
+        final Document document = newDocument(entities);
+        final Element root = ElementSupport.constructElement(document, ENTITIES_DELTA_NAME);
+        NamespaceSupport.appendNamespaceDeclaration(root, DELTA_NS, DELTA_PREFIX);
+        document.appendChild(root);
+        if (previousManifest != null) {
+            AttributeSupport.appendAttribute(root, BASE_MANIFEST_DIGEST_ATTRIB_NAME, digest(previousManifest));
+        }
+        AttributeSupport.appendAttribute(root, MANIFEST_DIGEST_ATTRIB_NAME, digest(manifest));
+        ElementSupport.appendTextContent(root, "\n");
+
+        final Element added = appendChild(root, ADDED_NAME);
+        final Element changed = appendChild(root, CHANGED_NAME);
+        final Element removed = appendChild(root, REMOVED_NAME);
+
+        int addedCount = 0;
+        int changedCount = 0;
+        for (final Map.Entry<String, String> entry : current.entrySet()) {
+            final String oldDigest = previous.get(entry.getKey());
+            final Element parent;
+            if (oldDigest == null) {
+                parent = added;
+                addedCount++;
+            } else if (!oldDigest.equals(entry.getValue())) {
+                parent = changed;
+                changedCount++;
+            } else {
+                continue;
+            }
+            parent.appendChild(document.importNode(entities.get(entry.getKey()).unwrap(), true));
+            ElementSupport.appendTextContent(parent, "\n");
+        }
+
+        int removedCount = 0;
+        for (final String id : previous.keySet()) {
+            if (!current.containsKey(id)) {
+                final Element entity = ElementSupport.constructElement(document, ENTITY_NAME);
+                AttributeSupport.appendAttribute(entity, ID_ATTRIB_NAME, id);
+                removed.appendChild(entity);
+                ElementSupport.appendTextContent(removed, "\n");
+                removedCount++;
+            }
+        }
+
+        log.info("{} delta: {} added, {} changed, {} removed", getId(), addedCount, changedCount, removedCount);
+        return document;
+    }
+
+    /**
+     * Creates a new document for the delta, using the same DOM implementation as the entities.
+     *
+     * @param entities the current entities
+     * @return a new, empty, document
+     * @throws StageProcessingException if no document can be created
+     */
+    @Nonnull private Document newDocument(@Nonnull final Map<String, Item<Element>> entities)
+            throws StageProcessingException {
+        if (!entities.isEmpty()) {
+            return entities.values().iterator().next().unwrap().getOwnerDocument()
+                    .getImplementation().createDocument(null, null, null);
+        }
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        } catch (final ParserConfigurationException e) {
+            throw new StageProcessingException("Unable to create delta document", e);
+        }
+    }
+
+    /**
+     * Appends a child element, followed by a newline, to an element.
+     *
+     * @param parent the parent element
+     * @param name the name of the new element
+     * @return the new element
+     */
+    @Nonnull private static Element appendChild(@Nonnull final Element parent, @Nonnull final QName name) {
+        final Element child = ElementSupport.constructElement(parent.getOwnerDocument(), name);
+        ElementSupport.appendTextContent(child, "\n");
+        parent.appendChild(child);
+        ElementSupport.appendTextContent(parent, "\n");
+        return child;
+    }
+
+    /**
+     * Computes the digest of an item's serialized form.
+     *
+     * @param item the item to digest
+     * @return the hex-encoded digest
+     * @throws StageProcessingException if the item can not be serialized
+     */
+    @Nonnull private String digestItem(@Nonnull final Item<Element> item) throws StageProcessingException {
+        try {
+            return digest(serializer.serializeToBytes(item));
+        } catch (final IOException e) {
+            throw new StageProcessingException("Unable to serialize item", e);
+        }
+    }
+
+    /**
+     * Computes the hex-encoded digest of some bytes.
+     *
+     * @param bytes the bytes to digest
+     * @return the hex-encoded digest
+     * @throws StageProcessingException if the digest algorithm is not available
+     */
+    @Nonnull private String digest(@Nonnull final byte[] bytes) throws StageProcessingException {
+        try {
+            return CodecUtil.hex(MessageDigest.getInstance(getDigestAlgorithm()).digest(bytes));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new StageProcessingException("Digest algorithm not available", e);
+        }
+    }
+
+    /**
+     * Reads a manifest.
+     *
+     * <p>
+     * The manifest is read once, so that the digest of the previous manifest in the delta document
+     * describes exactly the bytes which were compared against.
+     * </p>
+     *
+     * @param path location of the manifest
+     * @return the serialized manifest, or <code>null</code> if the manifest does not exist
+     * @throws StageProcessingException if the manifest can not be read
+     */
+    @Nullable private byte[] readManifest(@Nonnull final Path path) throws StageProcessingException {
+        if (!Files.exists(path)) {
+            log.info("{} manifest {} does not exist, all entities will be added", getId(), path);
+            return null;
+        }
+        try {
+            return Files.readAllBytes(path);
+        } catch (final IOException e) {
+            throw new StageProcessingException("Error reading manifest " + path, e);
+        }
+    }
+
+    /**
+     * Parses a manifest.
+     *
+     * <p>
+     * A manifest consists of one line for each entity, holding the entity's digest and identifier
+     * separated by a single space. Identifiers containing line breaks can not be represented, and
+     * are never written.
+     * </p>
+     *
+     * @param bytes the serialized manifest
+     * @param path location of the manifest, for messages
+     * @return the manifest's entity digests, by identifier
+     * @throws StageProcessingException if the manifest is malformed
+     */
+    @Nonnull private static Map<String, String> parseManifest(@Nonnull final byte[] bytes, @Nonnull final Path path)
+            throws StageProcessingException {
+        final Map<String, String> manifest = new TreeMap<>();
+        try (BufferedReader reader = new BufferedReader(new StringReader(
+                StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int space = line.indexOf(' ');
+                if (space <= 0 || space == line.length() - 1) {
+                    throw new StageProcessingException("Malformed line in manifest " + path + ": " + line);
+                }
+                manifest.put(line.substring(space + 1), line.substring(0, space));
+            }
+        } catch (final IOException e) {
+            throw new StageProcessingException("Malformed manifest " + path, e);
+        }
+        return manifest;
+    }
+
+    /**
+     * Formats a manifest.
+     *
+     * @param manifest the entity digests, by identifier, in identifier order
+     * @return the serialized manifest
+     */
+    @Nonnull private static byte[] formatManifest(@Nonnull final Map<String, String> manifest) {
+        final var builder = new StringBuilder();
+        for (final Map.Entry<String, String> entry : manifest.entrySet()) {
+            builder.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces the manifest, writing to a temporary file first so that an interrupted write leaves
+     * the previous manifest in place.
+     *
+     * @param path location of the manifest
+     * @param manifest the serialized manifest
+     * @throws StageProcessingException if the manifest can not be written
+     */
+    private void writeManifest(@Nonnull final Path path, @Nonnull final byte[] manifest)
+            throws StageProcessingException {
+        try {
+            final Path temp = FileSupport.createTemporarySibling(path);
+            try {
+                try (FileOutputStream stream = new FileOutputStream(temp.toFile())) {
+                    stream.write(manifest);
+                    stream.getFD().sync();
+                }
+                FileSupport.replace(temp, path);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (final IOException e) {
+            throw new StageProcessingException("Error writing manifest " + path, e);
+        }
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (manifestFile == null) {
+            throw new ComponentInitializationException("Manifest file can not be null");
+        }
+
+        if (deltaPipeline == null) {
+            throw new ComponentInitializationException("Delta pipeline can not be null");
+        }
+
+        try {
+            MessageDigest.getInstance(digestAlgorithm);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new ComponentInitializationException("Digest algorithm " + digestAlgorithm + " not available", e);
+        }
+
+        if (!deltaPipeline.isInitialized()) {
+            deltaPipeline.initialize();
+        }
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.cryptacular.util.CodecUtil;
+import org.cryptacular.util.HashUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemSerializer;
+import net.shibboleth.metadata.dom.DOMElementSerializer;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.MDQuerySHA1ItemIdTransformer;
+import net.shibboleth.metadata.pipeline.ReadOnlyStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+import net.shibboleth.utilities.java.support.xml.AttributeSupport;
+
+/**
+ * A stage which serves the items in the collection as per-entity metadata, using the Metadata Query
+ * (MDQ) protocol, from an HTTP server embedded in the aggregator.
+ *
+ * <p>
+ * Each time the stage is executed, it serializes every item in the collection and indexes the result by
+ * each of the item's {@link ItemId}s, and by the result of applying each of the <code>idTransformers</code>
+ * to them; by default, this adds the <code>{sha1}</code> form of each identifier. The new index then
+ * replaces the one being served in a single step, so that each request sees the results of exactly one
+ * execution. The item collection is not changed. Until the stage has been executed, the server responds
+ * to every request with status 503.
+ * </p>
+ *
+ * <p>
+ * Entities are served from <code>basePath</code> followed by <code>entities/</code> and the URL-encoded
+ * identifier. Responses carry an <code>ETag</code> derived from the serialized form, so that conditional
+ * requests can be answered with status 304, and a <code>Cache-Control</code> maximum age taken from the
+ * document element's <code>cacheDuration</code> attribute or, failing that, from
+ * <code>defaultCacheDuration</code>. Requests for all entities are not supported.
+ * </p>
+ *
+ * <p>
+ * The server is started when the stage is initialized, and stopped when it is destroyed. By default, it
+ * listens only on the loopback interface.
+ * </p>
+ *
+ * <p>
+ * The JDK's HTTP server writes the headers and the body of each response separately, so with Nagle's
+ * algorithm enabled each response may wait for the client's delayed acknowledgement of the headers.
+ * Deployments serving latency-sensitive clients should disable it for the whole JVM by setting the
+ * <code>sun.net.httpserver.nodelay</code> system property to <code>true</code>, for example through
+ * <code>JVMOPTS</code> when using the supplied launch scripts.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class MDQueryResponderStage extends AbstractStage<Element> implements ReadOnlyStage<Element> {
+
+    /** Media type of an MDQ response. */
+    public static final String CONTENT_TYPE = "application/samlmetadata+xml";
+
+    /** Number used to distinguish the server threads of different stages. */
+    private static final AtomicInteger STAGE_NUMBER = new AtomicInteger();
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(MDQueryResponderStage.class);
+
+    /** Host name or address on which the server listens. Default value: <code>localhost</code> */
+    @Nonnull @GuardedBy("this") private String host = "localhost";
+
+    /** Port on which the server listens, or 0 for any free port. Default value: 0 */
+    @GuardedBy("this") private int port;
+
+    /** Path under which the protocol is served. Default value: <code>/</code> */
+    @Nonnull @GuardedBy("this") private String basePath = "/";
+
+    /** Serializer used to produce the response bodies. */
+    @Nonnull @GuardedBy("this") private ItemSerializer<Element> serializer = new DOMElementSerializer();
+
+    /** Transformers producing additional identifiers for each entity. */
+    @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
+    private List<Function<String, String>> idTransformers = List.of(new MDQuerySHA1ItemIdTransformer());
+
+    /** Cache duration used when an entity has none of its own, or <code>null</code>. */
+    @Nullable @GuardedBy("this") private Duration defaultCacheDuration;
+
+    /** Number of threads serving requests. Default value: the number of available processors */
+    @GuardedBy("this") private int serverThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The running server. */
+    @Nullable @GuardedBy("this") private HttpServer server;
+
+    /** Service providing the threads serving requests. */
+    @Nullable @GuardedBy("this") private ExecutorService serverService;
+
+    /** The index currently being served, or <code>null</code> before the first execution. */
+    @Nonnull private final AtomicReference<Map<String, Response>> index = new AtomicReference<>();
+
+    /** A precomputed response for one entity. */
+    @Immutable
+    private static final class Response {
+
+        /** Serialized entity. */
+        @Nonnull private final byte[] body;
+
+        /** Entity tag, including quotes. */
+        @Nonnull private final String etag;
+
+        /** Value of the <code>Cache-Control</code> header, or <code>null</code>. */
+        @Nullable private final String cacheControl;
+
+        /**
+         * Constructor.
+         *
+         * @param bytes serialized entity
+         * @param control value of the <code>Cache-Control</code> header, or <code>null</code>
+         */
+        Response(@Nonnull final byte[] bytes, @Nullable final String control) {
+            body = bytes;
+            etag = "\"" + CodecUtil.hex(HashUtil.sha256(bytes)) + "\"";
+            cacheControl = control;
+        }
+    }
+
+    /**
+     * Gets the host name or address on which the server listens.
+     *
+     * @return the host name or address
+     */
+    @Nonnull public final synchronized String getHost() {
+        return host;
+    }
+
+    /**
+     * Sets the host name or address on which the server listens.
+     *
+     * @param hostName the host name or address
+     */
+    public synchronized void setHost(@Nonnull final String hostName) {
+        checkSetterPreconditions();
+        host = Constraint.isNotNull(StringSupport.trimOrNull(hostName), "host can not be empty");
+    }
+
+    /**
+     * Gets the port on which the server listens.
+     *
+     * Once the stage has been initialized, this is the port actually in use.
+     *
+     * @return the port
+     */
+    public final synchronized int getPort() {
+        return server == null ? port : server.getAddress().getPort();
+    }
+
+    /**
+     * Sets the port on which the server listens.
+     *
+     * @param portNumber the port, or 0 for any free port
+     */
+    public synchronized void setPort(final int portNumber) {
+        checkSetterPreconditions();
+        Constraint.isTrue(portNumber >= 0 && portNumber <= 65535, "port must be between 0 and 65535");
+        port = portNumber;
+    }
+
+    /**
+     * Gets the path under which the protocol is served.
+     *
+     * @return the base path, which starts and ends with <code>/</code>
+     */
+    @Nonnull public final synchronized String getBasePath() {
+        return basePath;
+    }
+
+    /**
+     * Sets the path under which the protocol is served.
+     *
+     * @param path the base path
+     */
+    public synchronized void setBasePath(@Nonnull final String path) {
+        checkSetterPreconditions();
+        String p = Constraint.isNotNull(StringSupport.trimOrNull(path), "base path can not be empty");
+        if (!p.startsWith("/")) {
+            p = "/" + p;
+        }
+        if (!p.endsWith("/")) {
+            p = p + "/";
+        }
+        basePath = p;
+    }
+
+    /**
+     * Gets the serializer used to produce the response bodies.
+     *
+     * @return the serializer
+     */
+    @Nonnull public final synchronized ItemSerializer<Element> getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Sets the serializer used to produce the response bodies.
+     *
+     * @param itemSerializer the serializer
+     */
+    public synchronized void setSerializer(@Nonnull final ItemSerializer<Element> itemSerializer) {
+        checkSetterPreconditions();
+        serializer = Constraint.isNotNull(itemSerializer, "serializer can not be null");
+    }
+
+    /**
+     * Gets the transformers producing additional identifiers for each entity.
+     *
+     * @return the identifier transformers
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    public final synchronized Collection<Function<String, String>> getIdTransformers() {
+        return idTransformers;
+    }
+
+    /**
+     * Sets the transformers producing additional identifiers for each entity.
+     *
+     * @param transformers the identifier transformers
+     */
+    public synchronized void setIdTransformers(
+            @Nonnull @NonnullElements @Unmodifiable final Collection<Function<String, String>> transformers) {
+        checkSetterPreconditions();
+        idTransformers = List.copyOf(transformers);
+    }
+
+    /**
+     * Gets the cache duration used when an entity has none of its own.
+     *
+     * @return the default cache duration, or <code>null</code>
+     */
+    @Nullable public final synchronized Duration getDefaultCacheDuration() {
+        return defaultCacheDuration;
+    }
+
+    /**
+     * Sets the cache duration used when an entity has none of its own.
+     *
+     * @param duration the default cache duration, or <code>null</code> to send no <code>Cache-Control</code>
+     *      header for such entities
+     */
+    public synchronized void setDefaultCacheDuration(@Nullable final Duration duration) {
+        checkSetterPreconditions();
+        if (duration != null) {
+            Constraint.isFalse(duration.isNegative(), "default cache duration cannot be negative");
+        }
+        defaultCacheDuration = duration;
+    }
+
+    /**
+     * Gets the number of threads serving requests.
+     *
+     * @return the number of server threads
+     */
+    public final synchronized int getServerThreads() {
+        return serverThreads;
+    }
+
+    /**
+     * Sets the number of threads serving requests.
+     *
+     * @param threads the number of server threads, which must be positive
+     */
+    public synchronized void setServerThreads(final int threads) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, threads, "server threads must be positive");
+        serverThreads = threads;
+    }
+
+    /**
+     * Gets the number of identifiers in the index currently being served.
+     *
+     * @return the number of identifiers, or -1 if the stage has not yet been executed
+     */
+    public int getIndexSize() {
+        final Map<String, Response> current = index.get();
+        return current == null ? -1 : current.size();
+    }
+
+    /**
+     * Computes the <code>Cache-Control</code> header for an entity.
+     *
+     * @param element the entity's document element
+     * @return the header value, or <code>null</code> if none should be sent
+     */
+    @Nullable private String cacheControl(@Nonnull final Element element) {
+        Duration duration = getDefaultCacheDuration();
+        final Attr attribute = AttributeSupport.getAttribute(element, SAMLMetadataSupport.CACHE_DURATION_ATTRIB_NAME);
+        if (attribute != null) {
+            try {
+                final Duration value = AttributeSupport.getDurationAttributeValue(attribute);
+                if (value != null) {
+                    duration = value;
+                }
+            } catch (final IllegalArgumentException e) {
+                log.warn("{}: ignoring invalid cacheDuration {}", getId(), attribute.getValue());
+            }
+        }
+        if (duration == null || duration.isNegative()) {
+            return null;
+        }
+        return "max-age=" + duration.getSeconds();
+    }
+
+    /**
+     * Serializes an item.
+     *
+     * @param item the item to serialize
+     * @return the serialized form of the item
+     * @throws IOException if the item can not be serialized
+     */
+    @Nonnull private byte[] serialize(@Nonnull final Item<Element> item) throws IOException {
+        final ItemSerializer<Element> itemSerializer = getSerializer();
+        if (itemSerializer instanceof DOMElementSerializer) {
+            return ((DOMElementSerializer) itemSerializer).serializeToBytes(item);
+        }
+        final var out = new ByteArrayOutputStream();
+        itemSerializer.serialize(item, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final Collection<Function<String, String>> transformers = getIdTransformers();
+        final Map<String, Response> newIndex = new HashMap<>();
+        for (final Item<Element> item : items) {
+            final List<ItemId> ids = item.getItemMetadata().get(ItemId.class);
+            if (ids.isEmpty()) {
+                log.warn("{}: item has no identifier, not served", getId());
+                continue;
+            }
+
+            final Response response;
+            try {
+                response = new Response(serialize(item), cacheControl(item.unwrap()));
+            } catch (final IOException e) {
+                throw new StageProcessingException(getId() + ": unable to serialize " + ids.get(0).getId(), e);
+            }
+            for (final ItemId id : ids) {
+                addToIndex(newIndex, id.getId(), response);
+                for (final Function<String, String> transformer : transformers) {
+                    addToIndex(newIndex, transformer.apply(id.getId()), response);
+                }
+            }
+        }
+
+        index.set(Map.copyOf(newIndex));
+        log.debug("{}: serving {} identifiers for {} items", getId(), newIndex.size(), items.size());
+    }
+
+    /**
+     * Adds an identifier to an index, unless it is already present.
+     *
+     * @param newIndex the index
+     * @param id the identifier
+     * @param response the response for the identifier
+     */
+    private void addToIndex(@Nonnull final Map<String, Response> newIndex, @Nonnull final String id,
+            @Nonnull final Response response) {
+        final Response existing = newIndex.putIfAbsent(id, response);
+        if (existing != null && existing != response) {
+            log.warn("{}: duplicate identifier {}, serving the first", getId(), id);
+        }
+    }
+
+    /**
+     * Handles a request.
+     *
+     * @param exchange the request and its response
+     * @param entitiesPath the path under which entities are served
+     * @throws IOException if the response can not be sent
+     */
+    private void handle(@Nonnull final HttpExchange exchange, @Nonnull final String entitiesPath)
+            throws IOException {
+        try (exchange) {
+            // Consume the (normally empty) request body. Otherwise, the server closes the connection after
+            // any response without a body, such as a 304, rather than keeping it alive for the next request.
+            exchange.getRequestBody().close();
+
+            final String method = exchange.getRequestMethod();
+            final boolean head = "HEAD".equals(method);
+            final Headers headers = exchange.getResponseHeaders();
+            if (!head && !"GET".equals(method)) {
+                headers.set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            final Map<String, Response> current = index.get();
+            if (current == null) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            // the decoded path, as identifiers may contain reserved characters
+            final String path = exchange.getRequestURI().getPath();
+            final Response response = path.length() > entitiesPath.length() ?
+                    current.get(path.substring(entitiesPath.length())) : null;
+            if (response == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            headers.set("ETag", response.etag);
+            if (response.cacheControl != null) {
+                headers.set("Cache-Control", response.cacheControl);
+            }
+            if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), response.etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            headers.set("Content-Type", CONTENT_TYPE);
+            if (head) {
+                headers.set("Content-Length", Integer.toString(response.body.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, response.body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response.body);
+            }
+        }
+    }
+
+    /**
+     * Determines whether an <code>If-None-Match</code> header matches an entity tag.
+     *
+     * @param header the header value, or <code>null</code>
+     * @param etag the entity tag
+     * @return <code>true</code> if the header matches
+     */
+    private static boolean matches(@Nullable final String header, @Nonnull final String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (final String candidate : header.split(",")) {
+            final String tag = candidate.trim();
+            if ("*".equals(tag) || etag.equals(tag) || ("W/" + etag).equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (serverService != null) {
+            serverService.shutdown();
+            serverService = null;
+        }
+        index.set(null);
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        final int stageNumber = STAGE_NUMBER.incrementAndGet();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        serverService = Executors.newFixedThreadPool(serverThreads, runnable -> {
+            final var thread = new Thread(runnable,
+                    "mda-mdq-" + stageNumber + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final String entitiesPath = basePath + "entities/";
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (final IOException e) {
+            serverService.shutdown();
+            throw new ComponentInitializationException("Unable to initialize " + getId()
+                    + ", can not listen on " + host + ":" + port, e);
+        }
+        server.createContext(entitiesPath, exchange -> handle(exchange, entitiesPath));
+        server.setExecutor(serverService);
+        server.start();
+        log.info("{}: serving MDQ requests at http://{}:{}{}", getId(), host, server.getAddress().getPort(),
+                entitiesPath);
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.DOMResourceSourceStage;
+import net.shibboleth.metadata.dom.XMLSignatureValidationStage;
+import net.shibboleth.metadata.dom.impl.SAXDocumentBuilder;
+import net.shibboleth.metadata.dom.impl.StreamingXMLSignatureVerifier;
+import net.shibboleth.metadata.dom.impl.XMLSignatureValidator.ValidationException;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * A pipeline stage which reads a SAML metadata aggregate from a {@link Resource} with a streaming parser,
+ * verifying the signature on its document element while it is being read.
+ *
+ * <p>
+ * The signature is checked as {@link XMLSignatureValidationStage} would check it, including its blacklists and
+ * its rules on references and transforms, but the signed content is canonicalized and digested as it is parsed
+ * rather than from a completed DOM. A signature which is blacklisted or whose signature value is bad is detected
+ * as soon as the <code>ds:Signature</code> element has been read, before the rest of the document.
+ * </p>
+ *
+ * <p>
+ * If {@link #isDisassemblingEntities()} is set, the aggregate is never built as a whole. Instead, each
+ * <code>EntityDescriptor</code>, whether it is the document element or nested within
+ * <code>EntitiesDescriptor</code> elements, is built as a document of its own and added to the item collection,
+ * as {@link EntitiesDescriptorDisassemblerStage} would, so that the aggregate is verified and split in one pass.
+ * Otherwise, the whole document is added as a single item, as by {@link DOMResourceSourceStage}.
+ * </p>
+ *
+ * <p>
+ * A document which is not signed when signatures are required, or whose signature is invalid when valid
+ * signatures are required, is treated as if it could not be parsed, according to
+ * {@link #getErrorCausesSourceFailure()}: no items are produced from it. If valid signatures are not required,
+ * a {@link WarningStatus} describing an invalid signature is added to each item produced.
+ * </p>
+ *
+ * <p>
+ * The parser pool is only used to create the resulting documents, and its settings do not otherwise apply:
+ * the document is parsed by a namespace-aware SAX parser with secure processing enabled and document type
+ * declarations disallowed. As with the usual parser pool settings, comments are discarded.
+ * </p>
+ *
+ * <p>
+ * This stage requires the following properties be set prior to initialization:
+ * <ul>
+ * <li><code>parserPool</code></li>
+ * <li><code>domResource</code></li>
+ * <li><code>verificationKey</code></li>
+ * </ul>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class StreamingAggregateSourceStage extends DOMResourceSourceStage {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(StreamingAggregateSourceStage.class);
+
+    /** Whether documents are required to be signed. Default value: <code>true</code> */
+    @GuardedBy("this")
+    private boolean signatureRequired = true;
+
+    /** Whether the signature on a document is required to be valid. Default value: <code>true</code> */
+    @GuardedBy("this")
+    private boolean validSignatureRequired = true;
+
+    /** Certificate whose public key is used to verify the document signature. */
+    @Nullable @GuardedBy("this")
+    private Certificate verificationCertificate;
+
+    /** Public key used to verify the document signature. */
+    @NonnullAfterInit @GuardedBy("this")
+    private PublicKey verificationKey;
+
+    /** Set of blacklisted digest URIs. Default value: empty set. */
+    @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
+    private Set<String> blacklistedDigests = Set.of();
+
+    /** Set of blacklisted signature method URIs. Default value: empty set. */
+    @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
+    private Set<String> blacklistedSignatureMethods = Set.of();
+
+    /** Option to determine whether empty references are to be permitted.  Default value: <code>true</code>. */
+    @GuardedBy("this")
+    private boolean permittingEmptyReferences = true;
+
+    /** Whether each entity is produced as a separate item. Default value: <code>false</code> */
+    @GuardedBy("this")
+    private boolean disassemblingEntities;
+
+    /**
+     * Gets whether the document is required to be signed.
+     *
+     * @return whether the document is required to be signed
+     */
+    public final synchronized boolean isSignatureRequired() {
+        return signatureRequired;
+    }
+
+    /**
+     * Sets whether the document is required to be signed.
+     *
+     * @param required whether the document is required to be signed
+     */
+    public synchronized void setSignatureRequired(final boolean required) {
+        checkSetterPreconditions();
+        signatureRequired = required;
+    }
+
+    /**
+     * Gets whether the signature on the document is required to be valid.
+     *
+     * @return whether the signature on the document is required to be valid
+     */
+    public final synchronized boolean isValidSignatureRequired() {
+        return validSignatureRequired;
+    }
+
+    /**
+     * Sets whether the signature on the document is required to be valid.
+     *
+     * @param isRequired whether the signature on the document is required to be valid
+     */
+    public synchronized void setValidSignatureRequired(final boolean isRequired) {
+        checkSetterPreconditions();
+        validSignatureRequired = isRequired;
+    }
+
+    /**
+     * Gets the certificate whose public key is used to verify the signed document.
+     *
+     * @return certificate whose public key is used to verify the signed document
+     */
+    @Nullable public final synchronized Certificate getVerificationCertificate() {
+        return verificationCertificate;
+    }
+
+    /**
+     * Set the key, included in a certificate, used to verify the signature. This method will also set
+     * {@link #verificationKey} with the public key of the certificate.
+     *
+     * @param certificate certificate containing the key used to verify the signature
+     */
+    public synchronized void setVerificationCertificate(@Nonnull final Certificate certificate) {
+        checkSetterPreconditions();
+        verificationCertificate = Constraint.isNotNull(certificate, "Certificate can not be null");
+        verificationKey = verificationCertificate.getPublicKey();
+    }
+
+    /**
+     * Gets the key used to verify the signature.
+     *
+     * @return key used to verify the signature
+     */
+    @NonnullAfterInit public final synchronized PublicKey getVerificationKey() {
+        return verificationKey;
+    }
+
+    /**
+     * Sets the key used to verify the signature.
+     *
+     * @param key key used to verify the signature
+     */
+    public synchronized void setVerificationKey(@Nonnull final PublicKey key) {
+        checkSetterPreconditions();
+        verificationKey = Constraint.isNotNull(key, "Public key can not be null");
+    }
+
+    /**
+     * Set the collection of identifiers to be blacklisted as digest algorithms.
+     *
+     * @param identifiers collection of identifiers to be blacklisted
+     */
+    public synchronized void setBlacklistedDigests(
+            @Nonnull @NonnullElements @Unmodifiable final Collection<String> identifiers) {
+        checkSetterPreconditions();
+        blacklistedDigests = Set.copyOf(identifiers);
+    }
+
+    /**
+     * Gets the set of blacklisted digest algorithm identifiers.
+     *
+     * @return the set of blacklisted digest algorithm identifiers
+     */
+    @Nonnull @NonnullElements @Unmodifiable public final synchronized Set<String> getBlacklistedDigests() {
+        return blacklistedDigests;
+    }
+
+    /**
+     * Set the collection of identifiers to be blacklisted as signature methods.
+     *
+     * @param identifiers collection of identifiers to be blacklisted
+     */
+    public synchronized void setBlacklistedSignatureMethods(
+            @Nonnull @NonnullElements @Unmodifiable final Collection<String> identifiers) {
+        checkSetterPreconditions();
+        blacklistedSignatureMethods = Set.copyOf(identifiers);
+    }
+
+    /**
+     * Gets the set of blacklisted signature method identifiers.
+     *
+     * @return the set of blacklisted signature method identifiers
+     */
+    @Nonnull @NonnullElements @Unmodifiable public final synchronized Set<String> getBlacklistedSignatureMethods() {
+        return blacklistedSignatureMethods;
+    }
+
+    /**
+     * Gets whether empty references are permitted.
+     *
+     * @return whether empty references are permitted
+     */
+    public final synchronized boolean isPermittingEmptyReferences() {
+        return permittingEmptyReferences;
+    }
+
+    /**
+     * Sets whether empty references are permitted.
+     *
+     * @param permit whether empty references are permitted
+     */
+    public synchronized void setPermittingEmptyReferences(final boolean permit) {
+        checkSetterPreconditions();
+        permittingEmptyReferences = permit;
+    }
+
+    /**
+     * Gets whether each entity is produced as a separate item.
+     *
+     * @return whether each entity is produced as a separate item
+     */
+    public final synchronized boolean isDisassemblingEntities() {
+        return disassemblingEntities;
+    }
+
+    /**
+     * Sets whether each entity is produced as a separate item.
+     *
+     * @param disassemble whether each entity is produced as a separate item
+     */
+    public synchronized void setDisassemblingEntities(final boolean disassemble) {
+        checkSetterPreconditions();
+        disassemblingEntities = disassemble;
+    }
+
+    @Override
+    protected void populateItemCollection(@Nonnull @NonnullElements final List<Item<Element>> items,
+            @Nonnull final InputStream data, @Nonnull final Resource resource) throws StageProcessingException {
+        final SAXDocumentBuilder builder = isDisassemblingEntities()
+                ? new SAXDocumentBuilder(getParserPool(), SAMLMetadataSupport.ENTITIES_DESCRIPTOR_NAME,
+                        SAMLMetadataSupport.ENTITY_DESCRIPTOR_NAME, getStringDeduplicator())
+                : new SAXDocumentBuilder(getParserPool(), null, null, getStringDeduplicator());
+
+        final StreamingXMLSignatureVerifier verifier;
+        try {
+            log.debug("Parsing and verifying XML document retrieved from '{}'", resource.getDescription());
+            verifier = new StreamingXMLSignatureVerifier(getVerificationKey(), getBlacklistedDigests(),
+                    getBlacklistedSignatureMethods(), isPermittingEmptyReferences(), isValidSignatureRequired(),
+                    getParserPool().newDocument());
+            verifier.setParent(newXMLReader());
+            verifier.setContentHandler(builder);
+            verifier.setErrorHandler(builder);
+            verifier.parse(new InputSource(data));
+        } catch (final SAXException e) {
+            if (e.getException() instanceof ValidationException) {
+                rejectDocument("element signature is invalid: " + e.getException().getMessage(), resource);
+            } else {
+                parseFailure(e, resource);
+            }
+            return;
+        } catch (final IOException | ParserConfigurationException | XMLParserException e) {
+            parseFailure(e, resource);
+            return;
+        }
+
+        String warning = null;
+        if (verifier.isSigned()) {
+            try {
+                verifier.checkSignature();
+            } catch (final ValidationException e) {
+                final String message = "element signature is invalid: " + e.getMessage();
+                if (isValidSignatureRequired()) {
+                    rejectDocument(message, resource);
+                    return;
+                }
+                warning = message;
+            }
+        } else if (isSignatureRequired()) {
+            rejectDocument("XML document was not signed but signatures are required", resource);
+            return;
+        } else {
+            log.debug("XML document is not signed, no verification performed");
+        }
+
+        final var documents = builder.getDocuments();
+        if (documents.isEmpty()) {
+            log.debug("{} pipeline stage: XML document contained no entities, ignoring it", getId());
+        }
+        for (final Document doc : documents) {
+            final var item = new DOMElementItem(doc);
+            if (warning != null) {
+                item.getItemMetadata().put(new WarningStatus(getId(), warning));
+            }
+            items.add(item);
+        }
+    }
+
+    /**
+     * Creates a new secure, namespace-aware, SAX parser.
+     *
+     * @return a new SAX parser
+     * @throws ParserConfigurationException if the parser can not be configured
+     * @throws SAXException if the parser can not be created
+     */
+    @Nonnull private static XMLReader newXMLReader() throws ParserConfigurationException, SAXException {
+        final var factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setXIncludeAware(false);
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        return factory.newSAXParser().getXMLReader();
+    }
+
+    /**
+     * Handles a failure to parse the document.
+     *
+     * @param e the exception describing the failure
+     * @param resource the resource being read
+     * @throws StageProcessingException if the failure causes the stage to fail
+     */
+    private void parseFailure(@Nonnull final Exception e, @Nonnull final Resource resource)
+            throws StageProcessingException {
+        if (getErrorCausesSourceFailure()) {
+            throw new StageProcessingException(getId() + " unable to parse returned XML document " +
+                    resource.getDescription(), e);
+        }
+        log.warn("stage {}: unable to parse XML document", getId());
+        log.debug("stage {}: parsing exception", getId(), e);
+    }
+
+    /**
+     * Handles a document rejected because of its signature.
+     *
+     * @param message description of the problem with the signature
+     * @param resource the resource being read
+     * @throws StageProcessingException if the rejection causes the stage to fail
+     */
+    private void rejectDocument(@Nonnull final String message, @Nonnull final Resource resource)
+            throws StageProcessingException {
+        if (getErrorCausesSourceFailure()) {
+            throw new StageProcessingException(getId() + " rejected XML document " + resource.getDescription()
+                    + ": " + message);
+        }
+        log.warn("stage {}: rejected XML document: {}", getId(), message);
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (verificationKey == null) {
+            throw new ComponentInitializationException("Unable to initialize " + getId()
+                    + ", no verification key was specified");
+        }
+    }
+
+}
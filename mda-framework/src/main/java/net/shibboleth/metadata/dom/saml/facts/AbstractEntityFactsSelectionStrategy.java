@@ -0,0 +1,63 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.facts;
+
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+
+/**
+ * Base class for item selection strategies which make their decisions using the {@link EntityFacts}
+ * attached to an item rather than by examining the item's DOM.
+ *
+ * <p>
+ * Items without attached {@link EntityFacts} are never selected.
+ * </p>
+ *
+ * <p>
+ * Decisions are only as current as the facts: if a stage has changed an item's DOM since its facts
+ * were extracted, the decision reflects the DOM as it was at extraction time.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public abstract class AbstractEntityFactsSelectionStrategy implements Predicate<Item<Element>> {
+
+    @Override
+    public boolean test(@Nonnull final Item<Element> item) {
+        final EntityFacts facts = EntityFactsIndex.getEntityFacts(item);
+        if (facts == null) {
+            return false;
+        }
+        return test(facts);
+    }
+
+    /**
+     * Determines whether the entity with the given facts is selected.
+     *
+     * @param facts the entity's facts
+     * @return <code>true</code> if the entity is selected
+     */
+    protected abstract boolean test(@Nonnull final EntityFacts facts);
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.facts;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Item selection strategy which selects entities having a given entity attribute value.
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class EntityAttributeSelectionStrategy extends AbstractEntityFactsSelectionStrategy {
+
+    /** The attribute's <code>Name</code>. */
+    @Nonnull private final String name;
+
+    /** The attribute's <code>NameFormat</code>. */
+    @Nonnull private final String nameFormat;
+
+    /** The attribute value. */
+    @Nonnull private final String value;
+
+    /**
+     * Constructor.
+     *
+     * @param attributeValue attribute value to select
+     * @param attributeName attribute <code>Name</code> to select
+     * @param attributeNameFormat attribute <code>NameFormat</code> to select
+     */
+    public EntityAttributeSelectionStrategy(@Nonnull final String attributeValue,
+            @Nonnull final String attributeName, @Nonnull final String attributeNameFormat) {
+        value = Constraint.isNotNull(attributeValue, "value may not be null");
+        name = Constraint.isNotNull(attributeName, "name may not be null");
+        nameFormat = Constraint.isNotNull(attributeNameFormat, "name format may not be null");
+    }
+
+    @Override
+    protected boolean test(@Nonnull final EntityFacts facts) {
+        for (final EntityAttributeFact attribute : facts.getEntityAttributes()) {
+            if (value.equals(attribute.getValue()) && name.equals(attribute.getName())
+                    && nameFormat.equals(attribute.getNameFormat())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.facts;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.namespace.QName;
+
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * An {@link ItemMetadata} carrying the facts about an entity most often used to make
+ * filtering and selection decisions: its <code>entityID</code>, its roles, its
+ * registration authority and its entity attributes.
+ *
+ * <p>
+ * Roles are identified in the same way as by {@link net.shibboleth.metadata.dom.saml.EntityRoleFilterStage}:
+ * by element name for the SAML-defined role descriptors, and by <code>xsi:type</code> for
+ * <code>RoleDescriptor</code> elements.
+ * </p>
+ *
+ * <p>
+ * Instances are shared between an {@link net.shibboleth.metadata.Item} and its copies, and are
+ * compared by identity, so that an {@link EntityFactsIndex} can locate any copy of an item
+ * through its facts.
+ * </p>
+ *
+ * <p>
+ * The facts are a snapshot of the entity taken by {@link EntityFactsExtractionStage}. They are
+ * not updated or invalidated when a later stage changes the item's DOM; a pipeline which changes
+ * any of these facts should run the extraction stage again, which replaces them, before relying
+ * on them.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@Immutable
+public final class EntityFacts implements ItemMetadata {
+
+    /** The entity's <code>entityID</code>. */
+    @Nonnull private final String entityId;
+
+    /** The entity's roles. */
+    @Nonnull @NonnullElements @Unmodifiable private final Set<QName> roles;
+
+    /** The entity's registration authority, or <code>null</code>. */
+    @Nullable private final String registrationAuthority;
+
+    /** The entity's entity attribute values. */
+    @Nonnull @NonnullElements @Unmodifiable private final List<EntityAttributeFact> entityAttributes;
+
+    /**
+     * Constructor.
+     *
+     * @param id the entity's <code>entityID</code>
+     * @param entityRoles the entity's roles
+     * @param registrar the entity's registration authority, or <code>null</code>
+     * @param attributes the entity's entity attribute values
+     */
+    public EntityFacts(@Nonnull final String id,
+            @Nonnull @NonnullElements final Collection<QName> entityRoles,
+            @Nullable final String registrar,
+            @Nonnull @NonnullElements final Collection<EntityAttributeFact> attributes) {
+        entityId = Constraint.isNotNull(id, "entityID may not be null");
+        roles = Set.copyOf(Constraint.isNotNull(entityRoles, "roles may not be null"));
+        registrationAuthority = registrar;
+        entityAttributes = List.copyOf(Constraint.isNotNull(attributes, "entity attributes may not be null"));
+    }
+
+    /**
+     * Gets the entity's <code>entityID</code>.
+     *
+     * @return the entity's <code>entityID</code>
+     */
+    @Nonnull public String getEntityId() {
+        return entityId;
+    }
+
+    /**
+     * Gets the entity's roles.
+     *
+     * @return the entity's roles
+     */
+    @Nonnull @NonnullElements @Unmodifiable public Set<QName> getRoles() {
+        return roles;
+    }
+
+    /**
+     * Gets the entity's registration authority.
+     *
+     * @return the entity's registration authority, or <code>null</code> if it has none
+     */
+    @Nullable public String getRegistrationAuthority() {
+        return registrationAuthority;
+    }
+
+    /**
+     * Gets the entity's entity attribute values, in document order.
+     *
+     * @return the entity's entity attribute values
+     */
+    @Nonnull @NonnullElements @Unmodifiable public List<EntityAttributeFact> getEntityAttributes() {
+        return entityAttributes;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.facts;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.SAMLSupport;
+import net.shibboleth.metadata.dom.saml.mdattr.MDAttrSupport;
+import net.shibboleth.metadata.dom.saml.mdrpi.MDRPIMetadataSupport;
+import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.xml.AttributeSupport;
+import net.shibboleth.utilities.java.support.xml.DOMTypeSupport;
+import net.shibboleth.utilities.java.support.xml.ElementSupport;
+import net.shibboleth.utilities.java.support.xml.QNameSupport;
+
+/**
+ * A stage which makes a single pass over each EntityDescriptor item, extracting its roles,
+ * registration authority and entity attributes into an {@link EntityFacts} object attached
+ * to the item.
+ *
+ * <p>
+ * If an {@link EntityFactsIndex} is provided, each entity's facts are also added to it.
+ * Unless <code>clearingIndex</code> is set to <code>false</code>, the index is cleared at the
+ * start of each execution of the stage, so that it reflects only the current run.
+ * </p>
+ *
+ * <p>
+ * Items which are not EntityDescriptors are ignored. Any {@link EntityFacts} previously
+ * attached to an item are replaced.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class EntityFactsExtractionStage extends AbstractIteratingStage<Element> {
+
+    /** The SAML-defined, named role descriptors. */
+    @Nonnull @NonnullElements @Unmodifiable
+    private static final Set<QName> NAMED_ROLES = Set.of(SAMLMetadataSupport.IDP_SSO_DESCRIPTOR_NAME,
+            SAMLMetadataSupport.SP_SSO_DESCRIPTOR_NAME,
+            SAMLMetadataSupport.AUTHN_AUTHORITY_DESCRIPTOR_NAME,
+            SAMLMetadataSupport.ATTRIBUTE_AUTHORITY_DESCRIPTOR_NAME,
+            SAMLMetadataSupport.PDP_DESCRIPTOR_NAME);
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(EntityFactsExtractionStage.class);
+
+    /** Index to which extracted facts are added, or <code>null</code>. */
+    @Nullable @GuardedBy("this")
+    private EntityFactsIndex index;
+
+    /** Whether the index is cleared at the start of each execution. Default value: <code>true</code>. */
+    @GuardedBy("this") private boolean clearingIndex = true;
+
+    /**
+     * Gets the index to which extracted facts are added.
+     *
+     * @return the index, or <code>null</code>
+     */
+    @Nullable public final synchronized EntityFactsIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Sets the index to which extracted facts are added.
+     *
+     * @param newIndex the index, or <code>null</code>
+     */
+    public synchronized void setIndex(@Nullable final EntityFactsIndex newIndex) {
+        checkSetterPreconditions();
+        index = newIndex;
+    }
+
+    /**
+     * Gets whether the index is cleared at the start of each execution.
+     *
+     * @return whether the index is cleared at the start of each execution
+     */
+    public final synchronized boolean isClearingIndex() {
+        return clearingIndex;
+    }
+
+    /**
+     * Sets whether the index is cleared at the start of each execution.
+     *
+     * @param clear whether the index is cleared at the start of each execution
+     */
+    public synchronized void setClearingIndex(final boolean clear) {
+        checkSetterPreconditions();
+        clearingIndex = clear;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final var theIndex = getIndex();
+        if (theIndex != null && isClearingIndex()) {
+            theIndex.clear();
+        }
+        super.doExecute(items);
+    }
+
+    @Override
+    protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
+        final Element entity = item.unwrap();
+        if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
+            log.debug("{}: ignoring item which is not an EntityDescriptor", getId());
+            return;
+        }
+
+        final EntityFacts facts = extractFacts(entity);
+
+        final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
+        for (final EntityFacts old : List.copyOf(metadata.get(EntityFacts.class))) {
+            metadata.remove(old);
+        }
+        metadata.put(facts);
+
+        final var theIndex = getIndex();
+        if (theIndex != null) {
+            theIndex.add(facts);
+        }
+    }
+
+    /**
+     * Extracts the facts from an EntityDescriptor in a single pass over its children
+     * and its first <code>Extensions</code> element.
+     *
+     * @param entity the EntityDescriptor
+     * @return the extracted facts
+     */
+    @Nonnull private EntityFacts extractFacts(@Nonnull final Element entity) {
+        final String entityId = entity.getAttributeNS(null, "entityID");
+
+        final Set<QName> roles = new HashSet<>();
+        Element extensions = null;
+        for (final Element child : ElementSupport.getChildElements(entity)) {
+            final QName childQName = QNameSupport.getNodeQName(child);
+            if (SAMLMetadataSupport.EXTENSIONS_NAME.equals(childQName)) {
+                if (extensions == null) {
+                    extensions = child;
+                }
+            } else if (SAMLMetadataSupport.ROLE_DESCRIPTOR_NAME.equals(childQName)) {
+                final QName type = DOMTypeSupport.getXSIType(child);
+                if (type != null) {
+                    roles.add(type);
+                }
+            } else if (NAMED_ROLES.contains(childQName)) {
+                roles.add(childQName);
+            }
+        }
+
+        String registrationAuthority = null;
+        boolean seenRegistrationInfo = false;
+        final List<Element> entityAttributesElements = new ArrayList<>();
+        if (extensions != null) {
+            for (final Element extension : ElementSupport.getChildElements(extensions)) {
+                if (ElementSupport.isElementNamed(extension, MDRPIMetadataSupport.MDRPI_REGISTRATION_INFO)) {
+                    if (!seenRegistrationInfo) {
+                        seenRegistrationInfo = true;
+                        registrationAuthority =
+                                AttributeSupport.getAttributeValue(extension, null, "registrationAuthority");
+                    }
+                } else if (ElementSupport.isElementNamed(extension, MDAttrSupport.ENTITY_ATTRIBUTES_NAME)) {
+                    entityAttributesElements.add(extension);
+                }
+            }
+        }
+
+        final List<EntityAttributeFact> attributes = new ArrayList<>();
+        for (final Element entityAttributes : entityAttributesElements) {
+            for (final Element attribute :
+                    ElementSupport.getChildElements(entityAttributes, SAMLSupport.ATTRIBUTE_NAME)) {
+                final String name = attribute.getAttribute("Name");
+                final String nameFormat = SAMLSupport.extractAttributeNameFormat(attribute);
+                for (final Element value :
+                        ElementSupport.getChildElements(attribute, SAMLSupport.ATTRIBUTE_VALUE_NAME)) {
+                    attributes.add(new EntityAttributeFact(value.getTextContent(), name, nameFormat,
+                            registrationAuthority));
+                }
+            }
+        }
+
+        return new EntityFacts(entityId, roles, registrationAuthority, attributes);
+    }
+}
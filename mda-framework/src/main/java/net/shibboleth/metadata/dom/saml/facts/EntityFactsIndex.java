@@ -0,0 +1,198 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.facts;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * An index, populated by an {@link EntityFactsExtractionStage}, from each fact about an entity
+ * to the entities having that fact.
+ *
+ * <p>
+ * Entities are represented in the index by their {@link EntityFacts} objects. Because item
+ * metadata is shared between an item and its copies, any copy of an item can be located through
+ * the index, whether or not it is the original {@link Item} which was indexed.
+ * </p>
+ *
+ * <p>
+ * The index is intended for bulk lookups across a whole collection, such as finding all the
+ * entities having a given role. Decisions about a single item are better made from the item's
+ * own {@link EntityFacts}, as the selection strategies in this package do.
+ * </p>
+ *
+ * <p>
+ * Entity attribute values are indexed without regard to the entity's registration authority,
+ * which is indexed separately.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class EntityFactsIndex {
+
+    /** Entities by role. */
+    @Nonnull private final Map<QName, Set<EntityFacts>> roleIndex = new ConcurrentHashMap<>();
+
+    /** Entities by registration authority. */
+    @Nonnull private final Map<String, Set<EntityFacts>> registrationAuthorityIndex = new ConcurrentHashMap<>();
+
+    /** Entities without a registration authority. */
+    @Nonnull private final Set<EntityFacts> unregisteredEntities = ConcurrentHashMap.newKeySet();
+
+    /** Entities by entity attribute value, indexed without registration authority. */
+    @Nonnull private final Map<EntityAttributeFact, Set<EntityFacts>> entityAttributeIndex =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Adds an entity's facts to the index.
+     *
+     * @param facts the entity's facts
+     */
+    public void add(@Nonnull final EntityFacts facts) {
+        Constraint.isNotNull(facts, "facts may not be null");
+
+        for (final QName role : facts.getRoles()) {
+            roleIndex.computeIfAbsent(role, k -> ConcurrentHashMap.newKeySet()).add(facts);
+        }
+
+        final String registrationAuthority = facts.getRegistrationAuthority();
+        if (registrationAuthority == null) {
+            unregisteredEntities.add(facts);
+        } else {
+            registrationAuthorityIndex.computeIfAbsent(registrationAuthority,
+                    k -> ConcurrentHashMap.newKeySet()).add(facts);
+        }
+
+        for (final EntityAttributeFact attribute : facts.getEntityAttributes()) {
+            entityAttributeIndex.computeIfAbsent(attributeKey(attribute.getName(), attribute.getNameFormat(),
+                    attribute.getValue()), k -> ConcurrentHashMap.newKeySet()).add(facts);
+        }
+    }
+
+    /** Removes all entries from the index. */
+    public void clear() {
+        roleIndex.clear();
+        registrationAuthorityIndex.clear();
+        unregisteredEntities.clear();
+        entityAttributeIndex.clear();
+    }
+
+    /**
+     * Gets the entities having a given role.
+     *
+     * @param role role element name or <code>xsi:type</code>
+     * @return the entities having the role
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    public Set<EntityFacts> getEntitiesWithRole(@Nonnull final QName role) {
+        return lookup(roleIndex, role);
+    }
+
+    /**
+     * Gets the entities registered by a given registration authority.
+     *
+     * @param registrationAuthority the registration authority, or <code>null</code> to select
+     *  entities without a registration authority
+     * @return the entities registered by the registration authority
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    public Set<EntityFacts> getEntitiesWithRegistrationAuthority(@Nullable final String registrationAuthority) {
+        if (registrationAuthority == null) {
+            return Collections.unmodifiableSet(unregisteredEntities);
+        }
+        return lookup(registrationAuthorityIndex, registrationAuthority);
+    }
+
+    /**
+     * Gets the entities having a given entity attribute value.
+     *
+     * @param name the attribute's <code>Name</code>
+     * @param nameFormat the attribute's <code>NameFormat</code>
+     * @param value the attribute value
+     * @return the entities having the entity attribute value
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    public Set<EntityFacts> getEntitiesWithEntityAttribute(@Nonnull final String name,
+            @Nonnull final String nameFormat, @Nonnull final String value) {
+        return lookup(entityAttributeIndex, attributeKey(name, nameFormat, value));
+    }
+
+    /**
+     * Gets the {@link EntityFacts} attached to an {@link Item}, if any.
+     *
+     * <p>
+     * If more than one set of facts has been attached to the item, the most recent is returned.
+     * </p>
+     *
+     * @param item the {@link Item} to examine
+     * @return the item's {@link EntityFacts}, or <code>null</code> if there are none
+     */
+    @Nullable public static EntityFacts getEntityFacts(@Nonnull final Item<Element> item) {
+        final List<EntityFacts> facts = item.getItemMetadata().get(EntityFacts.class);
+        if (facts.isEmpty()) {
+            return null;
+        }
+        return facts.get(facts.size() - 1);
+    }
+
+    /**
+     * Looks up a key in one of the index maps.
+     *
+     * @param <K> type of the key
+     * @param map the index map
+     * @param key the key
+     * @return the entities associated with the key
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    private static <K> Set<EntityFacts> lookup(@Nonnull final Map<K, Set<EntityFacts>> map, @Nonnull final K key) {
+        final Set<EntityFacts> result = map.get(key);
+        if (result == null) {
+            return Set.of();
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Builds the key used to index an entity attribute value.
+     *
+     * @param name the attribute's <code>Name</code>
+     * @param nameFormat the attribute's <code>NameFormat</code>
+     * @param value the attribute value
+     * @return the index key
+     */
+    @Nonnull private static EntityAttributeFact attributeKey(@Nonnull final String name,
+            @Nonnull final String nameFormat, @Nonnull final String value) {
+        return new EntityAttributeFact(value, name, nameFormat, null);
+    }
+}
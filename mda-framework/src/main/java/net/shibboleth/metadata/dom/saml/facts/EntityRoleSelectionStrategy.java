@@ -0,0 +1,64 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.facts;
+
+import java.util.Collection;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+
+/**
+ * Item selection strategy which selects entities having any of a set of roles.
+ *
+ * <p>
+ * Roles are designated by element name or, for <code>RoleDescriptor</code> elements,
+ * by <code>xsi:type</code>.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class EntityRoleSelectionStrategy extends AbstractEntityFactsSelectionStrategy {
+
+    /** Roles to select. */
+    @Nonnull @NonnullElements @Unmodifiable private final Set<QName> roles;
+
+    /**
+     * Constructor.
+     *
+     * @param selectedRoles roles to select
+     */
+    public EntityRoleSelectionStrategy(@Nonnull @NonnullElements final Collection<QName> selectedRoles) {
+        roles = Set.copyOf(selectedRoles);
+    }
+
+    @Override
+    protected boolean test(@Nonnull final EntityFacts facts) {
+        for (final QName role : facts.getRoles()) {
+            if (roles.contains(role)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
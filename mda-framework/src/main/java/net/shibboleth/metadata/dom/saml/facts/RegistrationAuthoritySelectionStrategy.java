@@ -0,0 +1,54 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.facts;
+
+import java.util.Collection;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+
+/**
+ * Item selection strategy which selects entities registered by any of a set of registration authorities.
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class RegistrationAuthoritySelectionStrategy extends AbstractEntityFactsSelectionStrategy {
+
+    /** Registration authorities to select. */
+    @Nonnull @NonnullElements @Unmodifiable private final Set<String> registrationAuthorities;
+
+    /**
+     * Constructor.
+     *
+     * @param authorities registration authorities to select
+     */
+    public RegistrationAuthoritySelectionStrategy(@Nonnull @NonnullElements final Collection<String> authorities) {
+        registrationAuthorities = Set.copyOf(authorities);
+    }
+
+    @Override
+    protected boolean test(@Nonnull final EntityFacts facts) {
+        final String authority = facts.getRegistrationAuthority();
+        return authority != null && registrationAuthorities.contains(authority);
+    }
+}
@@ -64,6 +64,47 @@ public abstract class AbstractExactValueMatcher extends AbstractEntityAttributeM
         registrationAuthority = matchRegAuth;
     }
 
+    /**
+     * Returns the attribute value being matched.
+     *
+     * @return the attribute value
+     */
+    @Nonnull
+    final String getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the attribute <code>Name</code> being matched.
+     *
+     * @return the attribute <code>Name</code>
+     */
+    @Nonnull
+    final String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the attribute <code>NameFormat</code> being matched.
+     *
+     * @return the attribute <code>NameFormat</code>
+     */
+    @Nonnull
+    final String getNameFormat() {
+        return nameFormat;
+    }
+
+    /**
+     * Returns the registration authority being matched, or <code>null</code>
+     * if the entity's registration authority is ignored.
+     *
+     * @return the registration authority, or <code>null</code>
+     */
+    @Nullable
+    final String getRegistrationAuthority() {
+        return registrationAuthority;
+    }
+
     @Override
     protected boolean matchAttributeValue(@Nonnull final String inputValue) {
         return value.equals(inputValue);
@@ -39,6 +39,7 @@ import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
 import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.xml.ElementSupport;
 
@@ -53,6 +54,11 @@ import net.shibboleth.utilities.java.support.xml.ElementSupport;
  * Note that the <code>registrationAuthority</code> to be used is assumed to have been
  * extracted out into a {@link RegistrationAuthority} object in the entity's item metadata.
  * 
+ * Rules which are instances of the standard exact-value matchers or of
+ * {@link RegistrationAuthorityMatcher} are compiled into hash lookups when the stage
+ * is initialized, so that the cost of matching each attribute value does not grow with
+ * the number of such rules. Any other rules are evaluated in order after those lookups.
+ * 
  * The stage can be operated in a whitelisting mode (the default) or in a blacklisting mode
  * by setting the <code>whitelisting</code> property to <code>false</code>.
  *
@@ -206,6 +212,9 @@ public class EntityAttributeFilteringStage extends AbstractIteratingStage<Elemen
     @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
     private List<Predicate<EntityAttributeContext>> rules = List.of();
 
+    /** Compiled form of the rules, established when the stage is initialized. */
+    @GuardedBy("this") private EntityAttributeRuleTable ruleTable;
+
     /** Mode of operation: whitelisting or blacklisting. Default: whitelisting. */
     @GuardedBy("this") private boolean whitelisting = true;
 
@@ -275,19 +284,12 @@ public class EntityAttributeFilteringStage extends AbstractIteratingStage<Elemen
     }
 
     /**
-     * Apply the rules to a context.
-     * 
-     * @param ctx the context to apply the rules to
-     * @return <code>true</code> if one of the rules returns <code>true</code>;
-     *  otherwise <code>false</code>
+     * Returns the compiled form of the rules.
+     *
+     * @return the compiled rules
      */
-    private boolean applyRules(final EntityAttributeContext ctx) {
-        for (final Predicate<EntityAttributeContext> rule : getRules()) {
-            if (rule.test(ctx)) {
-                return true;
-            }
-        }
-        return false;
+    private synchronized EntityAttributeRuleTable getRuleTable() {
+        return ruleTable;
     }
     
     /**
@@ -309,10 +311,11 @@ public class EntityAttributeFilteringStage extends AbstractIteratingStage<Elemen
      * 
      * @param attribute an <code>Attribute</code> element to filter
      * @param registrationAuthority the registration authority associated with the entity
+     * @param table the compiled rules to apply
      * @param item the {@link Item} representing the entity
      */
     private void filterAttribute(@Nonnull final Element attribute, @Nullable final String registrationAuthority,
-            @Nonnull final Item<Element> item) {
+            @Nonnull final EntityAttributeRuleTable table, @Nonnull final Item<Element> item) {
         // Determine the attribute's name; this will default to the empty string if not present
         final String attributeName = attribute.getAttribute("Name");
         
@@ -326,13 +329,13 @@ public class EntityAttributeFilteringStage extends AbstractIteratingStage<Elemen
         // Filter each AttributeValue in turn
         for (final Element value : attributeValues) {
             final String attributeValue = value.getTextContent();
-
-            // Construct an entity attribute context to be matched against
-            final EntityAttributeContext ctx =
-                    new ContextImpl(attributeValue, attributeName,
-                            attributeNameFormat, registrationAuthority);            
-            final boolean matched = applyRules(ctx);
+            final boolean matched =
+                    table.test(attributeValue, attributeName, attributeNameFormat, registrationAuthority);
             if (matched ^ isWhitelisting()) {
+                // Construct an entity attribute context for reporting purposes
+                final EntityAttributeContext ctx =
+                        new ContextImpl(attributeValue, attributeName,
+                                attributeNameFormat, registrationAuthority);
                 log.debug("removing {}", ctx);
                 if (isRecordingRemovals()) {
                     item.getItemMetadata().put(new WarningStatus(getId(),
@@ -348,10 +351,12 @@ public class EntityAttributeFilteringStage extends AbstractIteratingStage<Elemen
      * 
      * @param entityAttributes the <code>EntityAttributes</code> extension element
      * @param registrationAuthority the registration authority associated with the entity
+     * @param table the compiled rules to apply
      * @param item the {@link Item} representing the entity
      */
     private void filterEntityAttributes(@Nonnull final Element entityAttributes,
             @Nullable final String registrationAuthority,
+            @Nonnull final EntityAttributeRuleTable table,
             @Nonnull final Item<Element> item) {
         // Locate the Attribute elements to filter
         final List<Element> attributes =
@@ -359,7 +364,7 @@ public class EntityAttributeFilteringStage extends AbstractIteratingStage<Elemen
         
         // Filter each Attribute in turn
         for (final Element attribute : attributes) {
-            filterAttribute(attribute, registrationAuthority, item);
+            filterAttribute(attribute, registrationAuthority, table, item);
             
             // remove the Attribute container if it is now empty
             if (ElementSupport.getFirstChildElement(attribute) == null) {
@@ -375,6 +380,7 @@ public class EntityAttributeFilteringStage extends AbstractIteratingStage<Elemen
 
         // Establish the item's registrationAuthority, if any
         final String registrationAuthority = extractRegistrationAuthority(item);
+        final EntityAttributeRuleTable table = getRuleTable();
 
         /*
          * Process each EntityAttributes container independently. There MUST be only one
@@ -383,7 +389,7 @@ public class EntityAttributeFilteringStage extends AbstractIteratingStage<Elemen
          */
         for (final Element entityAttributes : SAMLMetadataSupport.getDescriptorExtensionList(entity,
                 MDAttrSupport.ENTITY_ATTRIBUTES_NAME)) {
-            filterEntityAttributes(entityAttributes, registrationAuthority, item);
+            filterEntityAttributes(entityAttributes, registrationAuthority, table, item);
 
             // remove the EntityAttributes container if it is now empty
             if (ElementSupport.getFirstChildElement(entityAttributes) == null) {
@@ -394,4 +400,18 @@ public class EntityAttributeFilteringStage extends AbstractIteratingStage<Elemen
         }
     }
 
+    @Override
+    protected void doDestroy() {
+        ruleTable = null;
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        ruleTable = new EntityAttributeRuleTable(rules);
+    }
+
 }
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.mdattr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.metadata.dom.saml.mdattr.EntityAttributeFilteringStage.ContextImpl;
+import net.shibboleth.metadata.dom.saml.mdattr.EntityAttributeFilteringStage.EntityAttributeContext;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * A compiled form of a list of entity attribute matching rules.
+ *
+ * Rules which are instances of the known exact-value matchers, or of
+ * {@link RegistrationAuthorityMatcher}, are compiled into hash lookups.
+ * Any other rule is opaque, and is evaluated in order only after the
+ * lookups have failed to produce a match.
+ *
+ * Because the rules are implicitly ORed together, the result of
+ * {@link #test(String, String, String, String)} is always the same as that of
+ * evaluating each of the original rules in turn.
+ */
+@Immutable
+final class EntityAttributeRuleTable {
+
+    /**
+     * Matcher classes whose behaviour is known to be exactly that of {@link AbstractExactValueMatcher}.
+     *
+     * Subclasses of these are not included, as they may override the matching methods.
+     */
+    private static final Set<Class<?>> EXACT_MATCHER_CLASSES = Set.of(
+            EntityCategoryMatcher.class,
+            EntityCategorySupportMatcher.class,
+            AssuranceCertificationMatcher.class);
+
+    /**
+     * Lookup key made up of an attribute's value, <code>Name</code> and <code>NameFormat</code>.
+     */
+    @Immutable
+    private static final class Key {
+
+        /** The attribute's value. */
+        @Nonnull private final String value;
+
+        /** The attribute's <code>Name</code>. */
+        @Nonnull private final String name;
+
+        /** The attribute's <code>NameFormat</code>. */
+        @Nonnull private final String nameFormat;
+
+        /**
+         * Constructor.
+         *
+         * @param attributeValue attribute value
+         * @param attributeName attribute <code>Name</code>
+         * @param attributeNameFormat attribute <code>NameFormat</code>
+         */
+        Key(@Nonnull final String attributeValue, @Nonnull final String attributeName,
+                @Nonnull final String attributeNameFormat) {
+            value = attributeValue;
+            name = attributeName;
+            nameFormat = attributeNameFormat;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return value.equals(other.value) && name.equals(other.name) && nameFormat.equals(other.nameFormat);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(value, name, nameFormat);
+        }
+    }
+
+    /** Exact-value rules which match regardless of the entity's registration authority. */
+    @Nonnull @NonnullElements
+    private final Set<Key> anyAuthorityRules = new HashSet<>();
+
+    /** Exact-value rules which require a particular registration authority, indexed by key. */
+    @Nonnull @NonnullElements
+    private final Map<Key, Set<String>> authorityRules = new HashMap<>();
+
+    /** Registration authorities matched by a {@link RegistrationAuthorityMatcher}. */
+    @Nonnull @NonnullElements
+    private final Set<String> registrationAuthorities = new HashSet<>();
+
+    /** Whether a {@link RegistrationAuthorityMatcher} matches entities without a registration authority. */
+    private boolean matchingUnregistered;
+
+    /** Rules which could not be compiled, in their original order. */
+    @Nonnull @NonnullElements
+    private final List<Predicate<EntityAttributeContext>> opaqueRules = new ArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param rules the rules to compile
+     */
+    EntityAttributeRuleTable(@Nonnull @NonnullElements final List<Predicate<EntityAttributeContext>> rules) {
+        for (final Predicate<EntityAttributeContext> rule : rules) {
+            if (EXACT_MATCHER_CLASSES.contains(rule.getClass())) {
+                final AbstractExactValueMatcher matcher = (AbstractExactValueMatcher) rule;
+                final Key key = new Key(matcher.getValue(), matcher.getName(), matcher.getNameFormat());
+                final String registrar = matcher.getRegistrationAuthority();
+                if (registrar == null) {
+                    anyAuthorityRules.add(key);
+                } else {
+                    authorityRules.computeIfAbsent(key, k -> new HashSet<>()).add(registrar);
+                }
+            } else if (rule.getClass() == RegistrationAuthorityMatcher.class) {
+                final String registrar = ((RegistrationAuthorityMatcher) rule).getRegistrationAuthority();
+                if (registrar == null) {
+                    matchingUnregistered = true;
+                } else {
+                    registrationAuthorities.add(registrar);
+                }
+            } else {
+                opaqueRules.add(rule);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rules which could not be compiled into lookups.
+     *
+     * @return the number of opaque rules
+     */
+    int getOpaqueRuleCount() {
+        return opaqueRules.size();
+    }
+
+    /**
+     * Apply the rules to the components of an entity attribute context.
+     *
+     * @param value the attribute's value
+     * @param name the attribute's <code>Name</code>
+     * @param nameFormat the attribute's <code>NameFormat</code>
+     * @param registrationAuthority the entity's registration authority, or <code>null</code>
+     * @return <code>true</code> if one of the rules matches; otherwise <code>false</code>
+     */
+    boolean test(@Nonnull final String value, @Nonnull final String name, @Nonnull final String nameFormat,
+            @Nullable final String registrationAuthority) {
+        if (registrationAuthority == null) {
+            if (matchingUnregistered) {
+                return true;
+            }
+        } else if (registrationAuthorities.contains(registrationAuthority)) {
+            return true;
+        }
+
+        if (!anyAuthorityRules.isEmpty() || !authorityRules.isEmpty()) {
+            final Key key = new Key(value, name, nameFormat);
+            if (anyAuthorityRules.contains(key)) {
+                return true;
+            }
+            if (registrationAuthority != null) {
+                final Set<String> registrars = authorityRules.get(key);
+                if (registrars != null && registrars.contains(registrationAuthority)) {
+                    return true;
+                }
+            }
+        }
+
+        if (!opaqueRules.isEmpty()) {
+            final EntityAttributeContext ctx = new ContextImpl(value, name, nameFormat, registrationAuthority);
+            for (final Predicate<EntityAttributeContext> rule : opaqueRules) {
+                if (rule.test(ctx)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -49,6 +49,17 @@ public class RegistrationAuthorityMatcher implements Predicate<EntityAttributeCo
         registrationAuthority = regAuth;
     }
 
+    /**
+     * Returns the registration authority being matched, or <code>null</code>
+     * if entities without a registration authority are being matched.
+     *
+     * @return the registration authority, or <code>null</code>
+     */
+    @Nullable
+    final String getRegistrationAuthority() {
+        return registrationAuthority;
+    }
+
     @Override
     public boolean test(@Nonnull final EntityAttributeContext input) {
         if (registrationAuthority == null) {
@@ -0,0 +1,330 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.ComponentContainer;
+import net.shibboleth.metadata.pipeline.ComponentFingerprint;
+import net.shibboleth.metadata.pipeline.Pipeline;
+import net.shibboleth.metadata.pipeline.PipelineProcessingException;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * A stage which adds the items saved in a checkpoint by {@link CheckpointStage} to the item collection,
+ * so that a pipeline can resume from the checkpoint rather than repeating the work which produced it.
+ *
+ * <p>
+ * The checkpoint is only used if it is current: it must exist, and the fingerprint saved with it must match
+ * the fingerprint of this stage's <code>fingerprintedComponents</code>, which should be the same components
+ * as those of the {@link CheckpointStage}. Otherwise, the <code>fallbackPipeline</code>, if any, is executed
+ * on the item collection instead; typically this is the pipeline which ends with the {@link CheckpointStage},
+ * so that executing it also saves a new checkpoint. If there is no fallback pipeline, the stage fails.
+ * </p>
+ *
+ * <p>
+ * This stage requires the following properties be set prior to initialization:
+ * <ul>
+ * <li><code>directory</code></li>
+ * <li><code>checkpointName</code></li>
+ * <li><code>parserPool</code></li>
+ * </ul>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class CheckpointSourceStage extends AbstractStage<Element> implements ComponentContainer {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(CheckpointSourceStage.class);
+
+    /** Directory in which the checkpoint is saved. */
+    @NonnullAfterInit @GuardedBy("this")
+    private File directory;
+
+    /** Name of the checkpoint. */
+    @NonnullAfterInit @GuardedBy("this")
+    private String checkpointName;
+
+    /** Pool from which new documents are obtained. */
+    @NonnullAfterInit @GuardedBy("this")
+    private ParserPool parserPool;
+
+    /** Components whose configuration is fingerprinted. */
+    @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
+    private List<Object> fingerprintedComponents = Collections.emptyList();
+
+    /** Pipeline executed if the checkpoint is not current, or <code>null</code>. */
+    @Nullable @GuardedBy("this")
+    private Pipeline<Element> fallbackPipeline;
+
+    /** Further classes of item metadata saved using Java serialization. */
+    @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
+    private Set<Class<? extends ItemMetadata>> serializedMetadataClasses = Collections.emptySet();
+
+    /** Fingerprint of the configuration of the fingerprinted components. */
+    @NonnullAfterInit @GuardedBy("this")
+    private String fingerprint;
+
+    /**
+     * Gets the directory in which the checkpoint is saved.
+     *
+     * @return the directory
+     */
+    @Nullable public final synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the directory in which the checkpoint is saved.
+     *
+     * @param dir the directory
+     */
+    public synchronized void setDirectory(@Nonnull final File dir) {
+        checkSetterPreconditions();
+        directory = Constraint.isNotNull(dir, "Checkpoint directory can not be null");
+    }
+
+    /**
+     * Gets the name of the checkpoint.
+     *
+     * @return the name of the checkpoint
+     */
+    @Nullable public final synchronized String getCheckpointName() {
+        return checkpointName;
+    }
+
+    /**
+     * Sets the name of the checkpoint.
+     *
+     * @param name the name of the checkpoint
+     */
+    public synchronized void setCheckpointName(@Nonnull final String name) {
+        checkSetterPreconditions();
+        checkpointName = Constraint.isNotNull(StringSupport.trimOrNull(name), "Checkpoint name can not be empty");
+    }
+
+    /**
+     * Gets the pool from which new documents are obtained.
+     *
+     * @return the parser pool
+     */
+    @Nullable public final synchronized ParserPool getParserPool() {
+        return parserPool;
+    }
+
+    /**
+     * Sets the pool from which new documents are obtained.
+     *
+     * @param pool the parser pool
+     */
+    public synchronized void setParserPool(@Nonnull final ParserPool pool) {
+        checkSetterPreconditions();
+        parserPool = Constraint.isNotNull(pool, "Parser pool can not be null");
+    }
+
+    /**
+     * Gets the components whose configuration is fingerprinted.
+     *
+     * @return the fingerprinted components
+     */
+    @Nonnull @NonnullElements @Unmodifiable public final synchronized List<Object> getFingerprintedComponents() {
+        return fingerprintedComponents;
+    }
+
+    /**
+     * Sets the components whose configuration is fingerprinted.
+     *
+     * These should be the same components as those fingerprinted by the {@link CheckpointStage}.
+     *
+     * @param components the fingerprinted components
+     */
+    public synchronized void setFingerprintedComponents(
+            @Nonnull @NonnullElements @Unmodifiable final List<?> components) {
+        checkSetterPreconditions();
+        fingerprintedComponents = List.copyOf(components);
+    }
+
+    /**
+     * Gets the further classes of item metadata saved using Java serialization.
+     *
+     * @return the classes of item metadata saved using Java serialization
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    public final synchronized Set<Class<? extends ItemMetadata>> getSerializedMetadataClasses() {
+        return serializedMetadataClasses;
+    }
+
+    /**
+     * Sets the further classes of item metadata saved using Java serialization.
+     *
+     * These should be the same classes as those given to the {@link CheckpointStage}.
+     *
+     * @param classes the classes of item metadata saved using Java serialization
+     */
+    public synchronized void setSerializedMetadataClasses(
+            @Nonnull @NonnullElements @Unmodifiable final Collection<Class<? extends ItemMetadata>> classes) {
+        checkSetterPreconditions();
+        serializedMetadataClasses = Set.copyOf(classes);
+    }
+
+    /**
+     * Gets the pipeline executed if the checkpoint is not current.
+     *
+     * @return the fallback pipeline, or <code>null</code>
+     */
+    @Nullable public final synchronized Pipeline<Element> getFallbackPipeline() {
+        return fallbackPipeline;
+    }
+
+    /**
+     * Sets the pipeline executed if the checkpoint is not current.
+     *
+     * @param pipeline the fallback pipeline, or <code>null</code> if the stage should fail instead
+     */
+    public synchronized void setFallbackPipeline(@Nullable final Pipeline<Element> pipeline) {
+        checkSetterPreconditions();
+        fallbackPipeline = pipeline;
+    }
+
+    /**
+     * Gets the fingerprint of the configuration of the fingerprinted components.
+     *
+     * @return the fingerprint
+     */
+    @NonnullAfterInit public final synchronized String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Determines why the checkpoint can not be used.
+     *
+     * @return the reason the checkpoint can not be used, or <code>null</code> if it is current
+     * @throws IOException if the checkpoint's fingerprint can not be read
+     */
+    @Nullable private String staleReason() throws IOException {
+        final Path snapshot = CheckpointStage.snapshotPath(getDirectory(), getCheckpointName());
+        final Path fingerprintFile = CheckpointStage.fingerprintPath(getDirectory(), getCheckpointName());
+        if (!Files.exists(fingerprintFile) || !Files.exists(snapshot)) {
+            return "checkpoint does not exist";
+        }
+        final String saved = new String(Files.readAllBytes(fingerprintFile), StandardCharsets.UTF_8).trim();
+        if (!saved.equals(getFingerprint())) {
+            return "configuration has changed since the checkpoint was saved";
+        }
+        return null;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final Path snapshot = CheckpointStage.snapshotPath(getDirectory(), getCheckpointName());
+        try {
+            final String reason = staleReason();
+            if (reason == null) {
+                // read into a separate collection so that a failure part way through adds nothing
+                final List<Item<Element>> loaded = new ArrayList<>();
+                try (InputStream ins = Files.newInputStream(snapshot)) {
+                    new DOMSnapshotReader(getParserPool(), getSerializedMetadataClasses()).read(ins, loaded);
+                }
+                log.info("{}: resumed {} items from checkpoint {}", getId(), loaded.size(), snapshot);
+                items.addAll(loaded);
+                return;
+            }
+
+            final Pipeline<Element> fallback = getFallbackPipeline();
+            if (fallback == null) {
+                throw new StageProcessingException(getId() + ": can not resume from checkpoint " + snapshot +
+                        ": " + reason);
+            }
+            log.info("{}: not resuming from checkpoint {}: {}; executing pipeline {}", getId(), snapshot, reason,
+                    fallback.getId());
+            fallback.execute(items);
+        } catch (final StageProcessingException e) {
+            throw e;
+        } catch (final PipelineProcessingException e) {
+            throw new StageProcessingException(getId() + ": fallback pipeline failed", e);
+        } catch (final IOException | XMLParserException e) {
+            throw new StageProcessingException(getId() + ": unable to read checkpoint " + snapshot, e);
+        }
+    }
+
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public List<? extends InitializableComponent> getContainedComponents() {
+        final Pipeline<Element> fallback = getFallbackPipeline();
+        return fallback == null ? List.of() : List.of(fallback);
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (directory == null) {
+            throw new ComponentInitializationException("Unable to initialize " + getId()
+                    + ", directory may not be null");
+        }
+
+        if (checkpointName == null) {
+            throw new ComponentInitializationException("Unable to initialize " + getId()
+                    + ", checkpoint name may not be null");
+        }
+
+        if (parserPool == null) {
+            throw new ComponentInitializationException("Unable to initialize " + getId()
+                    + ", ParserPool may not be null");
+        }
+
+        if (fallbackPipeline != null && !fallbackPipeline.isInitialized()) {
+            fallbackPipeline.initialize();
+        }
+
+        fingerprint = ComponentFingerprint.fingerprint(fingerprintedComponents);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.ComponentFingerprint;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.metadata.util.FileSupport;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+/**
+ * A stage which saves the item collection as a named checkpoint, from which a later run can resume
+ * using {@link CheckpointSourceStage}. The item collection is not changed.
+ *
+ * <p>
+ * The checkpoint is a DOM snapshot, as written by {@link DOMSnapshotSerializer}, together with a
+ * fingerprint of the configuration of the components which produced the items, as computed by
+ * {@link ComponentFingerprint}. The components are usually the stages before this one.
+ * {@link CheckpointSourceStage} only resumes from the checkpoint if the fingerprint of its own
+ * components matches, so changing the configuration of those stages makes the checkpoint stale.
+ * A checkpoint whose components include one which can not be described completely is never resumed.
+ * </p>
+ *
+ * <p>
+ * This stage requires the following properties be set prior to initialization:
+ * <ul>
+ * <li><code>directory</code></li>
+ * <li><code>checkpointName</code></li>
+ * </ul>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class CheckpointStage extends AbstractStage<Element> {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(CheckpointStage.class);
+
+    /** Directory in which the checkpoint is saved. */
+    @NonnullAfterInit @GuardedBy("this")
+    private File directory;
+
+    /** Name of the checkpoint. */
+    @NonnullAfterInit @GuardedBy("this")
+    private String checkpointName;
+
+    /** Components whose configuration is fingerprinted. */
+    @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
+    private List<Object> fingerprintedComponents = Collections.emptyList();
+
+    /** Further classes of item metadata saved using Java serialization. */
+    @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
+    private Set<Class<? extends ItemMetadata>> serializedMetadataClasses = Collections.emptySet();
+
+    /** Fingerprint of the configuration of the fingerprinted components. */
+    @NonnullAfterInit @GuardedBy("this")
+    private String fingerprint;
+
+    /**
+     * Gets the directory in which the checkpoint is saved.
+     *
+     * @return the directory
+     */
+    @Nullable public final synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the directory in which the checkpoint is saved.
+     *
+     * @param dir the directory
+     */
+    public synchronized void setDirectory(@Nonnull final File dir) {
+        checkSetterPreconditions();
+        directory = Constraint.isNotNull(dir, "Checkpoint directory can not be null");
+    }
+
+    /**
+     * Gets the name of the checkpoint.
+     *
+     * @return the name of the checkpoint
+     */
+    @Nullable public final synchronized String getCheckpointName() {
+        return checkpointName;
+    }
+
+    /**
+     * Sets the name of the checkpoint.
+     *
+     * The name is used to name the files making up the checkpoint.
+     *
+     * @param name the name of the checkpoint
+     */
+    public synchronized void setCheckpointName(@Nonnull final String name) {
+        checkSetterPreconditions();
+        checkpointName = Constraint.isNotNull(StringSupport.trimOrNull(name), "Checkpoint name can not be empty");
+    }
+
+    /**
+     * Gets the components whose configuration is fingerprinted.
+     *
+     * @return the fingerprinted components
+     */
+    @Nonnull @NonnullElements @Unmodifiable public final synchronized List<Object> getFingerprintedComponents() {
+        return fingerprintedComponents;
+    }
+
+    /**
+     * Sets the components whose configuration is fingerprinted, usually the stages which produced the items.
+     *
+     * @param components the fingerprinted components
+     */
+    public synchronized void setFingerprintedComponents(
+            @Nonnull @NonnullElements @Unmodifiable final List<?> components) {
+        checkSetterPreconditions();
+        fingerprintedComponents = List.copyOf(components);
+    }
+
+    /**
+     * Gets the further classes of item metadata saved using Java serialization.
+     *
+     * @return the classes of item metadata saved using Java serialization
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    public final synchronized Set<Class<? extends ItemMetadata>> getSerializedMetadataClasses() {
+        return serializedMetadataClasses;
+    }
+
+    /**
+     * Sets the further classes of item metadata saved using Java serialization.
+     *
+     * Item metadata of other classes, apart from the kinds recorded natively by {@link DOMSnapshotSerializer},
+     * is not saved. The same classes must be given to the {@link CheckpointSourceStage}.
+     *
+     * @param classes the classes of item metadata saved using Java serialization
+     */
+    public synchronized void setSerializedMetadataClasses(
+            @Nonnull @NonnullElements @Unmodifiable final Collection<Class<? extends ItemMetadata>> classes) {
+        checkSetterPreconditions();
+        serializedMetadataClasses = Set.copyOf(classes);
+    }
+
+    /**
+     * Gets the fingerprint of the configuration of the fingerprinted components.
+     *
+     * @return the fingerprint
+     */
+    @NonnullAfterInit public final synchronized String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Gets the file holding the items in a checkpoint.
+     *
+     * @param directory the directory in which the checkpoint is saved
+     * @param name the name of the checkpoint
+     * @return the path of the file
+     */
+    @Nonnull static Path snapshotPath(@Nonnull final File directory, @Nonnull final String name) {
+        return directory.toPath().resolve(name + ".snapshot");
+    }
+
+    /**
+     * Gets the file holding the fingerprint of a checkpoint.
+     *
+     * @param directory the directory in which the checkpoint is saved
+     * @param name the name of the checkpoint
+     * @return the path of the file
+     */
+    @Nonnull static Path fingerprintPath(@Nonnull final File directory, @Nonnull final String name) {
+        return directory.toPath().resolve(name + ".fingerprint");
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final Path snapshot = snapshotPath(getDirectory(), getCheckpointName());
+        final Path fingerprintFile = fingerprintPath(getDirectory(), getCheckpointName());
+        log.debug("{}: saving {} items to checkpoint {}", getId(), items.size(), snapshot);
+        try {
+            Files.createDirectories(snapshot.getParent());
+
+            // remove the fingerprint first, so that a partly replaced checkpoint is never resumed from
+            Files.deleteIfExists(fingerprintFile);
+            writeReplacing(snapshot, stream -> new DOMSnapshotSerializer(getSerializedMetadataClasses())
+                    .serializeCollection(items, stream));
+            final byte[] fingerprintBytes = (getFingerprint() + "\n").getBytes(StandardCharsets.UTF_8);
+            writeReplacing(fingerprintFile, stream -> stream.write(fingerprintBytes));
+        } catch (final IOException e) {
+            throw new StageProcessingException(getId() + ": unable to save checkpoint " + snapshot, e);
+        }
+    }
+
+    /** Writes the content of a file. */
+    private interface Content {
+
+        /**
+         * Writes the content to a stream.
+         *
+         * @param stream the stream to write to
+         * @throws IOException if the content can not be written
+         */
+        void writeTo(@Nonnull OutputStream stream) throws IOException;
+    }
+
+    /**
+     * Atomically replaces a file.
+     *
+     * @param target the file to replace
+     * @param content writes the new content of the file
+     * @throws IOException if the file can not be written
+     */
+    private static void writeReplacing(@Nonnull final Path target, @Nonnull final Content content)
+            throws IOException {
+        final Path temp = FileSupport.createTemporarySibling(target);
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temp.toFile())) {
+                content.writeTo(stream);
+                stream.getFD().sync();
+            }
+            FileSupport.replace(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (directory == null) {
+            throw new ComponentInitializationException("Unable to initialize " + getId()
+                    + ", directory may not be null");
+        }
+
+        if (checkpointName == null) {
+            throw new ComponentInitializationException("Unable to initialize " + getId()
+                    + ", checkpoint name may not be null");
+        }
+
+        fingerprint = ComponentFingerprint.fingerprint(fingerprintedComponents);
+    }
+}
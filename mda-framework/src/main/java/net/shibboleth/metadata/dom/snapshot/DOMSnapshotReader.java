@@ -0,0 +1,476 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.ItemTag;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * Reads a DOM snapshot written by {@link DOMSnapshotSerializer}, recreating the items it contains.
+ *
+ * Each item is created in its own {@link Document}, obtained from the given {@link ParserPool}.
+ *
+ * Item metadata recorded using Java serialization is only read if its class is one used internally by
+ * the snapshot stages or is among those given to the constructor. Only those classes and a few standard
+ * value types may appear in the serialized form, whose size and complexity are also limited.
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class DOMSnapshotReader {
+
+    /** Limits on the Java serialization of a single item metadata record. */
+    private static final String SERIALIZATION_LIMITS = "maxdepth=8;maxrefs=256;maxarray=1024;maxbytes=1048576";
+
+    /** Standard value types which item metadata recorded using Java serialization may contain. */
+    private static final List<String> SERIALIZED_VALUE_TYPES = List.of("java.lang.String", "java.lang.Boolean",
+            "java.lang.Number", "java.lang.Integer", "java.lang.Long", "java.time.Ser");
+
+    /** Pool from which new documents are obtained. */
+    @Nonnull private final ParserPool parserPool;
+
+    /** Filter applied to item metadata recorded using Java serialization. */
+    @Nonnull private final ObjectInputFilter serializedFilter;
+
+    /**
+     * Constructor.
+     *
+     * @param pool the {@link ParserPool} from which new documents are obtained
+     */
+    public DOMSnapshotReader(@Nonnull final ParserPool pool) {
+        this(pool, Collections.emptySet());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param pool the {@link ParserPool} from which new documents are obtained
+     * @param classes further classes of item metadata to read from their Java serialization, as given to
+     *      the {@link DOMSnapshotSerializer} which wrote the snapshot
+     */
+    public DOMSnapshotReader(@Nonnull final ParserPool pool,
+            @Nonnull @NonnullElements final Collection<Class<? extends ItemMetadata>> classes) {
+        parserPool = Constraint.isNotNull(pool, "Parser pool can not be null");
+        final String allowed = Stream.concat(SnapshotFormat.SERIALIZED_METADATA.stream(), classes.stream())
+                .map(Class::getName)
+                .collect(Collectors.joining(";"));
+        serializedFilter = ObjectInputFilter.Config.createFilter(SERIALIZATION_LIMITS + ";"
+                + String.join(";", SERIALIZED_VALUE_TYPES) + ";" + allowed + ";!*");
+    }
+
+    /**
+     * Reads a snapshot, adding the items it contains to a collection.
+     *
+     * @param input the stream from which the snapshot is read
+     * @param items the collection to which the items are added
+     * @throws IOException if the snapshot can not be read, or is not a valid snapshot
+     * @throws XMLParserException if a new document can not be created
+     */
+    public void read(@Nonnull final InputStream input, @Nonnull @NonnullElements final List<Item<Element>> items)
+            throws IOException, XMLParserException {
+        final var in = new Input(input.readAllBytes());
+
+        final byte[] magic = in.readBytes(SnapshotFormat.MAGIC.length);
+        if (!Arrays.equals(magic, SnapshotFormat.MAGIC)) {
+            throw new IOException("not a DOM snapshot");
+        }
+        final int version = in.readByte();
+        if (version != SnapshotFormat.VERSION) {
+            throw new IOException("unsupported DOM snapshot version " + version);
+        }
+
+        final int itemCount = in.readInt();
+        for (int i = 0; i < itemCount; i++) {
+            final List<ItemMetadata> metadata = readMetadata(in);
+            final Document document = parserPool.newDocument();
+            if (in.readByte() != SnapshotFormat.NODE_ELEMENT) {
+                throw new IOException("item " + i + " does not start with an element");
+            }
+            // names were checked when the original document was built
+            in.elementPrototypes.clear();
+            in.attributePrototypes.clear();
+            document.setStrictErrorChecking(false);
+            document.appendChild(readElement(in, document));
+            document.setStrictErrorChecking(true);
+
+            final var item = new DOMElementItem(document);
+            for (final ItemMetadata m : metadata) {
+                item.getItemMetadata().put(m);
+            }
+            items.add(item);
+        }
+
+        if (!in.atEnd()) {
+            throw new IOException("unexpected data after last item");
+        }
+    }
+
+    /**
+     * Reads the metadata records for an item.
+     *
+     * @param in the input to read from
+     * @return the item metadata
+     * @throws IOException if the metadata can not be read
+     */
+    @Nonnull @NonnullElements private List<ItemMetadata> readMetadata(@Nonnull final Input in) throws IOException {
+        final int count = in.readInt();
+        final List<ItemMetadata> metadata = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int type = in.readByte();
+            switch (type) {
+                case SnapshotFormat.META_ITEM_ID:
+                    metadata.add(new ItemId(in.readNonNullRef()));
+                    break;
+
+                case SnapshotFormat.META_ITEM_TAG:
+                    metadata.add(new ItemTag(in.readNonNullRef()));
+                    break;
+
+                case SnapshotFormat.META_REGISTRATION_AUTHORITY:
+                    metadata.add(new RegistrationAuthority(in.readNonNullRef()));
+                    break;
+
+                case SnapshotFormat.META_INFO:
+                    metadata.add(new InfoStatus(in.readNonNullRef(), in.readString()));
+                    break;
+
+                case SnapshotFormat.META_WARNING:
+                    metadata.add(new WarningStatus(in.readNonNullRef(), in.readString()));
+                    break;
+
+                case SnapshotFormat.META_ERROR:
+                    metadata.add(new ErrorStatus(in.readNonNullRef(), in.readString()));
+                    break;
+
+                case SnapshotFormat.META_SERIALIZED:
+                    metadata.add(readSerialized(in.readBytes(in.readInt())));
+                    break;
+
+                default:
+                    throw new IOException("unknown metadata type " + type);
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Reads item metadata recorded using Java serialization.
+     *
+     * @param bytes the serialized metadata
+     * @return the item metadata
+     * @throws IOException if the metadata can not be read, or is rejected by the filter
+     */
+    @Nonnull private ItemMetadata readSerialized(@Nonnull final byte[] bytes) throws IOException {
+        try (var objects = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            objects.setObjectInputFilter(serializedFilter);
+            final Object metadata = objects.readObject();
+            if (!(metadata instanceof ItemMetadata)) {
+                throw new IOException("serialized metadata is not ItemMetadata");
+            }
+            return (ItemMetadata) metadata;
+        } catch (final ClassNotFoundException e) {
+            throw new IOException("unknown serialized metadata class", e);
+        }
+    }
+
+    /**
+     * Reads an element and its descendants, the element's type byte having already been read.
+     *
+     * The tree is read iteratively, so that deeply nested documents do not exhaust the stack.
+     *
+     * @param in the input to read from
+     * @param document the document in which to create the element
+     * @return the element
+     * @throws IOException if the element can not be read
+     */
+    @Nonnull private Element readElement(@Nonnull final Input in, @Nonnull final Document document)
+            throws IOException {
+        final Element root = readElementStart(in, document);
+        final Deque<Element> open = new ArrayDeque<>();
+        open.push(root);
+
+        while (!open.isEmpty()) {
+            final Element parent = open.peek();
+            final int type = in.readByte();
+            switch (type) {
+                case SnapshotFormat.NODE_END:
+                    open.pop();
+                    break;
+
+                case SnapshotFormat.NODE_ELEMENT:
+                    final Element child = readElementStart(in, document);
+                    parent.appendChild(child);
+                    open.push(child);
+                    break;
+
+                case SnapshotFormat.NODE_TEXT:
+                    parent.appendChild(document.createTextNode(in.readString()));
+                    break;
+
+                case SnapshotFormat.NODE_CDATA:
+                    parent.appendChild(document.createCDATASection(in.readString()));
+                    break;
+
+                case SnapshotFormat.NODE_COMMENT:
+                    parent.appendChild(document.createComment(in.readString()));
+                    break;
+
+                case SnapshotFormat.NODE_PI:
+                    final Node pi = document.createProcessingInstruction(in.readNonNullRef(), in.readString());
+                    parent.appendChild(pi);
+                    break;
+
+                default:
+                    throw new IOException("unknown node type " + type);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Reads an element's name and attributes, the element's type byte having already been read.
+     *
+     * @param in the input to read from
+     * @param document the document in which to create the element
+     * @return the element, without children
+     * @throws IOException if the element can not be read
+     */
+    @Nonnull private Element readElementStart(@Nonnull final Input in, @Nonnull final Document document)
+            throws IOException {
+        final String namespace = in.readRef();
+        final String name = in.readNonNullRef();
+        final Element element = (Element) prototype(in.elementPrototypes, namespace, name,
+                () -> document.createElementNS(namespace, name)).cloneNode(false);
+        final int attributeCount = in.readInt();
+        for (int i = 0; i < attributeCount; i++) {
+            final String attributeNamespace = in.readRef();
+            final String attributeName = in.readNonNullRef();
+            final Attr attribute = (Attr) prototype(in.attributePrototypes, attributeNamespace, attributeName,
+                    () -> document.createAttributeNS(attributeNamespace, attributeName)).cloneNode(false);
+            attribute.setValue(in.readString());
+            element.setAttributeNodeNS(attribute);
+        }
+        return element;
+    }
+
+    /**
+     * Returns the prototype node for a qualified name, creating it if required.
+     *
+     * Cloning a prototype avoids the name checks made by the DOM implementation each time
+     * a node is created from a name, which dominate the cost of building a large document.
+     * Names are interned by the snapshot format, so an identity map keyed on the qualified
+     * name can be used; the namespace is compared in case the same name is used with more
+     * than one namespace.
+     *
+     * @param prototypes the prototypes created so far, keyed on qualified name
+     * @param namespace the namespace of the node, or <code>null</code>
+     * @param name the qualified name of the node
+     * @param factory creates a new node for the name
+     * @return the prototype node
+     */
+    @Nonnull private static Node prototype(@Nonnull final Map<String, Node> prototypes,
+            @Nullable final String namespace, @Nonnull final String name,
+            @Nonnull final Supplier<Node> factory) {
+        final Node existing = prototypes.get(name);
+        if (existing != null && Objects.equals(existing.getNamespaceURI(), namespace)) {
+            return existing;
+        }
+        final Node created = factory.get();
+        if (existing == null) {
+            prototypes.put(name, created);
+        }
+        return created;
+    }
+
+    /** Snapshot input, recording the strings read so far. */
+    private static final class Input {
+
+        /** The snapshot. */
+        @Nonnull private final byte[] data;
+
+        /** Position of the next byte to read. */
+        private int position;
+
+        /** The interned strings read so far. */
+        @Nonnull private final List<String> strings = new ArrayList<>();
+
+        /** Element prototypes for the current document, keyed on qualified name. */
+        @Nonnull private final Map<String, Node> elementPrototypes = new IdentityHashMap<>();
+
+        /** Attribute prototypes for the current document, keyed on qualified name. */
+        @Nonnull private final Map<String, Node> attributePrototypes = new IdentityHashMap<>();
+
+        /**
+         * Constructor.
+         *
+         * @param bytes the snapshot
+         */
+        Input(@Nonnull final byte[] bytes) {
+            data = bytes;
+        }
+
+        /**
+         * Returns whether all of the input has been read.
+         *
+         * @return <code>true</code> if all of the input has been read
+         */
+        boolean atEnd() {
+            return position == data.length;
+        }
+
+        /**
+         * Reads a single unsigned byte.
+         *
+         * @return the byte
+         * @throws IOException if the input is exhausted
+         */
+        int readByte() throws IOException {
+            if (position >= data.length) {
+                throw new IOException("truncated DOM snapshot");
+            }
+            return data[position++] & 0xff;
+        }
+
+        /**
+         * Reads a number of bytes.
+         *
+         * @param length the number of bytes to read
+         * @return the bytes
+         * @throws IOException if the input is exhausted
+         */
+        @Nonnull byte[] readBytes(final int length) throws IOException {
+            if (length > data.length - position) {
+                throw new IOException("truncated DOM snapshot");
+            }
+            final byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        /**
+         * Reads a non-negative integer in variable-length form.
+         *
+         * @return the integer
+         * @throws IOException if the input is exhausted or the integer is out of range
+         */
+        int readInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                final int b = readByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        throw new IOException("integer out of range in DOM snapshot");
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("integer out of range in DOM snapshot");
+        }
+
+        /**
+         * Reads a literal string.
+         *
+         * @return the string
+         * @throws IOException if the input is exhausted
+         */
+        @Nonnull String readString() throws IOException {
+            final int length = readInt();
+            if (length > data.length - position) {
+                throw new IOException("truncated DOM snapshot");
+            }
+            final var value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        /**
+         * Reads a reference to an interned string.
+         *
+         * @return the string, or <code>null</code>
+         * @throws IOException if the input is exhausted or the reference is invalid
+         */
+        @Nullable String readRef() throws IOException {
+            final int ref = readInt();
+            if (ref == SnapshotFormat.REF_NULL) {
+                return null;
+            } else if (ref == SnapshotFormat.REF_NEW) {
+                final String value = readString();
+                strings.add(value);
+                return value;
+            } else if (ref - SnapshotFormat.REF_BASE < strings.size()) {
+                return strings.get(ref - SnapshotFormat.REF_BASE);
+            }
+            throw new IOException("invalid string reference " + ref + " in DOM snapshot");
+        }
+
+        /**
+         * Reads a reference to an interned string which may not be <code>null</code>.
+         *
+         * @return the string
+         * @throws IOException if the input is exhausted, the reference is invalid or is <code>null</code>
+         */
+        @Nonnull String readNonNullRef() throws IOException {
+            final String value = readRef();
+            if (value == null) {
+                throw new IOException("unexpected null string in DOM snapshot");
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemCollectionSerializer;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.ItemTag;
+import net.shibboleth.metadata.StatusMetadata;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+
+/**
+ * Serializes a collection of {@link Element} items as a DOM snapshot, which can be loaded again using
+ * {@link DOMSnapshotReader} or {@link DOMSnapshotSourceStage}.
+ *
+ * Use this with a {@link net.shibboleth.metadata.pipeline.SerializationStage} to write a snapshot
+ * from a pipeline.
+ *
+ * {@link ItemId}, {@link ItemTag}, {@link RegistrationAuthority}, {@link InfoStatus},
+ * {@link WarningStatus} and {@link ErrorStatus} item metadata is recorded compactly. Item metadata
+ * used internally by the snapshot stages, and of any further classes given to the constructor, is
+ * included using Java serialization; {@link DOMSnapshotReader} must be given the same classes to read
+ * it back. Other item metadata, document type declarations and nodes outside the document element are
+ * omitted.
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class DOMSnapshotSerializer implements ItemCollectionSerializer<Element> {
+
+    /** Classes of item metadata included using Java serialization. */
+    @Nonnull @NonnullElements @Unmodifiable private final Set<Class<? extends ItemMetadata>> serializedClasses;
+
+    /** Constructor. */
+    public DOMSnapshotSerializer() {
+        this(Collections.emptySet());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param classes further classes of item metadata to include using Java serialization
+     */
+    public DOMSnapshotSerializer(@Nonnull @NonnullElements final Collection<Class<? extends ItemMetadata>> classes) {
+        final Set<Class<? extends ItemMetadata>> allowed = new HashSet<>(SnapshotFormat.SERIALIZED_METADATA);
+        allowed.addAll(classes);
+        serializedClasses = Set.copyOf(allowed);
+    }
+
+    @Override
+    public void serializeCollection(@Nonnull @NonnullElements final Collection<Item<Element>> items,
+            @Nonnull final OutputStream output) throws IOException {
+        final var out = new Output(new BufferedOutputStream(output));
+        out.writeBytes(SnapshotFormat.MAGIC);
+        out.writeByte(SnapshotFormat.VERSION);
+        out.writeInt(items.size());
+        for (final Item<Element> item : items) {
+            writeMetadata(out, item);
+            writeElement(out, item.unwrap());
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the metadata for an item.
+     *
+     * @param out the output to write to
+     * @param item the item whose metadata is to be written
+     * @throws IOException if an error occurs writing the metadata
+     */
+    private void writeMetadata(@Nonnull final Output out, @Nonnull final Item<Element> item) throws IOException {
+        final List<ItemMetadata> recorded = new ArrayList<>();
+        for (final ItemMetadata metadata : item.getItemMetadata().values()) {
+            if (metadataType(metadata) != 0) {
+                recorded.add(metadata);
+            }
+        }
+
+        out.writeInt(recorded.size());
+        for (final ItemMetadata metadata : recorded) {
+            final int type = metadataType(metadata);
+            out.writeByte(type);
+            switch (type) {
+                case SnapshotFormat.META_ITEM_ID:
+                    out.writeRef(((ItemId) metadata).getId());
+                    break;
+
+                case SnapshotFormat.META_ITEM_TAG:
+                    out.writeRef(((ItemTag) metadata).getTag());
+                    break;
+
+                case SnapshotFormat.META_REGISTRATION_AUTHORITY:
+                    out.writeRef(((RegistrationAuthority) metadata).getRegistrationAuthority());
+                    break;
+
+                case SnapshotFormat.META_SERIALIZED:
+                    final var bytes = new ByteArrayOutputStream();
+                    try (var objects = new ObjectOutputStream(bytes)) {
+                        objects.writeObject(metadata);
+                    }
+                    out.writeInt(bytes.size());
+                    out.writeBytes(bytes.toByteArray());
+                    break;
+
+                default:
+                    final var status = (StatusMetadata) metadata;
+                    out.writeRef(status.getComponentId());
+                    out.writeString(status.getStatusMessage());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the snapshot record type for an item metadata object.
+     *
+     * Only the exact classes are recorded compactly, as subclasses may carry additional state.
+     *
+     * @param metadata the item metadata
+     * @return the record type, or 0 if the metadata is not recorded
+     */
+    private int metadataType(@Nonnull final ItemMetadata metadata) {
+        final Class<?> type = metadata.getClass();
+        if (type == ItemId.class) {
+            return SnapshotFormat.META_ITEM_ID;
+        } else if (type == ItemTag.class) {
+            return SnapshotFormat.META_ITEM_TAG;
+        } else if (type == InfoStatus.class) {
+            return SnapshotFormat.META_INFO;
+        } else if (type == WarningStatus.class) {
+            return SnapshotFormat.META_WARNING;
+        } else if (type == ErrorStatus.class) {
+            return SnapshotFormat.META_ERROR;
+        } else if (type == RegistrationAuthority.class) {
+            return SnapshotFormat.META_REGISTRATION_AUTHORITY;
+        } else if (serializedClasses.contains(type)) {
+            return SnapshotFormat.META_SERIALIZED;
+        }
+        return 0;
+    }
+
+    /**
+     * Writes an element and its descendants.
+     *
+     * @param out the output to write to
+     * @param element the element to write
+     * @throws IOException if an error occurs writing the element
+     */
+    private void writeElement(@Nonnull final Output out, @Nonnull final Element element) throws IOException {
+        out.writeByte(SnapshotFormat.NODE_ELEMENT);
+        out.writeRef(element.getNamespaceURI());
+        out.writeRef(element.getNodeName());
+
+        final NamedNodeMap attributes = element.getAttributes();
+        final int attributeCount = attributes.getLength();
+        out.writeInt(attributeCount);
+        for (int i = 0; i < attributeCount; i++) {
+            final var attribute = (Attr) attributes.item(i);
+            out.writeRef(attribute.getNamespaceURI());
+            out.writeRef(attribute.getName());
+            out.writeString(attribute.getValue());
+        }
+
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    writeElement(out, (Element) child);
+                    break;
+
+                case Node.TEXT_NODE:
+                    out.writeByte(SnapshotFormat.NODE_TEXT);
+                    out.writeString(child.getNodeValue());
+                    break;
+
+                case Node.CDATA_SECTION_NODE:
+                    out.writeByte(SnapshotFormat.NODE_CDATA);
+                    out.writeString(child.getNodeValue());
+                    break;
+
+                case Node.COMMENT_NODE:
+                    out.writeByte(SnapshotFormat.NODE_COMMENT);
+                    out.writeString(child.getNodeValue());
+                    break;
+
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    out.writeByte(SnapshotFormat.NODE_PI);
+                    out.writeRef(((ProcessingInstruction) child).getTarget());
+                    out.writeString(((ProcessingInstruction) child).getData());
+                    break;
+
+                default:
+                    throw new IOException("unsupported node type " + child.getNodeType() + " in element "
+                            + element.getNodeName());
+            }
+        }
+        out.writeByte(SnapshotFormat.NODE_END);
+    }
+
+    /** Snapshot output, recording the strings written so far. */
+    private static final class Output {
+
+        /** The underlying output stream. */
+        @Nonnull private final OutputStream out;
+
+        /** Index of each interned string written so far. */
+        @Nonnull private final Map<String, Integer> strings = new HashMap<>();
+
+        /**
+         * Constructor.
+         *
+         * @param output the underlying output stream
+         */
+        Output(@Nonnull final OutputStream output) {
+            out = output;
+        }
+
+        /**
+         * Writes a single byte.
+         *
+         * @param b the byte to write
+         * @throws IOException if an error occurs writing the byte
+         */
+        void writeByte(final int b) throws IOException {
+            out.write(b);
+        }
+
+        /**
+         * Writes an array of bytes.
+         *
+         * @param bytes the bytes to write
+         * @throws IOException if an error occurs writing the bytes
+         */
+        void writeBytes(@Nonnull final byte[] bytes) throws IOException {
+            out.write(bytes);
+        }
+
+        /**
+         * Writes a non-negative integer in variable-length form.
+         *
+         * @param value the integer to write
+         * @throws IOException if an error occurs writing the integer
+         */
+        void writeInt(final int value) throws IOException {
+            int v = value;
+            while ((v & ~0x7f) != 0) {
+                out.write((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        }
+
+        /**
+         * Writes a literal string.
+         *
+         * @param value the string to write
+         * @throws IOException if an error occurs writing the string
+         */
+        void writeString(@Nonnull final String value) throws IOException {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Writes a reference to an interned string.
+         *
+         * @param value the string to write, or <code>null</code>
+         * @throws IOException if an error occurs writing the string
+         */
+        void writeRef(@Nullable final String value) throws IOException {
+            if (value == null) {
+                writeInt(SnapshotFormat.REF_NULL);
+                return;
+            }
+            final Integer index = strings.get(value);
+            if (index != null) {
+                writeInt(SnapshotFormat.REF_BASE + index);
+            } else {
+                strings.put(value, strings.size());
+                writeInt(SnapshotFormat.REF_NEW);
+                writeString(value);
+            }
+        }
+
+        /**
+         * Flushes the underlying output stream.
+         *
+         * @throws IOException if an error occurs flushing the stream
+         */
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
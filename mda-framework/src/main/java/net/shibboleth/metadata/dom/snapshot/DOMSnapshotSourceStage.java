@@ -0,0 +1,172 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * A stage which adds the items recorded in a DOM snapshot to the item collection.
+ *
+ * Snapshots are written by {@link DOMSnapshotSerializer}. If the snapshot can not be read, the stage
+ * either fails or, if <code>errorCausesSourceFailure</code> is <code>false</code>, logs a warning and
+ * adds nothing to the collection.
+ *
+ * <p>
+ * This stage requires the following properties be set prior to initialization:
+ * <ul>
+ * <li><code>snapshotResource</code></li>
+ * <li><code>parserPool</code></li>
+ * </ul>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class DOMSnapshotSourceStage extends AbstractStage<Element> {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(DOMSnapshotSourceStage.class);
+
+    /** Resource from which the snapshot is read. */
+    @NonnullAfterInit @GuardedBy("this")
+    private Resource snapshotResource;
+
+    /** Pool from which new documents are obtained. */
+    @NonnullAfterInit @GuardedBy("this")
+    private ParserPool parserPool;
+
+    /** Whether an error reading the snapshot causes the stage to fail. Default value: <code>true</code> */
+    @GuardedBy("this")
+    private boolean errorCausesSourceFailure = true;
+
+    /**
+     * Gets the resource from which the snapshot is read.
+     *
+     * @return the snapshot resource
+     */
+    @Nullable public final synchronized Resource getSnapshotResource() {
+        return snapshotResource;
+    }
+
+    /**
+     * Sets the resource from which the snapshot is read.
+     *
+     * @param resource the snapshot resource
+     */
+    public synchronized void setSnapshotResource(@Nonnull final Resource resource) {
+        checkSetterPreconditions();
+        snapshotResource = Constraint.isNotNull(resource, "Snapshot resource can not be null");
+    }
+
+    /**
+     * Gets the pool from which new documents are obtained.
+     *
+     * @return the parser pool
+     */
+    @Nullable public final synchronized ParserPool getParserPool() {
+        return parserPool;
+    }
+
+    /**
+     * Sets the pool from which new documents are obtained.
+     *
+     * @param pool the parser pool
+     */
+    public synchronized void setParserPool(@Nonnull final ParserPool pool) {
+        checkSetterPreconditions();
+        parserPool = Constraint.isNotNull(pool, "Parser pool can not be null");
+    }
+
+    /**
+     * Gets whether an error reading the snapshot causes the stage to fail.
+     *
+     * @return whether an error reading the snapshot causes the stage to fail
+     */
+    public final synchronized boolean getErrorCausesSourceFailure() {
+        return errorCausesSourceFailure;
+    }
+
+    /**
+     * Sets whether an error reading the snapshot causes the stage to fail.
+     *
+     * @param causesFailure whether an error reading the snapshot causes the stage to fail
+     */
+    public synchronized void setErrorCausesSourceFailure(final boolean causesFailure) {
+        checkSetterPreconditions();
+        errorCausesSourceFailure = causesFailure;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final var resource = getSnapshotResource();
+        log.debug("{}: reading DOM snapshot from '{}'", getId(), resource.getDescription());
+
+        // read into a separate collection so that a failure part way through adds nothing
+        final List<Item<Element>> loaded = new ArrayList<>();
+        try (InputStream ins = resource.getInputStream()) {
+            new DOMSnapshotReader(getParserPool()).read(ins, loaded);
+        } catch (final IOException | XMLParserException e) {
+            if (getErrorCausesSourceFailure()) {
+                throw new StageProcessingException(getId() + " unable to read DOM snapshot from " +
+                        resource.getDescription(), e);
+            }
+            log.warn("stage {}: unable to read DOM snapshot", getId());
+            log.debug("stage {}: snapshot exception", getId(), e);
+            return;
+        }
+        items.addAll(loaded);
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (parserPool == null) {
+            throw new ComponentInitializationException("Unable to initialize " + getId()
+                    + ", ParserPool may not be null");
+        }
+
+        if (snapshotResource == null) {
+            throw new ComponentInitializationException("Unable to initialize " + getId()
+                    + ", snapshot resource may not be null");
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.Serializable;
+
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.metadata.ItemMetadata;
+
+/**
+ * Records the position of an item in the collection given to a {@link ShardedPipelineStage}, so that
+ * the stage can restore the original order after the item has been processed by a worker.
+ *
+ * @since 0.10.0
+ */
+@Immutable
+final class ShardSequence implements ItemMetadata, Serializable {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** Position of the item in the original collection. */
+    private final int index;
+
+    /**
+     * Constructor.
+     *
+     * @param position position of the item in the original collection
+     */
+    ShardSequence(final int position) {
+        index = position;
+    }
+
+    /**
+     * Gets the position of the item in the original collection.
+     *
+     * @return the position of the item in the original collection
+     */
+    int getIndex() {
+        return index;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.Pipeline;
+import net.shibboleth.metadata.pipeline.PipelineProcessingException;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * The processing performed by a worker process started by a {@link ShardedPipelineStage}.
+ *
+ * A worker reads a DOM snapshot of its shard of the items from its standard input, executes a pipeline
+ * on them, and writes a DOM snapshot of the resulting items to its standard output. The pipeline must not
+ * write anything else to standard output; a worker's <code>main</code> method should redirect
+ * {@link System#out} to {@link System#err} before doing anything else.
+ *
+ * @since 0.10.0
+ */
+public final class ShardWorker {
+
+    /** Constructor. */
+    private ShardWorker() {
+    }
+
+    /**
+     * Processes a shard of items.
+     *
+     * @param pipeline the pipeline to execute on the items
+     * @param parserPool pool from which new documents are obtained
+     * @param input the stream from which the items are read
+     * @param output the stream to which the resulting items are written
+     * @throws IOException if the items can not be read or written
+     * @throws XMLParserException if a new document can not be created
+     * @throws PipelineProcessingException if the pipeline fails
+     */
+    public static void process(@Nonnull final Pipeline<Element> pipeline, @Nonnull final ParserPool parserPool,
+            @Nonnull final InputStream input, @Nonnull final OutputStream output)
+            throws IOException, XMLParserException, PipelineProcessingException {
+        final List<Item<Element>> items = new ArrayList<>();
+        new DOMSnapshotReader(parserPool).read(input, items);
+        pipeline.execute(items);
+        new DOMSnapshotSerializer().serializeCollection(items, output);
+        output.flush();
+    }
+}
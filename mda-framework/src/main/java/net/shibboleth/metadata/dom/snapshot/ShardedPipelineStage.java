@@ -0,0 +1,646 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * A stage which partitions the item collection into shards and processes each shard in a separate
+ * worker process on the local host.
+ *
+ * <p>
+ * Items are assigned to shards by the hash of their first {@link ItemId}, so that a given entity is always
+ * processed by the same worker; items without an {@link ItemId} are assigned by position. Each worker is
+ * a new Java virtual machine running <code>workerClass</code>, which is expected to process its shard using
+ * {@link ShardWorker}. Items are passed to the worker on its standard input, and the results read back from
+ * its standard output, as DOM snapshots; the worker's standard error is inherited, so its log output
+ * appears with that of the calling process.
+ * </p>
+ *
+ * <p>
+ * The items returned by the workers, including any status metadata added to them, replace the original
+ * collection. They are returned in the order of the original items they were derived from; items created
+ * by a worker follow the item which preceded them in that worker's results.
+ * </p>
+ *
+ * <p>
+ * A worker fails if it exits with a non-zero status or its results can not be read. A failed worker is
+ * retried up to <code>workerAttempts</code> times in total. If it still fails, the stage either fails or,
+ * if <code>failOnWorkerError</code> is <code>false</code>, keeps the shard's original items and marks them
+ * with an {@link ErrorStatus}.
+ * </p>
+ *
+ * <p>
+ * This stage requires the following properties be set prior to initialization:
+ * <ul>
+ * <li><code>parserPool</code></li>
+ * </ul>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class ShardedPipelineStage extends AbstractStage<Element> {
+
+    /** Default name of the class executed by each worker process. */
+    public static final String DEFAULT_WORKER_CLASS = "net.shibboleth.metadata.cli.ShardWorkerCommandLine";
+
+    /** Number used to distinguish the worker threads of different stages. */
+    private static final AtomicInteger STAGE_NUMBER = new AtomicInteger();
+
+    /** Acceptable form for a heap size. */
+    private static final Pattern HEAP_SIZE = Pattern.compile("[1-9][0-9]*[kKmMgG]?");
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(ShardedPipelineStage.class);
+
+    /** Number of worker processes. Default value: 2 */
+    @GuardedBy("this") private int workerCount = 2;
+
+    /** Maximum heap size for each worker process, or <code>null</code> for the JVM's default. */
+    @Nullable @GuardedBy("this") private String workerHeap;
+
+    /** Additional options for each worker's JVM. */
+    @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
+    private List<String> jvmOptions = Collections.emptyList();
+
+    /** Command used to start a JVM. Default value: the <code>java</code> command of the running JVM. */
+    @Nonnull @GuardedBy("this")
+    private String javaCommand = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+
+    /** Class path for each worker's JVM. Default value: the class path of the running JVM. */
+    @Nonnull @GuardedBy("this")
+    private String classPath = System.getProperty("java.class.path");
+
+    /** Name of the class executed by each worker. */
+    @Nonnull @GuardedBy("this")
+    private String workerClass = DEFAULT_WORKER_CLASS;
+
+    /** Arguments passed to each worker. */
+    @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
+    private List<String> workerArguments = Collections.emptyList();
+
+    /** Number of times a shard is attempted before its worker is regarded as failed. Default value: 1 */
+    @GuardedBy("this") private int workerAttempts = 1;
+
+    /** Whether a failed worker causes the stage to fail. Default value: <code>true</code> */
+    @GuardedBy("this") private boolean failOnWorkerError = true;
+
+    /** Pool from which new documents are obtained. */
+    @NonnullAfterInit @GuardedBy("this")
+    private ParserPool parserPool;
+
+    /** Service providing the threads which communicate with the workers. */
+    @NonnullAfterInit @GuardedBy("this")
+    private ExecutorService workerService;
+
+    /**
+     * Gets the number of worker processes.
+     *
+     * @return the number of worker processes
+     */
+    public final synchronized int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Sets the number of worker processes.
+     *
+     * @param count the number of worker processes, which must be positive
+     */
+    public synchronized void setWorkerCount(final int count) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, count, "worker count must be positive");
+        workerCount = count;
+    }
+
+    /**
+     * Gets the maximum heap size for each worker process.
+     *
+     * @return the maximum heap size, or <code>null</code> for the JVM's default
+     */
+    @Nullable public final synchronized String getWorkerHeap() {
+        return workerHeap;
+    }
+
+    /**
+     * Sets the maximum heap size for each worker process.
+     *
+     * The size is given as for the JVM's <code>-Xmx</code> option, for example <code>4g</code>.
+     *
+     * @param heap the maximum heap size, or <code>null</code> for the JVM's default
+     */
+    public synchronized void setWorkerHeap(@Nullable final String heap) {
+        checkSetterPreconditions();
+        final String size = StringSupport.trimOrNull(heap);
+        if (size != null) {
+            Constraint.isTrue(HEAP_SIZE.matcher(size).matches(), "invalid worker heap size " + size);
+        }
+        workerHeap = size;
+    }
+
+    /**
+     * Gets the additional options for each worker's JVM.
+     *
+     * @return the additional JVM options
+     */
+    @Nonnull @NonnullElements @Unmodifiable public final synchronized List<String> getJvmOptions() {
+        return jvmOptions;
+    }
+
+    /**
+     * Sets the additional options for each worker's JVM.
+     *
+     * @param options the additional JVM options
+     */
+    public synchronized void setJvmOptions(@Nonnull @NonnullElements @Unmodifiable final List<String> options) {
+        checkSetterPreconditions();
+        jvmOptions = List.copyOf(options);
+    }
+
+    /**
+     * Gets the command used to start a JVM.
+     *
+     * @return the command used to start a JVM
+     */
+    @Nonnull public final synchronized String getJavaCommand() {
+        return javaCommand;
+    }
+
+    /**
+     * Sets the command used to start a JVM.
+     *
+     * @param command the command used to start a JVM
+     */
+    public synchronized void setJavaCommand(@Nonnull final String command) {
+        checkSetterPreconditions();
+        javaCommand = Constraint.isNotNull(StringSupport.trimOrNull(command), "Java command can not be empty");
+    }
+
+    /**
+     * Gets the class path for each worker's JVM.
+     *
+     * @return the class path
+     */
+    @Nonnull public final synchronized String getClassPath() {
+        return classPath;
+    }
+
+    /**
+     * Sets the class path for each worker's JVM.
+     *
+     * @param path the class path
+     */
+    public synchronized void setClassPath(@Nonnull final String path) {
+        checkSetterPreconditions();
+        classPath = Constraint.isNotNull(StringSupport.trimOrNull(path), "class path can not be empty");
+    }
+
+    /**
+     * Gets the name of the class executed by each worker.
+     *
+     * @return the name of the worker class
+     */
+    @Nonnull public final synchronized String getWorkerClass() {
+        return workerClass;
+    }
+
+    /**
+     * Sets the name of the class executed by each worker.
+     *
+     * @param name the name of the worker class
+     */
+    public synchronized void setWorkerClass(@Nonnull final String name) {
+        checkSetterPreconditions();
+        workerClass = Constraint.isNotNull(StringSupport.trimOrNull(name), "worker class can not be empty");
+    }
+
+    /**
+     * Gets the arguments passed to each worker.
+     *
+     * @return the worker arguments
+     */
+    @Nonnull @NonnullElements @Unmodifiable public final synchronized List<String> getWorkerArguments() {
+        return workerArguments;
+    }
+
+    /**
+     * Sets the arguments passed to each worker.
+     *
+     * For the default worker class, these are the location of the Spring configuration file and the name
+     * of the pipeline bean to execute.
+     *
+     * @param arguments the worker arguments
+     */
+    public synchronized void setWorkerArguments(
+            @Nonnull @NonnullElements @Unmodifiable final List<String> arguments) {
+        checkSetterPreconditions();
+        workerArguments = List.copyOf(arguments);
+    }
+
+    /**
+     * Gets the number of times a shard is attempted before its worker is regarded as failed.
+     *
+     * @return the number of attempts
+     */
+    public final synchronized int getWorkerAttempts() {
+        return workerAttempts;
+    }
+
+    /**
+     * Sets the number of times a shard is attempted before its worker is regarded as failed.
+     *
+     * @param attempts the number of attempts, which must be positive
+     */
+    public synchronized void setWorkerAttempts(final int attempts) {
+        checkSetterPreconditions();
+        Constraint.isGreaterThan(0, attempts, "worker attempts must be positive");
+        workerAttempts = attempts;
+    }
+
+    /**
+     * Gets whether a failed worker causes the stage to fail.
+     *
+     * @return whether a failed worker causes the stage to fail
+     */
+    public final synchronized boolean isFailOnWorkerError() {
+        return failOnWorkerError;
+    }
+
+    /**
+     * Sets whether a failed worker causes the stage to fail.
+     *
+     * If <code>false</code>, the original items of a failed worker's shard are kept and marked with an
+     * {@link ErrorStatus}.
+     *
+     * @param fail whether a failed worker causes the stage to fail
+     */
+    public synchronized void setFailOnWorkerError(final boolean fail) {
+        checkSetterPreconditions();
+        failOnWorkerError = fail;
+    }
+
+    /**
+     * Gets the pool from which new documents are obtained.
+     *
+     * @return the parser pool
+     */
+    @Nullable public final synchronized ParserPool getParserPool() {
+        return parserPool;
+    }
+
+    /**
+     * Sets the pool from which new documents are obtained.
+     *
+     * @param pool the parser pool
+     */
+    public synchronized void setParserPool(@Nonnull final ParserPool pool) {
+        checkSetterPreconditions();
+        parserPool = Constraint.isNotNull(pool, "Parser pool can not be null");
+    }
+
+    /**
+     * Gets the service providing the threads which communicate with the workers.
+     *
+     * @return the service providing the worker threads
+     */
+    @Nonnull private synchronized ExecutorService getWorkerService() {
+        return workerService;
+    }
+
+    /**
+     * Determines the shard to which an item is assigned.
+     *
+     * @param item the item
+     * @param position position of the item in the collection
+     * @param shards the number of shards
+     * @return the shard to which the item is assigned
+     */
+    static int shardOf(@Nonnull final Item<Element> item, final int position, final int shards) {
+        final List<ItemId> ids = item.getItemMetadata().get(ItemId.class);
+        final int hash = ids.isEmpty() ? position : ids.get(0).getId().hashCode();
+        return Math.floorMod(hash, shards);
+    }
+
+    /**
+     * Builds the command which starts a worker.
+     *
+     * @return the command which starts a worker
+     */
+    @Nonnull @NonnullElements List<String> workerCommand() {
+        final List<String> command = new ArrayList<>();
+        command.add(getJavaCommand());
+        final String heap = getWorkerHeap();
+        if (heap != null) {
+            command.add("-Xmx" + heap);
+        }
+        command.addAll(getJvmOptions());
+        command.add("-cp");
+        command.add(getClassPath());
+        command.add(getWorkerClass());
+        command.addAll(getWorkerArguments());
+        return command;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final int shardCount = getWorkerCount();
+        final List<List<Item<Element>>> shards = new ArrayList<>(shardCount);
+        for (int s = 0; s < shardCount; s++) {
+            shards.add(new ArrayList<>());
+        }
+        for (int i = 0; i < items.size(); i++) {
+            final Item<Element> item = items.get(i);
+            item.getItemMetadata().put(new ShardSequence(i));
+            shards.get(shardOf(item, i, shardCount)).add(item);
+        }
+
+        final Set<Process> processes = ConcurrentHashMap.newKeySet();
+        try {
+            final List<Future<List<Item<Element>>>> futures = new ArrayList<>(shardCount);
+            for (int s = 0; s < shardCount; s++) {
+                final int shard = s;
+                final List<Item<Element>> shardItems = shards.get(s);
+                futures.add(shardItems.isEmpty() ? null :
+                    getWorkerService().submit(() -> processShard(shard, shardItems, processes)));
+            }
+
+            final List<List<Item<Element>>> results = new ArrayList<>(shardCount);
+            for (int s = 0; s < shardCount; s++) {
+                results.add(shardResults(s, shards.get(s), futures, processes));
+            }
+
+            items.clear();
+            items.addAll(merge(results));
+        } finally {
+            for (final Item<Element> item : items) {
+                item.getItemMetadata().remove(ShardSequence.class);
+            }
+            for (final List<Item<Element>> shard : shards) {
+                for (final Item<Element> item : shard) {
+                    item.getItemMetadata().remove(ShardSequence.class);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a shard's worker to complete, and returns its results.
+     *
+     * @param shard the shard number
+     * @param shardItems the original items in the shard
+     * @param futures the futures for all shards, which are cancelled if the stage fails
+     * @param processes the running worker processes, which are destroyed if the stage fails
+     * @return the items resulting from processing the shard
+     * @throws StageProcessingException if the shard's worker failed and this causes the stage to fail
+     */
+    @Nonnull @NonnullElements private List<Item<Element>> shardResults(final int shard,
+            @Nonnull @NonnullElements final List<Item<Element>> shardItems,
+            @Nonnull final List<Future<List<Item<Element>>>> futures, @Nonnull final Set<Process> processes)
+            throws StageProcessingException {
+        final Future<List<Item<Element>>> future = futures.get(shard);
+        if (future == null) {
+            return shardItems;
+        }
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            cancelAll(futures, processes);
+            Thread.currentThread().interrupt();
+            throw new StageProcessingException(getId() + ": interrupted waiting for shard " + shard, e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (isFailOnWorkerError()) {
+                cancelAll(futures, processes);
+                throw new StageProcessingException(getId() + ": worker for shard " + shard + " failed",
+                        cause instanceof Exception ? (Exception) cause : e);
+            }
+            log.warn("{}: worker for shard {} failed, keeping its {} original items: {}", getId(), shard,
+                    shardItems.size(), cause.getMessage());
+            final var status = new ErrorStatus(getId(), "worker for shard " + shard + " failed: " +
+                    cause.getMessage());
+            for (final Item<Element> item : shardItems) {
+                item.getItemMetadata().put(status);
+            }
+            return shardItems;
+        }
+    }
+
+    /**
+     * Cancels the workers for all shards, destroying any which are running.
+     *
+     * @param futures the futures for all shards
+     * @param processes the running worker processes
+     */
+    private static void cancelAll(@Nonnull final List<Future<List<Item<Element>>>> futures,
+            @Nonnull final Set<Process> processes) {
+        for (final Future<List<Item<Element>>> future : futures) {
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+        // a thread blocked reading from a worker is not interrupted, but is released when the worker exits
+        for (final Process process : processes) {
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Processes a shard, retrying a failed worker up to the configured number of attempts.
+     *
+     * @param shard the shard number
+     * @param shardItems the items in the shard
+     * @param processes the running worker processes, to which the worker is added while it runs
+     * @return the items resulting from processing the shard
+     * @throws Exception if the final attempt fails
+     */
+    @Nonnull @NonnullElements private List<Item<Element>> processShard(final int shard,
+            @Nonnull @NonnullElements final List<Item<Element>> shardItems, @Nonnull final Set<Process> processes)
+            throws Exception {
+        final int attempts = getWorkerAttempts();
+        for (int attempt = 1; ; attempt++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("cancelled before starting worker for shard " + shard);
+            }
+            try {
+                return runWorker(shard, shardItems, processes);
+            } catch (final IOException | StageProcessingException | XMLParserException e) {
+                if (attempt >= attempts) {
+                    throw e;
+                }
+                log.warn("{}: attempt {} of {} for shard {} failed, retrying: {}", getId(), attempt, attempts,
+                        shard, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs a worker process on a shard.
+     *
+     * @param shard the shard number
+     * @param shardItems the items in the shard
+     * @param processes the running worker processes, to which the worker is added while it runs
+     * @return the items resulting from processing the shard
+     * @throws IOException if the items can not be passed to the worker, or its results can not be read
+     * @throws XMLParserException if a new document can not be created
+     * @throws StageProcessingException if the worker exits with a non-zero status
+     * @throws InterruptedException if the thread is interrupted while waiting for the worker
+     */
+    @Nonnull @NonnullElements private List<Item<Element>> runWorker(final int shard,
+            @Nonnull @NonnullElements final List<Item<Element>> shardItems, @Nonnull final Set<Process> processes)
+            throws IOException, XMLParserException, StageProcessingException, InterruptedException {
+        final var builder = new ProcessBuilder(workerCommand());
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        log.debug("{}: starting worker for shard {} with {} items", getId(), shard, shardItems.size());
+        final Process process = builder.start();
+        processes.add(process);
+        try {
+            // feed the worker from another thread, so that neither side blocks on a full pipe
+            final Future<?> feeder = getWorkerService().submit(() -> {
+                try (OutputStream out = process.getOutputStream()) {
+                    new DOMSnapshotSerializer().serializeCollection(shardItems, out);
+                }
+                return null;
+            });
+
+            final byte[] snapshot;
+            try (InputStream in = process.getInputStream()) {
+                snapshot = in.readAllBytes();
+            }
+            final int status = process.waitFor();
+            if (status != 0) {
+                throw new StageProcessingException("worker for shard " + shard + " exited with status " + status);
+            }
+            try {
+                feeder.get();
+            } catch (final ExecutionException e) {
+                throw new IOException("unable to pass items to worker for shard " + shard, e.getCause());
+            }
+
+            final List<Item<Element>> results = new ArrayList<>();
+            new DOMSnapshotReader(getParserPool()).read(new ByteArrayInputStream(snapshot), results);
+            log.debug("{}: worker for shard {} returned {} items", getId(), shard, results.size());
+            return results;
+        } finally {
+            processes.remove(process);
+            if (process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Merges the results from all shards into the order of the original items.
+     *
+     * Each result is positioned by the {@link ShardSequence} of the original item it was derived from,
+     * or else of the nearest preceding item from the same shard which has one.
+     *
+     * @param results the results from each shard
+     * @return the merged results
+     */
+    @Nonnull @NonnullElements private static List<Item<Element>> merge(
+            @Nonnull @NonnullElements final List<List<Item<Element>>> results) {
+        final List<long[]> keys = new ArrayList<>();
+        for (int s = 0; s < results.size(); s++) {
+            int sequence = -1;
+            final List<Item<Element>> shardResults = results.get(s);
+            for (int i = 0; i < shardResults.size(); i++) {
+                final List<ShardSequence> sequences = shardResults.get(i).getItemMetadata().get(ShardSequence.class);
+                if (!sequences.isEmpty()) {
+                    sequence = sequences.get(0).getIndex();
+                }
+                keys.add(new long[] {sequence, s, i});
+            }
+        }
+        keys.sort(Comparator.<long[]>comparingLong(k -> k[0]).thenComparingLong(k -> k[1])
+                .thenComparingLong(k -> k[2]));
+
+        final List<Item<Element>> merged = new ArrayList<>(keys.size());
+        for (final long[] key : keys) {
+            merged.add(results.get((int) key[1]).get((int) key[2]));
+        }
+        return merged;
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (workerService != null) {
+            workerService.shutdownNow();
+            workerService = null;
+        }
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (parserPool == null) {
+            throw new ComponentInitializationException("Unable to initialize " + getId()
+                    + ", ParserPool may not be null");
+        }
+
+        final int stageNumber = STAGE_NUMBER.incrementAndGet();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        workerService = Executors.newCachedThreadPool(runnable -> {
+            final var thread = new Thread(runnable,
+                    "mda-shard-" + stageNumber + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.util.Set;
+
+import net.shibboleth.metadata.ItemMetadata;
+
+/**
+ * Constants describing the DOM snapshot format.
+ *
+ * <p>
+ * A snapshot consists of the {@link #MAGIC} bytes, a {@link #VERSION} byte and the number of items,
+ * followed by each item in turn. An item consists of the number of metadata records, the records
+ * themselves, and the item's element.
+ * </p>
+ *
+ * <p>
+ * Each metadata record is a type byte followed by one or two strings or, for {@link #META_SERIALIZED},
+ * the length of a Java serialization of the metadata followed by the serialization. Each node is a type byte
+ * followed by the node's content; an element's content is its namespace, qualified name, the number
+ * of attributes and each attribute's namespace, qualified name and value, followed by its child
+ * nodes and an {@link #NODE_END} byte.
+ * </p>
+ *
+ * <p>
+ * Counts and lengths are written as unsigned variable-length integers, seven bits per byte with the
+ * high bit set on all but the last byte. Literal strings are written as the length of their UTF-8
+ * encoding followed by the encoding. Names, namespaces and metadata strings are interned: each is
+ * written as a reference, {@link #REF_NULL} for <code>null</code>, {@link #REF_NEW} followed by a
+ * literal string for a string not yet seen, or {@link #REF_BASE} plus the index of a string
+ * previously seen, in order of first appearance.
+ * </p>
+ */
+final class SnapshotFormat {
+
+    /** Magic bytes at the start of a snapshot. */
+    static final byte[] MAGIC = {(byte) 0x89, 'M', 'D', 'S', 'N', 'P', '\r', '\n'};
+
+    /** Version of the format. */
+    static final int VERSION = 2;
+
+    /** Reference to a <code>null</code> string. */
+    static final int REF_NULL = 0;
+
+    /** Reference introducing a new string. */
+    static final int REF_NEW = 1;
+
+    /** Reference to the first string previously seen. */
+    static final int REF_BASE = 2;
+
+    /** Ends the children of an element. */
+    static final int NODE_END = 0;
+
+    /** An element. */
+    static final int NODE_ELEMENT = 1;
+
+    /** A text node. */
+    static final int NODE_TEXT = 2;
+
+    /** A CDATA section. */
+    static final int NODE_CDATA = 3;
+
+    /** A comment. */
+    static final int NODE_COMMENT = 4;
+
+    /** A processing instruction. */
+    static final int NODE_PI = 5;
+
+    /** An {@link net.shibboleth.metadata.ItemId}. */
+    static final int META_ITEM_ID = 1;
+
+    /** An {@link net.shibboleth.metadata.ItemTag}. */
+    static final int META_ITEM_TAG = 2;
+
+    /** An {@link net.shibboleth.metadata.InfoStatus}. */
+    static final int META_INFO = 3;
+
+    /** A {@link net.shibboleth.metadata.WarningStatus}. */
+    static final int META_WARNING = 4;
+
+    /** An {@link net.shibboleth.metadata.ErrorStatus}. */
+    static final int META_ERROR = 5;
+
+    /** A {@link net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority}. */
+    static final int META_REGISTRATION_AUTHORITY = 6;
+
+    /** Other {@link ItemMetadata} of a class allowed to be recorded using Java serialization. */
+    static final int META_SERIALIZED = 7;
+
+    /** {@link ItemMetadata} classes which are always allowed to be recorded using Java serialization. */
+    static final Set<Class<? extends ItemMetadata>> SERIALIZED_METADATA = Set.of(ShardSequence.class);
+
+    /** Constructor. */
+    private SnapshotFormat() {
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A compact binary snapshot format for collections of {@link net.shibboleth.metadata.dom.DOMElementItem}s.
+ *
+ * <p>
+ * A snapshot records the DOM tree of each item, along with the item's {@link net.shibboleth.metadata.ItemId},
+ * {@link net.shibboleth.metadata.ItemTag}, {@link net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority}
+ * and status metadata. Loading a snapshot avoids the cost of parsing XML, and is intended for reloading
+ * collections which have been parsed, and perhaps processed, by an earlier run.
+ * </p>
+ *
+ * <p>
+ * The format is private to this package and may change between releases; a snapshot should only be read
+ * by the same version of the software that wrote it.
+ * </p>
+ */
+package net.shibboleth.metadata.dom.snapshot;
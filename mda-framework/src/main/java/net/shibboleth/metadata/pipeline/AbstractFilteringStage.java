@@ -17,10 +17,18 @@
 
 package net.shibboleth.metadata.pipeline;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import net.shibboleth.metadata.Item;
@@ -29,6 +37,11 @@ import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElemen
 /**
  * Base class for {@link Stage} implementations that iterate over each {@link Item} in a collection and do something,
  * then optionally remove the item being processed.
+ *
+ * All items are processed before any are removed, and the rejected items are then removed from
+ * the collection in a single pass. If an {@link ExecutorService} is provided, items are processed
+ * in parallel using that service; {@link #doExecute(Item)} must then be safe to call concurrently
+ * for different items.
  * 
  * @param <T> type of metadata this stage operates upon
  *
@@ -37,6 +50,94 @@ import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElemen
 @ThreadSafe
 public abstract class AbstractFilteringStage<T> extends AbstractStage<T> {
 
+    /** Service used to process items in parallel, or <code>null</code> for serial processing. */
+    @Nullable @GuardedBy("this")
+    private ExecutorService executorService;
+
+    /**
+     * Gets the {@link ExecutorService} used to process items in parallel.
+     *
+     * @return the {@link ExecutorService}, or <code>null</code> if processing is serial
+     */
+    @Nullable public final synchronized ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Sets the {@link ExecutorService} used to process items in parallel.
+     *
+     * The default is <code>null</code>, meaning that items are processed serially
+     * on the calling thread.
+     *
+     * @param service the {@link ExecutorService} to use, or <code>null</code>
+     */
+    public synchronized void setExecutorService(@Nullable final ExecutorService service) {
+        checkSetterPreconditions();
+        executorService = service;
+    }
+
+    /**
+     * Process a range of items, recording the result for each.
+     *
+     * @param items the items to process
+     * @param retain array in which to record whether each item is to be retained
+     * @param from index of the first item to process
+     * @param to index after the last item to process
+     * @return <code>null</code>
+     * @throws StageProcessingException if an item can not be processed, or processing is interrupted
+     */
+    @Nullable
+    private Void processRange(@Nonnull @NonnullElements final List<Item<T>> items, @Nonnull final boolean[] retain,
+            final int from, final int to) throws StageProcessingException {
+        for (int i = from; i < to; i++) {
+            checkInterrupted();
+            retain[i] = doExecute(items.get(i));
+        }
+        return null;
+    }
+
+    /**
+     * Process the items in parallel using the given {@link ExecutorService}.
+     *
+     * @param items the items to process
+     * @param retain array in which to record whether each item is to be retained
+     * @param service the {@link ExecutorService} to use
+     * @throws StageProcessingException if an item can not be processed, or processing is interrupted
+     */
+    private void processInParallel(@Nonnull @NonnullElements final List<Item<T>> items,
+            @Nonnull final boolean[] retain, @Nonnull final ExecutorService service)
+            throws StageProcessingException {
+        final int tasks = Math.min(items.size(), Runtime.getRuntime().availableProcessors() * 4);
+        final List<Future<Void>> futures = new ArrayList<>(tasks);
+        for (int task = 0; task < tasks; task++) {
+            final int from = (int) ((long) items.size() * task / tasks);
+            final int to = (int) ((long) items.size() * (task + 1) / tasks);
+            futures.add(service.submit(() -> processRange(items, retain, from, to)));
+        }
+
+        try {
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (final Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            throw new StageProcessingException("interrupted while processing items", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof StageProcessingException) {
+                throw (StageProcessingException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new StageProcessingException(e);
+        }
+    }
+
     /**
      * Iterates over each element of the Item collection and delegates the processing of that element to
      * {@link #doExecute(Item)}.
@@ -49,14 +150,23 @@ public abstract class AbstractFilteringStage<T> extends AbstractStage<T> {
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items)
             throws StageProcessingException {
-        final Iterator<Item<T>> itemIterator = items.iterator();
+        final boolean[] retain = new boolean[items.size()];
+        final ExecutorService service = getExecutorService();
+        if (service == null || items.size() < 2) {
+            processRange(items, retain, 0, items.size());
+        } else {
+            processInParallel(items, retain, service);
+        }
 
-        while (itemIterator.hasNext()) {
-            final Item<T> item = itemIterator.next();
-            if (!doExecute(item)) {
-                itemIterator.remove();
+        final Set<Item<T>> rejected = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < retain.length; i++) {
+            if (!retain[i]) {
+                rejected.add(items.get(i));
             }
         }
+        if (!rejected.isEmpty()) {
+            items.removeIf(rejected::contains);
+        }
     }
 
     /**
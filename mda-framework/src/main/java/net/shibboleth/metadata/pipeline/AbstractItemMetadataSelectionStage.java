@@ -106,20 +106,35 @@ public abstract class AbstractItemMetadataSelectionStage<T, B> extends AbstractS
         final var collectionCopy = new ArrayList<>(items);
 
         for (final Item<T> item : collectionCopy) {
-            final var matchingMetadata = new ClassToInstanceMultiMap<B>();
-
-            for (final Class<? extends B> infoClass : getSelectionRequirements()) {
-                if (item.getItemMetadata().containsKey(infoClass)) {
-                    matchingMetadata.putAll(item.getItemMetadata().get(infoClass));
-                }
-            }
-
+            final var matchingMetadata = selectMetadata(item);
             if (!matchingMetadata.isEmpty()) {
                 doExecute(items, item, matchingMetadata);
             }
         }
     }
 
+    /**
+     * Collects the {@link ItemMetadata} attached to an {@link Item} which matches
+     * the selection requirements.
+     *
+     * @param item the {@link Item} to examine
+     * @return the matching metadata, empty if the item is not selected
+     *
+     * @since 0.10.0
+     */
+    @Nonnull @NonnullElements
+    protected ClassToInstanceMultiMap<B> selectMetadata(@Nonnull final Item<T> item) {
+        final var matchingMetadata = new ClassToInstanceMultiMap<B>();
+
+        for (final Class<? extends B> infoClass : getSelectionRequirements()) {
+            if (item.getItemMetadata().containsKey(infoClass)) {
+                matchingMetadata.putAll(item.getItemMetadata().get(infoClass));
+            }
+        }
+
+        return matchingMetadata;
+    }
+
     /**
      * Performs the stage's logic on the given item that contained metadata of the given type.
      * 
@@ -22,7 +22,9 @@ import java.util.List;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
 
+import net.shibboleth.metadata.FirstItemIdItemIdentificationStrategy;
 import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.jfr.ItemProcessingEvent;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 
 /**
@@ -45,7 +47,16 @@ public abstract class AbstractIteratingStage<T> extends AbstractStage<T> {
     protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items)
             throws StageProcessingException {
         for (final Item<T> item : items) {
+            checkInterrupted();
+            final var event = new ItemProcessingEvent();
+            event.begin();
             doExecute(item);
+            event.end();
+            if (event.shouldCommit()) {
+                event.stageId = getId();
+                event.itemId = new FirstItemIdItemIdentificationStrategy<T>().getItemIdentifier(item);
+                event.commit();
+            }
         }
     }
 
@@ -26,8 +26,10 @@ import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
+import net.shibboleth.metadata.AbstractItem;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.pipeline.impl.BaseIdentifiableInitializableComponent;
+import net.shibboleth.metadata.pipeline.jfr.StageExecutionEvent;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 
@@ -45,6 +47,10 @@ public abstract class AbstractStage<T> extends BaseIdentifiableInitializableComp
      */
     @Nonnull @GuardedBy("this")
     private Predicate<Collection<Item<T>>> collectionPredicate = x -> true;
+
+    /** Whether a {@link Predicate} has been set to determine whether the stage will be executed. */
+    @GuardedBy("this")
+    private boolean collectionPredicateSet;
     
     /**
      * Sets the {@link Predicate} applied to the supplied item collection to determine whether
@@ -56,6 +62,7 @@ public abstract class AbstractStage<T> extends BaseIdentifiableInitializableComp
     public synchronized void setCollectionPredicate(@Nonnull final Predicate<Collection<Item<T>>> pred) {
         checkSetterPreconditions();
         collectionPredicate = Constraint.isNotNull(pred, "collectionPredicate may not be null");
+        collectionPredicateSet = true;
     }
     
     /**
@@ -70,20 +77,129 @@ public abstract class AbstractStage<T> extends BaseIdentifiableInitializableComp
         return collectionPredicate;
     }
 
+    /**
+     * Gets whether a {@link Predicate} has been set to determine whether the stage will be executed,
+     * so that whether it is executed depends on the whole item collection.
+     *
+     * @return whether a {@link Predicate} has been set
+     */
+    final synchronized boolean isCollectionPredicateSet() {
+        return collectionPredicateSet;
+    }
+
     @Override
     public void execute(@Nonnull @NonnullElements final List<Item<T>> items)
             throws StageProcessingException {
         checkComponentActive();
 
+        final var event = new StageExecutionEvent();
+        final int itemsIn = items.size();
+        boolean executed = false;
+        event.begin();
         final var start = Instant.now();
 
-        if (getCollectionPredicate().test(items)) {
-            doExecute(items);
+        try {
+            if (getCollectionPredicate().test(items)) {
+                executed = true;
+                doExecute(items);
+            }
+        } finally {
+            commitExecutionEvent(event, executed, itemsIn, items.size());
         }
 
         final var componentInfo = new ComponentInfo(getId(), getClass(), start, Instant.now());
         for (final var item : items) {
             item.getItemMetadata().put(componentInfo);
+            if (executed) {
+                itemProcessed(item);
+            }
+        }
+    }
+
+    /**
+     * Records that this stage has processed an item, by marking the item's data as possibly modified
+     * unless this is a {@link ReadOnlyStage}.
+     *
+     * <p>
+     * This is called for each item by {@link #execute(List)}, and by anything else, such as
+     * {@link StreamingPipeline}, which has the stage process items without calling {@link #execute(List)}.
+     * </p>
+     *
+     * @param item the item processed
+     */
+    final void itemProcessed(@Nonnull final Item<T> item) {
+        if (!(this instanceof ReadOnlyStage) && item instanceof AbstractItem) {
+            ((AbstractItem<T>) item).markModified();
+        }
+    }
+
+    /**
+     * Marks the data of a collection of items as possibly modified after a stage has executed on them,
+     * unless the stage is a {@link ReadOnlyStage} or an {@link AbstractStage}, which has already done so.
+     *
+     * <p>
+     * Pipelines call this after each stage, so that forms cached from the items' data are discarded
+     * whatever the class of the stage.
+     * </p>
+     *
+     * @param stage the stage which has executed
+     * @param items the items remaining after the stage
+     * @param <T> type of the items
+     */
+    static <T> void markModifiedBy(@Nonnull final Stage<T> stage,
+            @Nonnull @NonnullElements final List<Item<T>> items) {
+        if (stage instanceof AbstractStage || stage instanceof ReadOnlyStage) {
+            return;
+        }
+        for (final Item<T> item : items) {
+            if (item instanceof AbstractItem) {
+                ((AbstractItem<T>) item).markModified();
+            }
+        }
+    }
+
+    /**
+     * Ends and, if it is enabled, commits the flight recorder event for an execution of this stage.
+     *
+     * <p>
+     * This is called by {@link #execute(List)}, and by anything else, such as {@link StreamingPipeline},
+     * which has the stage process items without calling {@link #execute(List)}.
+     * </p>
+     *
+     * @param event the event, begun when the execution started
+     * @param executed whether the stage processed the items
+     * @param itemsIn number of items given to the stage
+     * @param itemsOut number of items remaining after the stage
+     */
+    final void commitExecutionEvent(@Nonnull final StageExecutionEvent event, final boolean executed,
+            final int itemsIn, final int itemsOut) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.stageId = getId();
+            event.stageClass = getClass();
+            event.executed = executed;
+            event.itemsIn = itemsIn;
+            event.itemsOut = itemsOut;
+            event.commit();
+        }
+    }
+
+    /**
+     * Fails if the current thread has been interrupted, for example because the pipeline containing
+     * this stage has been cancelled.
+     *
+     * <p>
+     * Stages which loop over many items should call this regularly, so that cancellation takes effect
+     * promptly. The thread's interrupted status is left set.
+     * </p>
+     *
+     * @throws StageProcessingException if the current thread has been interrupted
+     *
+     * @since 0.10.0
+     */
+    protected void checkInterrupted() throws StageProcessingException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new StageProcessingException(getId() + ": processing was interrupted");
         }
     }
 
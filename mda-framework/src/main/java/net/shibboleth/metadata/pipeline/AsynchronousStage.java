@@ -0,0 +1,81 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.util.Collection;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * A {@link Stage} which may still be doing work on behalf of an execution after that execution has returned.
+ *
+ * <p>
+ * A {@link SimplePipeline} waits for the outstanding work of each of its asynchronous stages
+ * before its own execution completes.
+ * </p>
+ *
+ * @param <T> type of metadata upon which the stage operates
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public interface AsynchronousStage<T> extends Stage<T> {
+
+    /**
+     * Waits for all work started by previous executions of this stage to complete.
+     *
+     * @throws StageProcessingException if any of that work failed
+     */
+    void awaitCompletion() throws StageProcessingException;
+
+    /**
+     * Waits for the outstanding work of those stages in a collection which are asynchronous.
+     *
+     * <p>
+     * All of the stages are waited for, even if some report failures; the first failure is then
+     * thrown, with any others added to it as suppressed exceptions.
+     * </p>
+     *
+     * @param stages the stages to wait for
+     * @param <T> type of metadata upon which the stages operate
+     * @throws StageProcessingException if the work of any of the stages failed
+     */
+    static <T> void awaitCompletion(@Nonnull @NonnullElements final Collection<? extends Stage<T>> stages)
+            throws StageProcessingException {
+        StageProcessingException failure = null;
+        for (final Stage<T> stage : stages) {
+            if (stage instanceof AsynchronousStage) {
+                try {
+                    ((AsynchronousStage<T>) stage).awaitCompletion();
+                } catch (final StageProcessingException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
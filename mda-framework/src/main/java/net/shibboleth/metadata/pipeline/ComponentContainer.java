@@ -0,0 +1,45 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+
+/**
+ * A component which contains other components that must be initialized before it can be used.
+ *
+ * Implementing this interface allows the contained components to be discovered, for example by
+ * {@link ComponentTreeInitializer}, so that they can be initialized before the container.
+ *
+ * @since 0.10.0
+ */
+public interface ComponentContainer {
+
+    /**
+     * Gets the components contained by this component.
+     *
+     * @return the contained components
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    List<? extends InitializableComponent> getContainedComponents();
+}
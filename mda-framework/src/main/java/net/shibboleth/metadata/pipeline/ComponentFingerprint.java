@@ -0,0 +1,469 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
+
+import org.cryptacular.util.CodecUtil;
+import org.springframework.core.io.Resource;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * Computes a fingerprint of the configuration of a collection of components, such as the stages
+ * at the start of a pipeline, so that saved results can be recognized as stale when the configuration
+ * which produced them changes.
+ *
+ * <p>
+ * The configuration of a component in this framework is the values of its properties: those with both a
+ * public getter and a public setter. Property values which are themselves framework components are
+ * described in the same way, as are the elements of collections, maps and arrays. Simple values such as
+ * strings, numbers and files are described by their values, other objects by their {@link Object#toString()}
+ * if their class provides one, and otherwise by their class alone. Executors are described by their class
+ * alone, as they affect where work is done rather than its results. Resources are described by a digest
+ * of their contents as well as their location, as they typically hold configuration such as stylesheets,
+ * schemas and key lists.
+ * </p>
+ *
+ * <p>
+ * Descriptions fail closed. A framework component with a public setter which has no matching getter, so
+ * that some of its configuration can not be read back, and a resource whose contents can not be read, can
+ * not be described. Each such object is given a description which is unique to it, so that its fingerprint
+ * differs from one run to the next and it is never the same as any other component. The one exception is
+ * a setter for a single value of a collection property, such as <code>setElementName</code> alongside
+ * <code>getElementNames</code>, as the configuration it sets is described by the collection property.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public final class ComponentFingerprint {
+
+    /** Prefix of the names of the framework's own classes, whose properties are described. */
+    private static final String FRAMEWORK_PACKAGE = "net.shibboleth.metadata.";
+
+    /** Maximum depth of nested values described. */
+    private static final int MAX_DEPTH = 10;
+
+    /** Constructor. */
+    private ComponentFingerprint() {
+    }
+
+    /** The state of a description in progress. */
+    private static final class Context {
+
+        /** The framework objects already described, to avoid cycles. */
+        @Nonnull private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        /**
+         * Numbers identifying the objects which can not be described completely, or <code>null</code>
+         * if such objects are described as far as possible instead.
+         */
+        @Nullable private final Map<Object, Integer> identities;
+
+        /**
+         * Constructor.
+         *
+         * @param objects numbers identifying the objects which can not be described completely,
+         *      or <code>null</code>
+         */
+        Context(@Nullable final Map<Object, Integer> objects) {
+            identities = objects;
+        }
+
+        /**
+         * Describes an object which can not be described at all, so that it is only the same as itself.
+         *
+         * <p>
+         * If identities are being used, the object is described by its identity. Otherwise, it is described
+         * by a random value, so that no description including it is ever repeated.
+         * </p>
+         *
+         * @param value the object
+         * @param out where the description is appended
+         */
+        void describeUnique(@Nonnull final Object value, @Nonnull final StringBuilder out) {
+            if (!describeIdentity(value, out)) {
+                out.append('!').append(stableName(value.getClass())).append('#').append(UUID.randomUUID());
+            }
+        }
+
+        /**
+         * Describes an object which can not be described completely by its identity, if identities are
+         * being used.
+         *
+         * @param value the object
+         * @param out where the description is appended
+         * @return <code>true</code> if the object has been described
+         */
+        boolean describeIdentity(@Nonnull final Object value, @Nonnull final StringBuilder out) {
+            if (identities == null) {
+                return false;
+            }
+            out.append('#').append(identities.computeIfAbsent(value, v -> identities.size()));
+            return true;
+        }
+    }
+
+    /**
+     * Computes the fingerprint of a collection of components.
+     *
+     * @param components the components
+     * @return the fingerprint, as a hexadecimal SHA-256 digest
+     */
+    @Nonnull public static String fingerprint(@Nonnull @NonnullElements final Collection<?> components) {
+        try {
+            final var digest = MessageDigest.getInstance("SHA-256");
+            return CodecUtil.hex(digest.digest(describe(components).getBytes(StandardCharsets.UTF_8)));
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Describes the configuration of a collection of components.
+     *
+     * @param components the components
+     * @return the description from which the fingerprint is computed
+     */
+    @Nonnull static String describe(@Nonnull @NonnullElements final Collection<?> components) {
+        final var out = new StringBuilder();
+        final var context = new Context(null);
+        for (final Object component : components) {
+            describe(component, out, context, 0);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Describes the configuration of a component, including its identifier, so that it can be compared
+     * with that of other components.
+     *
+     * <p>
+     * Two components with the same description are configured identically, identifiers included, and so
+     * behave identically and are reported identically in the statuses and component information they add.
+     * Within the description, any object which can not be described completely is identified by a number
+     * allocated from the given map, so that it is only the same as itself. These include objects which would
+     * otherwise be described only by their class, instances of lambda expressions, of anonymous or local
+     * classes or of framework classes whose state is set other than through their properties, and objects
+     * nested too deeply or cyclically. Unlike a fingerprint, the description is therefore only meaningful
+     * in comparison with other descriptions using the same map.
+     * </p>
+     *
+     * @param component the component
+     * @param identities numbers identifying the objects which can not be described completely, shared
+     *      between the descriptions being compared
+     * @return the description
+     */
+    @Nonnull static String describeForComparison(@Nonnull final Object component,
+            @Nonnull final Map<Object, Integer> identities) {
+        final var out = new StringBuilder();
+        describe(component, out, new Context(identities), 0);
+        return out.toString();
+    }
+
+    /**
+     * Describes a value.
+     *
+     * @param value the value
+     * @param out where the description is appended
+     * @param context the state of the description
+     * @param depth how deeply nested the value is
+     */
+    private static void describe(@Nullable final Object value, @Nonnull final StringBuilder out,
+            @Nonnull final Context context, final int depth) {
+        if (value == null) {
+            out.append("null");
+        } else if (isSimple(value)) {
+            out.append(value);
+        } else if (value instanceof Class) {
+            out.append(stableName((Class<?>) value));
+        } else if (value instanceof Executor) {
+            // where work is done does not change its results, and an executor's state varies as it runs
+            out.append(stableName(value.getClass()));
+        } else if (depth >= MAX_DEPTH) {
+            if (!context.describeIdentity(value, out)) {
+                out.append("...");
+            }
+        } else if (value instanceof Set) {
+            // set iteration order may vary from run to run
+            final List<String> elements = new ArrayList<>();
+            for (final Object element : (Set<?>) value) {
+                final var elementOut = new StringBuilder();
+                describe(element, elementOut, context, depth + 1);
+                elements.add(elementOut.toString());
+            }
+            Collections.sort(elements);
+            out.append(elements);
+        } else if (value instanceof Collection) {
+            out.append('[');
+            for (final Object element : (Collection<?>) value) {
+                describe(element, out, context, depth + 1);
+                out.append(',');
+            }
+            out.append(']');
+        } else if (value instanceof Map) {
+            final Map<String, String> entries = new TreeMap<>();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                final var key = new StringBuilder();
+                describe(entry.getKey(), key, context, depth + 1);
+                final var entryValue = new StringBuilder();
+                describe(entry.getValue(), entryValue, context, depth + 1);
+                entries.put(key.toString(), entryValue.toString());
+            }
+            out.append(entries);
+        } else if (value.getClass().isArray()) {
+            out.append('[');
+            for (int i = 0; i < Array.getLength(value); i++) {
+                describe(Array.get(value, i), out, context, depth + 1);
+                out.append(',');
+            }
+            out.append(']');
+        } else if (value instanceof Resource) {
+            describeResource((Resource) value, out, context);
+        } else if (value.getClass().getName().startsWith(FRAMEWORK_PACKAGE)) {
+            final Map<String, Method> properties = properties(value.getClass());
+            if (hasUnreadableSetter(value.getClass(), properties)) {
+                context.describeUnique(value, out);
+                return;
+            }
+            if (!isDescribable(value.getClass(), properties) && context.describeIdentity(value, out)) {
+                return;
+            }
+            if (!context.visited.add(value)) {
+                if (!context.describeIdentity(value, out)) {
+                    out.append('@').append(stableName(value.getClass()));
+                }
+                return;
+            }
+            out.append(stableName(value.getClass())).append('(');
+            for (final Map.Entry<String, Method> property : properties.entrySet()) {
+                out.append(property.getKey()).append('=');
+                try {
+                    describe(property.getValue().invoke(value), out, context, depth + 1);
+                } catch (final IllegalAccessException | InvocationTargetException e) {
+                    out.append('?');
+                }
+                out.append(';');
+            }
+            out.append(')');
+        } else if (hasOwnToString(value.getClass())) {
+            out.append(stableName(value.getClass())).append(':').append(value);
+        } else if (!context.describeIdentity(value, out)) {
+            out.append(stableName(value.getClass()));
+        }
+    }
+
+    /**
+     * Describes a resource by its location and a digest of its contents.
+     *
+     * @param resource the resource
+     * @param out where the description is appended
+     * @param context the state of the description
+     */
+    private static void describeResource(@Nonnull final Resource resource, @Nonnull final StringBuilder out,
+            @Nonnull final Context context) {
+        try (InputStream in = resource.getInputStream()) {
+            final var digest = MessageDigest.getInstance("SHA-256");
+            final byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+            out.append(stableName(resource.getClass())).append(':').append(resource.getDescription())
+                .append(":sha256=").append(CodecUtil.hex(digest.digest()));
+        } catch (final IOException e) {
+            // a resource which can not be read can not be shown to be unchanged
+            context.describeUnique(resource, out);
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets whether a framework class has a public setter whose value can not be read back, so that
+     * the configuration of its instances can not be described completely.
+     *
+     * <p>
+     * A setter for a single value of a collection property, named as the property without its final "s",
+     * is not counted, as the collection property describes it.
+     * </p>
+     *
+     * @param type the class
+     * @param properties the class's properties
+     * @return whether the class has a setter without a matching getter
+     */
+    private static boolean hasUnreadableSetter(@Nonnull final Class<?> type,
+            @Nonnull final Map<String, Method> properties) {
+        for (final String setter : setterProperties(type)) {
+            if (!properties.containsKey(setter) && !properties.containsKey(setter + "s")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets whether the state of an instance of a framework class is completely described by its properties.
+     *
+     * This is assumed of named classes with properties, and of named classes without properties only if they
+     * have no instance fields, as the state of such classes is usually set by their constructors.
+     *
+     * @param type the class
+     * @param properties the class's properties
+     * @return whether the state of an instance of the class is completely described by its properties
+     */
+    private static boolean isDescribable(@Nonnull final Class<?> type, @Nonnull final Map<String, Method> properties) {
+        if (type.isAnonymousClass() || type.isLocalClass() || type.isSynthetic() ||
+                type.getName().contains("$$Lambda")) {
+            return false;
+        }
+        if (!properties.isEmpty()) {
+            return true;
+        }
+        for (Class<?> k = type; k != null; k = k.getSuperclass()) {
+            for (final Field field : k.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets whether a value is described by its {@link Object#toString()} alone.
+     *
+     * @param value the value
+     * @return whether the value is simple
+     */
+    private static boolean isSimple(@Nonnull final Object value) {
+        return value instanceof CharSequence || value instanceof Number || value instanceof Boolean ||
+                value instanceof Character || value instanceof Enum || value instanceof Duration ||
+                value instanceof TemporalAccessor || value instanceof File || value instanceof Path ||
+                value instanceof URI || value instanceof URL || value instanceof QName;
+    }
+
+    /**
+     * Gets the getters for a class's configurable properties: those with a public setter, ordered by name.
+     *
+     * @param type the class
+     * @return the getters, indexed by property name
+     */
+    @Nonnull private static Map<String, Method> properties(@Nonnull final Class<?> type) {
+        final Set<String> setters = setterProperties(type);
+        final Map<String, Method> getters = new TreeMap<>();
+        for (final Method method : type.getMethods()) {
+            if (method.getParameterCount() != 0 || method.getReturnType() == void.class ||
+                    Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+            final String name = method.getName();
+            final String property;
+            if (name.startsWith("get") && name.length() > 3) {
+                property = name.substring(3);
+            } else if (name.startsWith("is") && name.length() > 2) {
+                property = name.substring(2);
+            } else {
+                continue;
+            }
+            if (setters.contains(property)) {
+                getters.put(property, method);
+            }
+        }
+        return getters;
+    }
+
+    /**
+     * Gets the names of the properties for which a class has a public setter.
+     *
+     * @param type the class
+     * @return the property names
+     */
+    @Nonnull private static Set<String> setterProperties(@Nonnull final Class<?> type) {
+        final Set<String> setters = new HashSet<>();
+        for (final Method method : type.getMethods()) {
+            if (method.getName().startsWith("set") && method.getParameterCount() == 1 &&
+                    !Modifier.isStatic(method.getModifiers())) {
+                setters.add(method.getName().substring(3));
+            }
+        }
+        return setters;
+    }
+
+    /**
+     * Gets whether a class provides its own {@link Object#toString()}.
+     *
+     * @param type the class
+     * @return whether the class overrides {@link Object#toString()}
+     */
+    private static boolean hasOwnToString(@Nonnull final Class<?> type) {
+        try {
+            return type.getMethod("toString").getDeclaringClass() != Object.class;
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets a name for a class which is the same from one run to the next.
+     *
+     * The names of the classes generated for lambda expressions include a varying suffix, which is removed.
+     *
+     * @param type the class
+     * @return the name
+     */
+    @Nonnull private static String stableName(@Nonnull final Class<?> type) {
+        final String name = type.getName();
+        final int lambda = name.indexOf("$$Lambda");
+        return lambda < 0 ? name : name.substring(0, lambda + "$$Lambda".length());
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.IdentifiedComponent;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Initializes a tree of components concurrently.
+ *
+ * The tree is discovered through components implementing {@link ComponentContainer}. Each component
+ * is initialized by a task on the given {@link ExecutorService} once all of the components it contains
+ * have been initialized, so that independent components, such as the stages of a pipeline, are
+ * initialized in parallel. When a container is finally initialized, it finds its contained components
+ * already initialized and does not initialize them again.
+ *
+ * A component appearing more than once in the tree is only initialized once. Components which are
+ * already initialized are left alone, as are any components they contain.
+ *
+ * A component may itself use a {@link ComponentTreeInitializer} while it is being initialized, for example
+ * a nested {@link SimplePipeline} reached through a component which is not a {@link ComponentContainer}.
+ * Such a nested tree is initialized serially by the thread already initializing the outer component, rather
+ * than by tasks queued behind that thread on a possibly shared and bounded {@link ExecutorService}, for
+ * which it could otherwise wait indefinitely.
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class ComponentTreeInitializer {
+
+    /** The time taken to initialize a single component. */
+    @Immutable
+    public static final class Timing {
+
+        /** Description of the component. */
+        @Nonnull private final String component;
+
+        /** Time taken to initialize the component. */
+        @Nonnull private final Duration duration;
+
+        /**
+         * Constructor.
+         *
+         * @param name description of the component
+         * @param time time taken to initialize the component
+         */
+        Timing(@Nonnull final String name, @Nonnull final Duration time) {
+            component = name;
+            duration = time;
+        }
+
+        /**
+         * Gets a description of the component: its identifier, if it has one, and its class.
+         *
+         * @return description of the component
+         */
+        @Nonnull public String getComponent() {
+            return component;
+        }
+
+        /**
+         * Gets the time taken to initialize the component, not including any contained components.
+         *
+         * @return the time taken
+         */
+        @Nonnull public Duration getDuration() {
+            return duration;
+        }
+    }
+
+    /** A report on the initialization of a tree of components. */
+    @Immutable
+    public static final class Report {
+
+        /** Elapsed time to initialize the tree. */
+        @Nonnull private final Duration elapsed;
+
+        /** Timings for each component initialized, slowest first. */
+        @Nonnull @NonnullElements @Unmodifiable private final List<Timing> timings;
+
+        /**
+         * Constructor.
+         *
+         * @param time elapsed time to initialize the tree
+         * @param componentTimings timings for each component initialized
+         */
+        Report(@Nonnull final Duration time, @Nonnull @NonnullElements final Collection<Timing> componentTimings) {
+            elapsed = time;
+            final List<Timing> sorted = new ArrayList<>(componentTimings);
+            sorted.sort(Comparator.comparing(Timing::getDuration).reversed());
+            timings = Collections.unmodifiableList(sorted);
+        }
+
+        /**
+         * Gets the elapsed time to initialize the tree.
+         *
+         * @return the elapsed time
+         */
+        @Nonnull public Duration getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Gets the total of the times taken to initialize each component.
+         *
+         * This will exceed the elapsed time to the extent that components were initialized in parallel.
+         *
+         * @return the total time
+         */
+        @Nonnull public Duration getTotal() {
+            Duration total = Duration.ZERO;
+            for (final Timing timing : timings) {
+                total = total.plus(timing.getDuration());
+            }
+            return total;
+        }
+
+        /**
+         * Gets the timings for each component initialized.
+         *
+         * @return the component timings, slowest first
+         */
+        @Nonnull @NonnullElements @Unmodifiable public List<Timing> getTimings() {
+            return timings;
+        }
+    }
+
+    /** Whether the current thread is running a component initialization task. */
+    @Nonnull private static final ThreadLocal<Boolean> INITIALIZING = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(ComponentTreeInitializer.class);
+
+    /** The {@link ExecutorService} used to initialize components. */
+    @Nonnull private final ExecutorService executorService;
+
+    /**
+     * Constructor.
+     *
+     * @param service the {@link ExecutorService} used to initialize components
+     */
+    public ComponentTreeInitializer(@Nonnull final ExecutorService service) {
+        executorService = Constraint.isNotNull(service, "ExecutorService can not be null");
+    }
+
+    /**
+     * Initialize a collection of components, and all of the components they contain.
+     *
+     * @param components the components to initialize
+     * @return a report on the initialization
+     * @throws ComponentInitializationException if any component fails to initialize,
+     *  or the components do not form a tree
+     */
+    @Nonnull public Report initialize(@Nonnull @NonnullElements
+            final Collection<? extends InitializableComponent> components) throws ComponentInitializationException {
+        final long start = System.nanoTime();
+        final Queue<Timing> timings = new ConcurrentLinkedQueue<>();
+        final Map<InitializableComponent, CompletableFuture<Void>> futures = new IdentityHashMap<>();
+        final Set<InitializableComponent> inProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        if (INITIALIZING.get()) {
+            final Set<InitializableComponent> done = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (final InitializableComponent component : components) {
+                initializeInline(component, done, inProgress, timings);
+            }
+            return new Report(Duration.ofNanos(System.nanoTime() - start), timings);
+        }
+
+        for (final InitializableComponent component : components) {
+            schedule(component, futures, inProgress, timings);
+        }
+
+        try {
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ComponentInitializationException("interrupted during initialization", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ComponentInitializationException) {
+                throw (ComponentInitializationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ComponentInitializationException(e);
+        }
+
+        final var report = new Report(Duration.ofNanos(System.nanoTime() - start), timings);
+        log.info("initialized {} components in {} ms ({} ms total)", report.getTimings().size(),
+                report.getElapsed().toMillis(), report.getTotal().toMillis());
+        for (final Timing timing : report.getTimings()) {
+            log.debug("    {}: {} ms", timing.getComponent(), timing.getDuration().toMillis());
+        }
+        return report;
+    }
+
+    /**
+     * Schedule the initialization of a component after the components it contains.
+     *
+     * @param component the component to initialize
+     * @param futures the initialization tasks scheduled so far, by component
+     * @param inProgress the components currently being scheduled, used to detect cycles
+     * @param timings the timings of components initialized
+     * @return the initialization task for the component
+     * @throws ComponentInitializationException if a component contains itself
+     */
+    @Nonnull private CompletableFuture<Void> schedule(@Nonnull final InitializableComponent component,
+            @Nonnull final Map<InitializableComponent, CompletableFuture<Void>> futures,
+            @Nonnull final Set<InitializableComponent> inProgress, @Nonnull final Queue<Timing> timings)
+            throws ComponentInitializationException {
+        final var existing = futures.get(component);
+        if (existing != null) {
+            return existing;
+        }
+
+        if (component.isInitialized()) {
+            final CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+            futures.put(component, done);
+            return done;
+        }
+
+        if (!inProgress.add(component)) {
+            throw new ComponentInitializationException("component " + describe(component) + " contains itself");
+        }
+        final List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+        if (component instanceof ComponentContainer) {
+            for (final InitializableComponent contained : ((ComponentContainer) component).getContainedComponents()) {
+                dependencies.add(schedule(contained, futures, inProgress, timings));
+            }
+        }
+        inProgress.remove(component);
+
+        final CompletableFuture<Void> future = CompletableFuture
+                .allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> initializeComponent(component, timings), executorService);
+        futures.put(component, future);
+        return future;
+    }
+
+    /**
+     * Initialize a component in the calling thread after the components it contains.
+     *
+     * @param component the component to initialize
+     * @param done the components already visited
+     * @param inProgress the components currently being visited, used to detect cycles
+     * @param timings the timings of components initialized
+     * @throws ComponentInitializationException if a component fails to initialize or contains itself
+     */
+    private void initializeInline(@Nonnull final InitializableComponent component,
+            @Nonnull final Set<InitializableComponent> done, @Nonnull final Set<InitializableComponent> inProgress,
+            @Nonnull final Queue<Timing> timings) throws ComponentInitializationException {
+        if (done.contains(component) || component.isInitialized()) {
+            return;
+        }
+
+        if (!inProgress.add(component)) {
+            throw new ComponentInitializationException("component " + describe(component) + " contains itself");
+        }
+        if (component instanceof ComponentContainer) {
+            for (final InitializableComponent contained : ((ComponentContainer) component).getContainedComponents()) {
+                initializeInline(contained, done, inProgress, timings);
+            }
+        }
+        inProgress.remove(component);
+
+        final long start = System.nanoTime();
+        component.initialize();
+        timings.add(new Timing(describe(component), Duration.ofNanos(System.nanoTime() - start)));
+        done.add(component);
+    }
+
+    /**
+     * Initialize a single component, recording the time taken.
+     *
+     * @param component the component to initialize
+     * @param timings the timings of components initialized
+     */
+    private void initializeComponent(@Nonnull final InitializableComponent component,
+            @Nonnull final Queue<Timing> timings) {
+        final long start = System.nanoTime();
+        final boolean nested = INITIALIZING.get();
+        INITIALIZING.set(Boolean.TRUE);
+        try {
+            if (!component.isInitialized()) {
+                component.initialize();
+            }
+        } catch (final ComponentInitializationException e) {
+            throw new CompletionException(e);
+        } finally {
+            INITIALIZING.set(nested);
+        }
+        timings.add(new Timing(describe(component), Duration.ofNanos(System.nanoTime() - start)));
+    }
+
+    /**
+     * Describe a component for logging purposes.
+     *
+     * @param component the component to describe
+     * @return a description of the component
+     */
+    @Nonnull private static String describe(@Nonnull final InitializableComponent component) {
+        final String className = component.getClass().getSimpleName();
+        if (component instanceof IdentifiedComponent) {
+            return ((IdentifiedComponent) component).getId() + " (" + className + ")";
+        }
+        return className;
+    }
+}
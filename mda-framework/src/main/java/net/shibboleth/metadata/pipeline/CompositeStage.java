@@ -26,6 +26,7 @@ import javax.annotation.concurrent.ThreadSafe;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
 
 /**
  * A stage that is composed of other stages. This allows a collection of stages to be grouped together and for that
@@ -34,7 +35,7 @@ import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
  * @param <T> type of metadata this stage, and its composed stages, operate upon
  */
 @ThreadSafe
-public class CompositeStage<T> extends AbstractStage<T> {
+public class CompositeStage<T> extends AbstractStage<T> implements ComponentContainer, AsynchronousStage<T> {
 
     /** Stages which compose this stage. */
     @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
@@ -62,6 +63,12 @@ public class CompositeStage<T> extends AbstractStage<T> {
         composedStages = List.copyOf(stages);
     }
 
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public List<? extends InitializableComponent> getContainedComponents() {
+        return getComposedStages();
+    }
+
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items)
             throws StageProcessingException {
@@ -70,4 +77,9 @@ public class CompositeStage<T> extends AbstractStage<T> {
         }
     }
 
+    @Override
+    public void awaitCompletion() throws StageProcessingException {
+        AsynchronousStage.awaitCompletion(getComposedStages());
+    }
+
 }
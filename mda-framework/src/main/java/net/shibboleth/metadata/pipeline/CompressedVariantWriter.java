@@ -0,0 +1,429 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.metadata.pipeline.impl.BaseInitializableComponent;
+import net.shibboleth.metadata.util.FileSupport;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Writes compressed variants of an output file alongside it, for serving by a web server
+ * which supports precompressed content.
+ *
+ * <p>
+ * Each variant is written by a task submitted to the writer's {@link ExecutorService}, so that
+ * compression can proceed in parallel with further serialization. Each variant is first written to
+ * a temporary file in the same directory, which then replaces any existing variant, so that a partially
+ * written variant is never visible.
+ * </p>
+ *
+ * <p>
+ * If no {@link ExecutorService} is set, the writer creates a single-threaded executor of its own
+ * when it is initialized, and shuts it down when it is destroyed.
+ * </p>
+ *
+ * <p>
+ * An existing variant is only left alone if it decompresses to exactly the new content. The checksum
+ * recorded in its trailer, and for gzip the length, are compared first, so that most changed variants
+ * are rewritten without being decompressed; as a checksum match does not prove the content is the same,
+ * a variant whose checksum matches is always decompressed and compared in full.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class CompressedVariantWriter extends BaseInitializableComponent {
+
+    /** The compressed formats which can be written. */
+    public enum Format {
+
+        /** gzip format, with suffix <code>.gz</code>. */
+        GZIP(".gz"),
+
+        /** zlib format, as used by the HTTP "deflate" content coding, with suffix <code>.zz</code>. */
+        DEFLATE(".zz");
+
+        /** Suffix added to the output file name. */
+        @Nonnull private final String suffix;
+
+        /**
+         * Constructor.
+         *
+         * @param fileSuffix suffix added to the output file name
+         */
+        Format(@Nonnull final String fileSuffix) {
+            suffix = fileSuffix;
+        }
+
+        /**
+         * Gets the suffix added to the output file name.
+         *
+         * @return the suffix
+         */
+        @Nonnull public String getSuffix() {
+            return suffix;
+        }
+    }
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CompressedVariantWriter.class);
+
+    /** Formats to write. Default value: gzip only. */
+    @Nonnull @NonnullElements @GuardedBy("this")
+    private Set<Format> formats = EnumSet.of(Format.GZIP);
+
+    /** Compression level. Default value: {@link Deflater#BEST_COMPRESSION}. */
+    @GuardedBy("this") private int compressionLevel = Deflater.BEST_COMPRESSION;
+
+    /** Whether existing variants of unchanged content should be left alone. Default value: <code>true</code> */
+    @GuardedBy("this") private boolean skippingUnchanged = true;
+
+    /** The {@link ExecutorService} used to write the variants. */
+    @NonnullAfterInit @GuardedBy("this")
+    private ExecutorService executorService;
+
+    /** The {@link ExecutorService} created by this writer, if none was set, to be shut down on destruction. */
+    @Nullable @GuardedBy("this")
+    private ExecutorService ownedExecutorService;
+
+    /**
+     * Gets the formats to write.
+     *
+     * @return the formats to write
+     */
+    @Nonnull @NonnullElements @Unmodifiable public final synchronized Set<Format> getFormats() {
+        return Set.copyOf(formats);
+    }
+
+    /**
+     * Sets the formats to write.
+     *
+     * @param newFormats the formats to write
+     */
+    public synchronized void setFormats(@Nonnull @NonnullElements final Collection<Format> newFormats) {
+        throwSetterPreconditionExceptions();
+        Constraint.isNotNull(newFormats, "Formats can not be null");
+        formats = newFormats.isEmpty() ? EnumSet.noneOf(Format.class) : EnumSet.copyOf(newFormats);
+    }
+
+    /**
+     * Gets the compression level.
+     *
+     * @return the compression level
+     */
+    public final synchronized int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the compression level.
+     *
+     * @param level the compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public synchronized void setCompressionLevel(final int level) {
+        throwSetterPreconditionExceptions();
+        Constraint.isTrue(level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION,
+                "Compression level must be between -1 and 9");
+        compressionLevel = level;
+    }
+
+    /**
+     * Gets whether existing variants of unchanged content are left alone.
+     *
+     * @return whether existing variants of unchanged content are left alone
+     */
+    public final synchronized boolean isSkippingUnchanged() {
+        return skippingUnchanged;
+    }
+
+    /**
+     * Sets whether existing variants of unchanged content are left alone.
+     *
+     * @param skip whether existing variants of unchanged content are left alone
+     */
+    public synchronized void setSkippingUnchanged(final boolean skip) {
+        throwSetterPreconditionExceptions();
+        skippingUnchanged = skip;
+    }
+
+    /**
+     * Gets the {@link ExecutorService} used to write the variants.
+     *
+     * @return the {@link ExecutorService} used to write the variants
+     */
+    @NonnullAfterInit public final synchronized ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Sets the {@link ExecutorService} used to write the variants.
+     *
+     * @param service the {@link ExecutorService} used to write the variants
+     */
+    public synchronized void setExecutorService(@Nonnull final ExecutorService service) {
+        throwSetterPreconditionExceptions();
+        executorService = Constraint.isNotNull(service, "ExecutorService can not be null");
+    }
+
+    /**
+     * Starts writing the compressed variants of an output file.
+     *
+     * @param content the content written to the output file, which must not be modified
+     *      until the variants have been written
+     * @param file the output file
+     * @return a {@link Future} for each variant being written
+     */
+    @Nonnull @NonnullElements public List<Future<Void>> write(@Nonnull final byte[] content,
+            @Nonnull final File file) {
+        throwComponentStateExceptions();
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (final Format format : getFormats()) {
+            final Path path = new File(file.getPath() + format.getSuffix()).toPath();
+            futures.add(getExecutorService().submit(() -> {
+                writeVariant(content, path, format);
+                return null;
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Waits for a collection of variants to be written.
+     *
+     * <p>
+     * All of the futures are waited for, even if some fail.
+     * </p>
+     *
+     * @param futures the futures returned by {@link #write(byte[], File)}
+     * @throws StageProcessingException if any of the variants could not be written
+     */
+    public static void awaitAll(@Nonnull @NonnullElements final Collection<Future<Void>> futures)
+            throws StageProcessingException {
+        StageProcessingException failure = null;
+        for (final Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (final ExecutionException e) {
+                if (failure == null) {
+                    failure = new StageProcessingException("Error writing compressed output",
+                            e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new StageProcessingException("Interrupted while writing compressed output", e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes a single compressed variant, unless it is unchanged.
+     *
+     * @param content the uncompressed content
+     * @param path the location of the variant
+     * @param format the format of the variant
+     * @throws IOException if the variant can not be written
+     */
+    private void writeVariant(@Nonnull final byte[] content, @Nonnull final Path path,
+            @Nonnull final Format format) throws IOException {
+        if (isSkippingUnchanged() && isUnchanged(content, path, format)) {
+            log.debug("{} is unchanged", path);
+            return;
+        }
+
+        final Path temp = FileSupport.createTemporarySibling(path);
+        try {
+            try (OutputStream out = Files.newOutputStream(temp);
+                    OutputStream compressed = openCompressor(out, format)) {
+                compressed.write(content);
+            }
+            FileSupport.replace(temp, path);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Opens a compressing stream.
+     *
+     * @param out the stream to which compressed data is written
+     * @param format the compressed format
+     * @return the compressing stream
+     * @throws IOException if the stream can not be opened
+     */
+    @Nonnull private OutputStream openCompressor(@Nonnull final OutputStream out, @Nonnull final Format format)
+            throws IOException {
+        // set the level on the streams' own deflaters, which are released when the streams are closed
+        final int level = getCompressionLevel();
+        if (format == Format.GZIP) {
+            return new GZIPOutputStream(out) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        return new DeflaterOutputStream(out) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    /**
+     * Determines whether an existing variant already holds the given content, by comparing
+     * the checksum in its trailer and then its decompressed content.
+     *
+     * @param content the uncompressed content
+     * @param path the location of the variant
+     * @param format the format of the variant
+     * @return whether the variant exists and holds the given content
+     * @throws IOException if the existing variant can not be read
+     */
+    private static boolean isUnchanged(@Nonnull final byte[] content, @Nonnull final Path path,
+            @Nonnull final Format format) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+        final Checksum checksum = format == Format.GZIP ? new CRC32() : new Adler32();
+        checksum.update(content, 0, content.length);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            if (format == Format.GZIP) {
+                // trailer is CRC-32 then length modulo 2^32, both little-endian
+                if (file.length() < 18) {
+                    return false;
+                }
+                file.seek(file.length() - 8);
+                final long crc = Integer.toUnsignedLong(Integer.reverseBytes(file.readInt()));
+                final long length = Integer.toUnsignedLong(Integer.reverseBytes(file.readInt()));
+                if (crc != checksum.getValue() || length != Integer.toUnsignedLong(content.length)) {
+                    return false;
+                }
+            } else {
+                // trailer is Adler-32, big-endian
+                if (file.length() < 6) {
+                    return false;
+                }
+                file.seek(file.length() - 4);
+                if (Integer.toUnsignedLong(file.readInt()) != checksum.getValue()) {
+                    return false;
+                }
+            }
+        }
+        return inflatesTo(path, content, format);
+    }
+
+    /**
+     * Determines whether a variant decompresses to exactly the given content.
+     *
+     * @param path the location of the variant
+     * @param content the uncompressed content
+     * @param format the format of the variant
+     * @return whether the variant decompresses to the given content
+     * @throws IOException if the existing variant can not be read
+     */
+    private static boolean inflatesTo(@Nonnull final Path path, @Nonnull final byte[] content,
+            @Nonnull final Format format) throws IOException {
+        try (InputStream compressed = Files.newInputStream(path);
+                InputStream in = format == Format.GZIP ? new GZIPInputStream(compressed) :
+                    new InflaterInputStream(compressed)) {
+            final byte[] buffer = new byte[8192];
+            int offset = 0;
+            while (true) {
+                final int count = in.read(buffer);
+                if (count < 0) {
+                    return offset == content.length;
+                }
+                if (count > content.length - offset ||
+                        !Arrays.equals(buffer, 0, count, content, offset, offset + count)) {
+                    return false;
+                }
+                offset += count;
+            }
+        } catch (final ZipException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (ownedExecutorService != null) {
+            ownedExecutorService.shutdown();
+            ownedExecutorService = null;
+            executorService = null;
+        }
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (formats.isEmpty()) {
+            log.warn("no compressed formats configured");
+        }
+
+        if (executorService == null) {
+            ownedExecutorService = Executors.newSingleThreadExecutor();
+            executorService = ownedExecutorService;
+        }
+    }
+}
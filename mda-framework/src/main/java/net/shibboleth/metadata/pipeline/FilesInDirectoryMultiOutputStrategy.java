@@ -89,6 +89,11 @@ public class FilesInDirectoryMultiOutputStrategy<T> extends BaseInitializableCom
         public OutputStream getOutputStream() throws IOException {
             return new FileOutputStream(file);
         }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
         
     }
     /** String to use as a prefix for file names generated by this strategy. Default value: empty string. */
@@ -17,13 +17,17 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -31,6 +35,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.shibboleth.metadata.Item;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.logic.Constraint;
 
 /**
  * Helper class for dealing with {@link Future} values.
@@ -92,6 +98,12 @@ public final class FutureSupport {
     /** Class logger. */
     private static final Logger LOG = LoggerFactory.getLogger(FutureSupport.class);
 
+    /**
+     * Longest time to wait for one of several {@link Future}s before checking whether any of the
+     * others has failed, in milliseconds.
+     */
+    private static final long POLL_MILLIS = 50;
+
     /** Constructor. */
     private FutureSupport() {
 
@@ -134,10 +146,118 @@ public final class FutureSupport {
             }
             // Wrap other exceptions
             throw new StageProcessingException("ExecutionException during processing", e);
+        } catch (final CancellationException e) {
+            throw new StageProcessingException("Pipeline execution was cancelled", e);
         } catch (final InterruptedException e) {
             LOG.debug("Execution service was interrupted", e);
+            Thread.currentThread().interrupt();
             throw new StageProcessingException("Execution service was interrupted", e);
         }
     }
+
+    /**
+     * Resolves the future values of several {@link Future} collection values, failing fast.
+     *
+     * <p>
+     * As soon as any of the {@link Future}s fails, or the timeout expires, the others are cancelled and
+     * interrupted so that they do not continue to consume resources, and an exception is thrown.
+     * The exception thrown on timeout names the branches which had not completed.
+     * </p>
+     *
+     * <p>
+     * Branches submitted to a {@link PipelineExecutorService} which are still waiting for a thread are
+     * run by the calling thread, so that nested stages sharing a busy pool can not deadlock. The timeout
+     * is only checked between branches, so a branch run by the calling thread may overrun it; the call
+     * then fails if any other branch is still running.
+     * </p>
+     *
+     * @param futures {@link Future} values to be resolved
+     * @param names names of the branches computing each of the values, used in messages
+     * @param timeout longest time to wait for all of the values, or <code>null</code> to wait indefinitely
+     * @param <T> type of the items in the collections
+     * @return resolved values of the {@link Future}s, in the same order
+     *
+     * @throws StageProcessingException unless resolution of every value is successful
+     *
+     * @since 0.10.0
+     */
+    @Nonnull @NonnullElements public static <T> List<List<Item<T>>> futureItems(
+            @Nonnull @NonnullElements final List<Future<List<Item<T>>>> futures,
+            @Nonnull @NonnullElements final List<String> names, @Nullable final Duration timeout)
+                    throws StageProcessingException {
+        Constraint.isTrue(futures.size() == names.size(), "There must be one name for each future");
+
+        final long start = System.nanoTime();
+        final long deadline = timeout == null ? 0 : start + timeout.toNanos();
+        final List<List<Item<T>>> results = new ArrayList<>(futures.size());
+        final boolean[] resolved = new boolean[futures.size()];
+        for (int i = 0; i < futures.size(); i++) {
+            results.add(null);
+        }
+
+        boolean success = false;
+        try {
+            int remaining = futures.size();
+            while (remaining > 0) {
+                // collect everything which has finished, noting the first branch which has not
+                int waitFor = -1;
+                for (int i = 0; i < futures.size(); i++) {
+                    if (resolved[i]) {
+                        continue;
+                    }
+                    final Future<List<Item<T>>> future = futures.get(i);
+                    // a branch still waiting for a thread is run here, so that nested stages sharing
+                    // a busy pool can not deadlock
+                    if (future.isDone() || PipelineExecutorService.runIfQueued(future)) {
+                        results.set(i, futureItems(future));
+                        resolved[i] = true;
+                        remaining--;
+                        LOG.debug("branch {} completed after {} ms", names.get(i),
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    } else if (waitFor < 0) {
+                        waitFor = i;
+                    }
+                }
+                if (waitFor < 0) {
+                    break;
+                }
+
+                long wait = TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS);
+                if (timeout != null) {
+                    final long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        final List<String> late = new ArrayList<>();
+                        for (int i = 0; i < futures.size(); i++) {
+                            if (!resolved[i]) {
+                                late.add(names.get(i));
+                            }
+                        }
+                        LOG.warn("branches {} did not complete within {}", late, timeout);
+                        throw new StageProcessingException("Branches " + late + " did not complete within " +
+                                timeout + " (elapsed " +
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+                    }
+                    wait = Math.min(wait, left);
+                }
+
+                try {
+                    futures.get(waitFor).get(wait, TimeUnit.NANOSECONDS);
+                } catch (final TimeoutException | ExecutionException | CancellationException e) {
+                    // the outcome is examined on the next pass
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StageProcessingException("Execution service was interrupted", e);
+                }
+            }
+            success = true;
+            return results;
+        } finally {
+            if (!success) {
+                for (final Future<List<Item<T>>> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
     
 }
@@ -17,7 +17,10 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
@@ -35,6 +38,9 @@ import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
  * 
  * This is useful, for example, in removing all {@link Item} elements which have an associated
  * {@link net.shibboleth.metadata.ErrorStatus}.
+ *
+ * The matching items are collected first and then removed from the collection in a single pass,
+ * so that the cost of the stage is linear in the number of items however many are removed.
  * 
  * @param <T> type of items the stage operates on
  */
@@ -44,15 +50,41 @@ public class ItemMetadataFilterStage<T> extends AbstractItemMetadataSelectionSta
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(ItemMetadataFilterStage.class);
 
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items) throws StageProcessingException {
+        final Set<Item<T>> removals = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final Item<T> item : items) {
+            final var matchingMetadata = selectMetadata(item);
+            if (!matchingMetadata.isEmpty()) {
+                logRemoval(item, matchingMetadata);
+                removals.add(item);
+            }
+        }
+
+        if (!removals.isEmpty()) {
+            items.removeIf(removals::contains);
+        }
+    }
+
+    /**
+     * Log the removal of an item.
+     *
+     * @param item the {@link Item} being removed
+     * @param matchingMetadata the {@link ItemMetadata} which caused the item to be removed
+     */
+    private void logRemoval(@Nonnull final Item<T> item,
+            @Nonnull @NonnullElements final ClassToInstanceMultiMap<ItemMetadata> matchingMetadata) {
+        final String itemId = getItemIdentificationStrategy().getItemIdentifier(item);
+        log.debug("Item {} was removed because it was marked with {}", itemId, matchingMetadata.keys());
+    }
+
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items,
             @Nonnull final Item<T> matchingItem,
             @Nonnull @NonnullElements final ClassToInstanceMultiMap<ItemMetadata> matchingMetadata)
             throws StageProcessingException {
 
-        final String itemId = getItemIdentificationStrategy().getItemIdentifier(matchingItem);
-        log.debug("Item {} was removed because it was marked with {}", itemId, matchingMetadata.keys());
-
+        logRemoval(matchingItem, matchingMetadata);
         items.remove(matchingItem);
     }
 }
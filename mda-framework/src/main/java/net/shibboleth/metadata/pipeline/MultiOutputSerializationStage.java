@@ -17,9 +17,14 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -29,6 +34,7 @@ import javax.annotation.concurrent.ThreadSafe;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemSerializer;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 
@@ -50,7 +56,8 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
  * @since 0.9.2
  */
 @ThreadSafe
-public class MultiOutputSerializationStage<T> extends AbstractIteratingStage<T> {
+public class MultiOutputSerializationStage<T> extends AbstractIteratingStage<T>
+        implements ReadOnlyStage<T> {
 
     /**
      * Interface implemented by destination objects created by an {@link OutputStrategy}.
@@ -69,6 +76,17 @@ public class MultiOutputSerializationStage<T> extends AbstractIteratingStage<T>
          * @throws IOException if there is an error creating the output stream
          */
         @Nonnull OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Gets the file to which the item is written, if the destination is a file.
+         *
+         * @return the file to which the item is written, or <code>null</code>
+         *
+         * @since 0.10.0
+         */
+        @Nullable default File getFile() {
+            return null;
+        }
     }
 
     /**
@@ -101,6 +119,13 @@ public class MultiOutputSerializationStage<T> extends AbstractIteratingStage<T>
     @NonnullAfterInit @GuardedBy("this")
     private ItemSerializer<T> serializer;
 
+    /** Writer for compressed variants of the output files, if any. Default value: <code>null</code> */
+    @Nullable @GuardedBy("this")
+    private CompressedVariantWriter compressedVariantWriter;
+
+    /** Compressed variants still being written by the execution running in each thread. */
+    @Nonnull private final ThreadLocal<List<Future<Void>>> pendingVariants = new ThreadLocal<>();
+
     /**
      * Gets the output strategy function determining where an item will be written.
      * 
@@ -139,12 +164,75 @@ public class MultiOutputSerializationStage<T> extends AbstractIteratingStage<T>
         serializer = Constraint.isNotNull(itemSerializer, "Item serializer can not be null");
     }
 
+    /**
+     * Gets the writer for compressed variants of the output files.
+     *
+     * @return the writer for compressed variants of the output files, or <code>null</code>
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized CompressedVariantWriter getCompressedVariantWriter() {
+        return compressedVariantWriter;
+    }
+
+    /**
+     * Sets the writer for compressed variants of the output files.
+     *
+     * <p>
+     * Compressed variants are only written for {@link Destination}s which are files.
+     * </p>
+     *
+     * @param writer the writer for compressed variants of the output files, or <code>null</code>
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setCompressedVariantWriter(@Nullable final CompressedVariantWriter writer) {
+        checkSetterPreconditions();
+        compressedVariantWriter = writer;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items)
+            throws StageProcessingException {
+        final List<Future<Void>> pending = new ArrayList<>();
+        pendingVariants.set(pending);
+        try {
+            super.doExecute(items);
+        } catch (final StageProcessingException e) {
+            // wait for the variants already started, but report the original failure
+            try {
+                CompressedVariantWriter.awaitAll(pending);
+            } catch (final StageProcessingException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        } finally {
+            pendingVariants.remove();
+        }
+        CompressedVariantWriter.awaitAll(pending);
+    }
+
     @Override
     protected void doExecute(@Nonnull final Item<T> item)
             throws StageProcessingException {
+        final CompressedVariantWriter variantWriter = getCompressedVariantWriter();
         try (final Destination destination = getOutputStrategy().getDestination(item);
                 final OutputStream stream = destination.getOutputStream()) {
-            getSerializer().serialize(item, stream);
+            final File file = destination.getFile();
+            if (variantWriter == null || file == null) {
+                getSerializer().serialize(item, stream);
+            } else {
+                final var buffer = new ByteArrayOutputStream();
+                getSerializer().serialize(item, buffer);
+                final byte[] content = buffer.toByteArray();
+                stream.write(content);
+                final List<Future<Void>> pending = pendingVariants.get();
+                if (pending != null) {
+                    pending.addAll(variantWriter.write(content, file));
+                } else {
+                    CompressedVariantWriter.awaitAll(variantWriter.write(content, file));
+                }
+            }
         } catch (final IOException e) {
             throw new StageProcessingException("Error writing to output location", e);
         }
@@ -162,5 +250,9 @@ public class MultiOutputSerializationStage<T> extends AbstractIteratingStage<T>
             throw new ComponentInitializationException("Item collection serializer can not be null");
         }
 
+        if (compressedVariantWriter != null && !compressedVariantWriter.isInitialized()) {
+            compressedVariantWriter.initialize();
+        }
+
     }
 }
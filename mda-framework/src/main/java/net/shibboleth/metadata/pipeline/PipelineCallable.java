@@ -21,12 +21,14 @@ import java.util.List;
 import java.util.concurrent.Callable;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.jfr.PipelineTaskEvent;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 
@@ -47,6 +49,12 @@ public class PipelineCallable<T> implements Callable<List<Item<T>>> {
     /** The collection of items upon which the pipeline will operate. */
     private final List<Item<T>> theItems;
 
+    /** Identifier of the stage on whose behalf the pipeline is executed, if known. */
+    @Nullable private final String theStageId;
+
+    /** Value of {@link System#nanoTime()} when this callable was created. */
+    private final long createdNanos;
+
     /**
      * Constructor.
      * 
@@ -55,16 +63,47 @@ public class PipelineCallable<T> implements Callable<List<Item<T>>> {
      */
     public PipelineCallable(@Nonnull final Pipeline<T> pipeline,
             @Nonnull @NonnullElements final List<Item<T>> items) {
+        this(pipeline, items, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param pipeline the pipeline that will be invoked; must be initialized; can not be null
+     * @param items the collection of items upon which the pipeline will operate, can not be null
+     * @param stageId identifier of the stage on whose behalf the pipeline is executed, used for monitoring
+     *
+     * @since 0.10.0
+     */
+    public PipelineCallable(@Nonnull final Pipeline<T> pipeline,
+            @Nonnull @NonnullElements final List<Item<T>> items, @Nullable final String stageId) {
         thePipeline = Constraint.isNotNull(pipeline, "To-be-invoked pipeline can not be null");
         Constraint.isTrue(pipeline.isInitialized(), "To-be-invoked pipeline must be initialized");
 
         theItems = Constraint.isNotNull(items, "Item collection can not be null");
+        theStageId = stageId;
+        createdNanos = System.nanoTime();
     }
 
     @Override @Nonnull @NonnullElements public List<Item<T>> call() throws PipelineProcessingException {
         log.debug("Executing pipeline {} on an item collection containing {} items", thePipeline.getId(),
                 theItems.size());
-        thePipeline.execute(theItems);
+        final var event = new PipelineTaskEvent();
+        final int itemCount = theItems.size();
+        event.begin();
+        final long queuedTime = System.nanoTime() - createdNanos;
+        try {
+            thePipeline.execute(theItems);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.stageId = theStageId;
+                event.pipelineId = thePipeline.getId();
+                event.itemCount = itemCount;
+                event.queuedTime = queuedTime;
+                event.commit();
+            }
+        }
         return theItems;
     }
 }
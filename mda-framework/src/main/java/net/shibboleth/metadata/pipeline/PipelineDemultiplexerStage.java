@@ -17,24 +17,36 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.SimpleItemCollectionFactory;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
 import net.shibboleth.utilities.java.support.collection.Pair;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 
 /**
@@ -50,19 +62,44 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
  * </ul>
  * 
  * <p>
- * If no {@link #executorService} is provided, one will be created using {@link Executors#newFixedThreadPool(int)} with
- * 6 threads.
+ * If no {@link #executorService} is provided, the stage creates a {@link PipelineExecutorService} of its own,
+ * which is destroyed along with the stage.
  * 
  * If no {@link #collectionFactory} is given, then {@link SimpleItemCollectionFactory} is used.
+ *
+ * <p>
+ * Where several of the pipelines are {@link SimplePipeline}s which begin with the same stages, and those
+ * stages process each item independently, the shared stages are executed once on copies of all the items
+ * selected for any of those pipelines, before the results are copied for each pipeline's remaining stages.
+ * Stages are the same if they are the same object, or if they are of the same class and their configuration,
+ * including their identifiers, can be shown to be identical (see {@link ComponentFingerprint}), so that the
+ * statuses and component information they add are those each pipeline would have added itself. A stage
+ * with any configuration which can not be read back is only the same as itself. Items are
+ * still selected for each pipeline before any stage is executed, so the results are as if each pipeline had
+ * executed all of its own stages. The shared stages are executed by the {@link ExecutorService}, and count
+ * against the <code>timeout</code>. This is only done if <code>sharingCommonStages</code> is set to
+ * <code>true</code>.
+ * </p>
  * 
  * @param <T> type of items upon which this stage operates
  */
 @ThreadSafe
-public class PipelineDemultiplexerStage<T> extends AbstractStage<T> {
+public class PipelineDemultiplexerStage<T> extends AbstractStage<T> implements ComponentContainer {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(PipelineDemultiplexerStage.class);
 
     /** Service used to execute the selected and/or non-selected item pipelines. */
-    @Nonnull @GuardedBy("this")
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();
+    @NonnullAfterInit @GuardedBy("this")
+    private ExecutorService executorService;
+
+    /** The {@link PipelineExecutorService} created by this stage, if none was provided. */
+    @Nullable @GuardedBy("this")
+    private PipelineExecutorService ownedExecutorService;
+
+    /** Longest time to wait for the pipelines to complete, or <code>null</code> to wait indefinitely. */
+    @Nullable @GuardedBy("this")
+    private Duration timeout;
 
     /**
      * Whether this child waits for all the invoked pipelines to complete before proceeding.
@@ -79,12 +116,52 @@ public class PipelineDemultiplexerStage<T> extends AbstractStage<T> {
     @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
     private List<Pair<Pipeline<T>, Predicate<Item<T>>>> pipelineAndStrategies = List.of();
 
+    /** Whether leading stages common to several pipelines are executed once for all of them. Default: false */
+    @GuardedBy("this") private boolean sharingCommonStages;
+
+    /** Groups of pipelines whose leading stages are executed once for the whole group. */
+    @NonnullAfterInit @NonnullElements @Unmodifiable @GuardedBy("this")
+    private List<SharedStages<T>> sharedStages;
+
+    /**
+     * The pipeline executed for each selection strategy: the configured pipeline or, for a member of a
+     * group sharing stages, a pipeline of the stages following the shared ones.
+     */
+    @NonnullAfterInit @NonnullElements @Unmodifiable @GuardedBy("this")
+    private List<Pipeline<T>> branchPipelines;
+
+    /**
+     * A group of pipelines with the same leading stages.
+     *
+     * @param <T> type of items upon which the stages operate
+     */
+    private static final class SharedStages<T> {
+
+        /** The leading stages common to the pipelines. */
+        @Nonnull @NonnullElements @Unmodifiable private final List<Stage<T>> stages;
+
+        /** Positions of the pipelines in the list of pipeline and selection strategy pairs. */
+        @Nonnull @NonnullElements @Unmodifiable private final List<Integer> branches;
+
+        /**
+         * Constructor.
+         *
+         * @param commonStages the leading stages common to the pipelines
+         * @param members positions of the pipelines in the list of pipeline and selection strategy pairs
+         */
+        SharedStages(@Nonnull @NonnullElements final List<Stage<T>> commonStages,
+                @Nonnull @NonnullElements final List<Integer> members) {
+            stages = List.copyOf(commonStages);
+            branches = List.copyOf(members);
+        }
+    }
+
     /**
      * Gets the executor service used to run the selected and non-selected item pipelines.
      * 
      * @return executor service used to run the selected and non-selected item pipelines
      */
-    @Nonnull public final synchronized ExecutorService getExecutorService() {
+    @NonnullAfterInit public final synchronized ExecutorService getExecutorService() {
         return executorService;
     }
 
@@ -98,6 +175,43 @@ public class PipelineDemultiplexerStage<T> extends AbstractStage<T> {
         executorService = Constraint.isNotNull(service, "ExecutorService can not be null");
     }
 
+    /**
+     * Gets the longest time to wait for the pipelines to complete.
+     *
+     * @return the longest time to wait, or <code>null</code> to wait indefinitely
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the longest time to wait for the pipelines to complete.
+     *
+     * The timeout only applies if the stage is waiting for the pipelines to complete.
+     *
+     * If the pipelines have not all completed within this time, any still running are cancelled and
+     * the stage fails. Any still running are also cancelled if one of them fails. The time taken by any
+     * stages shared by several of the pipelines counts against the timeout. When a timeout is set,
+     * all of the pipelines are run by the {@link ExecutorService} rather than one of them being run
+     * by the thread executing the stage, so that the stage can enforce the timeout.
+     *
+     * The default is <code>null</code>, meaning that the stage waits indefinitely.
+     *
+     * @param duration the longest time to wait, or <code>null</code> to wait indefinitely
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setTimeout(@Nullable final Duration duration) {
+        checkSetterPreconditions();
+        if (duration != null) {
+            Constraint.isFalse(duration.isZero(), "timeout cannot be zero");
+            Constraint.isFalse(duration.isNegative(), "timeout cannot be negative");
+        }
+        timeout = duration;
+    }
+
     /**
      * Gets whether this child waits for all the invoked pipelines to complete before proceeding.
      * 
@@ -163,32 +277,396 @@ public class PipelineDemultiplexerStage<T> extends AbstractStage<T> {
         pipelineAndStrategies = List.copyOf(passes);
     }
 
+    /**
+     * Gets whether leading stages common to several pipelines are executed once for all of them.
+     *
+     * @return whether common leading stages are shared
+     *
+     * @since 0.10.0
+     */
+    public final synchronized boolean isSharingCommonStages() {
+        return sharingCommonStages;
+    }
+
+    /**
+     * Sets whether leading stages common to several pipelines are executed once for all of them.
+     *
+     * @param share whether common leading stages are shared
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setSharingCommonStages(final boolean share) {
+        checkSetterPreconditions();
+        sharingCommonStages = share;
+    }
+
+    /**
+     * Gets the groups of pipelines whose leading stages are executed once for the whole group.
+     *
+     * @return the groups of pipelines sharing stages
+     */
+    @Nonnull @NonnullElements @Unmodifiable private synchronized List<SharedStages<T>> getSharedStages() {
+        return sharedStages;
+    }
+
+    /**
+     * Gets the pipeline executed for each selection strategy.
+     *
+     * @return the pipeline executed for each selection strategy
+     */
+    @Nonnull @NonnullElements @Unmodifiable private synchronized List<Pipeline<T>> getBranchPipelines() {
+        return branchPipelines;
+    }
+
+    /**
+     * Gets the number of leading stages shared by the pipeline at each position.
+     *
+     * @return the number of shared stages for each pipeline, in the order of the pipeline and
+     *      selection strategy pairs
+     */
+    @Nonnull int[] getSharedStageCounts() {
+        final int[] counts = new int[getPipelineAndSelectionStrategies().size()];
+        for (final SharedStages<T> group : getSharedStages()) {
+            for (final int branch : group.branches) {
+                counts[branch] = group.stages.size();
+            }
+        }
+        return counts;
+    }
+
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items)
             throws StageProcessingException {
-        final ArrayList<Future<List<Item<T>>>> pipelineFutures = new ArrayList<>();
+        final List<Pair<Pipeline<T>, Predicate<Item<T>>>> passes = getPipelineAndSelectionStrategies();
+        final List<Pipeline<T>> pipelines = getBranchPipelines();
 
-        for (final Pair<Pipeline<T>, Predicate<Item<T>>> pipelineAndStrategy : getPipelineAndSelectionStrategies()) {
-            final Pipeline<T> pipeline = pipelineAndStrategy.getFirst();
+        // select on the original items, before any stage has changed them
+        final List<List<Integer>> selections = new ArrayList<>(passes.size());
+        for (final Pair<Pipeline<T>, Predicate<Item<T>>> pipelineAndStrategy : passes) {
             final Predicate<Item<T>> selectionStrategy = pipelineAndStrategy.getSecond();
-            final List<Item<T>> selectedItems = getCollectionFactory().get();
+            final List<Integer> selected = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                if (selectionStrategy.test(items.get(i))) {
+                    selected.add(i);
+                }
+            }
+            selections.add(selected);
+        }
+
+        // copy the items for each group sharing stages once, for the shared stages to process
+        final List<SharedStages<T>> groups = getSharedStages();
+        final List<List<Item<T>>> sharedItems = new ArrayList<>(groups.size());
+        final List<Map<Item<T>, Integer>> sharedOrigins = new ArrayList<>(groups.size());
+        for (final SharedStages<T> group : groups) {
+            final Map<Item<T>, Integer> origins = new IdentityHashMap<>();
+            sharedItems.add(copySharedItems(group, items, selections, origins));
+            sharedOrigins.add(origins);
+        }
 
-            for (final Item<T> item : items) {
-                if (selectionStrategy.test(item)) {
-//                    @SuppressWarnings("unchecked") final ItemType copied = (ItemType) item.copy();
-//                    selectedItems.add(copied);
-                    selectedItems.add(item.copy());
+        final List<List<Item<T>>> branchItems = new ArrayList<>(Collections.nCopies(passes.size(), null));
+        final int itemCount = items.size();
+
+        if (!isWaitingForPipelines()) {
+            // each group's pipelines are started once its shared stages have been executed
+            for (int g = 0; g < groups.size(); g++) {
+                final SharedStages<T> group = groups.get(g);
+                final List<Item<T>> shared = sharedItems.get(g);
+                final Map<Item<T>, Integer> origins = sharedOrigins.get(g);
+                getExecutorService().submit(() -> {
+                    executeSharedStages(group, shared);
+                    final List<List<Item<T>>> groupItems =
+                            new ArrayList<>(Collections.nCopies(passes.size(), null));
+                    distributeSharedItems(group, shared, origins, selections, itemCount, groupItems);
+                    for (final int branch : group.branches) {
+                        getExecutorService().submit(new PipelineCallable<>(pipelines.get(branch),
+                                groupItems.get(branch), getId()));
+                    }
+                    return shared;
+                });
+            }
+            for (int b = 0; b < passes.size(); b++) {
+                if (!isSharing(groups, b)) {
+                    getExecutorService().submit(new PipelineCallable<>(pipelines.get(b),
+                            selectedItems(items, selections.get(b)), getId()));
+                }
+            }
+            return;
+        }
+
+        // we will be waiting anyway, so without a timeout the calling thread can run a task itself
+        final Duration timeout = getTimeout();
+        final long start = System.nanoTime();
+        if (!groups.isEmpty()) {
+            final List<Callable<List<Item<T>>>> sharedCallables = new ArrayList<>(groups.size());
+            final List<String> groupNames = new ArrayList<>(groups.size());
+            for (int g = 0; g < groups.size(); g++) {
+                final SharedStages<T> group = groups.get(g);
+                final List<Item<T>> shared = sharedItems.get(g);
+                sharedCallables.add(() -> {
+                    executeSharedStages(group, shared);
+                    return shared;
+                });
+                final List<String> memberIds = new ArrayList<>(group.branches.size());
+                for (final int branch : group.branches) {
+                    memberIds.add(passes.get(branch).getFirst().getId());
                 }
+                groupNames.add("shared stages of " + memberIds);
+            }
+            FutureSupport.futureItems(PipelineExecutorService.submitAll(getExecutorService(), sharedCallables,
+                    timeout == null), groupNames, timeout);
+            for (int g = 0; g < groups.size(); g++) {
+                distributeSharedItems(groups.get(g), sharedItems.get(g), sharedOrigins.get(g), selections,
+                        itemCount, branchItems);
             }
+        }
 
-            pipelineFutures.add(getExecutorService().submit(new PipelineCallable<>(pipeline, selectedItems)));
+        final List<PipelineCallable<T>> pipelineCallables = new ArrayList<>();
+        for (int b = 0; b < passes.size(); b++) {
+            List<Item<T>> selectedItems = branchItems.get(b);
+            if (selectedItems == null) {
+                selectedItems = selectedItems(items, selections.get(b));
+            }
+            pipelineCallables.add(new PipelineCallable<>(pipelines.get(b), selectedItems, getId()));
         }
 
-        if (isWaitingForPipelines()) {
-            for (final Future<List<Item<T>>> pipelineFuture : pipelineFutures) {
-                FutureSupport.futureItems(pipelineFuture);
+        // the shared stages count against the timeout, so the pipelines have whatever is left
+        Duration remaining = null;
+        if (timeout != null) {
+            remaining = timeout.minusNanos(System.nanoTime() - start);
+            if (remaining.isNegative() || remaining.isZero()) {
+                throw new StageProcessingException(getId() + ": shared stages did not leave time within " +
+                        timeout + " for the pipelines");
             }
         }
+        final List<Future<List<Item<T>>>> pipelineFutures =
+                PipelineExecutorService.submitAll(getExecutorService(), pipelineCallables, timeout == null);
+        final List<String> pipelineIds = new ArrayList<>();
+        for (final Pair<Pipeline<T>, Predicate<Item<T>>> pipelineAndStrategy : passes) {
+            pipelineIds.add(pipelineAndStrategy.getFirst().getId());
+        }
+        FutureSupport.futureItems(pipelineFutures, pipelineIds, remaining);
+    }
+
+    /**
+     * Copies the items selected for a pipeline.
+     *
+     * @param items the original items
+     * @param selection the positions of the items selected for the pipeline
+     * @return a new collection of copies of the selected items
+     */
+    @Nonnull @NonnullElements private List<Item<T>> selectedItems(@Nonnull @NonnullElements final List<Item<T>> items,
+            @Nonnull @NonnullElements final List<Integer> selection) {
+        final List<Item<T>> selectedItems = getCollectionFactory().get();
+        for (final int i : selection) {
+            selectedItems.add(items.get(i).copy());
+        }
+        return selectedItems;
+    }
+
+    /**
+     * Determines whether a pipeline shares stages with others.
+     *
+     * @param groups the groups of pipelines sharing stages
+     * @param branch the position of the pipeline
+     * @param <T> type of items upon which the stages operate
+     * @return <code>true</code> if the pipeline is a member of one of the groups
+     */
+    private static <T> boolean isSharing(@Nonnull @NonnullElements final List<SharedStages<T>> groups,
+            final int branch) {
+        for (final SharedStages<T> group : groups) {
+            if (group.branches.contains(branch)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies each item selected for any pipeline in a group sharing stages once.
+     *
+     * @param group the group of pipelines sharing stages
+     * @param items the original items
+     * @param selections the positions of the items selected for each pipeline
+     * @param origins where the position of the original of each copy is recorded
+     * @return the copies, for the shared stages to process
+     */
+    @Nonnull @NonnullElements private List<Item<T>> copySharedItems(@Nonnull final SharedStages<T> group,
+            @Nonnull @NonnullElements final List<Item<T>> items,
+            @Nonnull @NonnullElements final List<List<Integer>> selections,
+            @Nonnull final Map<Item<T>, Integer> origins) {
+        final var wanted = new BitSet(items.size());
+        for (final int branch : group.branches) {
+            for (final int i : selections.get(branch)) {
+                wanted.set(i);
+            }
+        }
+        final List<Item<T>> shared = new ArrayList<>(wanted.cardinality());
+        for (int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)) {
+            final Item<T> copy = items.get(i).copy();
+            shared.add(copy);
+            origins.put(copy, i);
+        }
+        return shared;
+    }
+
+    /**
+     * Executes the stages shared by a group of pipelines.
+     *
+     * @param group the group of pipelines sharing stages
+     * @param shared the copies of the items selected for any pipeline in the group
+     * @throws StageProcessingException if one of the shared stages fails
+     */
+    private void executeSharedStages(@Nonnull final SharedStages<T> group,
+            @Nonnull @NonnullElements final List<Item<T>> shared) throws StageProcessingException {
+        final int count = shared.size();
+        for (final Stage<T> stage : group.stages) {
+            stage.execute(shared);
+        }
+        log.debug("{}: executed {} shared stages on {} items for {} pipelines",
+                getId(), group.stages.size(), count, group.branches.size());
+    }
+
+    /**
+     * Builds the item collection for each pipeline in a group sharing stages from the results of the
+     * shared stages.
+     *
+     * @param group the group of pipelines sharing stages
+     * @param shared the results of the shared stages
+     * @param origins the position of the original of each shared item
+     * @param selections the positions of the items selected for each pipeline
+     * @param itemCount the number of original items
+     * @param branchItems the item collection for each pipeline, which is set for each pipeline in the group
+     */
+    private void distributeSharedItems(@Nonnull final SharedStages<T> group,
+            @Nonnull @NonnullElements final List<Item<T>> shared, @Nonnull final Map<Item<T>, Integer> origins,
+            @Nonnull @NonnullElements final List<List<Integer>> selections, final int itemCount,
+            @Nonnull final List<List<Item<T>>> branchItems) {
+        // stages which process items independently can only remove them, so each result has an origin
+        final int last = group.branches.get(group.branches.size() - 1);
+        for (final int branch : group.branches) {
+            final var selected = new BitSet(itemCount);
+            for (final int i : selections.get(branch)) {
+                selected.set(i);
+            }
+            final List<Item<T>> selectedItems = getCollectionFactory().get();
+            for (final Item<T> item : shared) {
+                if (selected.get(origins.get(item))) {
+                    // the last member of the group can have the shared results themselves
+                    selectedItems.add(branch == last ? item : item.copy());
+                }
+            }
+            branchItems.set(branch, selectedItems);
+        }
+    }
+
+    /**
+     * Groups the pipelines which begin with the same stages.
+     *
+     * Only {@link SimplePipeline}s are grouped, and only on leading stages which process each item
+     * independently.
+     *
+     * @param passes the pipeline and selection strategy pairs
+     * @return the groups of pipelines sharing stages
+     */
+    @Nonnull @NonnullElements private List<SharedStages<T>> findSharedStages(
+            @Nonnull @NonnullElements final List<Pair<Pipeline<T>, Predicate<Item<T>>>> passes) {
+        final Map<Object, Integer> identities = new IdentityHashMap<>();
+        final Map<String, List<Integer>> byFirstStage = new LinkedHashMap<>();
+        for (int b = 0; b < passes.size(); b++) {
+            final List<Stage<T>> stages = stagesOf(passes.get(b).getFirst());
+            if (!stages.isEmpty() && StreamingPipeline.isPerItemStage(stages.get(0))) {
+                byFirstStage.computeIfAbsent(stageKey(stages.get(0), identities), k -> new ArrayList<>()).add(b);
+            }
+        }
+
+        final List<SharedStages<T>> groups = new ArrayList<>();
+        for (final List<Integer> members : byFirstStage.values()) {
+            if (members.size() < 2) {
+                continue;
+            }
+            final List<Stage<T>> first = stagesOf(passes.get(members.get(0)).getFirst());
+            int length = 1;
+            while (length < first.size() && StreamingPipeline.isPerItemStage(first.get(length)) &&
+                    allHaveStage(passes, members, length, stageKey(first.get(length), identities), identities)) {
+                length++;
+            }
+            groups.add(new SharedStages<>(first.subList(0, length), members));
+        }
+        return groups;
+    }
+
+    /**
+     * Determines whether each of a group of pipelines has the same stage at a given position.
+     *
+     * @param passes the pipeline and selection strategy pairs
+     * @param members positions of the pipelines in the group
+     * @param position the position of the stage
+     * @param key the key of the stage
+     * @param identities numbers identifying the objects which can not be described completely
+     * @param <T> type of items upon which the stages operate
+     * @return <code>true</code> if each of the pipelines has a stage with the given key at the position
+     */
+    private static <T> boolean allHaveStage(
+            @Nonnull @NonnullElements final List<Pair<Pipeline<T>, Predicate<Item<T>>>> passes,
+            @Nonnull @NonnullElements final List<Integer> members, final int position, @Nonnull final String key,
+            @Nonnull final Map<Object, Integer> identities) {
+        for (final int member : members) {
+            final List<Stage<T>> stages = stagesOf(passes.get(member).getFirst());
+            if (stages.size() <= position || !key.equals(stageKey(stages.get(position), identities))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the stages of a pipeline, if they are known.
+     *
+     * @param pipeline the pipeline
+     * @param <T> type of items upon which the stages operate
+     * @return the pipeline's stages, or an empty list if they are not known
+     */
+    @Nonnull @NonnullElements private static <T> List<Stage<T>> stagesOf(@Nonnull final Pipeline<T> pipeline) {
+        return pipeline instanceof SimplePipeline ? ((SimplePipeline<T>) pipeline).getStages() : List.of();
+    }
+
+    /**
+     * Gets a key for a stage, which is the same for stages which behave identically.
+     *
+     * @param stage the stage
+     * @param identities numbers identifying the objects which can not be described completely, so that
+     *      such objects are only the same as themselves
+     * @param <T> type of items upon which the stages operate
+     * @return the key for the stage
+     */
+    @Nonnull private static <T> String stageKey(@Nonnull final Stage<T> stage,
+            @Nonnull final Map<Object, Integer> identities) {
+        return ComponentFingerprint.describeForComparison(stage, identities);
+    }
+
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public List<? extends InitializableComponent> getContainedComponents() {
+        final List<Pipeline<T>> pipelines = new ArrayList<>();
+        for (final Pair<Pipeline<T>, Predicate<Item<T>>> pipelineAndStrategy : getPipelineAndSelectionStrategies()) {
+            pipelines.add(pipelineAndStrategy.getFirst());
+        }
+        return List.copyOf(pipelines);
+    }
+
+    @Override
+    protected void doDestroy() {
+        // the pipelines of remaining stages share their stages with the configured pipelines
+        sharedStages = null;
+        branchPipelines = null;
+
+        if (ownedExecutorService != null) {
+            ownedExecutorService.destroy();
+            ownedExecutorService = null;
+            executorService = null;
+        }
+
+        super.doDestroy();
     }
 
     @Override
@@ -206,5 +684,36 @@ public class PipelineDemultiplexerStage<T> extends AbstractStage<T> {
                 pipeline.initialize();
             }
         }
+
+        sharedStages = sharingCommonStages ? List.copyOf(findSharedStages(pipelineAndStrategies)) : List.of();
+        final List<Pipeline<T>> pipelines = new ArrayList<>();
+        for (final Pair<Pipeline<T>, Predicate<Item<T>>> pipelineAndStrategy : pipelineAndStrategies) {
+            pipelines.add(pipelineAndStrategy.getFirst());
+        }
+        for (final SharedStages<T> group : sharedStages) {
+            final List<String> ids = new ArrayList<>();
+            for (final int branch : group.branches) {
+                final var original = (SimplePipeline<T>) pipelines.get(branch);
+                ids.add(original.getId());
+                final List<Stage<T>> stages = original.getStages();
+                final var remainder = new SimplePipeline<T>();
+                remainder.setId(original.getId());
+                remainder.setStages(stages.subList(group.stages.size(), stages.size()));
+                remainder.setTimeout(original.getTimeout());
+                remainder.initialize();
+                pipelines.set(branch, remainder);
+            }
+            log.info("{}: pipelines {} share {} leading stages, executed once rather than {} times",
+                    getId(), ids, group.stages.size(), group.branches.size());
+        }
+        branchPipelines = List.copyOf(pipelines);
+
+        // last, so that a stage failing to initialize does not leave a service behind
+        if (executorService == null) {
+            final var service = new PipelineExecutorService();
+            service.initialize();
+            ownedExecutorService = service;
+            executorService = service;
+        }
     }
 }
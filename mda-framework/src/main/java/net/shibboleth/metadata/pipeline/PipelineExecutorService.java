@@ -0,0 +1,453 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.metadata.pipeline.impl.BaseInitializableComponent;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * An {@link ExecutorService} intended to be shared by all the stages of a pipeline which run
+ * other pipelines in parallel, such as {@link SplitMergeStage}, {@link PipelineMergeStage} and
+ * {@link PipelineDemultiplexerStage}.
+ *
+ * <p>
+ * The service has a fixed maximum number of threads, by default the number of available
+ * processors. Idle threads are allowed to time out, and the threads are stopped when the component
+ * is destroyed, so that an unused service holds no threads.
+ * </p>
+ *
+ * <p>
+ * A thread waiting for the result of a task which has not yet started runs the task itself, rather than
+ * waiting for a thread to become free. This means that nested stages can share a bounded number of threads
+ * without deadlocking, and work is not handed off to another thread only for the submitter to wait for it.
+ * This applies to waits with a time limit as well: the waiting thread can not return until the task it
+ * is running completes, so the time limit may be overrun by up to the duration of that task.
+ * {@link #runIfQueued(Future)} allows other waiters to do the same.
+ * {@link #submitAll(ExecutorService, List)} goes further, and always runs the first of a group of tasks
+ * in the calling thread.
+ * </p>
+ *
+ * <p>
+ * The stages named above create an instance of their own, destroyed along with the stage, unless they
+ * are given an explicit {@link ExecutorService}. To bound the total number of threads used by a
+ * configuration, define a single instance as a bean and inject it into each of the stages; it is then
+ * shut down when the bean is destroyed.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class PipelineExecutorService extends BaseInitializableComponent implements ExecutorService {
+
+    /** How long idle threads are kept, in seconds. */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /** Class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PipelineExecutorService.class);
+
+    /** Maximum number of threads. Default value: the number of available processors. */
+    @GuardedBy("this") private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /** The underlying thread pool. */
+    @NonnullAfterInit @GuardedBy("this") private HelpingThreadPoolExecutor executor;
+
+    /** Number of tasks run by the threads which submitted them, or which were waiting for them. */
+    @Nonnull private final LongAdder callerRunCount = new LongAdder();
+
+    /**
+     * Gets the maximum number of threads.
+     *
+     * @return the maximum number of threads
+     */
+    public final synchronized int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Sets the maximum number of threads.
+     *
+     * @param count the maximum number of threads
+     */
+    public synchronized void setThreadCount(final int count) {
+        throwSetterPreconditionExceptions();
+        Constraint.isGreaterThan(0, count, "Thread count must be greater than zero");
+        threadCount = count;
+    }
+
+    /**
+     * Gets the number of tasks waiting for a thread.
+     *
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return getExecutor().getQueue().size();
+    }
+
+    /**
+     * Gets the approximate number of tasks being run by the service's own threads.
+     *
+     * @return the approximate number of tasks being run
+     */
+    public int getActiveCount() {
+        return getExecutor().getActiveCount();
+    }
+
+    /**
+     * Gets the number of threads currently in the pool.
+     *
+     * @return the number of threads currently in the pool
+     */
+    public int getPoolSize() {
+        return getExecutor().getPoolSize();
+    }
+
+    /**
+     * Gets the approximate number of tasks completed by the service's own threads.
+     *
+     * @return the approximate number of tasks completed
+     */
+    public long getCompletedTaskCount() {
+        return getExecutor().getCompletedTaskCount();
+    }
+
+    /**
+     * Gets the number of tasks run by the threads which submitted them or were waiting for them,
+     * rather than by the service's own threads.
+     *
+     * @return the number of tasks run by callers
+     */
+    public long getCallerRunCount() {
+        return callerRunCount.sum();
+    }
+
+    /**
+     * Gets the underlying thread pool.
+     *
+     * @return the underlying thread pool
+     */
+    @Nonnull private synchronized HelpingThreadPoolExecutor getExecutor() {
+        throwComponentStateExceptions();
+        return executor;
+    }
+
+    @Override
+    public void execute(@Nonnull final Runnable command) {
+        getExecutor().execute(command);
+    }
+
+    @Override
+    @Nonnull public <V> Future<V> submit(@Nonnull final Callable<V> task) {
+        return getExecutor().submit(task);
+    }
+
+    @Override
+    @Nonnull public <V> Future<V> submit(@Nonnull final Runnable task, final V result) {
+        return getExecutor().submit(task, result);
+    }
+
+    @Override
+    @Nonnull public Future<?> submit(@Nonnull final Runnable task) {
+        return getExecutor().submit(task);
+    }
+
+    @Override
+    @Nonnull public <V> List<Future<V>> invokeAll(@Nonnull final Collection<? extends Callable<V>> tasks)
+            throws InterruptedException {
+        return getExecutor().invokeAll(tasks);
+    }
+
+    @Override
+    @Nonnull public <V> List<Future<V>> invokeAll(@Nonnull final Collection<? extends Callable<V>> tasks,
+            final long timeout, @Nonnull final TimeUnit unit) throws InterruptedException {
+        return getExecutor().invokeAll(tasks, timeout, unit);
+    }
+
+    @Override
+    @Nonnull public <V> V invokeAny(@Nonnull final Collection<? extends Callable<V>> tasks)
+            throws InterruptedException, ExecutionException {
+        return getExecutor().invokeAny(tasks);
+    }
+
+    @Override
+    @Nonnull public <V> V invokeAny(@Nonnull final Collection<? extends Callable<V>> tasks, final long timeout,
+            @Nonnull final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return getExecutor().invokeAny(tasks, timeout, unit);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * The service is also shut down when the component is destroyed.
+     * </p>
+     */
+    @Override
+    public void shutdown() {
+        getExecutor().shutdown();
+    }
+
+    @Override
+    @Nonnull public List<Runnable> shutdownNow() {
+        return getExecutor().shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return getExecutor().isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return getExecutor().isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, @Nonnull final TimeUnit unit) throws InterruptedException {
+        return getExecutor().awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Submits a group of tasks to an {@link ExecutorService}.
+     *
+     * <p>
+     * If the service is a {@link PipelineExecutorService}, the first task is run in the calling thread
+     * once the others have been submitted, so that the calling thread does useful work rather than just
+     * waiting. Otherwise, all of the tasks are submitted to the service.
+     * </p>
+     *
+     * @param service the {@link ExecutorService} to which the tasks are submitted
+     * @param tasks the tasks
+     * @param <V> type of the tasks' results
+     * @return a {@link Future} for each of the tasks, in the same order as the tasks
+     */
+    @Nonnull @NonnullElements public static <V> List<Future<V>> submitAll(@Nonnull final ExecutorService service,
+            @Nonnull @NonnullElements final List<? extends Callable<V>> tasks) {
+        return submitAll(service, tasks, true);
+    }
+
+    /**
+     * Submits a group of tasks to an {@link ExecutorService}, optionally running the first in the calling thread.
+     *
+     * <p>
+     * A caller which must remain free to enforce a time limit on the tasks, or to cancel them, should
+     * not run any of them itself.
+     * </p>
+     *
+     * @param service the {@link ExecutorService} to which the tasks are submitted
+     * @param tasks the tasks
+     * @param callerRuns whether the first task may be run in the calling thread, as described for
+     *      {@link #submitAll(ExecutorService, List)}
+     * @param <V> type of the tasks' results
+     * @return a {@link Future} for each of the tasks, in the same order as the tasks
+     */
+    @Nonnull @NonnullElements public static <V> List<Future<V>> submitAll(@Nonnull final ExecutorService service,
+            @Nonnull @NonnullElements final List<? extends Callable<V>> tasks, final boolean callerRuns) {
+        final List<Future<V>> futures = new ArrayList<>(tasks.size());
+        if (!callerRuns || !(service instanceof PipelineExecutorService) || tasks.isEmpty()) {
+            for (final Callable<V> task : tasks) {
+                futures.add(service.submit(task));
+            }
+            return futures;
+        }
+
+        final FutureTask<V> first = new FutureTask<>(tasks.get(0));
+        futures.add(first);
+        for (final Callable<V> task : tasks.subList(1, tasks.size())) {
+            futures.add(service.submit(task));
+        }
+        ((PipelineExecutorService) service).callerRunCount.increment();
+        first.run();
+        return futures;
+    }
+
+    /**
+     * Runs a task in the calling thread if it was submitted to a {@link PipelineExecutorService} and is
+     * still waiting for a thread.
+     *
+     * @param future the {@link Future} for the task
+     * @return <code>true</code> if the task was run, <code>false</code> otherwise
+     *
+     * @since 0.10.0
+     */
+    public static boolean runIfQueued(@Nonnull final Future<?> future) {
+        if (future instanceof PipelineExecutorService.HelpingFutureTask) {
+            return ((PipelineExecutorService.HelpingFutureTask<?>) future).help();
+        }
+        return false;
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        executor = new HelpingThreadPoolExecutor(threadCount);
+        LOG.debug("created pipeline executor with {} threads", threadCount);
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+
+        super.doDestroy();
+    }
+
+    /**
+     * A {@link ThreadPoolExecutor} whose tasks are run by a thread waiting for them if they have not yet started.
+     */
+    private final class HelpingThreadPoolExecutor extends ThreadPoolExecutor {
+
+        /**
+         * Constructor.
+         *
+         * @param threads maximum number of threads
+         */
+        HelpingThreadPoolExecutor(final int threads) {
+            super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    new PipelineThreadFactory());
+            allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        protected <V> RunnableFuture<V> newTaskFor(final Callable<V> callable) {
+            return new HelpingFutureTask<>(this, callable);
+        }
+
+        @Override
+        protected <V> RunnableFuture<V> newTaskFor(final Runnable runnable, final V value) {
+            return new HelpingFutureTask<>(this, runnable, value);
+        }
+    }
+
+    /**
+     * A {@link FutureTask} which is run by a thread waiting for it, if it is still queued.
+     *
+     * <p>
+     * A thread waiting with a time limit also runs the task, and so may not return until after the
+     * time limit has expired.
+     * </p>
+     *
+     * @param <V> type of the task's result
+     */
+    private final class HelpingFutureTask<V> extends FutureTask<V> {
+
+        /** The executor on whose queue the task may be waiting. */
+        @Nonnull private final ThreadPoolExecutor owner;
+
+        /**
+         * Constructor.
+         *
+         * @param executor the executor on whose queue the task may be waiting
+         * @param callable the task
+         */
+        HelpingFutureTask(@Nonnull final ThreadPoolExecutor executor, @Nonnull final Callable<V> callable) {
+            super(callable);
+            owner = executor;
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param executor the executor on whose queue the task may be waiting
+         * @param runnable the task
+         * @param value the result of the task
+         */
+        HelpingFutureTask(@Nonnull final ThreadPoolExecutor executor, @Nonnull final Runnable runnable,
+                final V value) {
+            super(runnable, value);
+            owner = executor;
+        }
+
+        /**
+         * Runs the task in the calling thread if it is still waiting for a thread.
+         *
+         * @return <code>true</code> if the task was run, <code>false</code> otherwise
+         */
+        private boolean help() {
+            if (!isDone() && owner.remove(this)) {
+                callerRunCount.increment();
+                run();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            help();
+            return super.get();
+        }
+
+        @Override
+        public V get(final long timeout, @Nonnull final TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            help();
+            return super.get(timeout, unit);
+        }
+    }
+
+    /** Creates named daemon threads for the pool. */
+    private static final class PipelineThreadFactory implements ThreadFactory {
+
+        /** Number of pools created, used to name threads. */
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+        /** Number of this pool. */
+        private final int poolNumber = POOL_NUMBER.incrementAndGet();
+
+        /** Number of threads created by this factory. */
+        @Nonnull private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@Nonnull final Runnable runnable) {
+            final var thread = new Thread(runnable,
+                    "mda-pipeline-" + poolNumber + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -17,14 +17,15 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.function.Supplier;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -32,9 +33,11 @@ import net.shibboleth.metadata.CollectionMergeStrategy;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.SimpleCollectionMergeStrategy;
 import net.shibboleth.metadata.SimpleItemCollectionFactory;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 
 /**
@@ -49,11 +52,19 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
  * @param <T> the type of items processed by the stage
  */
 @ThreadSafe
-public class PipelineMergeStage<T> extends AbstractStage<T> {
+public class PipelineMergeStage<T> extends AbstractStage<T> implements ComponentContainer {
 
     /** Service used to execute the pipelines whose results will be merged. */
-    @Nonnull @GuardedBy("this")
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();
+    @NonnullAfterInit @GuardedBy("this")
+    private ExecutorService executorService;
+
+    /** The {@link PipelineExecutorService} created by this stage, if none was provided. */
+    @Nullable @GuardedBy("this")
+    private PipelineExecutorService ownedExecutorService;
+
+    /** Longest time to wait for the pipelines to complete, or <code>null</code> to wait indefinitely. */
+    @Nullable @GuardedBy("this")
+    private Duration timeout;
 
     /**
      * The factory used to create the item returned by this source. Default implementation is
@@ -75,7 +86,7 @@ public class PipelineMergeStage<T> extends AbstractStage<T> {
      * 
      * @return executor service used to run the selected and non-selected item pipelines
      */
-    @Nonnull public final synchronized ExecutorService getExecutorService() {
+    @NonnullAfterInit public final synchronized ExecutorService getExecutorService() {
         return executorService;
     }
 
@@ -89,6 +100,40 @@ public class PipelineMergeStage<T> extends AbstractStage<T> {
         executorService = Constraint.isNotNull(service, "ExecutorService can not be null");
     }
 
+    /**
+     * Gets the longest time to wait for the pipelines to complete.
+     *
+     * @return the longest time to wait, or <code>null</code> to wait indefinitely
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the longest time to wait for the pipelines to complete.
+     *
+     * If the pipelines have not all completed within this time, any still running are cancelled and
+     * the stage fails. Any still running are also cancelled if one of them fails. When a timeout is set,
+     * all of the pipelines are run by the {@link ExecutorService} rather than one of them being run
+     * by the thread executing the stage, so that the stage can enforce the timeout.
+     *
+     * The default is <code>null</code>, meaning that the stage waits indefinitely.
+     *
+     * @param duration the longest time to wait, or <code>null</code> to wait indefinitely
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setTimeout(@Nullable final Duration duration) {
+        checkSetterPreconditions();
+        if (duration != null) {
+            Constraint.isFalse(duration.isZero(), "timeout cannot be zero");
+            Constraint.isFalse(duration.isNegative(), "timeout cannot be negative");
+        }
+        timeout = duration;
+    }
+
     /**
      * Gets the unmodifiable set of pipelines used by this stage.
      * 
@@ -152,21 +197,39 @@ public class PipelineMergeStage<T> extends AbstractStage<T> {
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items)
             throws StageProcessingException {
-        final ArrayList<Future<List<Item<T>>>> pipelineResultFutures = new ArrayList<>();
-
+        final List<PipelineCallable<T>> pipelineCallables = new ArrayList<>();
+        final List<String> pipelineIds = new ArrayList<>();
         for (final Pipeline<T> pipeline : getMergedPipelines()) {
-            pipelineResultFutures.add(getExecutorService().submit(
-                    new PipelineCallable<>(pipeline, getCollectionFactory().get())));
+            pipelineCallables.add(new PipelineCallable<>(pipeline, getCollectionFactory().get(), getId()));
+            pipelineIds.add(pipeline.getId());
         }
 
-        final ArrayList<List<Item<T>>> pipelineResults = new ArrayList<>();
-        for (final Future<List<Item<T>>> future : pipelineResultFutures) {
-            pipelineResults.add(FutureSupport.futureItems(future));
-        }
+        final Duration timeout = getTimeout();
+        final List<Future<List<Item<T>>>> pipelineResultFutures =
+                PipelineExecutorService.submitAll(getExecutorService(), pipelineCallables, timeout == null);
+        final List<List<Item<T>>> pipelineResults =
+                FutureSupport.futureItems(pipelineResultFutures, pipelineIds, timeout);
 
         getCollectionMergeStrategy().merge(items, pipelineResults);
     }
 
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public List<? extends InitializableComponent> getContainedComponents() {
+        return getMergedPipelines();
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (ownedExecutorService != null) {
+            ownedExecutorService.destroy();
+            ownedExecutorService = null;
+            executorService = null;
+        }
+
+        super.doDestroy();
+    }
+
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -176,5 +239,13 @@ public class PipelineMergeStage<T> extends AbstractStage<T> {
                 pipeline.initialize();
             }
         }
+
+        // last, so that a stage failing to initialize does not leave a service behind
+        if (executorService == null) {
+            final var service = new PipelineExecutorService();
+            service.initialize();
+            ownedExecutorService = service;
+            executorService = service;
+        }
     }
 }
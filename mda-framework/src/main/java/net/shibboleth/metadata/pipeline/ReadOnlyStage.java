@@ -0,0 +1,43 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.metadata.AbstractItem;
+
+/**
+ * A {@link Stage} which never modifies the data of the items it is given, although it may add to their
+ * metadata or remove items from the collection.
+ *
+ * <p>
+ * {@link AbstractStage} marks the data of every item as possibly modified after it executes, as do
+ * {@link SimplePipeline} and {@link StreamingPipeline} after executing a stage of any other class,
+ * so that any forms cached from that data are discarded, except when the stage is a {@link ReadOnlyStage}.
+ * </p>
+ *
+ * @param <T> type of metadata upon which the stage operates
+ *
+ * @see AbstractItem#markModified()
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public interface ReadOnlyStage<T> extends Stage<T> {
+
+}
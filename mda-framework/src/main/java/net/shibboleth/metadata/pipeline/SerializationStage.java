@@ -17,11 +17,19 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -33,6 +41,7 @@ import org.slf4j.LoggerFactory;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemCollectionSerializer;
+import net.shibboleth.metadata.util.FileSupport;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
@@ -48,11 +57,16 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
  * <li><code>outputFile</code></li>
  * <li><code>serializer</code></li>
  * </ul>
+ *
+ * <p>
+ * The output may optionally be written in the background; see {@link #setAsynchronous(boolean)}.
+ * </p>
  * 
  * @param <T> type of items upon which this stage operates
  */
 @ThreadSafe
-public class SerializationStage<T> extends AbstractStage<T> {
+public class SerializationStage<T> extends AbstractStage<T>
+        implements AsynchronousStage<T>, ReadOnlyStage<T> {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(SerializationStage.class);
@@ -68,6 +82,25 @@ public class SerializationStage<T> extends AbstractStage<T> {
     @NonnullAfterInit @GuardedBy("this")
     private ItemCollectionSerializer<T> serializer;
 
+    /** Writer for compressed variants of the output file, if any. Default value: <code>null</code> */
+    @Nullable @GuardedBy("this")
+    private CompressedVariantWriter compressedVariantWriter;
+
+    /** Whether the output is written in the background. Default value: <code>false</code> */
+    @GuardedBy("this") private boolean asynchronous;
+
+    /** The {@link ExecutorService} used to write the output in the background. */
+    @Nullable @GuardedBy("this")
+    private ExecutorService executorService;
+
+    /** The {@link ExecutorService} created by this stage, if none was set, to be shut down on destruction. */
+    @Nullable @GuardedBy("this")
+    private ExecutorService ownedExecutorService;
+
+    /** Background writes which have not yet been waited for. */
+    @Nonnull @NonnullElements @GuardedBy("pendingWrites")
+    private final List<Future<Void>> pendingWrites = new ArrayList<>();
+
     /**
      * Gets the file to which the item will be written.
      * 
@@ -125,15 +158,249 @@ public class SerializationStage<T> extends AbstractStage<T> {
         serializer = Constraint.isNotNull(itemSerializer, "Item collection serializer can not be null");
     }
 
+    /**
+     * Gets the writer for compressed variants of the output file.
+     *
+     * @return the writer for compressed variants of the output file, or <code>null</code>
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized CompressedVariantWriter getCompressedVariantWriter() {
+        return compressedVariantWriter;
+    }
+
+    /**
+     * Sets the writer for compressed variants of the output file.
+     *
+     * <p>
+     * If set, the serialized collection is held in memory so that the compressed variants can
+     * be written from it without reading the output file back.
+     * </p>
+     *
+     * @param writer the writer for compressed variants of the output file, or <code>null</code>
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setCompressedVariantWriter(@Nullable final CompressedVariantWriter writer) {
+        checkSetterPreconditions();
+        compressedVariantWriter = writer;
+    }
+
+    /**
+     * Gets whether the output is written in the background.
+     *
+     * @return whether the output is written in the background
+     *
+     * @since 0.10.0
+     */
+    public final synchronized boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    /**
+     * Sets whether the output is written in the background.
+     *
+     * <p>
+     * If set, each execution takes a copy of the items and returns at once. The copy is
+     * serialized to a temporary file in the output file's directory by a task submitted to the
+     * stage's {@link ExecutorService}; the temporary file is then synced to disk and renamed over the output
+     * file, so that readers never see a partially written file. A {@link SimplePipeline} containing
+     * the stage waits for the write to complete before its own execution completes.
+     * </p>
+     *
+     * @param isAsynchronous whether the output is written in the background
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setAsynchronous(final boolean isAsynchronous) {
+        checkSetterPreconditions();
+        asynchronous = isAsynchronous;
+    }
+
+    /**
+     * Gets the {@link ExecutorService} used to write the output in the background.
+     *
+     * @return the {@link ExecutorService} used to write the output in the background, or <code>null</code>
+     *      if none has been set and the stage has not been initialized to write in the background
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Sets the {@link ExecutorService} used to write the output in the background.
+     *
+     * <p>
+     * This should not be the {@link ExecutorService} used by any {@link CompressedVariantWriter},
+     * as the background write waits for the compressed variants to be written.
+     * </p>
+     *
+     * <p>
+     * If none is set, a stage writing in the background creates a single-threaded executor of its own
+     * when it is initialized, and shuts it down when it is destroyed.
+     * </p>
+     *
+     * @param service the {@link ExecutorService} used to write the output in the background
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setExecutorService(@Nonnull final ExecutorService service) {
+        checkSetterPreconditions();
+        executorService = Constraint.isNotNull(service, "ExecutorService can not be null");
+    }
+
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items)
             throws StageProcessingException {
-        try (OutputStream stream = new FileOutputStream(getOutputFile())) {
-            getSerializer().serializeCollection(items, stream);
+        final File file = getOutputFile();
+        // background writes must not call this stage's synchronized getters, as destroy() waits for them
+        final ItemCollectionSerializer<T> itemSerializer = getSerializer();
+        final CompressedVariantWriter variantWriter = getCompressedVariantWriter();
+        if (!isAsynchronous()) {
+            final byte[] content;
+            try (OutputStream stream = new FileOutputStream(file)) {
+                content = serialize(items, stream, itemSerializer, variantWriter);
+            } catch (final IOException e) {
+                throw new StageProcessingException("Error writing to output file " + file.getAbsolutePath(), e);
+            }
+            writeCompressedVariants(content, file, variantWriter);
+            return;
+        }
+
+        // later stages may modify the items, so write out a copy
+        final List<Item<T>> snapshot = new ArrayList<>(items.size());
+        for (final Item<T> item : items) {
+            snapshot.add(item.copy());
+        }
+        synchronized (pendingWrites) {
+            pendingWrites.add(getExecutorService().submit(() -> {
+                writeReplacing(snapshot, file, itemSerializer, variantWriter);
+                return null;
+            }));
+        }
+    }
+
+    /**
+     * Serializes the items to a stream.
+     *
+     * @param items the items to serialize
+     * @param stream the stream to which the items are written
+     * @param itemSerializer the serializer to use
+     * @param variantWriter the writer of compressed variants, or <code>null</code>
+     * @return the serialized items, if they are needed for compressed variants, otherwise <code>null</code>
+     * @throws IOException if the items can not be serialized
+     */
+    @Nullable private byte[] serialize(@Nonnull @NonnullElements final List<Item<T>> items,
+            @Nonnull final OutputStream stream, @Nonnull final ItemCollectionSerializer<T> itemSerializer,
+            @Nullable final CompressedVariantWriter variantWriter) throws IOException {
+        if (variantWriter == null) {
+            itemSerializer.serializeCollection(items, stream);
+            return null;
+        }
+
+        final var buffer = new ByteArrayOutputStream();
+        itemSerializer.serializeCollection(items, buffer);
+        final byte[] content = buffer.toByteArray();
+        stream.write(content);
+        return content;
+    }
+
+    /**
+     * Writes the compressed variants of the output file, if required.
+     *
+     * @param content the serialized items, or <code>null</code> if no variants are required
+     * @param file the output file
+     * @param variantWriter the writer of compressed variants, or <code>null</code>
+     * @throws StageProcessingException if the variants can not be written
+     */
+    private static void writeCompressedVariants(@Nullable final byte[] content, @Nonnull final File file,
+            @Nullable final CompressedVariantWriter variantWriter) throws StageProcessingException {
+        if (content != null && variantWriter != null) {
+            CompressedVariantWriter.awaitAll(variantWriter.write(content, file));
+        }
+    }
+
+    /**
+     * Serializes the items to a temporary file, then replaces the output file with it.
+     *
+     * @param items the items to serialize
+     * @param file the output file
+     * @param itemSerializer the serializer to use
+     * @param variantWriter the writer of compressed variants, or <code>null</code>
+     * @throws StageProcessingException if the output file can not be written
+     */
+    private void writeReplacing(@Nonnull @NonnullElements final List<Item<T>> items, @Nonnull final File file,
+            @Nonnull final ItemCollectionSerializer<T> itemSerializer,
+            @Nullable final CompressedVariantWriter variantWriter) throws StageProcessingException {
+        final Path target = file.toPath();
+        final byte[] content;
+        try {
+            final Path temp = FileSupport.createTemporarySibling(target);
+            try {
+                try (FileOutputStream stream = new FileOutputStream(temp.toFile())) {
+                    content = serialize(items, stream, itemSerializer, variantWriter);
+                    stream.getFD().sync();
+                }
+                FileSupport.replace(temp, target);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
         } catch (final IOException e) {
-            throw new StageProcessingException("Error writing to output file " +
-                    getOutputFile().getAbsolutePath(), e);
+            throw new StageProcessingException("Error writing to output file " + file.getAbsolutePath(), e);
         }
+        log.debug("{}: wrote {}", getId(), file.getAbsolutePath());
+        writeCompressedVariants(content, file, variantWriter);
+    }
+
+    @Override
+    public void awaitCompletion() throws StageProcessingException {
+        final List<Future<Void>> pending;
+        synchronized (pendingWrites) {
+            pending = new ArrayList<>(pendingWrites);
+            pendingWrites.clear();
+        }
+
+        StageProcessingException failure = null;
+        for (final Future<Void> future : pending) {
+            try {
+                future.get();
+            } catch (final ExecutionException e) {
+                final var cause = e.getCause();
+                final var wrapped = cause instanceof StageProcessingException ? (StageProcessingException) cause :
+                        new StageProcessingException("Error writing output in the background",
+                                cause instanceof Exception ? (Exception) cause : e);
+                if (failure == null) {
+                    failure = wrapped;
+                } else {
+                    failure.addSuppressed(wrapped);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StageProcessingException("Interrupted while waiting for output to be written", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        try {
+            awaitCompletion();
+        } catch (final StageProcessingException e) {
+            log.error("{}: error writing output in the background", getId(), e);
+        }
+
+        if (ownedExecutorService != null) {
+            ownedExecutorService.shutdown();
+            ownedExecutorService = null;
+            executorService = null;
+        }
+
+        super.doDestroy();
     }
 
     @Override
@@ -175,6 +442,14 @@ public class SerializationStage<T> extends AbstractStage<T> {
             throw new ComponentInitializationException("Item collection serializer can not be null");
         }
 
+        if (compressedVariantWriter != null && !compressedVariantWriter.isInitialized()) {
+            compressedVariantWriter.initialize();
+        }
+
+        if (asynchronous && executorService == null) {
+            ownedExecutorService = Executors.newSingleThreadExecutor();
+            executorService = ownedExecutorService;
+        }
     }
 
 }
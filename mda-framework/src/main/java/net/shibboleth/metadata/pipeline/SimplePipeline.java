@@ -17,33 +17,54 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.pipeline.impl.BaseIdentifiableInitializableComponent;
+import net.shibboleth.metadata.pipeline.jfr.PipelineExecutionEvent;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
 
 /**
  * A very simple implementation of {@link Pipeline}.
+ *
+ * If an <code>initializationExecutor</code> is set, the pipeline's stages, and any components within them,
+ * are initialized concurrently using a {@link ComponentTreeInitializer} rather than one after another.
  * 
  * @param <T> the type of item upon which this stage operates
  */
 @ThreadSafe
 public class SimplePipeline<T> extends BaseIdentifiableInitializableComponent
-        implements Pipeline<T> {
+        implements Pipeline<T>, ComponentContainer {
 
     /** Stages for this pipeline. */
     @Nonnull @NonnullElements @GuardedBy("this")
     private List<Stage<T>> pipelineStages = Collections.emptyList();
 
+    /** Service used to initialize the pipeline's components concurrently, or <code>null</code>. */
+    @Nullable @GuardedBy("this")
+    private ExecutorService initializationExecutor;
+
+    /** Longest time the pipeline may take to execute, or <code>null</code> for no limit. */
+    @Nullable @GuardedBy("this")
+    private Duration timeout;
+
+    /** Report on the concurrent initialization of the pipeline's components, if performed. */
+    @Nullable @GuardedBy("this")
+    private ComponentTreeInitializer.Report initializationReport;
+
     @Override
     @Nonnull @NonnullElements @Unmodifiable
     public final synchronized List<Stage<T>> getStages() {
@@ -61,14 +82,117 @@ public class SimplePipeline<T> extends BaseIdentifiableInitializableComponent
         pipelineStages = List.copyOf(stages);
     }
 
+    /**
+     * Gets the {@link ExecutorService} used to initialize the pipeline's components concurrently.
+     *
+     * @return the {@link ExecutorService}, or <code>null</code> if components are initialized serially
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized ExecutorService getInitializationExecutor() {
+        return initializationExecutor;
+    }
+
+    /**
+     * Sets the {@link ExecutorService} used to initialize the pipeline's components concurrently.
+     *
+     * The default is <code>null</code>, meaning that the stages are initialized one after another.
+     *
+     * @param service the {@link ExecutorService}, or <code>null</code>
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setInitializationExecutor(@Nullable final ExecutorService service) {
+        checkSetterPreconditions();
+        initializationExecutor = service;
+    }
+
+    /**
+     * Gets the longest time the pipeline may take to execute.
+     *
+     * @return the longest time the pipeline may take, or <code>null</code> for no limit
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the longest time the pipeline may take to execute.
+     *
+     * The time taken is checked as each stage completes, and execution fails naming the stage which took
+     * the pipeline over its limit. A stage which is still running is not stopped; to do that, set a timeout
+     * on the stage which runs this pipeline, such as {@link PipelineMergeStage#setTimeout(Duration)}, so
+     * that it can cancel it.
+     *
+     * The default is <code>null</code>, meaning no limit.
+     *
+     * @param duration the longest time the pipeline may take, or <code>null</code> for no limit
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setTimeout(@Nullable final Duration duration) {
+        checkSetterPreconditions();
+        if (duration != null) {
+            Constraint.isFalse(duration.isZero(), "timeout cannot be zero");
+            Constraint.isFalse(duration.isNegative(), "timeout cannot be negative");
+        }
+        timeout = duration;
+    }
+
+    /**
+     * Gets the report on the concurrent initialization of the pipeline's components.
+     *
+     * @return the report, or <code>null</code> if the components were not initialized concurrently
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized ComponentTreeInitializer.Report getInitializationReport() {
+        return initializationReport;
+    }
+
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public List<? extends InitializableComponent> getContainedComponents() {
+        return getStages();
+    }
+
     @Override
     public void execute(@Nonnull @NonnullElements final List<Item<T>> items)
             throws PipelineProcessingException {
 
+        final var event = new PipelineExecutionEvent();
+        final int itemsIn = items.size();
+        event.begin();
         final var start = Instant.now();
 
-        for (final Stage<T> stage : pipelineStages) {
-            stage.execute(items);
+        try {
+            try {
+                final Duration limit = getTimeout();
+                for (final Stage<T> stage : pipelineStages) {
+                    stage.execute(items);
+                    AbstractStage.markModifiedBy(stage, items);
+                    checkProgress(stage, start, limit);
+                }
+            } catch (final PipelineProcessingException e) {
+                // don't leave work from earlier stages running after a failure
+                try {
+                    AsynchronousStage.awaitCompletion(pipelineStages);
+                } catch (final StageProcessingException e2) {
+                    e.addSuppressed(e2);
+                }
+                throw e;
+            }
+            AsynchronousStage.awaitCompletion(pipelineStages);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.pipelineId = getId();
+                event.itemsIn = itemsIn;
+                event.itemsOut = items.size();
+                event.commit();
+            }
         }
 
         final var componentInfo = new ComponentInfo(getId(), getClass(), start, Instant.now());
@@ -77,10 +201,38 @@ public class SimplePipeline<T> extends BaseIdentifiableInitializableComponent
         }
     }
 
+    /**
+     * Checks that the pipeline can continue after a stage has completed.
+     *
+     * @param stage the stage which has just completed
+     * @param start when the pipeline started executing
+     * @param limit the longest time the pipeline may take, or <code>null</code> for no limit
+     * @throws PipelineProcessingException if the thread has been interrupted or the time limit has been exceeded
+     */
+    private void checkProgress(@Nonnull final Stage<T> stage, @Nonnull final Instant start,
+            @Nullable final Duration limit) throws PipelineProcessingException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new PipelineProcessingException(getId() + ": execution was interrupted after stage " +
+                    stage.getId());
+        }
+        if (limit != null) {
+            final Duration elapsed = Duration.between(start, Instant.now());
+            if (elapsed.compareTo(limit) > 0) {
+                throw new PipelineProcessingException(getId() + ": stage " + stage.getId() +
+                        " took the pipeline over its time limit of " + limit + " (elapsed " +
+                        elapsed.toMillis() + " ms)");
+            }
+        }
+    }
+
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
 
+        if (initializationExecutor != null) {
+            initializationReport = new ComponentTreeInitializer(initializationExecutor).initialize(pipelineStages);
+        }
+
         for (final Stage<T> stage : pipelineStages) {
             if (!stage.isInitialized()) {
                 stage.initialize();
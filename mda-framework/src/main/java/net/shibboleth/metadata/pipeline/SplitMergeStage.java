@@ -17,10 +17,10 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
@@ -37,8 +37,11 @@ import net.shibboleth.metadata.CollectionMergeStrategy;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.SimpleCollectionMergeStrategy;
 import net.shibboleth.metadata.SimpleItemCollectionFactory;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 
 /**
@@ -54,8 +57,8 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
  * </ul>
  * 
  * <p>
- * If no {@link #executorService} is provided, one will be created using {@link Executors#newFixedThreadPool(int)} with
- * 6 threads.
+ * If no {@link #executorService} is provided, the stage creates a {@link PipelineExecutorService} of its own,
+ * which is destroyed along with the stage.
  * 
  * If no {@link #collectionFactory} is given, then {@link SimpleItemCollectionFactory} is used.
  * 
@@ -64,14 +67,22 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
  * @param <T> type of items upon which this stage operates
  */
 @ThreadSafe
-public class SplitMergeStage<T> extends AbstractStage<T> {
+public class SplitMergeStage<T> extends AbstractStage<T> implements ComponentContainer {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(SplitMergeStage.class);
 
     /** Service used to execute the selected and/or non-selected item pipelines. */
-    @Nonnull @GuardedBy("this")
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();
+    @NonnullAfterInit @GuardedBy("this")
+    private ExecutorService executorService;
+
+    /** The {@link PipelineExecutorService} created by this stage, if none was provided. */
+    @Nullable @GuardedBy("this")
+    private PipelineExecutorService ownedExecutorService;
+
+    /** Longest time to wait for the pipelines to complete, or <code>null</code> to wait indefinitely. */
+    @Nullable @GuardedBy("this")
+    private Duration timeout;
 
     /** Factory used to create the Item collection that is then given to the pipelines. */
     @Nonnull @GuardedBy("this")
@@ -98,7 +109,7 @@ public class SplitMergeStage<T> extends AbstractStage<T> {
      * 
      * @return executor service used to run the selected and non-selected item pipelines
      */
-    @Nonnull public final synchronized ExecutorService getExecutorService() {
+    @NonnullAfterInit public final synchronized ExecutorService getExecutorService() {
         return executorService;
     }
 
@@ -112,6 +123,40 @@ public class SplitMergeStage<T> extends AbstractStage<T> {
         executorService = Constraint.isNotNull(service, "ExecutorService can not be null");
     }
 
+    /**
+     * Gets the longest time to wait for the pipelines to complete.
+     *
+     * @return the longest time to wait, or <code>null</code> to wait indefinitely
+     *
+     * @since 0.10.0
+     */
+    @Nullable public final synchronized Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the longest time to wait for the pipelines to complete.
+     *
+     * If the pipelines have not all completed within this time, any still running are cancelled and
+     * the stage fails. Any still running are also cancelled if one of them fails. When a timeout is set,
+     * all of the pipelines are run by the {@link ExecutorService} rather than one of them being run
+     * by the thread executing the stage, so that the stage can enforce the timeout.
+     *
+     * The default is <code>null</code>, meaning that the stage waits indefinitely.
+     *
+     * @param duration the longest time to wait, or <code>null</code> to wait indefinitely
+     *
+     * @since 0.10.0
+     */
+    public synchronized void setTimeout(@Nullable final Duration duration) {
+        checkSetterPreconditions();
+        if (duration != null) {
+            Constraint.isFalse(duration.isZero(), "timeout cannot be zero");
+            Constraint.isFalse(duration.isNegative(), "timeout cannot be negative");
+        }
+        timeout = duration;
+    }
+
     /**
      * Gets the factory used to create the Item collection that is then given to the pipelines.
      * 
@@ -223,16 +268,29 @@ public class SplitMergeStage<T> extends AbstractStage<T> {
             }
         }
 
-        final Future<List<Item<T>>> selectedItemFuture =
-                executePipeline(getSelectedItemPipeline(), selectedItems);
-        final Future<List<Item<T>>> nonselectedItemFuture =
-                executePipeline(getNonselectedItemPipeline(), nonselectedItems);
-
+        final Pipeline<T> selectedPipeline = getSelectedItemPipeline();
+        final Pipeline<T> nonselectedPipeline = getNonselectedItemPipeline();
         final List<List<Item<T>>> pipelineResults = new ArrayList<>();
-        
-        // resolve results from the pipelines
-        pipelineResults.add(FutureSupport.futureItems(selectedItemFuture));
-        pipelineResults.add(FutureSupport.futureItems(nonselectedItemFuture));
+
+        final Duration timeout = getTimeout();
+        if (selectedPipeline != null && nonselectedPipeline != null) {
+            // without a timeout, submit one pipeline and let the calling thread run the other if it can
+            final List<Future<List<Item<T>>>> futures = PipelineExecutorService.submitAll(getExecutorService(),
+                    List.of(new PipelineCallable<>(selectedPipeline, selectedItems, getId()),
+                            new PipelineCallable<>(nonselectedPipeline, nonselectedItems, getId())),
+                    timeout == null);
+            pipelineResults.addAll(FutureSupport.futureItems(futures,
+                    List.of(selectedPipeline.getId(), nonselectedPipeline.getId()), timeout));
+        } else {
+            final Pipeline<T> pipeline = selectedPipeline != null ? selectedPipeline : nonselectedPipeline;
+            final List<Item<T>> pipelineItems = selectedPipeline != null ? selectedItems : nonselectedItems;
+            final List<Item<T>> result = FutureSupport.futureItems(List.of(executePipeline(pipeline, pipelineItems)),
+                    List.of(pipeline.getId()), timeout).get(0);
+
+            // items for the missing pipeline are passed through unchanged
+            pipelineResults.add(selectedPipeline != null ? result : selectedItems);
+            pipelineResults.add(selectedPipeline != null ? nonselectedItems : result);
+        }
 
         items.clear();
         getCollectionMergeStrategy().merge(items, pipelineResults);
@@ -257,10 +315,36 @@ public class SplitMergeStage<T> extends AbstractStage<T> {
             return FutureSupport.futureNow(items);
         }
 
-        final PipelineCallable<T> callable = new PipelineCallable<>(pipeline, items);
+        final PipelineCallable<T> callable = new PipelineCallable<>(pipeline, items, getId());
         return getExecutorService().submit(callable);
     }
 
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public List<? extends InitializableComponent> getContainedComponents() {
+        final List<Pipeline<T>> pipelines = new ArrayList<>(2);
+        final Pipeline<T> selected = getSelectedItemPipeline();
+        if (selected != null) {
+            pipelines.add(selected);
+        }
+        final Pipeline<T> nonselected = getNonselectedItemPipeline();
+        if (nonselected != null) {
+            pipelines.add(nonselected);
+        }
+        return List.copyOf(pipelines);
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (ownedExecutorService != null) {
+            ownedExecutorService.destroy();
+            ownedExecutorService = null;
+            executorService = null;
+        }
+
+        super.doDestroy();
+    }
+
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -278,5 +362,13 @@ public class SplitMergeStage<T> extends AbstractStage<T> {
             log.debug("Non-selected item pipeline was not initialized, initializing it now.");
             nonselectedItemPipeline.initialize();
         }
+
+        // last, so that a stage failing to initialize does not leave a service behind
+        if (executorService == null) {
+            final var service = new PipelineExecutorService();
+            service.initialize();
+            ownedExecutorService = service;
+            executorService = service;
+        }
     }
 }
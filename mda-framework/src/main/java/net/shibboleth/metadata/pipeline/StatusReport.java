@@ -0,0 +1,352 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.StatusMetadata;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+
+/**
+ * A summary of the {@link StatusMetadata} attached to a collection of items, grouped by
+ * the component which generated each status message.
+ *
+ * Each component records a count of the messages it generated at each {@link Severity}, and
+ * the details of a limited number of those messages.
+ *
+ * @since 0.10.0
+ */
+@Immutable
+public final class StatusReport {
+
+    /** Severity of a status message. */
+    public enum Severity {
+        /** An {@link net.shibboleth.metadata.InfoStatus}. */
+        INFO,
+
+        /** A {@link WarningStatus}. */
+        WARNING,
+
+        /** An {@link ErrorStatus}. */
+        ERROR;
+
+        /**
+         * Returns the severity of a status message.
+         *
+         * @param status the status message
+         * @return the severity of the status message
+         */
+        @Nonnull public static Severity of(@Nonnull final StatusMetadata status) {
+            if (status instanceof ErrorStatus) {
+                return ERROR;
+            } else if (status instanceof WarningStatus) {
+                return WARNING;
+            } else {
+                return INFO;
+            }
+        }
+    }
+
+    /** A single status message attached to an item. */
+    @Immutable
+    public static final class Entry {
+
+        /** Identifier for the item the message was attached to. */
+        @Nonnull private final String itemId;
+
+        /** Severity of the message. */
+        @Nonnull private final Severity severity;
+
+        /** The message. */
+        @Nonnull private final String message;
+
+        /**
+         * Constructor.
+         *
+         * @param id identifier for the item the message was attached to
+         * @param sev severity of the message
+         * @param msg the message
+         */
+        Entry(@Nonnull final String id, @Nonnull final Severity sev, @Nonnull final String msg) {
+            itemId = id;
+            severity = sev;
+            message = msg;
+        }
+
+        /**
+         * Gets the identifier for the item the message was attached to.
+         *
+         * @return the item identifier
+         */
+        @Nonnull public String getItemId() {
+            return itemId;
+        }
+
+        /**
+         * Gets the severity of the message.
+         *
+         * @return the severity
+         */
+        @Nonnull public Severity getSeverity() {
+            return severity;
+        }
+
+        /**
+         * Gets the message.
+         *
+         * @return the message
+         */
+        @Nonnull public String getMessage() {
+            return message;
+        }
+    }
+
+    /** The status messages generated by a single component. */
+    @Immutable
+    public static final class ComponentReport {
+
+        /** Identifier for the component. */
+        @Nonnull private final String componentId;
+
+        /** Number of messages at each severity, indexed by ordinal. */
+        @Nonnull private final int[] counts;
+
+        /** Details of the messages retained. */
+        @Nonnull @NonnullElements @Unmodifiable private final List<Entry> entries;
+
+        /**
+         * Constructor.
+         *
+         * @param id identifier for the component
+         * @param messageCounts number of messages at each severity
+         * @param retained details of the messages retained
+         */
+        ComponentReport(@Nonnull final String id, @Nonnull final int[] messageCounts,
+                @Nonnull @NonnullElements final List<Entry> retained) {
+            componentId = id;
+            counts = messageCounts.clone();
+            entries = Collections.unmodifiableList(new ArrayList<>(retained));
+        }
+
+        /**
+         * Gets the identifier for the component.
+         *
+         * @return the component identifier
+         */
+        @Nonnull public String getComponentId() {
+            return componentId;
+        }
+
+        /**
+         * Gets the number of messages generated by the component at a given severity.
+         *
+         * @param severity the severity
+         * @return the number of messages
+         */
+        public int getCount(@Nonnull final Severity severity) {
+            return counts[severity.ordinal()];
+        }
+
+        /**
+         * Gets the total number of messages generated by the component.
+         *
+         * @return the number of messages
+         */
+        public int getTotalCount() {
+            int total = 0;
+            for (final int count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * Gets the details of the messages retained for this component.
+         *
+         * @return the retained messages, in the order they were encountered
+         */
+        @Nonnull @NonnullElements @Unmodifiable public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Gets the number of messages whose details were not retained.
+         *
+         * @return the number of messages omitted
+         */
+        public int getOmittedCount() {
+            return getTotalCount() - entries.size();
+        }
+    }
+
+    /** Number of items examined. */
+    private final int itemCount;
+
+    /** Number of items with at least one status message at each severity, indexed by ordinal. */
+    @Nonnull private final int[] itemCounts;
+
+    /** Reports for each component, ordered by component identifier. */
+    @Nonnull @NonnullElements @Unmodifiable private final List<ComponentReport> components;
+
+    /**
+     * Constructor.
+     *
+     * @param items number of items examined
+     * @param itemsBySeverity number of items with a status message at each severity
+     * @param reports reports for each component
+     */
+    StatusReport(final int items, @Nonnull final int[] itemsBySeverity,
+            @Nonnull @NonnullElements final List<ComponentReport> reports) {
+        itemCount = items;
+        itemCounts = itemsBySeverity.clone();
+        components = Collections.unmodifiableList(new ArrayList<>(reports));
+    }
+
+    /**
+     * Gets the number of items examined.
+     *
+     * @return the number of items
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Gets the number of items having at least one status message at a given severity.
+     *
+     * @param severity the severity
+     * @return the number of items
+     */
+    public int getItemCount(@Nonnull final Severity severity) {
+        return itemCounts[severity.ordinal()];
+    }
+
+    /**
+     * Gets the total number of messages at a given severity.
+     *
+     * @param severity the severity
+     * @return the number of messages
+     */
+    public int getMessageCount(@Nonnull final Severity severity) {
+        int total = 0;
+        for (final ComponentReport component : components) {
+            total += component.getCount(severity);
+        }
+        return total;
+    }
+
+    /**
+     * Gets the reports for each component which generated status messages.
+     *
+     * @return the component reports, ordered by component identifier
+     */
+    @Nonnull @NonnullElements @Unmodifiable public List<ComponentReport> getComponents() {
+        return components;
+    }
+
+    /**
+     * Builds a {@link StatusReport} one item at a time.
+     */
+    @NotThreadSafe
+    static final class Builder {
+
+        /** Maximum number of messages whose details are retained for each component. */
+        private final int maxEntries;
+
+        /** Number of items examined. */
+        private int itemCount;
+
+        /** Number of items with a status message at each severity. */
+        @Nonnull private final int[] itemCounts = new int[Severity.values().length];
+
+        /** Message counts for each component. */
+        @Nonnull private final Map<String, int[]> counts = new TreeMap<>();
+
+        /** Retained messages for each component. */
+        @Nonnull private final Map<String, List<Entry>> entries = new TreeMap<>();
+
+        /**
+         * Constructor.
+         *
+         * @param maxEntriesPerComponent maximum number of messages whose details are retained for each component
+         */
+        Builder(final int maxEntriesPerComponent) {
+            maxEntries = maxEntriesPerComponent;
+        }
+
+        /**
+         * Add the status messages attached to an item.
+         *
+         * @param itemId identifier for the item
+         * @param statuses the status messages attached to the item
+         */
+        void addItem(@Nonnull @NotEmpty final String itemId,
+                @Nonnull @NonnullElements final List<? extends StatusMetadata> statuses) {
+            itemCount++;
+            final boolean[] seen = new boolean[itemCounts.length];
+            for (final StatusMetadata status : statuses) {
+                final Severity severity = Severity.of(status);
+                seen[severity.ordinal()] = true;
+
+                final String componentId = status.getComponentId();
+                counts.computeIfAbsent(componentId, k -> new int[itemCounts.length])[severity.ordinal()]++;
+                final List<Entry> retained = entries.computeIfAbsent(componentId, k -> new ArrayList<>());
+                if (retained.size() < maxEntries) {
+                    retained.add(new Entry(itemId, severity, status.getStatusMessage()));
+                }
+            }
+            for (int i = 0; i < seen.length; i++) {
+                if (seen[i]) {
+                    itemCounts[i]++;
+                }
+            }
+        }
+
+        /**
+         * Record an item without any status messages.
+         */
+        void addItem() {
+            itemCount++;
+        }
+
+        /**
+         * Build the report.
+         *
+         * @return the report
+         */
+        @Nonnull StatusReport build() {
+            final List<ComponentReport> reports = new ArrayList<>(counts.size());
+            for (final Map.Entry<String, int[]> entry : counts.entrySet()) {
+                reports.add(new ComponentReport(entry.getKey(), entry.getValue(), entries.get(entry.getKey())));
+            }
+            return new StatusReport(itemCount, itemCounts, reports);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.metadata.FirstItemIdItemIdentificationStrategy;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemIdentificationStrategy;
+import net.shibboleth.metadata.StatusMetadata;
+import net.shibboleth.metadata.pipeline.StatusReport.ComponentReport;
+import net.shibboleth.metadata.pipeline.StatusReport.Entry;
+import net.shibboleth.metadata.pipeline.StatusReport.Severity;
+import net.shibboleth.metadata.util.FileSupport;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A {@link Stage} that writes a report of the {@link StatusMetadata} associated with a collection of items.
+ *
+ * This is an alternative to {@link StatusMetadataLoggingStage} for collections in which many items carry
+ * status messages. The messages are summarized into a {@link StatusReport} grouped by the component which
+ * generated them, and the report is written to the output file by a background task so that the pipeline
+ * does not wait for it. Only the first few messages from each component are included in full; the
+ * remainder are only counted.
+ *
+ * Each execution of the stage replaces the output file atomically, so that readers never see a partly
+ * written report. As an {@link AsynchronousStage}, the stage is waited for by the enclosing pipeline,
+ * which fails if the report could not be written. Any reports still being written when the stage is
+ * destroyed are also waited for.
+ *
+ * <p>
+ * This stage requires the following properties be set prior to initialization:
+ * <ul>
+ * <li><code>outputFile</code></li>
+ * </ul>
+ *
+ * @param <T> type of item which this stage processes
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class StatusReportStage<T> extends AbstractStage<T> implements AsynchronousStage<T>, ReadOnlyStage<T> {
+
+    /** Formats in which the report can be written. */
+    public enum Format {
+        /** A single JSON object. */
+        JSON,
+
+        /**
+         * Comma-separated values, with a header line. Each component has one summary line for each severity
+         * of message it generated, giving the count, followed by one line for each message retained.
+         */
+        CSV
+    }
+
+    /** Default maximum number of messages to include in full for each component. */
+    public static final int DEFAULT_MAX_ENTRIES_PER_COMPONENT = 100;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(StatusReportStage.class);
+
+    /** File to which the report will be written. */
+    @NonnullAfterInit @GuardedBy("this")
+    private File outputFile;
+
+    /** Format in which the report will be written. Default value: {@link Format#JSON}. */
+    @Nonnull @GuardedBy("this")
+    private Format format = Format.JSON;
+
+    /** Maximum number of messages to include in full for each component. */
+    @GuardedBy("this")
+    private int maxEntriesPerComponent = DEFAULT_MAX_ENTRIES_PER_COMPONENT;
+
+    /** Strategy used to generate {@link Item} identifiers for the report. */
+    @Nonnull @GuardedBy("this")
+    private ItemIdentificationStrategy<T> identificationStrategy = new FirstItemIdItemIdentificationStrategy<>();
+
+    /** The {@link ExecutorService} used to write reports. */
+    @NonnullAfterInit @GuardedBy("this")
+    private ExecutorService executorService;
+
+    /** The {@link ExecutorService} created by this stage, if none was set, to be shut down on destruction. */
+    @Nullable @GuardedBy("this")
+    private ExecutorService ownedExecutorService;
+
+    /** Reports which may still be being written. */
+    @Nonnull @NonnullElements @GuardedBy("pendingReports")
+    private final List<Future<Void>> pendingReports = new ArrayList<>();
+
+    /**
+     * Gets the file to which the report will be written.
+     *
+     * @return the output file
+     */
+    @NonnullAfterInit public final synchronized File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Sets the file to which the report will be written.
+     *
+     * @param file the output file
+     */
+    public synchronized void setOutputFile(@Nonnull final File file) {
+        checkSetterPreconditions();
+        outputFile = Constraint.isNotNull(file, "Output file can not be null");
+    }
+
+    /**
+     * Gets the format in which the report will be written.
+     *
+     * @return the report format
+     */
+    @Nonnull public final synchronized Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the format in which the report will be written.
+     *
+     * @param reportFormat the report format
+     */
+    public synchronized void setFormat(@Nonnull final Format reportFormat) {
+        checkSetterPreconditions();
+        format = Constraint.isNotNull(reportFormat, "Report format can not be null");
+    }
+
+    /**
+     * Gets the maximum number of messages to include in full for each component.
+     *
+     * @return the maximum number of messages
+     */
+    public final synchronized int getMaxEntriesPerComponent() {
+        return maxEntriesPerComponent;
+    }
+
+    /**
+     * Sets the maximum number of messages to include in full for each component.
+     *
+     * Messages beyond this number are counted but not otherwise reported.
+     *
+     * @param max the maximum number of messages
+     */
+    public synchronized void setMaxEntriesPerComponent(final int max) {
+        checkSetterPreconditions();
+        maxEntriesPerComponent = (int) Constraint.isGreaterThanOrEqual(0, max,
+                "Maximum entries per component must be non-negative");
+    }
+
+    /**
+     * Gets the strategy used to generate {@link Item} identifiers for the report.
+     *
+     * @return strategy used to generate {@link Item} identifiers
+     */
+    @Nonnull public final synchronized ItemIdentificationStrategy<T> getItemIdentificationStrategy() {
+        return identificationStrategy;
+    }
+
+    /**
+     * Sets the strategy used to generate {@link Item} identifiers for the report.
+     *
+     * @param strategy strategy used to generate {@link Item} identifiers, can not be null
+     */
+    public synchronized void setIdentificationStrategy(@Nonnull final ItemIdentificationStrategy<T> strategy) {
+        checkSetterPreconditions();
+        identificationStrategy = Constraint.isNotNull(strategy, "Item identification strategy can not be null");
+    }
+
+    /**
+     * Gets the {@link ExecutorService} used to write reports.
+     *
+     * @return the {@link ExecutorService}
+     */
+    @NonnullAfterInit public final synchronized ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Sets the {@link ExecutorService} used to write reports.
+     *
+     * If the stage may be executed again before a report has been written, a single-threaded
+     * executor ensures that the reports are written in order. If none is set, the stage creates
+     * a single-threaded executor of its own when it is initialized, and shuts it down when it
+     * is destroyed.
+     *
+     * @param service the {@link ExecutorService}
+     */
+    public synchronized void setExecutorService(@Nonnull final ExecutorService service) {
+        checkSetterPreconditions();
+        executorService = Constraint.isNotNull(service, "ExecutorService can not be null");
+    }
+
+    /**
+     * Summarize the status metadata associated with a collection of items.
+     *
+     * @param items the items to summarize
+     * @return the {@link StatusReport} for the items
+     */
+    @Nonnull StatusReport buildReport(@Nonnull @NonnullElements final List<Item<T>> items) {
+        final var builder = new StatusReport.Builder(getMaxEntriesPerComponent());
+        final var strategy = getItemIdentificationStrategy();
+        for (final Item<T> item : items) {
+            final List<StatusMetadata> statuses = item.getItemMetadata().get(StatusMetadata.class);
+            if (statuses.isEmpty()) {
+                builder.addItem();
+            } else {
+                builder.addItem(strategy.getItemIdentifier(item), statuses);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items) throws StageProcessingException {
+        final StatusReport report = buildReport(items);
+        final File file = getOutputFile();
+        final Format reportFormat = getFormat();
+
+        synchronized (pendingReports) {
+            pendingReports.add(getExecutorService().submit(() -> {
+                writeReport(report, file, reportFormat);
+                return null;
+            }));
+        }
+    }
+
+    /**
+     * Writes a report to a temporary file, then moves it into place.
+     *
+     * @param report the report to write
+     * @param file the file to write the report to
+     * @param reportFormat the format in which to write the report
+     *
+     * @throws StageProcessingException if the report can not be written
+     */
+    private static void writeReport(@Nonnull final StatusReport report, @Nonnull final File file,
+            @Nonnull final Format reportFormat) throws StageProcessingException {
+        final Path target = file.toPath();
+        try {
+            final Path temp = FileSupport.createTemporarySibling(target);
+            try {
+                try (FileOutputStream stream = new FileOutputStream(temp.toFile())) {
+                    final Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+                    if (reportFormat == Format.CSV) {
+                        writeCSV(report, writer);
+                    } else {
+                        writeJSON(report, writer);
+                    }
+                    writer.flush();
+                    stream.getFD().sync();
+                }
+                FileSupport.replace(temp, target);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (final IOException e) {
+            throw new StageProcessingException("Error writing status report to " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Returns the name used for a {@link Severity} in the report.
+     *
+     * @param severity the severity
+     * @return the name used for the severity
+     */
+    @Nonnull private static String severityName(@Nonnull final Severity severity) {
+        return severity.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Writes a report as JSON.
+     *
+     * @param report the report to write
+     * @param writer the {@link Writer} to write to
+     */
+    private static void writeJSON(@Nonnull final StatusReport report, @Nonnull final Writer writer) {
+        // the generator is flushed rather than closed so that the caller can sync the underlying stream
+        final JsonGenerator gen = Json.createGenerator(writer);
+        gen.writeStartObject();
+        gen.write("items", report.getItemCount());
+
+        gen.writeStartObject("itemsWithStatus");
+        for (final Severity severity : Severity.values()) {
+            gen.write(severityName(severity), report.getItemCount(severity));
+        }
+        gen.writeEnd();
+
+        gen.writeStartObject("messages");
+        for (final Severity severity : Severity.values()) {
+            gen.write(severityName(severity), report.getMessageCount(severity));
+        }
+        gen.writeEnd();
+
+        gen.writeStartArray("components");
+        for (final ComponentReport component : report.getComponents()) {
+            gen.writeStartObject();
+            gen.write("id", component.getComponentId());
+            for (final Severity severity : Severity.values()) {
+                gen.write(severityName(severity), component.getCount(severity));
+            }
+            gen.write("omitted", component.getOmittedCount());
+            gen.writeStartArray("entries");
+            for (final Entry entry : component.getEntries()) {
+                gen.writeStartObject();
+                gen.write("item", entry.getItemId());
+                gen.write("severity", severityName(entry.getSeverity()));
+                gen.write("message", entry.getMessage());
+                gen.writeEnd();
+            }
+            gen.writeEnd();
+            gen.writeEnd();
+        }
+        gen.writeEnd();
+
+        gen.writeEnd();
+        gen.flush();
+    }
+
+    /**
+     * Writes a report as comma-separated values.
+     *
+     * @param report the report to write
+     * @param writer the {@link Writer} to write to
+     * @throws IOException if an error occurs while writing
+     */
+    private static void writeCSV(@Nonnull final StatusReport report, @Nonnull final Writer writer)
+            throws IOException {
+        final var out = new BufferedWriter(writer);
+        out.write("component,severity,count,item,message\n");
+        for (final ComponentReport component : report.getComponents()) {
+            final String componentId = csvField(component.getComponentId());
+            for (final Severity severity : Severity.values()) {
+                final int count = component.getCount(severity);
+                if (count != 0) {
+                    out.write(componentId + ',' + severityName(severity) + ',' + count + ",,\n");
+                }
+            }
+            for (final Entry entry : component.getEntries()) {
+                out.write(componentId + ',' + severityName(entry.getSeverity()) + ",," +
+                        csvField(entry.getItemId()) + ',' + csvField(entry.getMessage()) + '\n');
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Quotes a value for use as a CSV field, if required.
+     *
+     * @param value the value to quote
+     * @return the value as a CSV field
+     */
+    @Nonnull private static String csvField(@Nonnull final String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+                && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    @Override
+    public void awaitCompletion() throws StageProcessingException {
+        final List<Future<Void>> pending;
+        synchronized (pendingReports) {
+            pending = new ArrayList<>(pendingReports);
+            pendingReports.clear();
+        }
+
+        StageProcessingException failure = null;
+        for (final Future<Void> future : pending) {
+            try {
+                future.get();
+            } catch (final ExecutionException e) {
+                final var cause = e.getCause();
+                final var wrapped = cause instanceof StageProcessingException ? (StageProcessingException) cause :
+                        new StageProcessingException("Error writing status report",
+                                cause instanceof Exception ? (Exception) cause : e);
+                if (failure == null) {
+                    failure = wrapped;
+                } else {
+                    failure.addSuppressed(wrapped);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StageProcessingException("Interrupted while waiting for status report to be written", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        try {
+            awaitCompletion();
+        } catch (final StageProcessingException e) {
+            log.error("{}: error writing status report", getId(), e);
+        }
+
+        if (ownedExecutorService != null) {
+            ownedExecutorService.shutdown();
+            ownedExecutorService = null;
+            executorService = null;
+        }
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (outputFile == null) {
+            throw new ComponentInitializationException("Output file can not be null");
+        }
+
+        if (executorService == null) {
+            ownedExecutorService = Executors.newSingleThreadExecutor();
+            executorService = ownedExecutorService;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.lang.reflect.Method;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.impl.BaseIdentifiableInitializableComponent;
+import net.shibboleth.metadata.pipeline.jfr.PipelineExecutionEvent;
+import net.shibboleth.metadata.pipeline.jfr.StageExecutionEvent;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A {@link Pipeline} which streams items through runs of consecutive per-item stages.
+ *
+ * <p>
+ * A per-item stage is an {@link AbstractIteratingStage} or {@link AbstractFilteringStage} which processes
+ * each item independently: it does not override the collection-level processing of those classes, has no
+ * collection predicate and, for an {@link AbstractFilteringStage}, has no {@link ExecutorService} of its own.
+ * Each run of two or more consecutive per-item stages is executed by a chain of worker threads, one per stage,
+ * connected by bounded queues. Each item is passed on to the next stage as soon as it has been processed,
+ * so the stages in a run overlap, and a slow stage holds back those before it once its queue is full.
+ * </p>
+ *
+ * <p>
+ * All other stages, for example those which order or assemble the collection, act as barriers: they are
+ * executed as {@link SimplePipeline} would execute them, once all the items have reached them.
+ * </p>
+ *
+ * <p>
+ * The result of executing the pipeline is the same as that of a {@link SimplePipeline} with the same stages.
+ * The stages within a run must be safe to execute concurrently on different items.
+ * </p>
+ *
+ * @param <T> the type of item upon which this pipeline operates
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class StreamingPipeline<T> extends BaseIdentifiableInitializableComponent
+        implements Pipeline<T>, ComponentContainer {
+
+    /** Marks the end of the items passed from one worker to the next. */
+    private static final Object END = new Object();
+
+    /** Number of pipelines created, used to name worker threads. */
+    private static final AtomicInteger PIPELINE_NUMBER = new AtomicInteger();
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(StreamingPipeline.class);
+
+    /** Stages for this pipeline. */
+    @Nonnull @NonnullElements @GuardedBy("this")
+    private List<Stage<T>> pipelineStages = Collections.emptyList();
+
+    /** Number of items which may be waiting between one stage and the next. Default value: 256. */
+    @GuardedBy("this")
+    private int queueCapacity = 256;
+
+    /** The stages, grouped into runs of per-item stages and single barrier stages. */
+    @NonnullAfterInit @NonnullElements @Unmodifiable @GuardedBy("this")
+    private List<List<Stage<T>>> segments;
+
+    /** Service providing the worker threads. */
+    @NonnullAfterInit @GuardedBy("this")
+    private ExecutorService workerService;
+
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public final synchronized List<Stage<T>> getStages() {
+        return pipelineStages;
+    }
+
+    /**
+     * Sets the stages that make up this pipeline.
+     *
+     * @param stages stages that make up this pipeline
+     */
+    public synchronized void setStages(
+            @Nonnull @NonnullElements @Unmodifiable final List<Stage<T>> stages) {
+        checkSetterPreconditions();
+        pipelineStages = List.copyOf(stages);
+    }
+
+    /**
+     * Gets the number of items which may be waiting between one stage and the next.
+     *
+     * @return the number of items which may be waiting between stages
+     */
+    public final synchronized int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the number of items which may be waiting between one stage and the next.
+     *
+     * @param capacity the number of items which may be waiting between stages
+     */
+    public synchronized void setQueueCapacity(final int capacity) {
+        checkSetterPreconditions();
+        queueCapacity = (int) Constraint.isGreaterThan(0, capacity, "queue capacity must be greater than zero");
+    }
+
+    /**
+     * Gets the stages grouped as they are executed: each group is either a run of per-item stages
+     * which are streamed, or a single stage which is executed on the whole collection.
+     *
+     * @return the groups of stages
+     */
+    @NonnullAfterInit @NonnullElements @Unmodifiable
+    public final synchronized List<List<Stage<T>>> getSegments() {
+        return segments;
+    }
+
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public List<? extends InitializableComponent> getContainedComponents() {
+        return getStages();
+    }
+
+    @Override
+    public void execute(@Nonnull @NonnullElements final List<Item<T>> items)
+            throws PipelineProcessingException {
+
+        final var event = new PipelineExecutionEvent();
+        final int itemsIn = items.size();
+        event.begin();
+        final var start = Instant.now();
+
+        final List<Stage<T>> stages = getStages();
+        try {
+            try {
+                for (final List<Stage<T>> segment : getSegments()) {
+                    if (segment.size() == 1) {
+                        segment.get(0).execute(items);
+                        AbstractStage.markModifiedBy(segment.get(0), items);
+                    } else {
+                        stream(segment, items);
+                    }
+                }
+            } catch (final PipelineProcessingException e) {
+                // don't leave work from earlier stages running after a failure
+                try {
+                    AsynchronousStage.awaitCompletion(stages);
+                } catch (final StageProcessingException e2) {
+                    e.addSuppressed(e2);
+                }
+                throw e;
+            }
+            AsynchronousStage.awaitCompletion(stages);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.pipelineId = getId();
+                event.itemsIn = itemsIn;
+                event.itemsOut = items.size();
+                event.commit();
+            }
+        }
+
+        final var componentInfo = new ComponentInfo(getId(), getClass(), start, Instant.now());
+        for (final var item : items) {
+            item.getItemMetadata().put(componentInfo);
+        }
+    }
+
+    /**
+     * Streams a collection of items through a run of per-item stages.
+     *
+     * @param run the per-item stages
+     * @param items the items, replaced by the items remaining after the last stage
+     * @throws StageProcessingException if a stage fails, or the calling thread is interrupted
+     */
+    private void stream(@Nonnull @NonnullElements final List<Stage<T>> run,
+            @Nonnull @NonnullElements final List<Item<T>> items) throws StageProcessingException {
+        final int capacity = getQueueCapacity();
+        final ExecutorService service = getWorkerService();
+        final int count = run.size();
+        final Instant[] started = new Instant[count];
+        final Instant[] finished = new Instant[count];
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // worker i takes items from queue i - 1, or from the collection, and puts them on queue i
+        final List<BlockingQueue<Object>> queues = new ArrayList<>(count);
+        final List<Future<?>> workers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            queues.add(new ArrayBlockingQueue<>(capacity));
+        }
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final BlockingQueue<Object> in = i == 0 ? null : queues.get(i - 1);
+            workers.add(service.submit(() -> work(run.get(index), items, in, queues.get(index), failure,
+                    started, finished, index)));
+        }
+
+        // collect the items leaving the last stage
+        final List<Item<T>> results = new ArrayList<>(items.size());
+        final BlockingQueue<Object> out = queues.get(count - 1);
+        try {
+            for (Object next = out.take(); next != END; next = out.take()) {
+                @SuppressWarnings("unchecked") final Item<T> item = (Item<T>) next;
+                results.add(item);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, new StageProcessingException(getId() + ": execution was interrupted", e));
+        }
+
+        // make sure no worker is still running before returning
+        if (failure.get() != null) {
+            for (final Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+        }
+        for (final Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (final CancellationException | ExecutionException | InterruptedException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+
+        final Throwable thrown = failure.get();
+        if (thrown instanceof StageProcessingException) {
+            throw (StageProcessingException) thrown;
+        } else if (thrown instanceof RuntimeException) {
+            throw (RuntimeException) thrown;
+        } else if (thrown instanceof Error) {
+            throw (Error) thrown;
+        } else if (thrown != null) {
+            throw new StageProcessingException(getId() + ": error streaming items", (Exception) thrown);
+        }
+
+        // record each stage's processing, as AbstractStage would have done
+        for (int i = 0; i < count; i++) {
+            final Stage<T> stage = run.get(i);
+            final var componentInfo = new ComponentInfo(stage.getId(), stage.getClass(), started[i], finished[i]);
+            for (final Item<T> item : results) {
+                item.getItemMetadata().put(componentInfo);
+            }
+        }
+
+        items.clear();
+        items.addAll(results);
+    }
+
+    /**
+     * Passes items through one per-item stage.
+     *
+     * @param stage the stage
+     * @param items the collection of items, used if there is no input queue
+     * @param in the queue from which items are taken, or <code>null</code> to take them from the collection
+     * @param out the queue on which processed items are put
+     * @param failure holds the first failure of any stage
+     * @param started when each stage started, set for this stage
+     * @param finished when each stage finished, set for this stage
+     * @param index the index of this stage
+     * @return <code>null</code>
+     */
+    @Nullable
+    private Void work(@Nonnull final Stage<T> stage, @Nonnull @NonnullElements final List<Item<T>> items,
+            @Nullable final BlockingQueue<Object> in, @Nonnull final BlockingQueue<Object> out,
+            @Nonnull final AtomicReference<Throwable> failure, @Nonnull final Instant[] started,
+            @Nonnull final Instant[] finished, final int index) {
+        final AbstractStage<T> perItemStage = (AbstractStage<T>) stage;
+        final var event = new StageExecutionEvent();
+        int itemsIn = 0;
+        int itemsOut = 0;
+        event.begin();
+        started[index] = Instant.now();
+        try {
+            try {
+                if (in == null) {
+                    for (final Item<T> item : items) {
+                        if (failure.get() != null) {
+                            break;
+                        }
+                        itemsIn++;
+                        if (process(perItemStage, item, out)) {
+                            itemsOut++;
+                        }
+                    }
+                } else {
+                    for (Object next = in.take(); next != END; next = in.take()) {
+                        if (failure.get() == null) {
+                            @SuppressWarnings("unchecked") final Item<T> item = (Item<T>) next;
+                            itemsIn++;
+                            if (process(perItemStage, item, out)) {
+                                itemsOut++;
+                            }
+                        }
+                    }
+                }
+            } catch (final StageProcessingException | RuntimeException | Error e) {
+                log.debug("{}: stage {} failed", getId(), stage.getId(), e);
+                failure.compareAndSet(null, e);
+            }
+            // always end the stream, so that the stages after this one finish
+            out.put(END);
+        } catch (final InterruptedException e) {
+            // execution has been cancelled
+            Thread.currentThread().interrupt();
+        }
+        finished[index] = Instant.now();
+        perItemStage.commitExecutionEvent(event, true, itemsIn, itemsOut);
+        return null;
+    }
+
+    /**
+     * Processes a single item with a per-item stage, passing it on unless the stage rejects it.
+     *
+     * <p>
+     * The item is recorded as processed by the stage, as {@link AbstractStage#execute(List)} would
+     * have done, before it is passed on.
+     * </p>
+     *
+     * @param stage the stage
+     * @param item the item
+     * @param out the queue on which the item is put if it is retained
+     * @param <T> type of the item
+     * @return whether the item was retained
+     * @throws StageProcessingException if the stage fails, or the thread is interrupted
+     * @throws InterruptedException if the thread is interrupted while waiting to pass the item on
+     */
+    private static <T> boolean process(@Nonnull final AbstractStage<T> stage, @Nonnull final Item<T> item,
+            @Nonnull final BlockingQueue<Object> out) throws StageProcessingException, InterruptedException {
+        final boolean retain;
+        if (stage instanceof AbstractFilteringStage) {
+            final AbstractFilteringStage<T> filteringStage = (AbstractFilteringStage<T>) stage;
+            filteringStage.checkInterrupted();
+            retain = filteringStage.doExecute(item);
+        } else {
+            final AbstractIteratingStage<T> iteratingStage = (AbstractIteratingStage<T>) stage;
+            iteratingStage.checkInterrupted();
+            iteratingStage.doExecute(item);
+            retain = true;
+        }
+        if (retain) {
+            stage.itemProcessed(item);
+            out.put(item);
+        }
+        return retain;
+    }
+
+    /**
+     * Gets the service providing the worker threads.
+     *
+     * @return the service providing the worker threads
+     */
+    @Nonnull private synchronized ExecutorService getWorkerService() {
+        return workerService;
+    }
+
+    /**
+     * Determines whether a stage processes each item independently, so that it can be streamed.
+     *
+     * @param stage the stage
+     * @return <code>true</code> if the stage can be streamed
+     */
+    static boolean isPerItemStage(@Nonnull final Stage<?> stage) {
+        final Class<?> base;
+        if (stage instanceof AbstractFilteringStage) {
+            if (((AbstractFilteringStage<?>) stage).getExecutorService() != null) {
+                return false;
+            }
+            base = AbstractFilteringStage.class;
+        } else if (stage instanceof AbstractIteratingStage) {
+            base = AbstractIteratingStage.class;
+        } else {
+            return false;
+        }
+
+        return !((AbstractStage<?>) stage).isCollectionPredicateSet() &&
+                declaringClass(stage.getClass(), "execute") == AbstractStage.class &&
+                declaringClass(stage.getClass(), "doExecute") == base;
+    }
+
+    /**
+     * Finds the class declaring the implementation of a method taking an item collection.
+     *
+     * @param type the class in which the search starts
+     * @param name the name of the method
+     * @return the declaring class, or <code>null</code> if there is none
+     */
+    @Nullable private static Class<?> declaringClass(@Nonnull final Class<?> type, @Nonnull final String name) {
+        for (Class<?> k = type; k != null; k = k.getSuperclass()) {
+            for (final Method method : k.getDeclaredMethods()) {
+                if (method.getName().equals(name) && method.getParameterCount() == 1 &&
+                        method.getParameterTypes()[0] == List.class && !method.isBridge()) {
+                    return k;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (workerService != null) {
+            workerService.shutdown();
+            workerService = null;
+        }
+        segments = null;
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        for (final Stage<T> stage : pipelineStages) {
+            if (!stage.isInitialized()) {
+                stage.initialize();
+            }
+        }
+
+        final List<List<Stage<T>>> groups = new ArrayList<>();
+        List<Stage<T>> run = new ArrayList<>();
+        for (final Stage<T> stage : pipelineStages) {
+            if (isPerItemStage(stage)) {
+                run.add(stage);
+            } else {
+                if (!run.isEmpty()) {
+                    groups.add(List.copyOf(run));
+                    run = new ArrayList<>();
+                }
+                groups.add(List.of(stage));
+            }
+        }
+        if (!run.isEmpty()) {
+            groups.add(List.copyOf(run));
+        }
+        segments = List.copyOf(groups);
+        log.debug("{}: {} stages executed in {} groups", getId(), pipelineStages.size(), segments.size());
+
+        final int pipelineNumber = PIPELINE_NUMBER.incrementAndGet();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        workerService = Executors.newCachedThreadPool(runnable -> {
+            final var thread = new Thread(runnable,
+                    "mda-stream-" + pipelineNumber + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
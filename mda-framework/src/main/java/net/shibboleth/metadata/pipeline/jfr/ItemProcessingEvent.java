@@ -0,0 +1,49 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event recording the processing of a single {@link net.shibboleth.metadata.Item}
+ * by a stage which processes items individually.
+ *
+ * Only items taking longer than the event's threshold are recorded, so the item identifier
+ * is only computed for those.
+ *
+ * @since 0.10.0
+ */
+@Name("net.shibboleth.metadata.ItemProcessing")
+@Label("Item Processing")
+@Description("Processing of an individual item by a stage, recorded when slow")
+@Category({"Shibboleth", "Metadata Aggregator"})
+@Threshold("20 ms")
+public final class ItemProcessingEvent extends jdk.jfr.Event {
+
+    /** Identifier of the stage. */
+    @Label("Stage")
+    public String stageId;
+
+    /** Identifier of the item. */
+    @Label("Item")
+    public String itemId;
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event recording the execution of a {@link net.shibboleth.metadata.pipeline.Pipeline}
+ * as a task submitted to an {@link java.util.concurrent.ExecutorService} by a stage.
+ *
+ * @since 0.10.0
+ */
+@Name("net.shibboleth.metadata.PipelineTask")
+@Label("Pipeline Task")
+@Description("Execution of a child pipeline on behalf of a stage")
+@Category({"Shibboleth", "Metadata Aggregator"})
+public final class PipelineTaskEvent extends jdk.jfr.Event {
+
+    /** Identifier of the stage which submitted the task, if known. */
+    @Label("Stage")
+    public String stageId;
+
+    /** Identifier of the pipeline executed. */
+    @Label("Pipeline")
+    public String pipelineId;
+
+    /** Number of items in the collection passed to the pipeline. */
+    @Label("Items")
+    public int itemCount;
+
+    /** Time between the task being created and it starting to execute. */
+    @Label("Queued")
+    @Timespan(Timespan.NANOSECONDS)
+    public long queuedTime;
+}
@@ -0,0 +1,29 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * JDK Flight Recorder events emitted during pipeline processing.
+ *
+ * <p>
+ * The events are disabled unless enabled by the recording settings. The settings file
+ * <code>net/shibboleth/metadata/pipeline/jfr/mda.jfc</code>, bundled with this package, enables
+ * them with thresholds low enough to be left on in production; copy it out of the jar and pass it
+ * to the recording along with the JDK's own settings, for example
+ * <code>-XX:StartFlightRecording:settings=default,settings=mda.jfc</code> on JDK 17 and later.
+ * </p>
+ */
+package net.shibboleth.metadata.pipeline.jfr;
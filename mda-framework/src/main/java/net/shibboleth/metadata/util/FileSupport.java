@@ -0,0 +1,86 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.util;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Helper methods for replacing files atomically.
+ *
+ * <p>
+ * A file is replaced by writing its new contents to a temporary file in the same directory,
+ * and then renaming the temporary file over the original, so that readers see either the
+ * old contents or the new, never a partially written file.
+ * </p>
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public final class FileSupport {
+
+    /** Constructor. */
+    private FileSupport() {
+    }
+
+    /**
+     * Creates an empty temporary file in the same directory as a target file.
+     *
+     * <p>
+     * Unlike {@link Files#createTempFile(Path, String, String, java.nio.file.attribute.FileAttribute...)},
+     * the file is created with the default permissions for new files, so that the target has the
+     * usual permissions once it has been replaced.
+     * </p>
+     *
+     * @param target the file which is to be replaced
+     * @return the temporary file
+     * @throws IOException if the temporary file can not be created
+     */
+    @Nonnull public static Path createTemporarySibling(@Nonnull final Path target) throws IOException {
+        final Path absolute = target.toAbsolutePath();
+        final String prefix = "." + absolute.getFileName() + ".";
+        while (true) {
+            final Path temp = absolute.resolveSibling(prefix +
+                    Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (final FileAlreadyExistsException e) {
+                // try another name
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces a target file by a temporary file created by
+     * {@link #createTemporarySibling(Path)}.
+     *
+     * @param temp the temporary file
+     * @param target the file to be replaced
+     * @throws IOException if the file can not be replaced
+     */
+    public static void replace(@Nonnull final Path temp, @Nonnull final Path target) throws IOException {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
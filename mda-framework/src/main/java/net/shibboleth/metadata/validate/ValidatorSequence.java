@@ -24,10 +24,12 @@ import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.ComponentContainer;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
 
 /**
  * A {@link Validator} implementation which encapsulates the functionality of stepping
@@ -42,7 +44,7 @@ import net.shibboleth.utilities.java.support.component.ComponentInitializationEx
  * @since 0.10.0
  */
 @ThreadSafe
-public class ValidatorSequence<V> extends BaseValidator implements Validator<V> {
+public class ValidatorSequence<V> extends BaseValidator implements Validator<V>, ComponentContainer {
 
     /** The list of validators to apply. */
     @Nonnull @NonnullElements @Unmodifiable @GuardedBy("this")
@@ -69,6 +71,12 @@ public class ValidatorSequence<V> extends BaseValidator implements Validator<V>
         return validators;
     }
 
+    @Override
+    @Nonnull @NonnullElements @Unmodifiable
+    public List<? extends InitializableComponent> getContainedComponents() {
+        return getValidators();
+    }
+
     @Override
     public Action validate(@Nonnull final V value, @Nonnull final Item<?> item, @Nonnull final String stageId)
             throws StageProcessingException {
@@ -0,0 +1,265 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.validate.string;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.metadata.validate.Validator;
+import net.shibboleth.metadata.validate.ValidatorSequence;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+/**
+ * A {@link ValidatorSequence} for {@link String} values which combines consecutive
+ * {@link AcceptStringRegexValidator} and {@link RejectStringRegexValidator} instances
+ * into a single regular expression.
+ *
+ * Each run of such validators is compiled into one alternation, with a capturing group
+ * around each component expression. A single match operation against the combined
+ * expression then identifies the first validator in the run whose expression matches
+ * the entire value, which is the only one the equivalent sequence would have acted on.
+ * That validator is then called to produce the same result as it would have done as
+ * part of a {@link ValidatorSequence}.
+ *
+ * Any other validators, including subclasses of the regular expression validators and
+ * validators whose expressions use back-references or named groups, are called in
+ * sequence as usual.
+ *
+ * @since 0.10.0
+ */
+@ThreadSafe
+public class StringValidatorSequence extends ValidatorSequence<String> {
+
+    /**
+     * A segment of the validator sequence: either a single validator, or a run of
+     * regular expression validators sharing a combined {@link Pattern}.
+     */
+    @Immutable
+    private static final class Segment {
+
+        /** Validators in this segment. */
+        @Nonnull @NonnullElements @Unmodifiable
+        private final List<Validator<String>> validators;
+
+        /** Combined pattern, or <code>null</code> for a single opaque validator. */
+        @Nullable
+        private final Pattern pattern;
+
+        /** Capturing group in {@link #pattern} corresponding to each validator. */
+        @Nonnull
+        private final int[] groups;
+
+        /**
+         * Constructor.
+         *
+         * @param segmentValidators validators in this segment
+         * @param combined combined pattern, or <code>null</code>
+         * @param validatorGroups capturing group for each validator
+         */
+        Segment(@Nonnull @NonnullElements final List<Validator<String>> segmentValidators,
+                @Nullable final Pattern combined, @Nonnull final int[] validatorGroups) {
+            validators = List.copyOf(segmentValidators);
+            pattern = combined;
+            groups = validatorGroups;
+        }
+
+        /**
+         * Apply this segment to a value.
+         *
+         * @param value the value to validate
+         * @param item the {@link Item} context for the validation
+         * @param stageId the identifier for the calling stage
+         * @return the resulting {@link net.shibboleth.metadata.validate.Validator.Action}
+         * @throws StageProcessingException if an error occurs during validation
+         */
+        Action validate(@Nonnull final String value, @Nonnull final Item<?> item, @Nonnull final String stageId)
+                throws StageProcessingException {
+            if (pattern == null) {
+                return validators.get(0).validate(value, item, stageId);
+            }
+
+            final Matcher matcher = pattern.matcher(value);
+            if (!matcher.matches()) {
+                return Action.CONTINUE;
+            }
+            for (int i = 0; i < groups.length; i++) {
+                if (matcher.start(groups[i]) != -1) {
+                    return validators.get(i).validate(value, item, stageId);
+                }
+            }
+            return Action.CONTINUE;
+        }
+    }
+
+    /** Locates an embedded flag expression enabling comments mode. */
+    private static final Pattern COMMENTS_FLAG = Pattern.compile("\\(\\?[a-z\\-]*x");
+
+    /** Segments making up the sequence, established when the sequence is initialized. */
+    @NonnullAfterInit @NonnullElements @Unmodifiable @GuardedBy("this")
+    private List<Segment> segments;
+
+    /**
+     * Returns the segments making up the sequence.
+     *
+     * @return the list of segments
+     */
+    private synchronized List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Returns the number of separately evaluated segments in the sequence.
+     *
+     * @return the number of segments
+     */
+    int getSegmentCount() {
+        return getSegments().size();
+    }
+
+    /**
+     * Determine whether a validator's regular expression can be made part of a combined pattern.
+     *
+     * @param validator the validator to examine
+     * @return <code>true</code> if the validator can be combined with others
+     */
+    private static boolean isCombinable(@Nonnull final Validator<String> validator) {
+        if (validator.getClass() != AcceptStringRegexValidator.class &&
+                validator.getClass() != RejectStringRegexValidator.class) {
+            return false;
+        }
+
+        /*
+         * Comments mode would swallow the rest of the combined pattern.
+         */
+        final String regex = ((BaseStringRegexValidator) validator).getRegex();
+        if (COMMENTS_FLAG.matcher(regex).find()) {
+            return false;
+        }
+
+        /*
+         * Group numbers change within the combined pattern, and group names might
+         * collide, so exclude expressions which refer to groups.
+         */
+        for (int i = 0; i < regex.length() - 1; i++) {
+            final char c = regex.charAt(i);
+            final char next = regex.charAt(i + 1);
+            if (c == '\\') {
+                if (next == 'k' || (next >= '1' && next <= '9')) {
+                    return false;
+                }
+                if (next == 'Q') {
+                    final int end = regex.indexOf("\\E", i + 2);
+                    if (end < 0) {
+                        break;
+                    }
+                    i = end;
+                }
+                i++;
+            } else if (c == '(' && regex.startsWith("?<", i + 1) && i + 3 < regex.length() &&
+                    Character.isLetter(regex.charAt(i + 3))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build a {@link Segment} from a run of combinable validators.
+     *
+     * @param run the validators to combine
+     * @param segments the list of segments to add to
+     */
+    private static void combine(@Nonnull @NonnullElements final List<Validator<String>> run,
+            @Nonnull @NonnullElements final List<Segment> segments) {
+        if (run.size() == 1) {
+            segments.add(new Segment(run, null, new int[0]));
+            return;
+        }
+
+        final StringBuilder regex = new StringBuilder();
+        final int[] groups = new int[run.size()];
+        int group = 0;
+        for (int i = 0; i < run.size(); i++) {
+            final BaseStringRegexValidator validator = (BaseStringRegexValidator) run.get(i);
+            if (i != 0) {
+                regex.append('|');
+            }
+            regex.append('(').append(validator.getRegex()).append(')');
+            group++;
+            groups[i] = group;
+            group += validator.getPattern().matcher("").groupCount();
+        }
+        try {
+            segments.add(new Segment(run, Pattern.compile(regex.toString()), groups));
+        } catch (final PatternSyntaxException e) {
+            // fall back to evaluating each validator separately
+            for (final Validator<String> validator : run) {
+                segments.add(new Segment(List.of(validator), null, new int[0]));
+            }
+        }
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        final List<Segment> newSegments = new ArrayList<>();
+        final List<Validator<String>> run = new ArrayList<>();
+        for (final Validator<String> validator : getValidators()) {
+            if (isCombinable(validator)) {
+                run.add(validator);
+            } else {
+                if (!run.isEmpty()) {
+                    combine(run, newSegments);
+                    run.clear();
+                }
+                newSegments.add(new Segment(List.of(validator), null, new int[0]));
+            }
+        }
+        if (!run.isEmpty()) {
+            combine(run, newSegments);
+        }
+        segments = List.copyOf(newSegments);
+    }
+
+    @Override
+    public Action validate(@Nonnull final String value, @Nonnull final Item<?> item, @Nonnull final String stageId)
+            throws StageProcessingException {
+        for (final Segment segment : getSegments()) {
+            if (segment.validate(value, item, stageId) == Action.DONE) {
+                return Action.DONE;
+            }
+        }
+        return Action.CONTINUE;
+    }
+
+}
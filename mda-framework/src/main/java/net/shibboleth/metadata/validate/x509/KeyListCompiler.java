@@ -0,0 +1,76 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.validate.x509;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Build-time tool which converts OpenSSL-format key lists into the equivalent sorted
+ * binary format read by {@link X509RSAOpenSSLBlacklistValidator}.
+ *
+ * Each argument names a text key list ending in <code>.txt</code>; the binary form is
+ * written alongside it with a <code>.bin</code> extension. The binary format consists
+ * of an 8-byte header followed by the unique 10-byte fingerprints in ascending unsigned
+ * order.
+ *
+ * The text is parsed exactly as when the validator reads it directly. The binary file is
+ * replaced by renaming a new file over it rather than being rewritten, as it may be
+ * memory-mapped by a running validator.
+ *
+ * @since 0.10.0
+ */
+public final class KeyListCompiler {
+
+    /** Constructor. */
+    private KeyListCompiler() {
+    }
+
+    /**
+     * Convert a single key list.
+     *
+     * @param input path to the text key list
+     * @return the number of fingerprints written
+     * @throws IOException if the key list can not be read or the output written
+     */
+    public static int compile(@Nonnull final Path input) throws IOException {
+        final String name = input.getFileName().toString();
+        if (!name.endsWith(".txt")) {
+            throw new IOException("key list " + input + " does not have a .txt extension");
+        }
+        final Path output = input.resolveSibling(name.substring(0, name.length() - 4) + ".bin");
+        return OpenSSLFingerprintTable.writeBinary(Files.readAllBytes(input), output);
+    }
+
+    /**
+     * Command-line entry point.
+     *
+     * @param args paths of the text key lists to convert
+     * @throws IOException if a key list can not be converted
+     */
+    public static void main(@Nonnull final String[] args) throws IOException {
+        for (final String arg : args) {
+            compile(Paths.get(arg));
+        }
+    }
+
+}
@@ -0,0 +1,438 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.validate.x509;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.springframework.core.io.Resource;
+
+import net.shibboleth.metadata.util.FileSupport;
+
+/**
+ * A sorted table of 80-bit OpenSSL key fingerprints, as used by
+ * {@link X509RSAOpenSSLBlacklistValidator}.
+ *
+ * Tables can be loaded from either of two formats:
+ *
+ * <ul>
+ * <li>The traditional text format, in which each non-comment line is the lower-case hex encoding
+ * of the low 80 bits of the SHA-1 digest of the OpenSSL representation of a modulus.</li>
+ * <li>A binary format consisting of the 8-byte {@link #MAGIC} header followed by a sorted
+ * sequence of unique {@link #RECORD_SIZE}-byte values. Binary files are generated from the
+ * text format by {@link KeyListCompiler} during the build of the <code>mda-keylists-rsa</code> module.</li>
+ * </ul>
+ *
+ * Binary tables in the file system are memory-mapped. A mapped file must never be rewritten in
+ * place, as accessing a mapping of a file which has been truncated can crash the JVM. An updated
+ * binary table must instead be written to a new file which is then renamed over the old one, as
+ * {@link #writeBinary(byte[], Path)} does; existing mappings then continue to see the old file.
+ * In all other cases the table is held
+ * in a direct buffer of {@link #RECORD_SIZE} bytes per entry. Tables are shared between all
+ * users of the same resource. Only the most recently loaded version of each resource is
+ * retained, so that a table is released once the resource has been updated and no validator
+ * is still using it.
+ */
+@ThreadSafe
+final class OpenSSLFingerprintTable {
+
+    /** Header identifying the binary format. */
+    static final byte[] MAGIC = {
+            (byte) 0x89, 'R', 'S', 'A', 'K', 'L', '\r', '\n',
+    };
+
+    /** Size of each fingerprint record, in bytes. */
+    static final int RECORD_SIZE = 10;
+
+    /** Number of hex characters in a fingerprint in the text format. */
+    private static final int HEX_SIZE = RECORD_SIZE * 2;
+
+    /** Most recently loaded table for each resource location. */
+    private static final Map<String, CachedTable> TABLES = new ConcurrentHashMap<>();
+
+    /** Read-only buffer containing the sorted records. Only absolute operations are used. */
+    @Nonnull private final ByteBuffer records;
+
+    /** Number of records in the table. */
+    private final int size;
+
+    /**
+     * Constructor.
+     *
+     * @param buffer buffer containing sorted, unique records from position 0
+     */
+    private OpenSSLFingerprintTable(@Nonnull final ByteBuffer buffer) {
+        records = buffer.asReadOnlyBuffer();
+        size = buffer.limit() / RECORD_SIZE;
+    }
+
+    /**
+     * Returns the number of fingerprints in the table.
+     *
+     * @return the number of fingerprints
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Compare the record at a given index with a fingerprint.
+     *
+     * @param index index of the record
+     * @param high the most significant 64 bits of the fingerprint
+     * @param low the least significant 16 bits of the fingerprint
+     * @return a negative number, zero or a positive number as the record is less than,
+     *  equal to or greater than the fingerprint
+     */
+    private int compareRecord(final int index, final long high, final int low) {
+        final int offset = index * RECORD_SIZE;
+        final int c = Long.compareUnsigned(records.getLong(offset), high);
+        if (c != 0) {
+            return c;
+        }
+        return Integer.compare(records.getShort(offset + Long.BYTES) & 0xffff, low);
+    }
+
+    /**
+     * Determine whether the table contains the fingerprint for a digest.
+     *
+     * The fingerprint is the last {@link #RECORD_SIZE} bytes of the digest.
+     *
+     * @param digest SHA-1 digest of the OpenSSL representation of a modulus
+     * @return <code>true</code> if the fingerprint is present in the table
+     */
+    boolean contains(@Nonnull final byte[] digest) {
+        final ByteBuffer fingerprint = ByteBuffer.wrap(digest, digest.length - RECORD_SIZE, RECORD_SIZE);
+        final long high = fingerprint.getLong();
+        final int low = fingerprint.getShort() & 0xffff;
+
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int c = compareRecord(mid, high, low);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the table for a resource, loading it if it is not already available.
+     *
+     * @param resource the resource containing the table, in either format
+     * @return the table
+     * @throws IOException if the resource can not be read
+     */
+    @Nonnull
+    static OpenSSLFingerprintTable forResource(@Nonnull final Resource resource) throws IOException {
+        final String location = resourceLocation(resource);
+        if (location == null) {
+            return load(resource);
+        }
+        final long modified = lastModified(resource);
+
+        final CachedTable existing = TABLES.get(location);
+        if (existing != null && existing.lastModified == modified) {
+            return existing.table;
+        }
+
+        // Replacing any superseded entry releases the old table once no validator holds it.
+        final CachedTable loaded = new CachedTable(modified, load(resource));
+        final CachedTable current = TABLES.merge(location, loaded,
+                (old, candidate) -> old.lastModified == modified ? old : candidate);
+        return current.table;
+    }
+
+    /**
+     * Returns the location of a resource, if it can be established.
+     *
+     * @param resource the resource
+     * @return the location, or <code>null</code> if the resource's location can not be established
+     */
+    @Nullable
+    private static String resourceLocation(@Nonnull final Resource resource) {
+        try {
+            return resource.getURL().toExternalForm();
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the last modification time of a resource, if it can be established.
+     *
+     * @param resource the resource
+     * @return the last modification time, or 0 if it can not be established
+     */
+    private static long lastModified(@Nonnull final Resource resource) {
+        try {
+            return resource.lastModified();
+        } catch (final IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Load a table from a resource.
+     *
+     * @param resource the resource containing the table, in either format
+     * @return the table
+     * @throws IOException if the resource can not be read
+     */
+    @Nonnull
+    private static OpenSSLFingerprintTable load(@Nonnull final Resource resource) throws IOException {
+        final File file = resourceFile(resource);
+        if (file != null) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() >= MAGIC.length && (channel.size() - MAGIC.length) % RECORD_SIZE == 0) {
+                    final ByteBuffer header = ByteBuffer.allocate(MAGIC.length);
+                    channel.read(header, 0);
+                    if (Arrays.equals(header.array(), MAGIC)) {
+                        return new OpenSSLFingerprintTable(channel.map(FileChannel.MapMode.READ_ONLY,
+                                MAGIC.length, channel.size() - MAGIC.length));
+                    }
+                }
+            }
+        }
+
+        final byte[] bytes;
+        try (InputStream stream = resource.getInputStream()) {
+            bytes = stream.readAllBytes();
+        }
+
+        if (bytes.length >= MAGIC.length &&
+                Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            if ((bytes.length - MAGIC.length) % RECORD_SIZE != 0) {
+                throw new IOException("binary fingerprint table " + resource.getDescription() + " is truncated");
+            }
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length - MAGIC.length);
+            buffer.put(bytes, MAGIC.length, bytes.length - MAGIC.length).flip();
+            return new OpenSSLFingerprintTable(buffer);
+        }
+
+        return parseText(bytes);
+    }
+
+    /**
+     * Returns the file underlying a resource, if there is one.
+     *
+     * @param resource the resource
+     * @return the file, or <code>null</code>
+     */
+    @Nullable
+    private static File resourceFile(@Nonnull final Resource resource) {
+        try {
+            final File file = resource.getFile();
+            return file.isFile() ? file : null;
+        } catch (final IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Build a table from the text format.
+     *
+     * Lines which are blank, are comments or are not exactly {@link #HEX_SIZE} lower-case
+     * hex digits are ignored, as none of them could ever match a computed fingerprint.
+     *
+     * @param bytes the contents of the text resource
+     * @return the table
+     * @throws IOException if the text can not be read
+     */
+    @Nonnull
+    private static OpenSSLFingerprintTable parseText(@Nonnull final byte[] bytes) throws IOException {
+        return new OpenSSLFingerprintTable(collectText(bytes).toBuffer());
+    }
+
+    /**
+     * Collect the fingerprints from the text format.
+     *
+     * @param bytes the contents of the text resource
+     * @return the collected fingerprints
+     * @throws IOException if the text can not be read
+     */
+    @Nonnull
+    private static FingerprintCollector collectText(@Nonnull final byte[] bytes) throws IOException {
+        final FingerprintCollector collector = new FingerprintCollector();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(bytes), StandardCharsets.US_ASCII))) {
+            while (true) {
+                final String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                collector.addLine(line);
+            }
+        }
+        return collector;
+    }
+
+    /**
+     * Write the binary form of a table given in the text format.
+     *
+     * The text is interpreted as by {@link #parseText(byte[])}. The binary form is written to a
+     * temporary file which is then renamed over the output file, so that a table which has already
+     * been mapped from the output file is never modified.
+     *
+     * @param text the contents of the text key list
+     * @param output the file to which the binary form is written
+     * @return the number of fingerprints written
+     * @throws IOException if the text can not be read or the output written
+     */
+    static int writeBinary(@Nonnull final byte[] text, @Nonnull final Path output) throws IOException {
+        final ByteBuffer header = ByteBuffer.wrap(MAGIC);
+        final ByteBuffer buffer = collectText(text).toBuffer();
+        final Path temp = FileSupport.createTemporarySibling(output);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining() || buffer.hasRemaining()) {
+                    channel.write(new ByteBuffer[] {header, buffer});
+                }
+                channel.force(true);
+            }
+            FileSupport.replace(temp, output);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return buffer.limit() / RECORD_SIZE;
+    }
+
+    /**
+     * A loaded table together with the modification time of the resource it was loaded from.
+     */
+    private static final class CachedTable {
+
+        /** Last modification time of the resource when the table was loaded. */
+        private final long lastModified;
+
+        /** The table. */
+        @Nonnull private final OpenSSLFingerprintTable table;
+
+        /**
+         * Constructor.
+         *
+         * @param modified last modification time of the resource
+         * @param loaded the table
+         */
+        CachedTable(final long modified, @Nonnull final OpenSSLFingerprintTable loaded) {
+            lastModified = modified;
+            table = loaded;
+        }
+    }
+
+    /**
+     * Accumulates fingerprints from the text format and produces a sorted, de-duplicated buffer.
+     */
+    private static final class FingerprintCollector {
+
+        /** Fingerprints collected so far, as {@link #RECORD_SIZE}-byte records. */
+        @Nonnull private byte[] data = new byte[RECORD_SIZE * 64];
+
+        /** Number of fingerprints collected. */
+        private int count;
+
+        /**
+         * Add a line of the text format.
+         *
+         * @param line the line to add
+         */
+        void addLine(@Nonnull final String line) {
+            if (line.length() != HEX_SIZE) {
+                return;
+            }
+            final byte[] record = new byte[RECORD_SIZE];
+            for (int i = 0; i < HEX_SIZE; i++) {
+                final int digit = hexValue(line.charAt(i));
+                if (digit < 0) {
+                    return;
+                }
+                record[i / 2] |= (byte) (i % 2 == 0 ? digit << 4 : digit);
+            }
+            if ((count + 1) * RECORD_SIZE > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            System.arraycopy(record, 0, data, count * RECORD_SIZE, RECORD_SIZE);
+            count++;
+        }
+
+        /**
+         * Returns the value of a lower-case hex digit.
+         *
+         * @param c the character
+         * @return the value of the digit, or -1 if the character is not a lower-case hex digit
+         */
+        private static int hexValue(final char c) {
+            if (c >= '0' && c <= '9') {
+                return c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                return c - 'a' + 10;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns a direct buffer containing the sorted, unique fingerprints.
+         *
+         * @return the buffer
+         */
+        @Nonnull
+        ByteBuffer toBuffer() {
+            final Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(data, a * RECORD_SIZE, (a + 1) * RECORD_SIZE,
+                    data, b * RECORD_SIZE, (b + 1) * RECORD_SIZE));
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(count * RECORD_SIZE);
+            int previous = -1;
+            for (final int index : order) {
+                if (previous < 0 || Arrays.compareUnsigned(data, previous * RECORD_SIZE,
+                        (previous + 1) * RECORD_SIZE, data, index * RECORD_SIZE, (index + 1) * RECORD_SIZE) != 0) {
+                    buffer.put(data, index * RECORD_SIZE, RECORD_SIZE);
+                    previous = index;
+                }
+            }
+            return buffer.flip();
+        }
+    }
+
+}
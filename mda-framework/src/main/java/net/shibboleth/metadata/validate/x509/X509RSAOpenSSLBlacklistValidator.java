@@ -17,10 +17,8 @@
 
 package net.shibboleth.metadata.validate.x509;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -28,8 +26,6 @@ import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPublicKey;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
@@ -49,6 +45,11 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
  * blacklist. Appropriate blacklists are available as part of the Debian 7.x
  * openssl-blacklist and openssl-blacklist-extra packages.
  *
+ * The blacklist resource may be either in the OpenSSL text format, or in the
+ * equivalent sorted binary format generated by the <code>mda-keylists-rsa</code>
+ * module. In either case, the blacklist is held as a compact table of 80-bit values
+ * which is shared between all validators using the same resource.
+ *
  * @since 0.9.0
  */
 @ThreadSafe
@@ -66,9 +67,9 @@ public class X509RSAOpenSSLBlacklistValidator extends AbstractX509Validator {
     /** Restrict checking to a given key size. Default: no restriction (0). */
     @GuardedBy("this") private int keySize;
 
-    /** Set of digest values blacklisted by this validator. */
-    @Nonnull @GuardedBy("this")
-    private final Set<String> blacklistedValues = new HashSet<>();
+    /** Table of digest values blacklisted by this validator. */
+    @NonnullAfterInit @GuardedBy("this")
+    private OpenSSLFingerprintTable blacklistedValues;
 
     /**
      * Gets the resource that provides the blacklist.
@@ -111,12 +112,12 @@ public class X509RSAOpenSSLBlacklistValidator extends AbstractX509Validator {
      * Computes the OpenSSL digest value for the given modulus.
      * 
      * @param modulus RSA public modulus to be digested
-     * @return value to be compared against the blacklist
+     * @return digest whose low 80 bits are to be compared against the blacklist
      * @throws StageProcessingException if SHA1 digester can not be acquired, or for internal
      *      errors related to {@link ByteArrayOutputStream}
      */
     @Nonnull
-    private String openSSLDigest(@Nonnull final BigInteger modulus) throws StageProcessingException {
+    private byte[] openSSLDigest(@Nonnull final BigInteger modulus) throws StageProcessingException {
         try {
             // Acquire a representation of the modulus
             byte[] modulusBytes = modulus.toByteArray();
@@ -144,18 +145,24 @@ public class X509RSAOpenSSLBlacklistValidator extends AbstractX509Validator {
             // Make the digest
             final MessageDigest digest = MessageDigest.getInstance("SHA1");
             digest.update(bb.toByteArray());
-            final byte[] bytes = digest.digest();
-            
-            // Convert the digest to a lower-case hex string
-            final char [] encodedDigest = Hex.encodeHex(bytes, true);
-            final String strValue = String.valueOf(encodedDigest);
-            final String trimmed = strValue.substring(20);
-            //System.out.println("Digest: " + strValue + " trimmed " + trimmed);
-            return trimmed;
+            return digest.digest();
         } catch (final NoSuchAlgorithmException e) {
             throw new StageProcessingException("could not create message digester", e);
         }
     }
+
+    /**
+     * Converts a digest to the form used in the text format blacklist: the
+     * lower-case hex encoding of its low 80 bits.
+     *
+     * @param digest the digest to convert
+     * @return the blacklist value
+     */
+    @Nonnull
+    private String blacklistValue(@Nonnull final byte[] digest) {
+        final char [] encodedDigest = Hex.encodeHex(digest, true);
+        return String.valueOf(encodedDigest).substring(20);
+    }
     
     @Override
     public void doValidate(@Nonnull final X509Certificate cert, @Nonnull final Item<?> item,
@@ -167,7 +174,7 @@ public class X509RSAOpenSSLBlacklistValidator extends AbstractX509Validator {
             final RSAPublicKey rsaKey = (RSAPublicKey) key;
             final BigInteger modulus = rsaKey.getModulus();
 
-            final Set<String> values;
+            final OpenSSLFingerprintTable values;
             final int keySz;
             synchronized (this) {
                 values = blacklistedValues;
@@ -175,9 +182,9 @@ public class X509RSAOpenSSLBlacklistValidator extends AbstractX509Validator {
             }
 
             if (keySz == 0 || keySz == modulus.bitLength()) {
-                final String value = openSSLDigest(modulus);
-                if (values.contains(value)) {
-                    addError("RSA modulus included in key blacklist (" + value + ")",
+                final byte[] digest = openSSLDigest(modulus);
+                if (values.contains(digest)) {
+                    addError("RSA modulus included in key blacklist (" + blacklistValue(digest) + ")",
                             item, stageId);
                 }
             }
@@ -186,8 +193,8 @@ public class X509RSAOpenSSLBlacklistValidator extends AbstractX509Validator {
 
     @Override
     protected void doDestroy() {
-        // We don't need references to the individual values any more.
-        blacklistedValues.clear();
+        // We don't need a reference to the shared table any more.
+        blacklistedValues = null;
 
         super.doDestroy();
     }
@@ -201,29 +208,12 @@ public class X509RSAOpenSSLBlacklistValidator extends AbstractX509Validator {
                     + ", blacklistResource must not be null");
         }
 
-        try (BufferedReader reader =
-                new BufferedReader(new InputStreamReader(blacklistResource.getInputStream()))) {
-            while (true) {
-                final String line = reader.readLine();
-                if (line == null) {
-                    break;
-                }
-                
-                // Ignore lines consisting only of whitespace, including blank lines.
-                if (line.trim().length() == 0) {
-                    continue;
-                }
-                
-                // Ignore comments.
-                if (line.charAt(0) != '#') {
-                    blacklistedValues.add(line);
-                }
-            }
+        try {
+            blacklistedValues = OpenSSLFingerprintTable.forResource(blacklistResource);
         } catch (final IOException e) {
             throw new ComponentInitializationException("Unable to initialize " + getId()
                     + ", error reading blacklistResource " + blacklistResource.getDescription() + " information", e);
         }
-
     }
 
 }
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+
+import net.shibboleth.metadata.dom.impl.UTF8DocumentWriter;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+
+/**
+ * Benchmark comparing the throughput of the JAXP identity transform, as previously used by
+ * {@link DOMElementSerializer} for every item, with that of the {@link UTF8DocumentWriter} it now uses.
+ *
+ * Each run serializes a set of single-entity documents, as a multi-output serialization stage
+ * would, and the outputs are checked to be identical before timing begins.
+ *
+ * This is not a unit test, and is not run as part of the build. Run it from the IDE
+ * or from the command line with the test classpath.
+ */
+public final class DOMElementSerializerBenchmark {
+
+    /** Number of entity documents serialized by each run. */
+    private static final int ENTITY_COUNT = 10_000;
+
+    /** Number of timed iterations of each benchmark. */
+    private static final int ITERATIONS = 10;
+
+    /** Constructor. */
+    private DOMElementSerializerBenchmark() {
+    }
+
+    /**
+     * Build a synthetic SAML entity.
+     *
+     * @param i number distinguishing the entity
+     * @return the entity, as UTF-8 encoded XML
+     */
+    private static byte[] makeEntity(final int i) {
+        final var xml = new StringBuilder();
+        xml.append("<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\"")
+            .append(" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\"")
+            .append(" xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\"")
+            .append(" entityID=\"https://sp").append(i).append(".example.org/shibboleth\">\n")
+            .append("  <md:SPSSODescriptor protocolSupportEnumeration=")
+            .append("\"urn:oasis:names:tc:SAML:2.0:protocol\">\n")
+            .append("    <md:Extensions><mdui:UIInfo>")
+            .append("<mdui:DisplayName xml:lang=\"en\">Service ").append(i).append(" &amp; Co</mdui:DisplayName>")
+            .append("<mdui:DisplayName xml:lang=\"fr\">Le Service ").append(i)
+            .append(" \u00e0 Paris</mdui:DisplayName>")
+            .append("<mdui:Description xml:lang=\"en\">A service provider used for benchmarking.")
+            .append("</mdui:Description></mdui:UIInfo></md:Extensions>\n")
+            .append("    <md:KeyDescriptor use=\"signing\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>\n")
+            .append("MIIDAzCCAeugAwIBAgIVAPX0G6LuoXnKS0Muei006mVSBXbvMA0GCSqGSIb3DQEBCwUAMBsxGTAXBgNVBAMM\n")
+            .append("    </ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>\n")
+            .append("    <md:AssertionConsumerService index=\"1\"")
+            .append(" Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\"")
+            .append(" Location=\"https://sp").append(i).append(".example.org/Shibboleth.sso/SAML2/POST\"/>\n")
+            .append("  </md:SPSSODescriptor>\n")
+            .append("</md:EntityDescriptor>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serialize a document using the identity transform.
+     *
+     * @param document the document to serialize
+     * @return the serialized document
+     * @throws Exception if something goes wrong
+     */
+    private static byte[] transform(final Document document) throws Exception {
+        final var output = new ByteArrayOutputStream();
+        final Transformer serializer = TransformerFactory.newInstance().newTransformer();
+        serializer.setOutputProperty("encoding", "UTF-8");
+        serializer.transform(new DOMSource(document), new StreamResult(output));
+        return output.toByteArray();
+    }
+
+    /** A single benchmark run. */
+    private interface Run {
+
+        /**
+         * Perform the operation being timed.
+         *
+         * @return the number of bytes produced
+         * @throws Exception if something goes wrong
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * Time a benchmark, after a warm-up period.
+     *
+     * @param name name of the benchmark
+     * @param run the benchmark to run
+     * @return mean time per iteration, in milliseconds
+     * @throws Exception if something goes wrong
+     */
+    private static double time(final String name, final Run run) throws Exception {
+        for (int i = 0; i < ITERATIONS; i++) {
+            run.run();
+        }
+        long bytes = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            bytes += run.run();
+        }
+        final double mean = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+        System.out.printf("%-20s %10.3f ms %10.0f documents/s %8.1f MB/s%n", name, mean,
+                ENTITY_COUNT * 1000 / mean, bytes / 1e3 / ITERATIONS / mean);
+        return mean;
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param args command-line arguments (ignored)
+     * @throws Exception if something goes wrong
+     */
+    public static void main(final String[] args) throws Exception {
+        final var parserPool = new BasicParserPool();
+        parserPool.initialize();
+
+        final List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            documents.add(parserPool.parse(new ByteArrayInputStream(makeEntity(i))));
+        }
+        final var writer = new UTF8DocumentWriter();
+        for (final Document document : documents) {
+            if (!Arrays.equals(writer.write(document), transform(document))) {
+                throw new IllegalStateException("serializations differ");
+            }
+        }
+
+        final double transform = time("identity transform", () -> {
+            long bytes = 0;
+            for (final Document document : documents) {
+                bytes += transform(document).length;
+            }
+            return bytes;
+        });
+        final double write = time("direct writer", () -> {
+            long bytes = 0;
+            for (final Document document : documents) {
+                bytes += writer.write(document).length;
+            }
+            return bytes;
+        });
+        System.out.printf("direct writer is %.1fx faster%n", transform / write);
+    }
+}
@@ -18,10 +18,21 @@
 package net.shibboleth.metadata.dom;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
 import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.ReadOnlyStage;
+import net.shibboleth.metadata.pipeline.StreamingPipeline;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -65,4 +76,153 @@ public class DOMElementSerializerTest extends BaseDOMTest {
         
         Assert.assertEquals(o2.toByteArray(), o1.toByteArray());
     }
+
+    @Test
+    public void sameAsIdentityTransform() throws Exception {
+        final DOMElementSerializer ser = new DOMElementSerializer();
+        final Element written = readXMLData("1.xml");
+        Assert.assertEquals(ser.serializeToBytes(new DOMElementItem(written)), transform(written));
+
+        // documents the direct writer does not handle are still serialized
+        final Element html = written.getOwnerDocument().createElementNS(null, "html");
+        written.getOwnerDocument().replaceChild(html, written);
+        final byte[] bytes = ser.serializeToBytes(new DOMElementItem(html));
+        Assert.assertEquals(bytes, transform(html));
+        Assert.assertTrue(new String(bytes, StandardCharsets.UTF_8).startsWith("<html>"));
+    }
+
+    private static byte[] transform(final Element element) throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Transformer serializer = TransformerFactory.newInstance().newTransformer();
+        serializer.setOutputProperty("encoding", "UTF-8");
+        serializer.transform(new DOMSource(element.getOwnerDocument()), new StreamResult(output));
+        return output.toByteArray();
+    }
+
+    @Test
+    public void cachedSerialization() throws Exception {
+        final DOMElementSerializer ser = new DOMElementSerializer();
+        final Item<Element> item = new DOMElementItem(readXMLData("1.xml"));
+
+        final byte[] first = ser.serializeToBytes(item);
+        Assert.assertSame(ser.serializeToBytes(item), first);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ser.serialize(item, output);
+        Assert.assertEquals(output.toByteArray(), first);
+    }
+
+    @Test
+    public void cacheInvalidatedByMarkModified() throws Exception {
+        final DOMElementSerializer ser = new DOMElementSerializer();
+        final DOMElementItem item = new DOMElementItem(readXMLData("1.xml"));
+
+        final byte[] first = ser.serializeToBytes(item);
+        item.unwrap().setAttributeNS(null, "added", "value");
+        item.markModified();
+        final byte[] second = ser.serializeToBytes(item);
+        Assert.assertNotEquals(second, first);
+        Assert.assertTrue(new String(second, StandardCharsets.UTF_8).contains("added=\"value\""));
+        Assert.assertSame(ser.serializeToBytes(item), second);
+    }
+
+    @Test
+    public void cacheInvalidatedByStage() throws Exception {
+        final DOMElementSerializer ser = new DOMElementSerializer();
+        final Item<Element> item = new DOMElementItem(readXMLData("1.xml"));
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        final byte[] first = ser.serializeToBytes(item);
+
+        // a read-only stage leaves the cached form in place
+        final var reading = new ReadingStage();
+        reading.setId("reading");
+        reading.initialize();
+        reading.execute(items);
+        Assert.assertSame(ser.serializeToBytes(item), first);
+
+        // any other stage may have modified the document
+        final var modifying = new ModifyingStage();
+        modifying.setId("modifying");
+        modifying.initialize();
+        modifying.execute(items);
+        final byte[] second = ser.serializeToBytes(item);
+        Assert.assertTrue(new String(second, StandardCharsets.UTF_8).contains("added=\"value\""));
+    }
+
+    @Test
+    public void cacheInvalidatedByStreamedStage() throws Exception {
+        final DOMElementSerializer ser = new DOMElementSerializer();
+        final Item<Element> item = new DOMElementItem(readXMLData("1.xml"));
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+        final byte[] first = ser.serializeToBytes(item);
+
+        // consecutive per-item stages are streamed rather than executed on the collection
+        final var adding = new AttributeAddingStage();
+        adding.setId("adding");
+        final var reading = new ItemReadingStage();
+        reading.setId("reading");
+        final var pipeline = new StreamingPipeline<Element>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(reading, adding));
+        pipeline.initialize();
+        Assert.assertEquals(pipeline.getSegments().size(), 1);
+        pipeline.execute(items);
+        pipeline.destroy();
+
+        final byte[] second = ser.serializeToBytes(item);
+        Assert.assertNotEquals(second, first);
+        Assert.assertTrue(new String(second, StandardCharsets.UTF_8).contains("added=\"value\""));
+    }
+
+    /** Per-item stage which only reads its items. */
+    private static class ItemReadingStage extends AbstractIteratingStage<Element>
+            implements ReadOnlyStage<Element> {
+
+        @Override
+        protected void doExecute(final Item<Element> item) {
+        }
+    }
+
+    /** Per-item stage which adds an attribute to the document element of each item. */
+    private static class AttributeAddingStage extends AbstractIteratingStage<Element> {
+
+        @Override
+        protected void doExecute(final Item<Element> item) {
+            item.unwrap().setAttributeNS(null, "added", "value");
+        }
+    }
+
+    /** Stage which only reads its items. */
+    private static class ReadingStage extends AbstractStage<Element> implements ReadOnlyStage<Element> {
+
+        @Override
+        protected void doExecute(final List<Item<Element>> items) {
+        }
+    }
+
+    /** Stage which adds an attribute to the document element of each item. */
+    private static class ModifyingStage extends AbstractStage<Element> {
+
+        @Override
+        protected void doExecute(final List<Item<Element>> items) {
+            for (final Item<Element> item : items) {
+                item.unwrap().setAttributeNS(null, "added", "value");
+            }
+        }
+    }
+
+    @Test
+    public void copyIsSerializedIndependently() throws Exception {
+        final DOMElementSerializer ser = new DOMElementSerializer();
+        final Item<Element> item = new DOMElementItem(readXMLData("1.xml"));
+        final byte[] first = ser.serializeToBytes(item);
+
+        final Item<Element> copy = item.copy();
+        copy.unwrap().setAttributeNS(null, "added", "value");
+        Assert.assertNotEquals(ser.serializeToBytes(copy), first);
+        Assert.assertSame(ser.serializeToBytes(item), first);
+    }
 }
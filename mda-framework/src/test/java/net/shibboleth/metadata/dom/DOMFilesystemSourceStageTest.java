@@ -61,6 +61,31 @@ public class DOMFilesystemSourceStageTest extends BaseTest {
         source.destroy();
     }
 
+    @Test public void testStringDeduplication() throws Exception {
+        final URL sourceUrl = getClasspathResource("dir").getURL();
+        File sourceFile = new File(sourceUrl.toURI());
+
+        BasicParserPool parserPool = new BasicParserPool();
+        parserPool.initialize();
+
+        final StringDeduplicator deduplicator = new StringDeduplicator();
+
+        DOMFilesystemSourceStage source = new DOMFilesystemSourceStage();
+        source.setId("test");
+        source.setParserPool(parserPool);
+        source.setSource(sourceFile);
+        source.setStringDeduplicator(deduplicator);
+        source.initialize();
+        Assert.assertTrue(deduplicator.isInitialized());
+
+        final ArrayList<Item<Element>> metadataCollection = new ArrayList<>();
+        source.execute(metadataCollection);
+        Assert.assertEquals(metadataCollection.size(), 6);
+        Assert.assertTrue(deduplicator.getSize() > 0);
+        Assert.assertTrue(deduplicator.getHits() > 0);
+        source.destroy();
+    }
+
     @Test public void testSuccessfulDirectoryFetchAndParse() throws Exception {
         final URL sourceUrl = getClasspathResource("dir").getURL();
         File sourceFile = new File(sourceUrl.toURI());
@@ -0,0 +1,313 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.utilities.java.support.xml.ElementSupport;
+
+public class NamespaceHoistingStageTest extends BaseDOMTest {
+
+    private static final String MD = "urn:oasis:names:tc:SAML:2.0:metadata";
+
+    private static final String DS = "http://www.w3.org/2000/09/xmldsig#";
+
+    private static final String MDUI = "urn:oasis:names:tc:SAML:metadata:ui";
+
+    private static final String SHIBMD = "urn:mace:shibboleth:metadata:1.0";
+
+    protected NamespaceHoistingStageTest() {
+        super(NamespaceHoistingStage.class);
+    }
+
+    private static String entity(final int i, final String declarations) {
+        return "<md:EntityDescriptor xmlns:md='" + MD + "' " + declarations + " ID='e" + i +
+                "' entityID='https://sp" + i + ".example.org/'>" +
+                "<md:SPSSODescriptor protocolSupportEnumeration='urn:oasis:names:tc:SAML:2.0:protocol'>" +
+                "<md:Extensions><mdui:UIInfo><mdui:DisplayName xml:lang='en'>SP " + i +
+                "</mdui:DisplayName></mdui:UIInfo></md:Extensions>" +
+                "<md:KeyDescriptor><ds:KeyInfo><ds:KeyName>k" + i + "</ds:KeyName></ds:KeyInfo></md:KeyDescriptor>" +
+                "</md:SPSSODescriptor></md:EntityDescriptor>";
+    }
+
+    private static String aggregate(final String rootDeclarations, final String... entities) {
+        return "<md:EntitiesDescriptor xmlns:md='" + MD + "' " + rootDeclarations + ">" + String.join("", entities) +
+                "</md:EntitiesDescriptor>";
+    }
+
+    private Item<Element> item(final String xml) throws Exception {
+        final Element root = getParserPool().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))
+                .getDocumentElement();
+        return new DOMElementItem(root);
+    }
+
+    private static NamespaceHoistingStage makeStage() throws Exception {
+        final var stage = new NamespaceHoistingStage();
+        stage.setId("hoist");
+        stage.initialize();
+        return stage;
+    }
+
+    private static void execute(final NamespaceHoistingStage stage, final Item<Element> item) throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+        stage.execute(items);
+    }
+
+    private static int size(final Item<Element> item) throws Exception {
+        return new DOMElementSerializer().serializeToBytes(item).length;
+    }
+
+    /**
+     * Gets the namespace of every element, and the binding of every prefix used in the tests on every element.
+     */
+    private static List<String> bindings(final Element root) {
+        final List<String> bindings = new ArrayList<>();
+        final NodeList elements = root.getElementsByTagName("*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            final Element element = (Element) elements.item(i);
+            bindings.add(element.getNamespaceURI());
+            for (final String prefix : new String[] {"md", "ds", "mdui"}) {
+                final String uri = element.lookupNamespaceURI(prefix);
+                if (uri != null) {
+                    bindings.add(prefix + "=" + uri);
+                }
+            }
+        }
+        return bindings;
+    }
+
+    @Test
+    public void testHoisting() throws Exception {
+        final String declarations = "xmlns:ds='" + DS + "' xmlns:mdui='" + MDUI + "'";
+        final Item<Element> item = item(aggregate("", entity(1, declarations), entity(2, declarations),
+                entity(3, declarations)));
+        final Element root = item.unwrap();
+        final int before = size(item);
+        final List<String> bindingsBefore = bindings(root);
+
+        execute(makeStage(), item);
+
+        Assert.assertEquals(root.getAttributeNS("http://www.w3.org/2000/xmlns/", "ds"), DS);
+        Assert.assertEquals(root.getAttributeNS("http://www.w3.org/2000/xmlns/", "mdui"), MDUI);
+        for (final Element entity : ElementSupport.getChildElements(root)) {
+            Assert.assertEquals(entity.getAttributes().getLength(), 2, "only ID and entityID remain");
+        }
+        final List<String> bindingsAfter = bindings(root);
+        Assert.assertTrue(bindingsAfter.containsAll(bindingsBefore));
+
+        final int after = size(item);
+        Assert.assertTrue(after < before);
+        final List<InfoStatus> statuses = item.getItemMetadata().get(InfoStatus.class);
+        Assert.assertEquals(statuses.size(), 1);
+        Assert.assertTrue(statuses.get(0).getStatusMessage().contains("hoisted 2 namespace declarations"),
+                statuses.get(0).getStatusMessage());
+        Assert.assertTrue(statuses.get(0).getStatusMessage().contains("removed 9 redundant declarations"),
+                statuses.get(0).getStatusMessage());
+        Assert.assertTrue(statuses.get(0).getStatusMessage().contains("saving about " + (before - after) + " bytes"),
+                statuses.get(0).getStatusMessage());
+
+        // running again changes nothing further
+        execute(makeStage(), item);
+        Assert.assertEquals(size(item), after);
+        Assert.assertEquals(item.getItemMetadata().get(InfoStatus.class).size(), 1);
+    }
+
+    @Test
+    public void testPrefixConflicts() throws Exception {
+        final String common = "xmlns:ds='" + DS + "' xmlns:mdui='" + MDUI + "'";
+        final String conflicting = "xmlns:ds='" + DS + "' xmlns:mdui='urn:example:other'";
+        final Item<Element> item = item(aggregate("xmlns:ds='urn:example:root'",
+                entity(1, common), entity(2, conflicting), entity(3, common)));
+        final Element root = item.unwrap();
+        final List<String> bindingsBefore = bindings(root);
+
+        execute(makeStage(), item);
+
+        // the document element's own binding of ds is kept, so the entities keep theirs
+        Assert.assertEquals(root.getAttributeNS("http://www.w3.org/2000/xmlns/", "ds"), "urn:example:root");
+        // the majority binding of mdui is hoisted, and the minority is left in place
+        Assert.assertEquals(root.getAttributeNS("http://www.w3.org/2000/xmlns/", "mdui"), MDUI);
+        final List<Element> entities = ElementSupport.getChildElements(root);
+        Assert.assertEquals(entities.get(0).getAttributeNS("http://www.w3.org/2000/xmlns/", "ds"), DS);
+        Assert.assertFalse(entities.get(0).hasAttributeNS("http://www.w3.org/2000/xmlns/", "mdui"));
+        Assert.assertEquals(entities.get(1).getAttributeNS("http://www.w3.org/2000/xmlns/", "mdui"),
+                "urn:example:other");
+        Assert.assertEquals(bindings(root), bindingsBefore);
+    }
+
+    @Test
+    public void testDefaultNamespace() throws Exception {
+        final String entity = "<EntityDescriptor xmlns='" + MD + "' entityID='x'><Organization/></EntityDescriptor>";
+        final Item<Element> item = item(aggregate("", entity, entity));
+        execute(makeStage(), item);
+        Assert.assertEquals(item.unwrap().getAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns"), MD);
+        for (final Element child : ElementSupport.getChildElements(item.unwrap())) {
+            Assert.assertFalse(child.hasAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns"));
+        }
+
+        // not when an element is in no namespace, which would be captured by the default namespace
+        final Item<Element> unqualified = item(aggregate("", entity, entity,
+                "<md:EntityDescriptor entityID='y'><md:Extensions><Thing xmlns=''/></md:Extensions>" +
+                "</md:EntityDescriptor>"));
+        execute(makeStage(), unqualified);
+        Assert.assertFalse(unqualified.unwrap().hasAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns"));
+    }
+
+    @Test
+    public void testMinimumOccurrences() throws Exception {
+        final String declarations = "xmlns:ds='" + DS + "' xmlns:mdui='" + MDUI + "'";
+        final Item<Element> item = item(aggregate("", entity(1, declarations), entity(2, declarations)));
+        final var stage = new NamespaceHoistingStage();
+        stage.setId("hoist");
+        stage.setMinimumOccurrences(3);
+        stage.initialize();
+        execute(stage, item);
+
+        Assert.assertFalse(item.unwrap().hasAttributeNS("http://www.w3.org/2000/xmlns/", "ds"));
+        // the redundant declarations of md are still removed
+        for (final Element child : ElementSupport.getChildElements(item.unwrap())) {
+            Assert.assertFalse(child.hasAttributeNS("http://www.w3.org/2000/xmlns/", "md"));
+            Assert.assertTrue(child.hasAttributeNS("http://www.w3.org/2000/xmlns/", "ds"));
+        }
+    }
+
+    @Test
+    public void testNothingToDo() throws Exception {
+        final Item<Element> item = item(aggregate("xmlns:ds='" + DS + "' xmlns:mdui='" + MDUI + "'",
+                entity(1, ""), entity(2, "").replace("xmlns:md='" + MD + "' ", "")));
+        // the first entity's declaration of md is redundant
+        execute(makeStage(), item);
+        Assert.assertTrue(item.getItemMetadata().get(InfoStatus.class).get(0).getStatusMessage()
+                .contains("hoisted 0 namespace declarations and removed 1 redundant declarations"));
+
+        execute(makeStage(), item);
+        Assert.assertEquals(item.getItemMetadata().get(InfoStatus.class).size(), 1);
+    }
+
+    /**
+     * Signs an entity in place with an enveloped signature.
+     */
+    private static void sign(final Element entity, final KeyPair keys, final String c14n) throws Exception {
+        entity.setIdAttributeNS(null, "ID", true);
+        final XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+        final List<Transform> transforms = List.of(
+                factory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null),
+                factory.newTransform(c14n, (TransformParameterSpec) null));
+        final Reference reference = factory.newReference("#" + entity.getAttributeNS(null, "ID"),
+                factory.newDigestMethod(DigestMethod.SHA256, null), transforms, null, null);
+        final SignedInfo signedInfo = factory.newSignedInfo(
+                factory.newCanonicalizationMethod(c14n, (C14NMethodParameterSpec) null),
+                factory.newSignatureMethod("http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", null),
+                Collections.singletonList(reference));
+        final XMLSignature signature = factory.newXMLSignature(signedInfo, null);
+        final var context = new DOMSignContext(keys.getPrivate(), entity, entity.getFirstChild());
+        context.setDefaultNamespacePrefix("ds");
+        signature.sign(context);
+    }
+
+    private static boolean verify(final Element entity, final KeyPair keys) throws Exception {
+        entity.setIdAttributeNS(null, "ID", true);
+        final Element signature = ElementSupport.getFirstChildElement(entity);
+        final var context = new DOMValidateContext(keys.getPublic(), signature);
+        return XMLSignatureFactory.getInstance("DOM").unmarshalXMLSignature(context).validate(context);
+    }
+
+    @Test
+    public void testSignaturesPreserved() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final KeyPair keys = generator.generateKeyPair();
+
+        // shibmd is not declared by the entity which will be signed inclusively
+        final String declarations = "xmlns:ds='" + DS + "' xmlns:mdui='" + MDUI + "'";
+        final String shibmd = " xmlns:shibmd='" + SHIBMD + "'";
+        final Item<Element> item = item(aggregate("", entity(1, declarations + shibmd), entity(2, declarations),
+                entity(3, declarations + shibmd)));
+        final List<Element> entities = ElementSupport.getChildElements(item.unwrap());
+        sign(entities.get(0), keys, CanonicalizationMethod.EXCLUSIVE);
+        sign(entities.get(1), keys, CanonicalizationMethod.INCLUSIVE);
+
+        execute(makeStage(), item);
+
+        // mdui and ds are already in scope on the inclusively signed entity, so can be hoisted, but shibmd is not
+        Assert.assertEquals(item.unwrap().getAttributeNS("http://www.w3.org/2000/xmlns/", "mdui"), MDUI);
+        Assert.assertEquals(item.unwrap().getAttributeNS("http://www.w3.org/2000/xmlns/", "ds"), DS);
+        Assert.assertFalse(item.unwrap().hasAttributeNS("http://www.w3.org/2000/xmlns/", "shibmd"));
+        Assert.assertFalse(entities.get(1).hasAttributeNS("http://www.w3.org/2000/xmlns/", "mdui"));
+        Assert.assertEquals(entities.get(2).getAttributeNS("http://www.w3.org/2000/xmlns/", "shibmd"), SHIBMD);
+        Assert.assertTrue(verify(entities.get(0), keys));
+        Assert.assertTrue(verify(entities.get(1), keys));
+
+        // reparsing the serialized form, the signatures are still valid
+        final Item<Element> reparsed = item(new String(new DOMElementSerializer().serializeToBytes(item),
+                StandardCharsets.UTF_8));
+        final List<Element> reparsedEntities = ElementSupport.getChildElements(reparsed.unwrap());
+        Assert.assertTrue(verify(reparsedEntities.get(0), keys));
+        Assert.assertTrue(verify(reparsedEntities.get(1), keys));
+    }
+
+    @Test
+    public void testExclusiveSignaturesAllowHoisting() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final KeyPair keys = generator.generateKeyPair();
+
+        final String declarations = "xmlns:ds='" + DS + "' xmlns:mdui='" + MDUI + "'";
+        final Item<Element> item = item(aggregate("", entity(1, declarations + " xmlns:shibmd='" + SHIBMD + "'"),
+                entity(2, declarations), entity(3, declarations + " xmlns:shibmd='" + SHIBMD + "'")));
+        for (final Element entity : ElementSupport.getChildElements(item.unwrap())) {
+            sign(entity, keys, CanonicalizationMethod.EXCLUSIVE);
+        }
+
+        execute(makeStage(), item);
+        Assert.assertEquals(item.unwrap().getAttributeNS("http://www.w3.org/2000/xmlns/", "shibmd"), SHIBMD);
+
+        final Item<Element> reparsed = item(new String(new DOMElementSerializer().serializeToBytes(item),
+                StandardCharsets.UTF_8));
+        for (final Element entity : ElementSupport.getChildElements(reparsed.unwrap())) {
+            Assert.assertFalse(entity.hasAttributeNS("http://www.w3.org/2000/xmlns/", "shibmd"));
+            Assert.assertTrue(verify(entity, keys));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.utilities.java.support.xml.SimpleNamespaceContext;
+
+public class SimpleXPathPredicatesTest extends BaseDOMTest {
+
+    private final NamespaceContext context = new SimpleNamespaceContext(Map.of(
+            "md", "urn:oasis:names:tc:SAML:2.0:metadata",
+            "ukfedlabel", "http://ukfederation.org.uk/2006/11/label",
+            "def", "urn:example:default"));
+
+    public SimpleXPathPredicatesTest() {
+        super(SimpleXPathPredicates.class);
+    }
+
+    /** Check that an expression is recognised, and gives the same result as the XPath engine. */
+    private void check(final String expression, final Element element) throws Exception {
+        final Predicate<Element> predicate = SimpleXPathPredicates.forExpression(expression, context);
+        Assert.assertNotNull(predicate, expression);
+
+        final XPath xpath = XPathFactory.newInstance().newXPath();
+        xpath.setNamespaceContext(context);
+        final Boolean expected = xpath.compile(expression).evaluateExpression(element, Boolean.class);
+        Assert.assertEquals(predicate.test(element), expected.booleanValue(), expression);
+    }
+
+    @Test
+    public void testEquivalence() throws Exception {
+        final List<String> expressions = List.of(
+                "@entityID",
+                "@ID='_a1'",
+                " @ID = \"_a1\" ",
+                "@ID='_a2'",
+                "@id='entity1'",
+                "@empty=''",
+                "@missing",
+                "@missing=''",
+                "@ukfedlabel:orgID='ukf123'",
+                "@ukfedlabel:orgID",
+                "@md:entityID",
+                "md:Extensions",
+                "md:IDPSSODescriptor",
+                "md:SPSSODescriptor",
+                "ukfedlabel:UKFederationMember",
+                "plain",
+                "def:plain",
+                "content",
+                "not(md:SPSSODescriptor)",
+                "not(@ID='_a1')",
+                "not ( @missing )");
+        for (final String name : List.of("doc.xml", "nonamespace.xml")) {
+            final Element element = readXMLData(name);
+            for (final String expression : expressions) {
+                check(expression, element);
+            }
+        }
+    }
+
+    @Test
+    public void testNotRecognised() {
+        for (final String expression : List.of(
+                "//ukfedlabel:DeletedEntity",
+                "md:Extensions/ukfedlabel:UKFederationMember",
+                "@ID!='_a1'",
+                "@ID='_a1' and md:Extensions",
+                "not(@ID) or not(@entityID)",
+                "count(md:Extensions) > 0",
+                "unbound:Element",
+                "@unbound:attr",
+                "$foo")) {
+            Assert.assertNull(SimpleXPathPredicates.forExpression(expression, context), expression);
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+
+/**
+ * Benchmark measuring the heap retained by a parsed aggregate with and without
+ * a {@link StringDeduplicator}.
+ *
+ * The synthetic aggregate has 50,000 entities, which share a pool of certificates,
+ * binding URIs and entity category values as a large federation's aggregate does.
+ * Each document is split into per-entity documents, so the deduplicator works across
+ * documents as it would across a run.
+ *
+ * This is not a unit test, and is not run as part of the build. Run it from the IDE
+ * or from the command line with the test classpath and a heap of at least 4GB.
+ */
+public final class StringDeduplicatorBenchmark {
+
+    /** Number of entities in the synthetic aggregate. */
+    private static final int ENTITY_COUNT = 50_000;
+
+    /** Number of distinct certificates shared between the entities. */
+    private static final int CERTIFICATE_COUNT = 500;
+
+    /** Number of documents the aggregate is split into. */
+    private static final int DOCUMENT_COUNT = 50;
+
+    /** Constructor. */
+    private StringDeduplicatorBenchmark() {
+    }
+
+    /**
+     * Build a synthetic base64 certificate.
+     *
+     * @param random source of the certificate's content
+     * @return the certificate text, wrapped in 64-character lines
+     */
+    private static String makeCertificate(final Random random) {
+        final byte[] der = new byte[900];
+        random.nextBytes(der);
+        final String base64 = Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(der);
+        return "\n" + base64 + "\n";
+    }
+
+    /**
+     * Build one document of the synthetic aggregate.
+     *
+     * @param first index of the first entity in the document
+     * @param count number of entities in the document
+     * @param certificates the shared certificates
+     * @return the document, as UTF-8 encoded XML
+     */
+    private static byte[] makeDocument(final int first, final int count, final List<String> certificates) {
+        final var xml = new StringBuilder();
+        xml.append("<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\"")
+            .append(" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\"")
+            .append(" xmlns:mdattr=\"urn:oasis:names:tc:SAML:metadata:attribute\"")
+            .append(" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">\n");
+        for (int i = first; i < first + count; i++) {
+            xml.append("  <md:EntityDescriptor entityID=\"https://sp").append(i).append(".example.org/shibboleth\">\n")
+                .append("    <md:Extensions><mdattr:EntityAttributes>\n")
+                .append("      <saml:Attribute Name=\"http://macedir.org/entity-category\"")
+                .append(" NameFormat=\"urn:oasis:names:tc:SAML:2.0:attrname-format:uri\">\n")
+                .append("        <saml:AttributeValue>http://refeds.org/category/research-and-scholarship")
+                .append("</saml:AttributeValue>\n")
+                .append("      </saml:Attribute>\n")
+                .append("    </mdattr:EntityAttributes></md:Extensions>\n")
+                .append("    <md:SPSSODescriptor protocolSupportEnumeration=")
+                .append("\"urn:oasis:names:tc:SAML:2.0:protocol\">\n");
+            for (final String use : List.of("signing", "encryption")) {
+                xml.append("      <md:KeyDescriptor use=\"").append(use)
+                    .append("\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>")
+                    .append(certificates.get(i % CERTIFICATE_COUNT))
+                    .append("</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>\n");
+            }
+            for (int j = 1; j <= 3; j++) {
+                xml.append("      <md:AssertionConsumerService index=\"").append(j).append('"')
+                    .append(" Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\"")
+                    .append(" Location=\"https://sp").append(i).append(".example.org/Shibboleth.sso/SAML2/POST")
+                    .append(j).append("\"/>\n");
+            }
+            xml.append("    </md:SPSSODescriptor>\n")
+                .append("  </md:EntityDescriptor>\n");
+        }
+        xml.append("</md:EntitiesDescriptor>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Visit every node and attribute of a document, so that lazily built DOMs are fully built.
+     *
+     * @param node the node at which to start
+     */
+    private static void visit(final Node node) {
+        final NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null) {
+            for (int i = 0; i < attributes.getLength(); i++) {
+                attributes.item(i).getNodeValue();
+            }
+        }
+        node.getNodeValue();
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            visit(child);
+        }
+    }
+
+    /**
+     * Measure the heap in use after garbage collection.
+     *
+     * @return the heap in use, in bytes
+     */
+    private static long usedHeap() {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Parse all the documents, retaining them, and report the heap they occupy.
+     *
+     * @param label label for the report
+     * @param documents the documents to parse
+     * @param deduplicator the deduplicator to apply, or <code>null</code>
+     * @return the heap occupied by the parsed documents, in bytes
+     * @throws Exception if anything goes wrong
+     */
+    private static long measure(final String label, final List<byte[]> documents,
+            final StringDeduplicator deduplicator) throws Exception {
+        final var pool = new BasicParserPool();
+        pool.initialize();
+
+        final long before = usedHeap();
+        final long start = System.nanoTime();
+        final List<Document> parsed = new ArrayList<>();
+        for (final byte[] xml : documents) {
+            final Document document = pool.parse(new ByteArrayInputStream(xml));
+            if (deduplicator != null) {
+                deduplicator.deduplicate(document);
+            }
+            visit(document);
+            parsed.add(document);
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long retained = usedHeap() - before;
+        System.out.printf("%-24s %8.1f MB retained, parsed in %6d ms%n", label,
+                retained / (1024.0 * 1024.0), elapsed / 1_000_000);
+        if (parsed.size() != documents.size()) {
+            throw new IllegalStateException();
+        }
+        return retained;
+    }
+
+    /**
+     * Main entry point.
+     *
+     * @param args command-line arguments (ignored)
+     * @throws Exception if anything goes wrong
+     */
+    public static void main(final String[] args) throws Exception {
+        final var random = new Random(1);
+        final List<String> certificates = new ArrayList<>();
+        for (int i = 0; i < CERTIFICATE_COUNT; i++) {
+            certificates.add(makeCertificate(random));
+        }
+        final List<byte[]> documents = new ArrayList<>();
+        long size = 0;
+        final int perDocument = ENTITY_COUNT / DOCUMENT_COUNT;
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            final byte[] document = makeDocument(i * perDocument, perDocument, certificates);
+            documents.add(document);
+            size += document.length;
+        }
+        System.out.printf("%d entities in %d documents, %.1f MB of XML%n", ENTITY_COUNT, DOCUMENT_COUNT,
+                size / (1024.0 * 1024.0));
+
+        final long plain = measure("no deduplication", documents, null);
+
+        final var deduplicator = new StringDeduplicator();
+        deduplicator.initialize();
+        final long deduplicated = measure("with deduplication", documents, deduplicator);
+
+        System.out.printf("%d shared values, %d values replaced; heap reduced by %.0f%%%n",
+                deduplicator.getSize(), deduplicator.getHits(), 100.0 * (plain - deduplicated) / plain);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom;
+
+import java.lang.ref.Reference;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.utilities.java.support.xml.ElementSupport;
+
+/** Unit test for {@link StringDeduplicator}. */
+public class StringDeduplicatorTest extends BaseDOMTest {
+
+    /** Constructor sets class under test. */
+    public StringDeduplicatorTest() {
+        super(StringDeduplicator.class);
+    }
+
+    private static StringDeduplicator makeDeduplicator() throws Exception {
+        final var deduplicator = new StringDeduplicator();
+        deduplicator.initialize();
+        return deduplicator;
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        final var deduplicator = makeDeduplicator();
+        final String one = new String("value");
+        final String two = new String("value");
+        Assert.assertNotSame(one, two);
+        Assert.assertSame(deduplicator.deduplicate(one), one);
+        Assert.assertSame(deduplicator.deduplicate(two), one);
+        Assert.assertEquals(deduplicator.getSize(), 1);
+        Assert.assertEquals(deduplicator.getHits(), 1);
+    }
+
+    @Test
+    public void testBounds() throws Exception {
+        final var deduplicator = new StringDeduplicator();
+        deduplicator.setMaxSize(4);
+        deduplicator.setMaxLength(5);
+        deduplicator.initialize();
+
+        final String longer = new String("too long");
+        Assert.assertSame(deduplicator.deduplicate(longer), longer);
+        Assert.assertEquals(deduplicator.getSize(), 0);
+
+        final String first = new String("one");
+        deduplicator.deduplicate(first);
+        Assert.assertSame(deduplicator.deduplicate(new String("one")), first);
+
+        // table is full, so new values are not shared
+        final String second = new String("two");
+        Assert.assertEquals(deduplicator.getTotalLength(), 3);
+        Assert.assertSame(deduplicator.deduplicate(second), second);
+        final String third = new String("two");
+        Assert.assertSame(deduplicator.deduplicate(third), third);
+        Assert.assertEquals(deduplicator.getSize(), 1);
+        Reference.reachabilityFence(first);
+    }
+
+    private static void addUnreferenced(final StringDeduplicator deduplicator, final String value) {
+        deduplicator.deduplicate(new String(value));
+    }
+
+    @Test
+    public void testValuesReleased() throws Exception {
+        final var deduplicator = new StringDeduplicator();
+        deduplicator.setMaxSize(5);
+        deduplicator.initialize();
+
+        addUnreferenced(deduplicator, "first");
+        Assert.assertEquals(deduplicator.getTotalLength(), 5);
+
+        // the table is full only for as long as the value is held elsewhere
+        for (int i = 0; i < 100 && deduplicator.getSize() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(deduplicator.getSize(), 0);
+        Assert.assertEquals(deduplicator.getTotalLength(), 0);
+
+        final String second = new String("later");
+        Assert.assertSame(deduplicator.deduplicate(second), second);
+        Assert.assertSame(deduplicator.deduplicate(new String("later")), second);
+    }
+
+    @Test
+    public void testDocuments() throws Exception {
+        final var deduplicator = makeDeduplicator();
+        final Element doc1 = readXMLData("in.xml");
+        final Element doc2 = readXMLData("in.xml");
+        final Element expected = readXMLData("in.xml");
+
+        deduplicator.deduplicate(doc1.getOwnerDocument());
+        deduplicator.deduplicate(doc2.getOwnerDocument());
+
+        // content is unchanged
+        assertXMLIdentical(expected, doc1);
+        assertXMLIdentical(expected, doc2);
+
+        // equal values in different documents are the same instance
+        final Element child1 = ElementSupport.getFirstChildElement(doc1);
+        final Element child2 = ElementSupport.getFirstChildElement(doc2);
+        final Attr attr1 = (Attr) child1.getAttributes().item(0);
+        final Attr attr2 = (Attr) child2.getAttributes().item(0);
+        Assert.assertSame(attr1.getValue(), attr2.getValue());
+
+        final Node text1 = child1.getFirstChild();
+        final Node text2 = child2.getFirstChild();
+        Assert.assertEquals(text1.getNodeType(), Node.TEXT_NODE);
+        Assert.assertSame(text1.getNodeValue(), text2.getNodeValue());
+        Assert.assertTrue(deduplicator.getHits() > 0);
+    }
+}
@@ -18,9 +18,17 @@
 package net.shibboleth.metadata.dom;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
@@ -97,4 +105,105 @@ public class XPathFilteringStageTest extends BaseDOMTest {
         stage.execute(items);
     }
 
+    private List<Item<Element>> makeItems(final int copies) throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        for (int i = 0; i < copies; i++) {
+            items.add(new DOMElementItem(readXMLData("1.xml")));
+            items.add(new DOMElementItem(readXMLData("2.xml")));
+            items.add(new DOMElementItem(readXMLData("3.xml")));
+        }
+        return items;
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final var stage = new XPathFilteringStage();
+            stage.setId("test");
+            stage.setXPathExpression("//ukfedlabel:DeletedEntity");
+            stage.setNamespaceContext(new SimpleNamespaceContext(
+                    Map.of("ukfedlabel", "http://ukfederation.org.uk/2006/11/label")));
+            stage.setExecutorService(executor);
+            stage.initialize();
+
+            final List<Item<Element>> items = makeItems(50);
+            stage.execute(items);
+            stage.destroy();
+
+            Assert.assertEquals(items.size(), 50);
+            for (final Item<Element> item : items) {
+                Assert.assertEquals(item.unwrap().getAttribute("id"), "entity2");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSimpleExpression() throws Exception {
+        final var stage = new XPathFilteringStage();
+        stage.setId("test");
+        stage.setXPathExpression("@id = 'entity2'");
+        stage.initialize();
+
+        final List<Item<Element>> items = makeItems(2);
+        stage.execute(items);
+        stage.destroy();
+
+        Assert.assertEquals(items.size(), 4);
+        Assert.assertEquals(items.get(0).unwrap().getAttribute("id"), "entity1");
+        Assert.assertEquals(items.get(1).unwrap().getAttribute("id"), "entity3");
+        Assert.assertEquals(items.get(2).unwrap().getAttribute("id"), "entity1");
+        Assert.assertEquals(items.get(3).unwrap().getAttribute("id"), "entity3");
+    }
+
+    @Test(expectedExceptions=StageProcessingException.class)
+    public void testParallelExecError() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final var stage = new XPathFilteringStage();
+            stage.setId("test");
+            stage.setXPathExpression("$foo");
+            stage.setExecutorService(executor);
+            stage.initialize();
+            stage.execute(makeItems(2));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelExecErrorCancelsOthers() throws Exception {
+        final List<Future<?>> submitted = Collections.synchronizedList(new ArrayList<>());
+        final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>()) {
+            @Override
+            protected <V> RunnableFuture<V> newTaskFor(final Runnable runnable, final V value) {
+                final RunnableFuture<V> future = super.newTaskFor(runnable, value);
+                submitted.add(future);
+                return future;
+            }
+        };
+        try {
+            final var stage = new XPathFilteringStage();
+            stage.setId("test");
+            stage.setXPathExpression("$foo");
+            stage.setExecutorService(executor);
+            stage.initialize();
+            try {
+                stage.execute(makeItems(20));
+                Assert.fail("expected evaluation to fail");
+            } catch (final StageProcessingException e) {
+                // expected
+            }
+            Assert.assertTrue(submitted.size() > 1);
+            for (final Future<?> future : submitted) {
+                Assert.assertTrue(future.isDone());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
 }
@@ -0,0 +1,496 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.ExcC14NParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import net.shibboleth.metadata.dom.impl.XMLSignatureValidator.ValidationException;
+
+public class StreamingXMLSignatureVerifierTest {
+
+    private static final String RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+
+    private static final String[] PREFIXES = {"", "p0", "p1", "p2"};
+
+    private KeyPair keys;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keys = generator.generateKeyPair();
+    }
+
+    /** Ways of signing a document. */
+    private enum Mode {
+        INCLUSIVE, EXCLUSIVE, EXCLUSIVE_PREFIXES, EXCLUSIVE_WITH_COMMENTS
+    }
+
+    private static Document parse(final byte[] xml) throws Exception {
+        final var factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    }
+
+    private static byte[] serialize(final Document doc) throws Exception {
+        final var out = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    private static List<Transform> transforms(final XMLSignatureFactory factory, final Mode mode)
+            throws Exception {
+        final List<Transform> transforms = new ArrayList<>();
+        transforms.add(factory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null));
+        switch (mode) {
+            case EXCLUSIVE:
+                transforms.add(factory.newTransform(CanonicalizationMethod.EXCLUSIVE, (TransformParameterSpec) null));
+                break;
+            case EXCLUSIVE_PREFIXES:
+                transforms.add(factory.newTransform(CanonicalizationMethod.EXCLUSIVE,
+                        new ExcC14NParameterSpec(List.of("#default", "p1"))));
+                break;
+            case EXCLUSIVE_WITH_COMMENTS:
+                transforms.add(factory.newTransform(CanonicalizationMethod.EXCLUSIVE_WITH_COMMENTS,
+                        (TransformParameterSpec) null));
+                break;
+            default:
+        }
+        return transforms;
+    }
+
+    /**
+     * Signs the document element of an XML document with an enveloped signature placed as its first child.
+     */
+    private byte[] sign(final byte[] xml, final Mode mode, final boolean emptyReference, final String digest,
+            final int referenceCount, final List<String> explicitTransforms) throws Exception {
+        final Document doc = parse(xml);
+        final Element root = doc.getDocumentElement();
+        root.setIdAttributeNS(null, "ID", true);
+        final XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+        final List<Reference> references = new ArrayList<>();
+        for (int i = 0; i < referenceCount; i++) {
+            final List<Transform> transforms = transforms(factory, mode);
+            if (explicitTransforms != null) {
+                transforms.clear();
+                for (final String algorithm : explicitTransforms) {
+                    transforms.add(factory.newTransform(algorithm, (TransformParameterSpec) null));
+                }
+            }
+            references.add(factory.newReference(emptyReference ? "" : "#" + root.getAttributeNS(null, "ID"),
+                    factory.newDigestMethod(digest, null), transforms, null, null));
+        }
+        final String c14n = mode == Mode.INCLUSIVE ? CanonicalizationMethod.INCLUSIVE
+                : CanonicalizationMethod.EXCLUSIVE;
+        final SignedInfo signedInfo = factory.newSignedInfo(
+                factory.newCanonicalizationMethod(c14n, (C14NMethodParameterSpec) null),
+                factory.newSignatureMethod(RSA_SHA256, null), references);
+        final XMLSignature signature = factory.newXMLSignature(signedInfo, null);
+        final var context = root.getFirstChild() == null ? new DOMSignContext(keys.getPrivate(), root)
+                : new DOMSignContext(keys.getPrivate(), root, root.getFirstChild());
+        context.setDefaultNamespacePrefix("ds");
+        signature.sign(context);
+        return serialize(doc);
+    }
+
+    private byte[] sign(final byte[] xml, final Mode mode, final boolean emptyReference) throws Exception {
+        return sign(xml, mode, emptyReference, DigestMethod.SHA256, 1, null);
+    }
+
+    /**
+     * Validates a signed document with the JDK's DOM-based implementation.
+     */
+    private boolean validateDOM(final byte[] xml) throws Exception {
+        final Document doc = parse(xml);
+        final Element root = doc.getDocumentElement();
+        root.setIdAttributeNS(null, "ID", true);
+        final var signature = (Element) root.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature").item(0);
+        final var context = new DOMValidateContext(keys.getPublic(), signature);
+        context.setProperty("org.jcp.xml.dsig.secureValidation", Boolean.FALSE);
+        return XMLSignatureFactory.getInstance("DOM").unmarshalXMLSignature(context).validate(context);
+    }
+
+    /** Counts the elements passed through the verifier. */
+    private static final class CountingHandler extends DefaultHandler {
+
+        private int elements;
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName,
+                final Attributes atts) {
+            elements++;
+        }
+    }
+
+    private StreamingXMLSignatureVerifier stream(final byte[] xml, final boolean stopOnFailure,
+            final Set<String> blacklistedDigests, final Set<String> blacklistedMethods,
+            final boolean emptyReferences, final DefaultHandler handler) throws Exception {
+        final var builderFactory = DocumentBuilderFactory.newInstance();
+        builderFactory.setNamespaceAware(true);
+        final var verifier = new StreamingXMLSignatureVerifier(keys.getPublic(), blacklistedDigests,
+                blacklistedMethods, emptyReferences, stopOnFailure,
+                builderFactory.newDocumentBuilder().newDocument());
+        final var parserFactory = SAXParserFactory.newInstance();
+        parserFactory.setNamespaceAware(true);
+        verifier.setParent(parserFactory.newSAXParser().getXMLReader());
+        verifier.setContentHandler(handler);
+        verifier.parse(new InputSource(new ByteArrayInputStream(xml)));
+        return verifier;
+    }
+
+    private StreamingXMLSignatureVerifier stream(final byte[] xml) throws Exception {
+        return stream(xml, false, Set.of(), Set.of(), true, new DefaultHandler());
+    }
+
+    private static void assertFails(final StreamingXMLSignatureVerifier verifier, final String expected) {
+        try {
+            verifier.checkSignature();
+            Assert.fail("expected failure containing: " + expected);
+        } catch (final ValidationException e) {
+            Assert.assertTrue(e.getMessage().contains(expected), e.getMessage());
+        }
+    }
+
+    private static void appendEscaped(final StringBuilder xml, final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '"':
+                    xml.append("&quot;");
+                    break;
+                case '\t':
+                    xml.append("&#9;");
+                    break;
+                case '\n':
+                    xml.append(i % 2 == 0 ? "\n" : "&#10;");
+                    break;
+                case '\r':
+                    xml.append("&#13;");
+                    break;
+                default:
+                    xml.append(c);
+            }
+        }
+    }
+
+    private static String randomText(final Random random) {
+        final String alphabet = "abc &<>\"'\t\n\r\u00e9\u4e2d\ud83d\ude00";
+        final int length = random.nextInt(20) == 0 ? 9_000 + random.nextInt(2_000) : random.nextInt(12);
+        final var text = new StringBuilder();
+        while (text.length() < length) {
+            final int i = random.nextInt(alphabet.length() - 1);
+            if (Character.isHighSurrogate(alphabet.charAt(i))) {
+                text.append(alphabet, i, i + 2);
+            } else if (!Character.isLowSurrogate(alphabet.charAt(i))) {
+                text.append(alphabet.charAt(i));
+            }
+        }
+        return text.toString();
+    }
+
+    private static void declare(final StringBuilder xml, final Map<String, String> scope, final String prefix,
+            final String uri) {
+        xml.append(prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix).append("=\"").append(uri).append('"');
+        scope.put(prefix, uri);
+    }
+
+    private static void randomElement(final Random random, final StringBuilder xml,
+            final Map<String, String> parentScope, final int depth) {
+        final Map<String, String> scope = new HashMap<>(parentScope);
+        final String prefix = PREFIXES[random.nextInt(PREFIXES.length)];
+        final String name = prefix.isEmpty() ? "E" + depth : prefix + ":E" + depth;
+        xml.append('<').append(name);
+
+        if (prefix.isEmpty()) {
+            if (random.nextInt(4) == 0) {
+                declare(xml, scope, "", List.of("", "urn:d", "urn:d2").get(random.nextInt(3)));
+            }
+        } else if (!scope.containsKey(prefix) || random.nextInt(5) == 0) {
+            declare(xml, scope, prefix, "urn:" + prefix + (random.nextBoolean() ? "" : "b"));
+        }
+        if (random.nextInt(6) == 0) {
+            declare(xml, scope, "p3", "urn:p3");
+        }
+
+        final List<String> attributes = new ArrayList<>(List.of("a", "b", "p1:c", "p2:a", "xml:lang"));
+        Collections.shuffle(attributes, random);
+        for (final String attribute : attributes.subList(0, random.nextInt(4))) {
+            final int colon = attribute.indexOf(':');
+            if (colon > 0) {
+                final String attributePrefix = attribute.substring(0, colon);
+                if (!attributePrefix.equals("xml") && !scope.containsKey(attributePrefix)) {
+                    declare(xml, scope, attributePrefix, "urn:" + attributePrefix);
+                }
+            }
+            xml.append(' ').append(attribute).append("=\"");
+            appendEscaped(xml, "v" + random.nextInt(100) + randomText(random));
+            xml.append('"');
+        }
+        xml.append('>');
+
+        final int children = depth > 4 ? 0 : random.nextInt(5);
+        for (int i = 0; i < children; i++) {
+            switch (random.nextInt(6)) {
+                case 0:
+                case 1:
+                    randomElement(random, xml, scope, depth + 1);
+                    break;
+                case 2:
+                    xml.append("<?pi ").append(random.nextBoolean() ? "data" : "").append("?>");
+                    break;
+                case 3:
+                    xml.append("<!-- comment -->");
+                    break;
+                case 4:
+                    xml.append("<![CDATA[").append(randomText(random).replace("]]>", "")
+                            .replace("\r", "")).append("]]>");
+                    break;
+                default:
+                    appendEscaped(xml, randomText(random));
+            }
+        }
+        xml.append("</").append(name).append('>');
+    }
+
+    private static byte[] randomDocument(final Random random) {
+        final var xml = new StringBuilder();
+        if (random.nextBoolean()) {
+            xml.append("<?before data?><!-- comment -->");
+        }
+        final Map<String, String> scope = new HashMap<>();
+        xml.append("<p0:Root xmlns:p0=\"urn:p0\" ID=\"_root\"");
+        if (random.nextBoolean()) {
+            declare(xml, scope, "", "urn:d");
+        }
+        if (random.nextBoolean()) {
+            xml.append(" xml:lang=\"en\"");
+        }
+        scope.put("p0", "urn:p0");
+        xml.append(">\n");
+        final int children = 1 + random.nextInt(4);
+        for (int i = 0; i < children; i++) {
+            randomElement(random, xml, scope, 1);
+            xml.append('\n');
+        }
+        xml.append("TAMPER</p0:Root>");
+        if (random.nextBoolean()) {
+            xml.append("<?after?>");
+        }
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRandomDocuments() throws Exception {
+        final Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            final Mode mode = Mode.values()[i % Mode.values().length];
+            final boolean emptyReference = (i / Mode.values().length) % 2 == 0;
+            final byte[] signed = sign(randomDocument(random), mode, emptyReference);
+            final String description = "document " + i + " " + mode + (emptyReference ? " empty" : " #ID");
+            Assert.assertTrue(validateDOM(signed), description);
+
+            final var verifier = stream(signed);
+            Assert.assertTrue(verifier.isSigned(), description);
+            verifier.checkSignature();
+
+            final byte[] tampered = new String(signed, StandardCharsets.UTF_8).replace("TAMPER", "TAMPEX")
+                    .getBytes(StandardCharsets.UTF_8);
+            Assert.assertFalse(validateDOM(tampered), description);
+            assertFails(stream(tampered), "digest did not match");
+        }
+    }
+
+    @Test
+    public void testProcessingInstructionsOutsideDocumentElement() throws Exception {
+        final byte[] xml = "<?a b?><Root ID=\"_x\">text</Root><?c?>".getBytes(StandardCharsets.UTF_8);
+        for (final boolean emptyReference : List.of(true, false)) {
+            final byte[] signed = sign(xml, Mode.EXCLUSIVE, emptyReference);
+            Assert.assertTrue(validateDOM(signed));
+            stream(signed).checkSignature();
+
+            // only an empty reference covers the processing instructions outside the document element
+            final byte[] changed = new String(signed, StandardCharsets.UTF_8).replace("<?c?>", "<?d?>")
+                    .getBytes(StandardCharsets.UTF_8);
+            Assert.assertEquals(validateDOM(changed), !emptyReference);
+            if (emptyReference) {
+                assertFails(stream(changed), "digest did not match");
+            } else {
+                stream(changed).checkSignature();
+            }
+        }
+    }
+
+    @Test
+    public void testBadSignatureValueStopsParse() throws Exception {
+        final var xml = new StringBuilder("<Root ID=\"_x\">");
+        for (int i = 0; i < 100; i++) {
+            xml.append("<Child/>");
+        }
+        xml.append("</Root>");
+        final String signed = new String(sign(xml.toString().getBytes(StandardCharsets.UTF_8), Mode.EXCLUSIVE, true),
+                StandardCharsets.UTF_8);
+        final int start = signed.indexOf("SignatureValue>") + "SignatureValue>".length();
+        final char c = signed.charAt(start);
+        final byte[] bad = (signed.substring(0, start) + (c == 'A' ? 'B' : 'A') + signed.substring(start + 1))
+                .getBytes(StandardCharsets.UTF_8);
+
+        assertFails(stream(bad), "signature verification failed");
+
+        final var handler = new CountingHandler();
+        try {
+            stream(bad, true, Set.of(), Set.of(), true, handler);
+            Assert.fail("expected parse to stop");
+        } catch (final SAXException e) {
+            Assert.assertTrue(e.getException() instanceof ValidationException);
+        }
+        // the document element and the signature, but none of the children after it
+        Assert.assertTrue(handler.elements < 20, Integer.toString(handler.elements));
+    }
+
+    @Test
+    public void testBlacklists() throws Exception {
+        final byte[] signed = sign("<Root ID=\"_x\"/>".getBytes(StandardCharsets.UTF_8), Mode.EXCLUSIVE, true);
+        stream(signed).checkSignature();
+        assertFails(stream(signed, false, Set.of(DigestMethod.SHA256), Set.of(), true, new DefaultHandler()),
+                "Digest algorithm " + DigestMethod.SHA256 + " is blacklisted");
+        assertFails(stream(signed, false, Set.of(), Set.of(RSA_SHA256), true, new DefaultHandler()),
+                "Signature algorithm " + RSA_SHA256 + " is blacklisted");
+    }
+
+    @Test
+    public void testDigestAlgorithms() throws Exception {
+        final byte[] xml = "<Root ID=\"_x\">text</Root>".getBytes(StandardCharsets.UTF_8);
+        for (final String digest : List.of(DigestMethod.SHA1, DigestMethod.SHA384, DigestMethod.SHA512)) {
+            stream(sign(xml, Mode.INCLUSIVE, false, digest, 1, null)).checkSignature();
+        }
+    }
+
+    @Test
+    public void testReferences() throws Exception {
+        final byte[] xml = "<Root ID=\"_x\"/>".getBytes(StandardCharsets.UTF_8);
+        assertFails(stream(sign(xml, Mode.EXCLUSIVE, false, DigestMethod.SHA256, 2, null)),
+                "invalid number of References: 2");
+
+        final byte[] empty = sign(xml, Mode.EXCLUSIVE, true);
+        assertFails(stream(empty, false, Set.of(), Set.of(), false, new DefaultHandler()),
+                "empty references are not permitted");
+        stream(sign(xml, Mode.EXCLUSIVE, false), false, Set.of(), Set.of(), false, new DefaultHandler())
+                .checkSignature();
+
+        final byte[] other = new String(sign(xml, Mode.EXCLUSIVE, false), StandardCharsets.UTF_8)
+                .replace("ID=\"_x\"", "ID=\"_y\"").getBytes(StandardCharsets.UTF_8);
+        assertFails(stream(other), "resolved to a node other than the document element");
+    }
+
+    @Test
+    public void testTransforms() throws Exception {
+        final byte[] xml = "<Root ID=\"_x\"/>".getBytes(StandardCharsets.UTF_8);
+        final String enveloped = Transform.ENVELOPED;
+        final String exclusive = CanonicalizationMethod.EXCLUSIVE;
+        final String inclusive = CanonicalizationMethod.INCLUSIVE;
+
+        assertFails(stream(sign(xml, Mode.EXCLUSIVE, false, DigestMethod.SHA256, 1,
+                List.of(enveloped, inclusive))), "Saw invalid signature transform");
+        assertFails(stream(sign(xml, Mode.EXCLUSIVE, false, DigestMethod.SHA256, 1,
+                List.of(exclusive))), "missing the required Enveloped signature transform");
+        assertFails(stream(sign(xml, Mode.EXCLUSIVE, false, DigestMethod.SHA256, 1,
+                List.of(enveloped, exclusive, exclusive))), "Invalid number of Transforms");
+        assertFails(stream(sign(xml, Mode.EXCLUSIVE, false, DigestMethod.SHA256, 1,
+                List.of(exclusive, enveloped))), "preceding the Enveloped signature transform");
+        final byte[] envelopedOnly = sign(xml, Mode.EXCLUSIVE, false, DigestMethod.SHA256, 1, List.of(enveloped));
+        Assert.assertTrue(validateDOM(envelopedOnly));
+        stream(envelopedOnly).checkSignature();
+    }
+
+    @Test
+    public void testSignaturePlacement() throws Exception {
+        final byte[] unsigned = "<Root ID=\"_x\"><a/></Root>".getBytes(StandardCharsets.UTF_8);
+        final var verifier = stream(unsigned);
+        Assert.assertFalse(verifier.isSigned());
+        assertFails(verifier, "not signed");
+
+        final String signed = new String(sign(unsigned, Mode.EXCLUSIVE, false), StandardCharsets.UTF_8);
+        final int start = signed.indexOf("<ds:Signature");
+        final int end = signed.indexOf("</ds:Signature>") + "</ds:Signature>".length();
+        final String signature = signed.substring(start, end);
+
+        // signature after another child element
+        final String late = signed.substring(0, start) + signed.substring(end).replace("<a/>", "<a/>" + signature);
+        Assert.assertTrue(validateDOM(late.getBytes(StandardCharsets.UTF_8)));
+        assertFails(stream(late.getBytes(StandardCharsets.UTF_8)), "must be the first child element");
+
+        // two signatures
+        final String twice = signed.substring(0, end) + signature + signed.substring(end);
+        assertFails(stream(twice.getBytes(StandardCharsets.UTF_8)), "more than one signature");
+
+        // signatures deeper in the document are signed content, not the document's signature
+        final String nested = signed.replace("<a/>", "<a>" + signature.replace("xmlns:ds", "xmlns:dx")
+                .replace("ds:", "dx:") + "</a>");
+        Assert.assertTrue(stream(nested.getBytes(StandardCharsets.UTF_8)).isSigned());
+        assertFails(stream(nested.getBytes(StandardCharsets.UTF_8)), "digest did not match");
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.dom.BaseDOMTest;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+public class UTF8DocumentWriterTest extends BaseDOMTest {
+
+    /** Characters used in generated content, chosen to exercise escaping. */
+    private static final String[] CHARACTERS = {
+        "a", "b", " ", "&", "<", ">", "\"", "'", "\t", "\n", "\r", "\u0001", "\u001f", "\u007f", "\u0085",
+        "\u00e9", "\u2028", "\uffff", "\ud83d\ude00", "]]>", "-", "?",
+    };
+
+    /** Namespace prefixes used in generated documents. */
+    private static final String[] PREFIXES = {"", "p", "q"};
+
+    /** Namespace names used in generated documents. */
+    private static final String[] URIS = {"urn:example:one", "urn:example:two", ""};
+
+    private final UTF8DocumentWriter writer = new UTF8DocumentWriter();
+
+    public UTF8DocumentWriterTest() {
+        super(UTF8DocumentWriter.class);
+    }
+
+    private static byte[] transform(final Document document) throws Exception {
+        final var output = new ByteArrayOutputStream();
+        final Transformer serializer = TransformerFactory.newInstance().newTransformer();
+        serializer.setOutputProperty("encoding", "UTF-8");
+        serializer.transform(new DOMSource(document), new StreamResult(output));
+        return output.toByteArray();
+    }
+
+    private Document parse(final String xml) throws XMLParserException {
+        return getParserPool().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Asserts that the writer serializes a document exactly as the identity transform does.
+     *
+     * @param document the document to serialize
+     * @throws Exception if something goes wrong
+     */
+    private void assertWritten(final Document document) throws Exception {
+        final byte[] written = writer.write(document);
+        Assert.assertNotNull(written, "document not written");
+        Assert.assertEquals(new String(written, StandardCharsets.UTF_8),
+                new String(transform(document), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSimpleDocuments() throws Exception {
+        assertWritten(parse("<a/>"));
+        assertWritten(parse("<a x='1' b='2' a='3'/>"));
+        assertWritten(parse("<!--c--><?pi x?><a/><!--d-->"));
+        assertWritten(parse("<!DOCTYPE a><a/>"));
+        assertWritten(parse("<a>\n<b/>\n<c></c></a>\n"));
+        assertWritten(parse("<a xml:lang='en'><!-- a - b --><?p  d ?><?q?></a>"));
+    }
+
+    @Test
+    public void testEscaping() throws Exception {
+        assertWritten(parse("<a>t&amp;&lt;&gt;\"'&#13;&#10;\t&#x7f;&#x85;&#x9f;&#xa0;&#x2028;&#x1F600;&#xFFFD;</a>"));
+        assertWritten(parse("<a x='&amp;&lt;&gt;&quot;&apos;&#13;&#10;&#9;&#x7f;&#x85;&#x2028;&#x1F600;'/>"));
+        assertWritten(parse("<a><![CDATA[x\ny\r<&\u00e9\u2028]]>y<![CDATA[a]]]]><![CDATA[>b]]></a>"));
+
+        final Document document = parse("<a/>");
+        final Element root = document.getDocumentElement();
+        root.setAttributeNS(null, "x", "a\u0001b\u001fc\u0000d\ufffe\uffff");
+        root.appendChild(document.createTextNode("t\n\r\u0000\ufffe\uffff"));
+        root.appendChild(document.createTextNode(""));
+        root.appendChild(document.createComment("m\nn\ro\u0001\u0085\ud83d\ude00"));
+        root.appendChild(document.createProcessingInstruction("p", "q\nr"));
+        assertWritten(document);
+    }
+
+    @Test
+    public void testEmptyText() throws Exception {
+        final Document document = parse("<a/>");
+        document.getDocumentElement().appendChild(document.createTextNode(""));
+        assertWritten(document);
+    }
+
+    @Test
+    public void testNamespaces() throws Exception {
+        assertWritten(parse("<a xmlns='u' xmlns:p='v'><p:b p:c='1' xmlns:p='v'/><c xmlns=''/><p:d xmlns:p='w'/></a>"));
+        assertWritten(parse("<a xmlns:p='v' xmlns:q='v'><q:b/></a>"));
+        assertWritten(parse("<a b='1' xmlns:z='u' z:c='2' zz='3' xmlns='w'/>"));
+        assertWritten(parse("<a xmlns='u'><b xmlns='u'/><c xmlns='x'><d xmlns='u'/></c></a>"));
+        assertWritten(parse("<p:a xmlns:p='u'><p:b xmlns:p='v'><p:c xmlns:p='u'/></p:b><p:d/></p:a>"));
+        assertWritten(parse("<a xmlns=''><b xmlns:xml='" + XMLConstants.XML_NS_URI + "' xml:lang='en'/></a>"));
+        assertWritten(parse("<x:html xmlns:x='u'/>"));
+        // the document element's own declaration is written first, but only there
+        assertWritten(parse("<m:a xmlns:d='u' xmlns:m='v' xmlns='w'><m:b xmlns:d='u2' xmlns:m='v2'/></m:a>"));
+    }
+
+    @Test
+    public void testDeclaration() throws Exception {
+        final Document document = parse("<a/>");
+        document.setXmlStandalone(true);
+        assertWritten(document);
+    }
+
+    @Test
+    public void testNotWritten() throws Exception {
+        // each of these is serialized in some unusual way by the identity transform
+        Assert.assertNull(writer.write(parse("<html/>")));
+        Assert.assertNull(writer.write(parse("<?xml version='1.1'?><a/>")));
+        Assert.assertNull(writer.write(parse("<a xmlnsfoo='1'/>")));
+
+        Document document = parse("<a/>");
+        document.getDocumentElement().setAttributeNS("urn:x", "p:q", "1");
+        Assert.assertNull(writer.write(document));
+
+        document = parse("<a xmlns='u'/>");
+        document.getDocumentElement().appendChild(document.createElementNS(null, "s"));
+        Assert.assertNull(writer.write(document));
+
+        document = parse("<a/>");
+        document.getDocumentElement().appendChild(document.createElement("s"));
+        Assert.assertNull(writer.write(document));
+
+        document = parse("<a/>");
+        document.getDocumentElement().appendChild(document.createComment("a--b"));
+        Assert.assertNull(writer.write(document));
+
+        document = parse("<a/>");
+        document.getDocumentElement().appendChild(document.createCDATASection("x]]>y"));
+        Assert.assertNull(writer.write(document));
+
+        document = parse("<a/>");
+        document.getDocumentElement().appendChild(document.createTextNode("x\ud800y"));
+        Assert.assertNull(writer.write(document));
+
+        // the writer is still usable afterwards
+        assertWritten(parse("<a>x</a>"));
+    }
+
+    @Test
+    public void testLargeDocument() throws Exception {
+        final var xml = new StringBuilder("<a>");
+        for (int i = 0; i < 100_000; i++) {
+            xml.append("<b c='").append(i).append("'>\u00e9\ud83d\ude00&amp;</b>");
+        }
+        xml.append("</a>");
+        assertWritten(parse(xml.toString()));
+        // the large buffer is not retained
+        assertWritten(parse("<a/>"));
+    }
+
+    @Test
+    public void testResources() throws Exception {
+        // every XML test resource, found relative to one which only exists among them
+        final Path root = Path.of(UTF8DocumentWriterTest.class
+                .getResource("/net/shibboleth/metadata/BaseTest-bytes.bin").toURI()).getParent();
+        final List<Path> paths;
+        try (var files = Files.walk(root)) {
+            paths = files.filter(p -> p.toString().endsWith(".xml")).collect(Collectors.toList());
+        }
+        int written = 0;
+        for (final Path path : paths) {
+            final Document document;
+            try (InputStream in = Files.newInputStream(path)) {
+                document = getParserPool().parse(in);
+            } catch (final XMLParserException e) {
+                continue;
+            }
+            final byte[] bytes = writer.write(document);
+            if (bytes != null) {
+                Assert.assertEquals(bytes, transform(document), path.toString());
+                written++;
+            }
+        }
+        Assert.assertTrue(written > paths.size() / 2, written + " of " + paths.size());
+    }
+
+    @Test
+    public void testGeneratedDocuments() throws Exception {
+        final Random random = new Random(42);
+        int written = 0;
+        for (int i = 0; i < 500; i++) {
+            final Document document = parse("<root/>");
+            final List<String> scope = new ArrayList<>();
+            final Element root = element(document, random, scope);
+            document.replaceChild(root, document.getDocumentElement());
+            populate(document, root, random, 0, scope);
+            if (random.nextInt(4) == 0) {
+                document.insertBefore(document.createComment(content(random)), root);
+            }
+            final byte[] bytes = writer.write(document);
+            if (bytes != null) {
+                Assert.assertEquals(new String(bytes, StandardCharsets.UTF_8),
+                        new String(transform(document), StandardCharsets.UTF_8));
+                written++;
+            }
+        }
+        Assert.assertTrue(written > 100, Integer.toString(written));
+    }
+
+    /**
+     * Generates random content for an element.
+     *
+     * @param document the document
+     * @param parent the element
+     * @param random source of randomness
+     * @param depth depth of the element
+     * @param scope prefixes and namespace names declared on the element's ancestors, in pairs
+     */
+    private void populate(final Document document, final Element parent, final Random random, final int depth,
+            final List<String> scope) {
+        final int children = depth > 4 ? 0 : random.nextInt(5);
+        for (int c = 0; c < children; c++) {
+            switch (random.nextInt(7)) {
+                case 0:
+                case 1:
+                    final int mark = scope.size();
+                    final Element child = element(document, random, scope);
+                    parent.appendChild(child);
+                    populate(document, child, random, depth + 1, scope);
+                    scope.subList(mark, scope.size()).clear();
+                    break;
+
+                case 2:
+                    parent.appendChild(document.createTextNode(content(random)));
+                    break;
+
+                case 3:
+                    parent.appendChild(document.createCDATASection(content(random)));
+                    break;
+
+                case 4:
+                    parent.appendChild(document.createComment(content(random)));
+                    break;
+
+                case 5:
+                    parent.appendChild(document.createProcessingInstruction("pi", content(random)));
+                    break;
+
+                default:
+                    parent.setAttributeNS(null, "a" + random.nextInt(3), content(random));
+            }
+        }
+    }
+
+    /**
+     * Generates an element, usually declaring its own namespace if that is not already in scope, and
+     * sometimes declaring other namespaces.
+     *
+     * @param document the document
+     * @param random source of randomness
+     * @param scope prefixes and namespace names in scope, in pairs, to which declarations are added
+     * @return the element
+     */
+    private Element element(final Document document, final Random random, final List<String> scope) {
+        final String prefix = PREFIXES[random.nextInt(PREFIXES.length)];
+        final String uri = prefix.isEmpty() ? URIS[random.nextInt(URIS.length)] : URIS[random.nextInt(2)];
+        final Element element = document.createElementNS(uri.isEmpty() ? null : uri,
+                prefix.isEmpty() ? "e" : prefix + ":e");
+        if (random.nextInt(10) > 0 && (!isDeclared(scope, prefix, uri) || random.nextBoolean())) {
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                    prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, uri);
+            scope.add(prefix);
+            scope.add(uri);
+        }
+        for (final String other : PREFIXES) {
+            if (!other.equals(prefix) && random.nextInt(4) == 0) {
+                final String otherURI = URIS[random.nextInt(other.isEmpty() ? URIS.length : 2)];
+                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                        other.isEmpty() ? "xmlns" : "xmlns:" + other, otherURI);
+                scope.add(other);
+                scope.add(otherURI);
+            }
+        }
+        if (!prefix.isEmpty() && random.nextBoolean()) {
+            element.setAttributeNS(uri, prefix + ":at", "v");
+        }
+        return element;
+    }
+
+    private static boolean isDeclared(final List<String> scope, final String prefix, final String uri) {
+        for (int i = scope.size() - 2; i >= 0; i -= 2) {
+            if (scope.get(i).equals(prefix)) {
+                return scope.get(i + 1).equals(uri);
+            }
+        }
+        return prefix.isEmpty() && uri.isEmpty();
+    }
+
+    private static String content(final Random random) {
+        final var content = new StringBuilder();
+        final int length = random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            content.append(CHARACTERS[random.nextInt(CHARACTERS.length)]);
+        }
+        return content.toString();
+    }
+}
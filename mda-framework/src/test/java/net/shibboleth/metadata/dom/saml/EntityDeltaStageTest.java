@@ -0,0 +1,287 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.xml.namespace.QName;
+
+import org.cryptacular.util.CodecUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.BaseDOMTest;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.SimplePipeline;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.xml.ElementSupport;
+
+/** {@link EntityDeltaStage} unit test. */
+public class EntityDeltaStageTest extends BaseDOMTest {
+
+    /** Stage recording the delta documents it is given. */
+    private static class CapturingStage extends AbstractStage<Element> {
+
+        /** Delta documents seen so far. */
+        final List<Element> deltas = new ArrayList<>();
+
+        @Override
+        protected void doExecute(@Nonnull final List<Item<Element>> items) throws StageProcessingException {
+            Assert.assertEquals(items.size(), 1);
+            deltas.add(items.get(0).unwrap());
+        }
+    }
+
+    private File directory;
+
+    private File manifest;
+
+    private CapturingStage capture;
+
+    /** Constructor sets class under test. */
+    public EntityDeltaStageTest() {
+        super(EntityDeltaStage.class);
+    }
+
+    @BeforeMethod
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("delta").toFile();
+        manifest = new File(directory, "manifest.txt");
+        capture = new CapturingStage();
+        capture.setId("capture");
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private EntityDeltaStage makeStage() throws ComponentInitializationException {
+        final var pipeline = new SimplePipeline<Element>();
+        pipeline.setId("deltaPipeline");
+        pipeline.setStages(List.of(capture));
+
+        final var stage = new EntityDeltaStage();
+        stage.setId("test");
+        stage.setManifestFile(manifest);
+        stage.setDeltaPipeline(pipeline);
+        stage.initialize();
+        return stage;
+    }
+
+    private List<Item<Element>> readEntities() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        for (final Element entity : ElementSupport.getChildElements(readXMLData("entities.xml"))) {
+            final Item<Element> item = new DOMElementItem(entity);
+            item.getItemMetadata().put(new ItemId(entity.getAttributeNS(null, "entityID")));
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static List<String> childIds(@Nonnull final Element delta, @Nonnull final String section) {
+        final List<String> ids = new ArrayList<>();
+        final Element parent = ElementSupport.getFirstChildElement(delta,
+                new QName(EntityDeltaStage.DELTA_NS, section));
+        for (final Element child : ElementSupport.getChildElements(parent)) {
+            ids.add(child.hasAttributeNS(null, "entityID") ?
+                    child.getAttributeNS(null, "entityID") : child.getAttributeNS(null, "id"));
+        }
+        return ids;
+    }
+
+    @Test
+    public void testFirstRunAddsEverything() throws Exception {
+        final var stage = makeStage();
+        final List<Item<Element>> items = readEntities();
+        stage.execute(items);
+        Assert.assertEquals(items.size(), 3);
+
+        Assert.assertEquals(capture.deltas.size(), 1);
+        final Element delta = capture.deltas.get(0);
+        Assert.assertEquals(delta.getLocalName(), "EntitiesDelta");
+        Assert.assertFalse(delta.hasAttributeNS(null, "baseManifestDigest"));
+        Assert.assertEquals(childIds(delta, "Added"), List.of("https://one.example.org/entity",
+                "https://three.example.org/entity", "https://two.example.org/entity"));
+        Assert.assertTrue(childIds(delta, "Changed").isEmpty());
+        Assert.assertTrue(childIds(delta, "Removed").isEmpty());
+
+        final List<String> lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(lines.size(), 3);
+        Assert.assertTrue(lines.get(0).endsWith(" https://one.example.org/entity"));
+        Assert.assertEquals(lines.get(0).indexOf(' '), 64);
+
+        // the manifest should get the same permissions as any other new file
+        final File plain = new File(directory, "plain");
+        Assert.assertTrue(plain.createNewFile());
+        if (manifest.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Assert.assertEquals(Files.getPosixFilePermissions(manifest.toPath()),
+                    Files.getPosixFilePermissions(plain.toPath()));
+        }
+    }
+
+    @Test
+    public void testSecondRun() throws Exception {
+        final var stage = makeStage();
+        stage.execute(readEntities());
+        final String firstDigest = capture.deltas.get(0).getAttributeNS(null, "manifestDigest");
+
+        // Change one entity, remove another, add a new one
+        final List<Item<Element>> items = readEntities();
+        items.get(0).unwrap().setAttributeNS(null, "validUntil", "2030-01-01T00:00:00Z");
+        final Item<Element> removed = items.remove(1);
+        final Item<Element> added = removed.copy();
+        added.unwrap().setAttributeNS(null, "entityID", "https://four.example.org/entity");
+        added.getItemMetadata().clear();
+        added.getItemMetadata().put(new ItemId("https://four.example.org/entity"));
+        items.add(added);
+        stage.execute(items);
+
+        final Element delta = capture.deltas.get(1);
+        Assert.assertEquals(delta.getAttributeNS(null, "baseManifestDigest"), firstDigest);
+        Assert.assertNotEquals(delta.getAttributeNS(null, "manifestDigest"), firstDigest);
+        Assert.assertEquals(childIds(delta, "Added"), List.of("https://four.example.org/entity"));
+        Assert.assertEquals(childIds(delta, "Changed"), List.of("https://one.example.org/entity"));
+        Assert.assertEquals(childIds(delta, "Removed"), List.of("https://two.example.org/entity"));
+
+        final Element changed = ElementSupport.getFirstChildElement(ElementSupport.getFirstChildElement(delta,
+                new QName(EntityDeltaStage.DELTA_NS, "Changed")));
+        Assert.assertEquals(changed.getAttributeNS(null, "validUntil"), "2030-01-01T00:00:00Z");
+
+        // Nothing changed since the last run
+        stage.execute(items);
+        final Element empty = capture.deltas.get(2);
+        Assert.assertEquals(empty.getAttributeNS(null, "baseManifestDigest"),
+                delta.getAttributeNS(null, "manifestDigest"));
+        Assert.assertEquals(empty.getAttributeNS(null, "manifestDigest"),
+                delta.getAttributeNS(null, "manifestDigest"));
+        Assert.assertTrue(childIds(empty, "Added").isEmpty());
+        Assert.assertTrue(childIds(empty, "Changed").isEmpty());
+        Assert.assertTrue(childIds(empty, "Removed").isEmpty());
+    }
+
+    @Test
+    public void testFailedDeltaPipelineKeepsManifest() throws Exception {
+        final var stage = makeStage();
+        stage.execute(readEntities());
+        final byte[] before = Files.readAllBytes(manifest.toPath());
+
+        final var failing = new AbstractStage<Element>() {
+            @Override
+            protected void doExecute(@Nonnull final List<Item<Element>> items) throws StageProcessingException {
+                throw new StageProcessingException("failed");
+            }
+        };
+        failing.setId("failing");
+        final var pipeline = new SimplePipeline<Element>();
+        pipeline.setId("failingPipeline");
+        pipeline.setStages(List.of(failing));
+        final var failingStage = new EntityDeltaStage();
+        failingStage.setId("failingStage");
+        failingStage.setManifestFile(manifest);
+        failingStage.setDeltaPipeline(pipeline);
+        failingStage.initialize();
+
+        final List<Item<Element>> items = readEntities();
+        items.remove(0);
+        try {
+            failingStage.execute(items);
+            Assert.fail("expected failure");
+        } catch (final StageProcessingException e) {
+            // expected
+        }
+        Assert.assertEquals(Files.readAllBytes(manifest.toPath()), before);
+    }
+
+    @Test
+    public void testItemsWithoutIdIgnored() throws Exception {
+        final var stage = makeStage();
+        final List<Item<Element>> items = readEntities();
+        items.get(0).getItemMetadata().clear();
+        stage.execute(items);
+        Assert.assertEquals(childIds(capture.deltas.get(0), "Added").size(), 2);
+    }
+
+    @Test
+    public void testLineBreakInIdentifierIgnored() throws Exception {
+        final var stage = makeStage();
+        final List<Item<Element>> items = readEntities();
+        items.get(0).getItemMetadata().clear();
+        items.get(0).getItemMetadata().put(new ItemId("https://one.example.org/entity\n0000 forged"));
+        stage.execute(items);
+        Assert.assertEquals(childIds(capture.deltas.get(0), "Added").size(), 2);
+        Assert.assertEquals(Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8).size(), 2);
+
+        // the manifest still describes exactly the entities recorded
+        stage.execute(items);
+        final Element delta = capture.deltas.get(1);
+        Assert.assertTrue(childIds(delta, "Added").isEmpty());
+        Assert.assertTrue(childIds(delta, "Removed").isEmpty());
+    }
+
+    @Test
+    public void testBaseManifestDigestOfBytesRead() throws Exception {
+        final var stage = makeStage();
+        stage.execute(readEntities());
+
+        // equivalent content, but different bytes from those the stage wrote
+        final String text = Files.readString(manifest.toPath(), StandardCharsets.UTF_8);
+        final byte[] rewritten = text.replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8);
+        Files.write(manifest.toPath(), rewritten);
+
+        stage.execute(readEntities());
+        final Element delta = capture.deltas.get(1);
+        Assert.assertEquals(delta.getAttributeNS(null, "baseManifestDigest"),
+                CodecUtil.hex(MessageDigest.getInstance(stage.getDigestAlgorithm()).digest(rewritten)));
+        Assert.assertTrue(childIds(delta, "Changed").isEmpty());
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoManifestFile() throws Exception {
+        final var stage = new EntityDeltaStage();
+        stage.setId("test");
+        stage.setDeltaPipeline(new SimplePipeline<>());
+        stage.initialize();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testBadDigestAlgorithm() throws Exception {
+        final var stage = new EntityDeltaStage();
+        stage.setId("test");
+        stage.setManifestFile(manifest);
+        stage.setDeltaPipeline(new SimplePipeline<>());
+        stage.setDigestAlgorithm("no-such-algorithm");
+        stage.initialize();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+
+/**
+ * Benchmark measuring the throughput of {@link MDQueryResponderStage} under load from a local client.
+ *
+ * A number of client threads request randomly chosen entities for a fixed period, first unconditionally
+ * and then with <code>If-None-Match</code>, as a caching client would.
+ *
+ * This is not a unit test, and is not run as part of the build. Run it from the IDE
+ * or from the command line with the test classpath.
+ */
+public final class MDQueryResponderBenchmark {
+
+    /** Number of entities served. */
+    private static final int ENTITY_COUNT = 10_000;
+
+    /** Number of concurrent client threads. */
+    private static final int CLIENT_THREADS = 16;
+
+    /** Length of each timed run, in milliseconds. */
+    private static final long RUN_MILLIS = 10_000;
+
+    /** Constructor. */
+    private MDQueryResponderBenchmark() {
+    }
+
+    /**
+     * Build a synthetic entity.
+     *
+     * @param parserPool pool used to parse the entity
+     * @param i the entity's number
+     * @return the entity
+     * @throws Exception if something goes wrong
+     */
+    private static Item<Element> makeEntity(final BasicParserPool parserPool, final int i) throws Exception {
+        final String entityID = "https://sp" + i + ".example.org/shibboleth";
+        final String xml = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\"" +
+                " entityID=\"" + entityID + "\" cacheDuration=\"PT6H\">" +
+                "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+                "<md:AssertionConsumerService index=\"1\"" +
+                " Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\"" +
+                " Location=\"https://sp" + i + ".example.org/Shibboleth.sso/SAML2/POST\"/>" +
+                "</md:SPSSODescriptor></md:EntityDescriptor>";
+        final var item = new DOMElementItem(
+                parserPool.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+        item.getItemMetadata().put(new ItemId(entityID));
+        return item;
+    }
+
+    /**
+     * Run clients against the server for a fixed period.
+     *
+     * @param name name of the run
+     * @param uris the URIs to request
+     * @param etags entity tags to send with each request, or <code>null</code>
+     * @throws Exception if something goes wrong
+     */
+    private static void run(final String name, final List<URI> uris, final List<String> etags) throws Exception {
+        final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        final ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+        final long end = System.currentTimeMillis() + RUN_MILLIS;
+        final List<Future<Long>> counts = new ArrayList<>();
+        for (int t = 0; t < CLIENT_THREADS; t++) {
+            counts.add(clients.submit(() -> {
+                long count = 0;
+                while (System.currentTimeMillis() < end) {
+                    final int i = ThreadLocalRandom.current().nextInt(uris.size());
+                    final var builder = HttpRequest.newBuilder(uris.get(i));
+                    if (etags != null) {
+                        builder.header("If-None-Match", etags.get(i));
+                    }
+                    client.send(builder.build(), HttpResponse.BodyHandlers.discarding());
+                    count++;
+                }
+                return count;
+            }));
+        }
+        long total = 0;
+        for (final Future<Long> count : counts) {
+            total += count.get();
+        }
+        clients.shutdown();
+        System.out.printf("%-20s %10.0f requests/s%n", name, total * 1000.0 / RUN_MILLIS);
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param args command-line arguments (ignored)
+     * @throws Exception if something goes wrong
+     */
+    public static void main(final String[] args) throws Exception {
+        // as recommended for deployments, disable Nagle's algorithm in the JDK's HTTP server
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        final var parserPool = new BasicParserPool();
+        parserPool.initialize();
+
+        final List<Item<Element>> items = new ArrayList<>();
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            items.add(makeEntity(parserPool, i));
+        }
+
+        final var stage = new MDQueryResponderStage();
+        stage.setId("benchmark");
+        stage.initialize();
+        final long start = System.nanoTime();
+        stage.execute(items);
+        System.out.printf("indexed %d entities in %.1f ms%n", ENTITY_COUNT, (System.nanoTime() - start) / 1e6);
+
+        final List<URI> uris = new ArrayList<>();
+        final List<String> etags = new ArrayList<>();
+        final HttpClient client = HttpClient.newHttpClient();
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            final URI uri = URI.create("http://localhost:" + stage.getPort() + "/entities/" +
+                    URLEncoder.encode("https://sp" + i + ".example.org/shibboleth", StandardCharsets.UTF_8));
+            uris.add(uri);
+            etags.add(client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.discarding())
+                    .headers().firstValue("ETag").orElseThrow());
+        }
+
+        run("unconditional", uris, null);
+        run("conditional", uris, etags);
+        stage.destroy();
+    }
+}
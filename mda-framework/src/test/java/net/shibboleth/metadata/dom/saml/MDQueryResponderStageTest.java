@@ -0,0 +1,195 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cryptacular.util.CodecUtil;
+import org.cryptacular.util.HashUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.BaseDOMTest;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
+
+public class MDQueryResponderStageTest extends BaseDOMTest {
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    private MDQueryResponderStage stage;
+
+    /** Constructor. */
+    public MDQueryResponderStageTest() {
+        super(MDQueryResponderStage.class);
+    }
+
+    @AfterMethod
+    public void stopServer() {
+        if (stage != null) {
+            stage.destroy();
+            stage = null;
+        }
+    }
+
+    private Item<Element> makeEntity(final String entityID, final String attributes) throws Exception {
+        final String xml = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"" +
+                entityID + "\"" + attributes + "/>";
+        final var item = new DOMElementItem(
+                getParserPool().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+        item.getItemMetadata().put(new ItemId(entityID));
+        return item;
+    }
+
+    private MDQueryResponderStage startStage() throws Exception {
+        stage = new MDQueryResponderStage();
+        stage.setId("mdq");
+        stage.setServerThreads(2);
+        stage.setDefaultCacheDuration(Duration.ofHours(1));
+        stage.initialize();
+        return stage;
+    }
+
+    private HttpResponse<String> get(final String id, final String... headers) throws Exception {
+        final var builder = HttpRequest.newBuilder(URI.create("http://localhost:" + stage.getPort() +
+                "/entities/" + URLEncoder.encode(id, StandardCharsets.UTF_8)));
+        if (headers.length > 0) {
+            builder.headers(headers);
+        }
+        return client.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    public void testServe() throws Exception {
+        startStage();
+        Assert.assertEquals(get("https://idp.example.org/").statusCode(), 503);
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(makeEntity("https://idp.example.org/", " cacheDuration=\"PT10M\""));
+        items.add(makeEntity("https://sp.example.org/", ""));
+        stage.execute(items);
+        Assert.assertEquals(items.size(), 2);
+        Assert.assertEquals(stage.getIndexSize(), 4);
+
+        final var response = get("https://idp.example.org/");
+        Assert.assertEquals(response.statusCode(), 200);
+        Assert.assertEquals(response.headers().firstValue("Content-Type").orElseThrow(),
+                MDQueryResponderStage.CONTENT_TYPE);
+        Assert.assertEquals(response.headers().firstValue("Cache-Control").orElseThrow(), "max-age=600");
+        Assert.assertTrue(response.body().contains("https://idp.example.org/"), response.body());
+
+        final String sha1 = "{sha1}" + CodecUtil.hex(HashUtil.sha1("https://sp.example.org/".getBytes()));
+        final var bySha1 = get(sha1);
+        Assert.assertEquals(bySha1.statusCode(), 200);
+        Assert.assertEquals(bySha1.headers().firstValue("Cache-Control").orElseThrow(), "max-age=3600");
+        Assert.assertTrue(bySha1.body().contains("https://sp.example.org/"), bySha1.body());
+
+        Assert.assertEquals(get("https://unknown.example.org/").statusCode(), 404);
+    }
+
+    @Test
+    public void testCacheDurations() throws Exception {
+        startStage();
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(makeEntity("https://month.example.org/", " cacheDuration=\"P1M\""));
+        items.add(makeEntity("https://invalid.example.org/", " cacheDuration=\"ten minutes\""));
+        stage.execute(items);
+
+        // calendar durations are accepted, as they are elsewhere in the aggregator
+        final String monthly = get("https://month.example.org/").headers().firstValue("Cache-Control").orElseThrow();
+        final long maxAge = Long.parseLong(monthly.substring("max-age=".length()));
+        Assert.assertTrue(maxAge >= 28 * 86400 && maxAge <= 31 * 86400, monthly);
+
+        Assert.assertEquals(get("https://invalid.example.org/").headers().firstValue("Cache-Control").orElseThrow(),
+                "max-age=3600");
+    }
+
+    @Test
+    public void testConditional() throws Exception {
+        startStage();
+        stage.execute(new ArrayList<>(List.of(makeEntity("https://idp.example.org/", ""))));
+
+        final String etag = get("https://idp.example.org/").headers().firstValue("ETag").orElseThrow();
+        final var notModified = get("https://idp.example.org/", "If-None-Match", etag);
+        Assert.assertEquals(notModified.statusCode(), 304);
+        Assert.assertEquals(notModified.headers().firstValue("ETag").orElseThrow(), etag);
+        Assert.assertEquals(get("https://idp.example.org/", "If-None-Match", "\"other\"").statusCode(), 200);
+    }
+
+    @Test
+    public void testSwap() throws Exception {
+        startStage();
+        stage.execute(new ArrayList<>(List.of(makeEntity("https://idp.example.org/", ""))));
+        final String etag = get("https://idp.example.org/").headers().firstValue("ETag").orElseThrow();
+
+        stage.execute(new ArrayList<>(List.of(makeEntity("https://idp.example.org/", " validUntil=\"2030-01-01Z\""),
+                makeEntity("https://new.example.org/", ""))));
+        final var changed = get("https://idp.example.org/");
+        Assert.assertNotEquals(changed.headers().firstValue("ETag").orElseThrow(), etag);
+        Assert.assertTrue(changed.body().contains("validUntil"), changed.body());
+        Assert.assertEquals(get("https://new.example.org/").statusCode(), 200);
+
+        stage.execute(new ArrayList<>());
+        Assert.assertEquals(get("https://idp.example.org/").statusCode(), 404);
+    }
+
+    @Test
+    public void testMethods() throws Exception {
+        startStage();
+        stage.execute(new ArrayList<>(List.of(makeEntity("https://idp.example.org/", ""))));
+        final URI uri = URI.create("http://localhost:" + stage.getPort() + "/entities/" +
+                URLEncoder.encode("https://idp.example.org/", StandardCharsets.UTF_8));
+
+        final var post = client.send(HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(post.statusCode(), 405);
+
+        // last, as some JDK clients fail to reuse a connection for a POST after a HEAD
+        final var head = client.send(HttpRequest.newBuilder(uri).method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build(), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(head.statusCode(), 200);
+        Assert.assertEquals(head.headers().firstValue("Content-Length").orElseThrow(),
+                Integer.toString(get("https://idp.example.org/").body().length()));
+        Assert.assertTrue(head.body().isEmpty());
+    }
+
+    @Test
+    public void testBasePath() {
+        final var s = new MDQueryResponderStage();
+        s.setBasePath("mdq");
+        Assert.assertEquals(s.getBasePath(), "/mdq/");
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testBadPort() {
+        new MDQueryResponderStage().setPort(65536);
+    }
+}
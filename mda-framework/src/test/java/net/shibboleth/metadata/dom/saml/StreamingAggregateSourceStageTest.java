@@ -0,0 +1,271 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.springframework.core.io.ByteArrayResource;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.dom.BaseDOMTest;
+import net.shibboleth.metadata.dom.StringDeduplicator;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+/** {@link StreamingAggregateSourceStage} unit test. */
+public class StreamingAggregateSourceStageTest extends BaseDOMTest {
+
+    private static final String AGGREGATE =
+            "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\"" +
+            " xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\" ID=\"_aggregate\" Name=\"test\">\n" +
+            "  <md:Extensions><mdui:Ignored/></md:Extensions>\n" +
+            "  <md:EntityDescriptor entityID=\"https://one.example.org\">\n" +
+            "    <md:Extensions><mdui:UIInfo><mdui:DisplayName xml:lang=\"en\">One &amp; only</mdui:DisplayName>" +
+            "</mdui:UIInfo></md:Extensions>\n" +
+            "  </md:EntityDescriptor>\n" +
+            "  <md:EntitiesDescriptor Name=\"nested\">\n" +
+            "    <md:EntityDescriptor entityID=\"https://two.example.org\"/>\n" +
+            "  </md:EntitiesDescriptor>\n" +
+            "  <md:EntityDescriptor entityID=\"https://three.example.org\"/>\n" +
+            "</md:EntitiesDescriptor>";
+
+    private KeyPair keys;
+
+    private byte[] signedAggregate;
+
+    /** Constructor sets class under test. */
+    public StreamingAggregateSourceStageTest() {
+        super(StreamingAggregateSourceStage.class);
+    }
+
+    @BeforeClass
+    public void generateKeys() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keys = generator.generateKeyPair();
+    }
+
+    private Document parse(final byte[] xml) throws Exception {
+        return getParserPool().parse(new ByteArrayInputStream(xml));
+    }
+
+    /**
+     * Returns the test aggregate, signed with an enveloped signature.
+     */
+    private byte[] signedAggregate() throws Exception {
+        if (signedAggregate == null) {
+            final Document doc = parse(AGGREGATE.getBytes(StandardCharsets.UTF_8));
+            final Element root = doc.getDocumentElement();
+            final XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+            final List<Transform> transforms = List.of(
+                    factory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null),
+                    factory.newTransform(CanonicalizationMethod.EXCLUSIVE, (TransformParameterSpec) null));
+            final Reference reference = factory.newReference("",
+                    factory.newDigestMethod(DigestMethod.SHA256, null), transforms, null, null);
+            final SignedInfo signedInfo = factory.newSignedInfo(
+                    factory.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE,
+                            (C14NMethodParameterSpec) null),
+                    factory.newSignatureMethod("http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", null),
+                    Collections.singletonList(reference));
+            final XMLSignature signature = factory.newXMLSignature(signedInfo, null);
+            final var context = new DOMSignContext(keys.getPrivate(), root, root.getFirstChild());
+            context.setDefaultNamespacePrefix("ds");
+            signature.sign(context);
+
+            final var out = new ByteArrayOutputStream();
+            TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+            signedAggregate = out.toByteArray();
+        }
+        return signedAggregate;
+    }
+
+    private byte[] tamperedAggregate() throws Exception {
+        return new String(signedAggregate(), StandardCharsets.UTF_8).replace("three", "four")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private StreamingAggregateSourceStage makeStage(final byte[] xml) {
+        final var stage = new StreamingAggregateSourceStage();
+        stage.setId("test");
+        stage.setDOMResource(new ByteArrayResource(xml));
+        stage.setParserPool(getParserPool());
+        stage.setVerificationKey(keys.getPublic());
+        return stage;
+    }
+
+    private static List<Item<Element>> execute(final StreamingAggregateSourceStage stage) throws Exception {
+        stage.initialize();
+        final List<Item<Element>> items = new ArrayList<>();
+        stage.execute(items);
+        stage.destroy();
+        return items;
+    }
+
+    @Test
+    public void testWholeDocument() throws Exception {
+        final List<Item<Element>> items = execute(makeStage(signedAggregate()));
+        Assert.assertEquals(items.size(), 1);
+        final Element expected = parse(signedAggregate()).getDocumentElement();
+        Assert.assertTrue(expected.isEqualNode(items.get(0).unwrap()));
+        Assert.assertEquals(countErrors(items.get(0)), 0);
+        Assert.assertTrue(items.get(0).getItemMetadata().get(WarningStatus.class).isEmpty());
+    }
+
+    @Test
+    public void testDisassembling() throws Exception {
+        final var stage = makeStage(signedAggregate());
+        stage.setDisassemblingEntities(true);
+        final List<Item<Element>> items = execute(stage);
+
+        Assert.assertEquals(items.size(), 3);
+        final List<String> ids = new ArrayList<>();
+        for (final Item<Element> item : items) {
+            final Element entity = item.unwrap();
+            Assert.assertTrue(SAMLMetadataSupport.isEntityDescriptor(entity));
+            Assert.assertSame(entity.getOwnerDocument().getDocumentElement(), entity);
+            Assert.assertEquals(entity.lookupNamespaceURI("mdui"), "urn:oasis:names:tc:SAML:metadata:ui");
+            ids.add(entity.getAttributeNS(null, "entityID"));
+        }
+        Assert.assertEquals(ids, List.of("https://one.example.org", "https://two.example.org",
+                "https://three.example.org"));
+        Assert.assertEquals(items.get(0).unwrap().getTextContent().trim(), "One & only");
+    }
+
+    @Test
+    public void testStringDeduplication() throws Exception {
+        final var deduplicator = new StringDeduplicator();
+        final List<List<Item<Element>>> runs = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final var stage = makeStage(signedAggregate());
+            stage.setDisassemblingEntities(true);
+            stage.setStringDeduplicator(deduplicator);
+            runs.add(execute(stage));
+        }
+        Assert.assertTrue(deduplicator.getHits() > 0);
+
+        // equal values in documents from different runs are the same instance
+        final Element first = runs.get(0).get(2).unwrap();
+        final Element second = runs.get(1).get(2).unwrap();
+        Assert.assertNotSame(first, second);
+        Assert.assertSame(first.getAttributeNS(null, "entityID"), second.getAttributeNS(null, "entityID"));
+    }
+
+    @Test
+    public void testInvalidSignature() throws Exception {
+        try {
+            execute(makeStage(tamperedAggregate()));
+            Assert.fail("expected stage to fail");
+        } catch (final StageProcessingException e) {
+            Assert.assertTrue(e.getMessage().contains("signature is invalid"), e.getMessage());
+        }
+
+        final var ignoring = makeStage(tamperedAggregate());
+        ignoring.setErrorCausesSourceFailure(false);
+        Assert.assertTrue(execute(ignoring).isEmpty());
+    }
+
+    @Test
+    public void testInvalidSignatureNotRequiredValid() throws Exception {
+        final var stage = makeStage(tamperedAggregate());
+        stage.setValidSignatureRequired(false);
+        stage.setDisassemblingEntities(true);
+        final List<Item<Element>> items = execute(stage);
+        Assert.assertEquals(items.size(), 3);
+        for (final Item<Element> item : items) {
+            Assert.assertEquals(item.getItemMetadata().get(WarningStatus.class).size(), 1);
+        }
+    }
+
+    @Test
+    public void testBlacklistedDigest() throws Exception {
+        final var stage = makeStage(signedAggregate());
+        stage.setBlacklistedDigests(Set.of(DigestMethod.SHA256));
+        try {
+            execute(stage);
+            Assert.fail("expected stage to fail");
+        } catch (final StageProcessingException e) {
+            Assert.assertTrue(e.getMessage().contains("is blacklisted"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testUnsigned() throws Exception {
+        final byte[] unsigned = AGGREGATE.getBytes(StandardCharsets.UTF_8);
+        try {
+            execute(makeStage(unsigned));
+            Assert.fail("expected stage to fail");
+        } catch (final StageProcessingException e) {
+            Assert.assertTrue(e.getMessage().contains("not signed"), e.getMessage());
+        }
+
+        final var stage = makeStage(unsigned);
+        stage.setSignatureRequired(false);
+        final List<Item<Element>> items = execute(stage);
+        Assert.assertEquals(items.size(), 1);
+        Assert.assertTrue(parse(unsigned).getDocumentElement().isEqualNode(items.get(0).unwrap()));
+    }
+
+    @Test
+    public void testParseFailure() throws Exception {
+        final var stage = makeStage("<md:EntitiesDescriptor".getBytes(StandardCharsets.UTF_8));
+        try {
+            execute(stage);
+            Assert.fail("expected stage to fail");
+        } catch (final StageProcessingException e) {
+            Assert.assertTrue(e.getMessage().contains("unable to parse"), e.getMessage());
+        }
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoVerificationKey() throws Exception {
+        final var stage = new StreamingAggregateSourceStage();
+        stage.setId("test");
+        stage.setDOMResource(new ByteArrayResource(AGGREGATE.getBytes(StandardCharsets.UTF_8)));
+        stage.setParserPool(getParserPool());
+        stage.initialize();
+    }
+
+}
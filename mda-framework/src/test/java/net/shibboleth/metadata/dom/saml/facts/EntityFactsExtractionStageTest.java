@@ -0,0 +1,150 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.facts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.BaseDOMTest;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdattr.EntityCategoryMatcher;
+import net.shibboleth.metadata.dom.saml.mdattr.EntityCategorySupport;
+import net.shibboleth.metadata.dom.saml.mdattr.EntityAttributeFilteringStage.EntityAttributeContext;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+public class EntityFactsExtractionStageTest extends BaseDOMTest {
+
+    private static final String RANDS = "http://refeds.org/category/research-and-scholarship";
+
+    private static final String UKFED = "http://ukfederation.org.uk";
+
+    /** Constructor sets class under test. */
+    public EntityFactsExtractionStageTest() {
+        super(EntityFactsExtractionStage.class);
+    }
+
+    private EntityFactsExtractionStage makeStage(final EntityFactsIndex index)
+            throws ComponentInitializationException {
+        final var stage = new EntityFactsExtractionStage();
+        stage.setId("test");
+        stage.setIndex(index);
+        stage.initialize();
+        return stage;
+    }
+
+    @Test
+    public void testExtraction() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        makeStage(null).execute(items);
+
+        final List<EntityFacts> factsList = item.getItemMetadata().get(EntityFacts.class);
+        Assert.assertEquals(factsList.size(), 1);
+        final EntityFacts facts = factsList.get(0);
+
+        Assert.assertEquals(facts.getEntityId(), "https://example.org/entity");
+        Assert.assertEquals(facts.getRegistrationAuthority(), UKFED);
+        Assert.assertEquals(facts.getRoles(), Set.of(SAMLMetadataSupport.IDP_SSO_DESCRIPTOR_NAME,
+                SAMLMetadataSupport.ATTRIBUTE_AUTHORITY_DESCRIPTOR_NAME,
+                new QName("http://docs.oasis-open.org/wsfed/federation/200706", "SecurityTokenServiceType")));
+
+        final List<EntityAttributeFact> attributes = facts.getEntityAttributes();
+        Assert.assertEquals(attributes.size(), 3);
+        Assert.assertEquals(attributes.get(0), new EntityAttributeFact(RANDS,
+                EntityCategorySupport.EC_CATEGORY_ATTR_NAME, EntityCategorySupport.EC_ATTR_NAME_FORMAT, UKFED));
+        Assert.assertEquals(attributes.get(2).getNameFormat(),
+                "urn:oasis:names:tc:SAML:2.0:attrname-format:unspecified");
+
+        // mdattr matchers apply directly to extracted facts
+        final EntityAttributeContext ctx = attributes.get(0);
+        Assert.assertTrue(new EntityCategoryMatcher(RANDS, UKFED).test(ctx));
+        Assert.assertFalse(new EntityCategoryMatcher(RANDS, "http://example.org/other").test(ctx));
+    }
+
+    @Test
+    public void testUnregistered() throws Exception {
+        final Item<Element> item = readDOMItem("unregistered.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        makeStage(null).execute(items);
+
+        final EntityFacts facts = EntityFactsIndex.getEntityFacts(item);
+        Assert.assertNotNull(facts);
+        Assert.assertNull(facts.getRegistrationAuthority());
+        Assert.assertEquals(facts.getRoles(), Set.of(SAMLMetadataSupport.SP_SSO_DESCRIPTOR_NAME));
+        Assert.assertTrue(facts.getEntityAttributes().isEmpty());
+    }
+
+    @Test
+    public void testNotEntity() throws Exception {
+        final Item<Element> item = readDOMItem("entities.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+
+        final var index = new EntityFactsIndex();
+        makeStage(index).execute(items);
+
+        Assert.assertNull(EntityFactsIndex.getEntityFacts(item));
+        Assert.assertTrue(index.getEntitiesWithRegistrationAuthority(null).isEmpty());
+    }
+
+    @Test
+    public void testIndexing() throws Exception {
+        final Item<Element> entity = readDOMItem("entity.xml");
+        final Item<Element> unregistered = readDOMItem("unregistered.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(entity);
+        items.add(unregistered);
+
+        final var index = new EntityFactsIndex();
+        final var stage = makeStage(index);
+        stage.execute(items);
+
+        final EntityFacts entityFacts = EntityFactsIndex.getEntityFacts(entity);
+        final EntityFacts unregisteredFacts = EntityFactsIndex.getEntityFacts(unregistered);
+        Assert.assertEquals(index.getEntitiesWithRole(SAMLMetadataSupport.IDP_SSO_DESCRIPTOR_NAME),
+                Set.of(entityFacts));
+        Assert.assertEquals(index.getEntitiesWithRole(SAMLMetadataSupport.SP_SSO_DESCRIPTOR_NAME),
+                Set.of(unregisteredFacts));
+        Assert.assertEquals(index.getEntitiesWithRegistrationAuthority(UKFED), Set.of(entityFacts));
+        Assert.assertEquals(index.getEntitiesWithRegistrationAuthority(null), Set.of(unregisteredFacts));
+        Assert.assertEquals(index.getEntitiesWithEntityAttribute(EntityCategorySupport.EC_CATEGORY_ATTR_NAME,
+                EntityCategorySupport.EC_ATTR_NAME_FORMAT, RANDS), Set.of(entityFacts));
+
+        // a second execution replaces both the index contents and the item's facts
+        items.remove(unregistered);
+        stage.execute(items);
+        Assert.assertEquals(entity.getItemMetadata().get(EntityFacts.class).size(), 1);
+        Assert.assertNotSame(EntityFactsIndex.getEntityFacts(entity), entityFacts);
+        Assert.assertTrue(index.getEntitiesWithRole(SAMLMetadataSupport.SP_SSO_DESCRIPTOR_NAME).isEmpty());
+        Assert.assertEquals(index.getEntitiesWithRole(SAMLMetadataSupport.IDP_SSO_DESCRIPTOR_NAME),
+                Set.of(EntityFactsIndex.getEntityFacts(entity)));
+    }
+
+}
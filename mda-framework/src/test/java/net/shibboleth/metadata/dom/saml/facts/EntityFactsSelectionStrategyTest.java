@@ -0,0 +1,122 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.facts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.BaseDOMTest;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdattr.EntityCategorySupport;
+
+public class EntityFactsSelectionStrategyTest extends BaseDOMTest {
+
+    private static final String RANDS = "http://refeds.org/category/research-and-scholarship";
+
+    private Item<Element> entity;
+
+    private Item<Element> unregistered;
+
+    /** Constructor sets class under test. */
+    public EntityFactsSelectionStrategyTest() {
+        super(EntityFactsExtractionStage.class);
+    }
+
+    private void populate() throws Exception {
+        entity = readDOMItem("entity.xml");
+        unregistered = readDOMItem("unregistered.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(entity);
+        items.add(unregistered);
+
+        final var stage = new EntityFactsExtractionStage();
+        stage.setId("extract");
+        stage.initialize();
+        stage.execute(items);
+    }
+
+    @Test
+    public void testRoles() throws Exception {
+        populate();
+        final Predicate<Item<Element>> idps =
+                new EntityRoleSelectionStrategy(List.of(SAMLMetadataSupport.IDP_SSO_DESCRIPTOR_NAME));
+        Assert.assertTrue(idps.test(entity));
+        Assert.assertFalse(idps.test(unregistered));
+
+        final Predicate<Item<Element>> either = new EntityRoleSelectionStrategy(
+                List.of(SAMLMetadataSupport.IDP_SSO_DESCRIPTOR_NAME, SAMLMetadataSupport.SP_SSO_DESCRIPTOR_NAME));
+        Assert.assertTrue(either.test(entity));
+        Assert.assertTrue(either.test(unregistered));
+    }
+
+    @Test
+    public void testRegistrationAuthority() throws Exception {
+        populate();
+        final Predicate<Item<Element>> ukfed =
+                new RegistrationAuthoritySelectionStrategy(List.of("http://ukfederation.org.uk"));
+        Assert.assertTrue(ukfed.test(entity));
+        Assert.assertFalse(ukfed.test(unregistered));
+    }
+
+    @Test
+    public void testEntityAttribute() throws Exception {
+        populate();
+        final Predicate<Item<Element>> rands = new EntityAttributeSelectionStrategy(
+                RANDS, EntityCategorySupport.EC_CATEGORY_ATTR_NAME, EntityCategorySupport.EC_ATTR_NAME_FORMAT);
+        Assert.assertTrue(rands.test(entity));
+        Assert.assertFalse(rands.test(unregistered));
+
+        // copies share their facts, so are also selected
+        Assert.assertTrue(rands.test(entity.copy()));
+    }
+
+    @Test
+    public void testStaleFacts() throws Exception {
+        populate();
+        final Predicate<Item<Element>> idps =
+                new EntityRoleSelectionStrategy(List.of(SAMLMetadataSupport.IDP_SSO_DESCRIPTOR_NAME));
+
+        // removing the role from the DOM does not invalidate the facts...
+        final Element idp = (Element) entity.unwrap().getElementsByTagNameNS(
+                SAMLMetadataSupport.MD_NS, SAMLMetadataSupport.IDP_SSO_DESCRIPTOR_NAME.getLocalPart()).item(0);
+        idp.getParentNode().removeChild(idp);
+        Assert.assertTrue(idps.test(entity));
+
+        // ... until they are extracted again
+        final var stage = new EntityFactsExtractionStage();
+        stage.setId("extract");
+        stage.initialize();
+        stage.execute(List.of(entity));
+        Assert.assertFalse(idps.test(entity));
+    }
+
+    @Test
+    public void testNoFacts() throws Exception {
+        populate();
+        final Predicate<Item<Element>> idps =
+                new EntityRoleSelectionStrategy(List.of(SAMLMetadataSupport.IDP_SSO_DESCRIPTOR_NAME));
+        Assert.assertFalse(idps.test(readDOMItem("entity.xml")));
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.saml.mdattr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.dom.saml.mdattr.EntityAttributeFilteringStage.ContextImpl;
+import net.shibboleth.metadata.dom.saml.mdattr.EntityAttributeFilteringStage.EntityAttributeContext;
+
+public class EntityAttributeRuleTableTest {
+
+    private static final List<String> VALUES = Arrays.asList("v1", "v2", "v3");
+
+    private static final List<String> NAMES = Arrays.asList(EntityCategorySupport.EC_CATEGORY_ATTR_NAME,
+            EntityCategorySupport.EC_SUPPORT_ATTR_NAME,
+            "urn:oasis:names:tc:SAML:attribute:assurance-certification",
+            "other");
+
+    private static final List<String> NAME_FORMATS = Arrays.asList(EntityCategorySupport.EC_ATTR_NAME_FORMAT,
+            "urn:oasis:names:tc:SAML:2.0:attrname-format:unspecified");
+
+    private static final List<String> AUTHORITIES = Arrays.asList(null, "ra1", "ra2");
+
+    /** Subclass of a known matcher, which must not be compiled. */
+    private static class InvertedCategoryMatcher extends EntityCategoryMatcher {
+
+        public InvertedCategoryMatcher(final String category) {
+            super(category);
+        }
+
+        @Override
+        public boolean test(final EntityAttributeContext input) {
+            return !super.test(input);
+        }
+    }
+
+    private boolean linear(final List<Predicate<EntityAttributeContext>> rules, final EntityAttributeContext ctx) {
+        for (final Predicate<EntityAttributeContext> rule : rules) {
+            if (rule.test(ctx)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkEquivalent(final List<Predicate<EntityAttributeContext>> rules) {
+        final EntityAttributeRuleTable table = new EntityAttributeRuleTable(rules);
+        for (final String value : VALUES) {
+            for (final String name : NAMES) {
+                for (final String nameFormat : NAME_FORMATS) {
+                    for (final String registrar : AUTHORITIES) {
+                        final EntityAttributeContext ctx = new ContextImpl(value, name, nameFormat, registrar);
+                        Assert.assertEquals(table.test(value, name, nameFormat, registrar), linear(rules, ctx),
+                                ctx.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    private Predicate<EntityAttributeContext> randomRule(final Random random) {
+        final String value = VALUES.get(random.nextInt(VALUES.size()));
+        final String registrar = AUTHORITIES.get(random.nextInt(AUTHORITIES.size()));
+        switch (random.nextInt(5)) {
+            case 0:
+                return new EntityCategoryMatcher(value, registrar);
+            case 1:
+                return new EntityCategorySupportMatcher(value, registrar);
+            case 2:
+                return new AssuranceCertificationMatcher(value, registrar);
+            case 3:
+                return new RegistrationAuthorityMatcher(registrar);
+            default:
+                final MultiPredicateMatcher matcher = new MultiPredicateMatcher();
+                matcher.setValuePredicate(v -> value.contentEquals(v));
+                return matcher;
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        final EntityAttributeRuleTable table = new EntityAttributeRuleTable(List.of());
+        Assert.assertFalse(table.test("v1", "n", "f", null));
+        Assert.assertFalse(table.test("v1", "n", "f", "ra1"));
+        Assert.assertEquals(table.getOpaqueRuleCount(), 0);
+    }
+
+    @Test
+    public void testKnownMatchersCompiled() {
+        final List<Predicate<EntityAttributeContext>> rules = List.of(
+                new EntityCategoryMatcher("v1"),
+                new EntityCategorySupportMatcher("v2", "ra1"),
+                new AssuranceCertificationMatcher("v3"),
+                new RegistrationAuthorityMatcher("ra2"),
+                new RegistrationAuthorityMatcher(null));
+        final EntityAttributeRuleTable table = new EntityAttributeRuleTable(rules);
+        Assert.assertEquals(table.getOpaqueRuleCount(), 0);
+        checkEquivalent(rules);
+    }
+
+    @Test
+    public void testSubclassNotCompiled() {
+        final List<Predicate<EntityAttributeContext>> rules = List.of(new InvertedCategoryMatcher("v1"));
+        final EntityAttributeRuleTable table = new EntityAttributeRuleTable(rules);
+        Assert.assertEquals(table.getOpaqueRuleCount(), 1);
+        checkEquivalent(rules);
+    }
+
+    @Test
+    public void testRandomRuleSets() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            final List<Predicate<EntityAttributeContext>> rules = new ArrayList<>();
+            final int count = random.nextInt(6);
+            for (int j = 0; j < count; j++) {
+                rules.add(randomRule(random));
+            }
+            checkEquivalent(rules);
+        }
+    }
+
+}
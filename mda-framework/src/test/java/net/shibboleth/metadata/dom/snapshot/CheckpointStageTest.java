@@ -0,0 +1,187 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.dom.BaseDOMTest;
+import net.shibboleth.metadata.pipeline.CountingStage;
+import net.shibboleth.metadata.pipeline.SimplePipeline;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.metadata.pipeline.StaticItemSourceStage;
+
+public class CheckpointStageTest extends BaseDOMTest {
+
+    /** Serializable metadata which the snapshot format has no specific support for. */
+    private static final class Note implements ItemMetadata, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+
+        Note(final String t) {
+            text = t;
+        }
+
+        String getText() {
+            return text;
+        }
+    }
+
+    private Path directory;
+
+    /** Constructor. */
+    public CheckpointStageTest() {
+        super(CheckpointStage.class);
+    }
+
+    @BeforeMethod
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("checkpoint");
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws Exception {
+        try (var files = Files.list(directory)) {
+            for (final Path path : (Iterable<Path>) files::iterator) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private CountingStage<Element> makeComponent(final String id) {
+        final var stage = new CountingStage<Element>();
+        stage.setId(id);
+        return stage;
+    }
+
+    private CheckpointStage makeCheckpoint(final String componentId) throws Exception {
+        final var stage = new CheckpointStage();
+        stage.setId("checkpoint");
+        stage.setDirectory(directory.toFile());
+        stage.setCheckpointName("test");
+        stage.setFingerprintedComponents(List.of(makeComponent(componentId)));
+        stage.setSerializedMetadataClasses(Set.of(Note.class));
+        stage.initialize();
+        return stage;
+    }
+
+    private CheckpointSourceStage makeSource(final String componentId) {
+        final var stage = new CheckpointSourceStage();
+        stage.setId("resume");
+        stage.setDirectory(directory.toFile());
+        stage.setCheckpointName("test");
+        stage.setParserPool(getParserPool());
+        stage.setFingerprintedComponents(List.of(makeComponent(componentId)));
+        stage.setSerializedMetadataClasses(Set.of(Note.class));
+        return stage;
+    }
+
+    private Item<Element> makeItem() throws Exception {
+        final var item = readDOMItem("/net/shibboleth/metadata/dom/snapshot/DOMSnapshotSerializer-fidelity.xml");
+        item.getItemMetadata().put(new ItemId("fidelity"));
+        item.getItemMetadata().put(new Note("saved"));
+        return item;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final var item = makeItem();
+        final List<Item<Element>> items = new ArrayList<>(List.of(item));
+        makeCheckpoint("upstream").execute(items);
+        Assert.assertEquals(items.size(), 1);
+        Assert.assertTrue(Files.exists(directory.resolve("test.snapshot")));
+        Assert.assertTrue(Files.exists(directory.resolve("test.fingerprint")));
+
+        final var source = makeSource("upstream");
+        source.initialize();
+        final List<Item<Element>> resumed = new ArrayList<>();
+        source.execute(resumed);
+
+        Assert.assertEquals(resumed.size(), 1);
+        final var result = resumed.get(0);
+        Assert.assertTrue(item.unwrap().isEqualNode(result.unwrap()));
+        Assert.assertEquals(result.getItemMetadata().get(ItemId.class).get(0).getId(), "fidelity");
+        Assert.assertEquals(result.getItemMetadata().get(Note.class).get(0).getText(), "saved");
+    }
+
+    @Test
+    public void testStaleFallback() throws Exception {
+        makeCheckpoint("upstream").execute(new ArrayList<>(List.of(makeItem())));
+
+        final var fallbackSource = new StaticItemSourceStage<Element>();
+        fallbackSource.setId("fallbackSource");
+        fallbackSource.setSourceItems(List.of(makeItem(), makeItem()));
+        final var fallback = new SimplePipeline<Element>();
+        fallback.setId("fallback");
+        fallback.setStages(List.of(fallbackSource));
+
+        final var source = makeSource("changed");
+        source.setFallbackPipeline(fallback);
+        source.initialize();
+        Assert.assertTrue(fallback.isInitialized());
+        final List<Item<Element>> items = new ArrayList<>();
+        source.execute(items);
+        Assert.assertEquals(items.size(), 2);
+    }
+
+    @Test(expectedExceptions = StageProcessingException.class)
+    public void testStaleFails() throws Exception {
+        makeCheckpoint("upstream").execute(new ArrayList<>(List.of(makeItem())));
+        final var source = makeSource("changed");
+        source.initialize();
+        source.execute(new ArrayList<>());
+    }
+
+    @Test(expectedExceptions = StageProcessingException.class)
+    public void testMissingFails() throws Exception {
+        final var source = makeSource("upstream");
+        source.initialize();
+        source.execute(new ArrayList<>());
+    }
+
+    @Test
+    public void testIncompleteCheckpointIgnored() throws Exception {
+        makeCheckpoint("upstream").execute(new ArrayList<>(List.of(makeItem())));
+        // an interrupted checkpoint leaves the snapshot without its fingerprint
+        Files.delete(directory.resolve("test.fingerprint"));
+        final var source = makeSource("upstream");
+        source.initialize();
+        try {
+            source.execute(new ArrayList<>());
+            Assert.fail();
+        } catch (final StageProcessingException e) {
+            Assert.assertTrue(e.getMessage().contains("does not exist"), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+
+/**
+ * Benchmark comparing the time taken to parse an aggregate as XML with the time taken
+ * to load the equivalent DOM snapshot.
+ *
+ * Each run visits every node of the resulting document, as a pipeline would, so that parsers
+ * which build the DOM lazily are not flattered.
+ *
+ * This is not a unit test, and is not run as part of the build. Run it from the IDE
+ * or from the command line with the test classpath.
+ */
+public final class DOMSnapshotBenchmark {
+
+    /** Number of entities in the synthetic aggregate. */
+    private static final int ENTITY_COUNT = 10_000;
+
+    /** Number of timed iterations of each benchmark. */
+    private static final int ITERATIONS = 10;
+
+    /** Constructor. */
+    private DOMSnapshotBenchmark() {
+    }
+
+    /**
+     * Build a synthetic SAML metadata aggregate.
+     *
+     * @return the aggregate, as UTF-8 encoded XML
+     */
+    private static byte[] makeAggregate() {
+        final var xml = new StringBuilder();
+        xml.append("<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\"")
+            .append(" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\"")
+            .append(" xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\">\n");
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            xml.append("  <md:EntityDescriptor entityID=\"https://sp").append(i).append(".example.org/shibboleth\">\n")
+                .append("    <md:SPSSODescriptor protocolSupportEnumeration=")
+                .append("\"urn:oasis:names:tc:SAML:2.0:protocol\">\n")
+                .append("      <md:Extensions><mdui:UIInfo>")
+                .append("<mdui:DisplayName xml:lang=\"en\">Service ").append(i).append("</mdui:DisplayName>")
+                .append("<mdui:Description xml:lang=\"en\">A service provider used for benchmarking.")
+                .append("</mdui:Description></mdui:UIInfo></md:Extensions>\n")
+                .append("      <md:KeyDescriptor use=\"signing\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>")
+                .append("MIIDAzCCAeugAwIBAgIVAPX0G6LuoXnKS0Muei006mVSBXbvMA0GCSqGSIb3DQEBCwUAMBsxGTAXBgNVBAMM")
+                .append("</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>\n")
+                .append("      <md:AssertionConsumerService index=\"1\"")
+                .append(" Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\"")
+                .append(" Location=\"https://sp").append(i).append(".example.org/Shibboleth.sso/SAML2/POST\"/>\n")
+                .append("    </md:SPSSODescriptor>\n")
+                .append("  </md:EntityDescriptor>\n");
+        }
+        xml.append("</md:EntitiesDescriptor>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Count the nodes in a tree, visiting each one.
+     *
+     * @param node the root of the tree
+     * @return the number of nodes in the tree
+     */
+    private static int countNodes(final Node node) {
+        int count = 1;
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    /** A single benchmark run. */
+    private interface Run {
+
+        /**
+         * Perform the operation being timed.
+         *
+         * @throws Exception if something goes wrong
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * Time a benchmark, after a warm-up period.
+     *
+     * @param name name of the benchmark
+     * @param run the benchmark to run
+     * @return mean time per iteration, in milliseconds
+     * @throws Exception if something goes wrong
+     */
+    private static double time(final String name, final Run run) throws Exception {
+        for (int i = 0; i < ITERATIONS; i++) {
+            run.run();
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            run.run();
+        }
+        final double mean = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+        System.out.printf("%-20s %10.3f ms%n", name, mean);
+        return mean;
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param args command-line arguments (ignored)
+     * @throws Exception if something goes wrong
+     */
+    public static void main(final String[] args) throws Exception {
+        final var parserPool = new BasicParserPool();
+        parserPool.initialize();
+
+        final byte[] xml = makeAggregate();
+        final Item<Element> item = new DOMElementItem(parserPool.parse(new ByteArrayInputStream(xml)));
+        final var out = new ByteArrayOutputStream();
+        new DOMSnapshotSerializer().serializeCollection(List.of(item), out);
+        final byte[] snapshot = out.toByteArray();
+        System.out.printf("%d entities: %d bytes of XML, %d bytes of snapshot%n", ENTITY_COUNT, xml.length,
+                snapshot.length);
+
+        final double parse = time("parse XML",
+                () -> countNodes(parserPool.parse(new ByteArrayInputStream(xml)).getDocumentElement()));
+        final var reader = new DOMSnapshotReader(parserPool);
+        final double load = time("load snapshot", () -> {
+            final List<Item<Element>> items = new ArrayList<>();
+            reader.read(new ByteArrayInputStream(snapshot), items);
+            countNodes(items.get(0).unwrap());
+        });
+        System.out.printf("snapshot load is %.1fx faster%n", parse / load);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.ItemTag;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.dom.BaseDOMTest;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import net.shibboleth.metadata.pipeline.ComponentInfo;
+
+public class DOMSnapshotSerializerTest extends BaseDOMTest {
+
+    /** Serializable metadata which the snapshot format has no specific support for. */
+    private static final class Note implements ItemMetadata, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object value;
+
+        Note(final Object v) {
+            value = v;
+        }
+
+        Object getValue() {
+            return value;
+        }
+    }
+
+    /** Existing test resources, of various kinds, used to check round-trip fidelity. */
+    private static final List<String> RESOURCES = List.of(
+            "/net/shibboleth/metadata/dom/DOMFilesystemSourceStage-dir/entitiesDescriptor1.xml",
+            "/net/shibboleth/metadata/dom/saml/EntitiesDescriptorDisassemblerStage-in.xml",
+            "/net/shibboleth/metadata/dom/ElementWhitespaceTrimmingStage-1-in.xml",
+            "/net/shibboleth/metadata/dom/ds/X509ValidationStage-in.xml",
+            "/net/shibboleth/metadata/dom/XPathFilteringStage-1.xml");
+
+    /** Constructor. */
+    public DOMSnapshotSerializerTest() {
+        super(DOMSnapshotSerializer.class);
+    }
+
+    /**
+     * Write a collection of items as a snapshot.
+     *
+     * @param items the items to write
+     * @return the snapshot
+     * @throws IOException if the snapshot can not be written
+     */
+    private byte[] write(final List<Item<Element>> items) throws IOException {
+        final var out = new ByteArrayOutputStream();
+        new DOMSnapshotSerializer().serializeCollection(items, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Read a snapshot.
+     *
+     * @param snapshot the snapshot to read
+     * @return the items read
+     * @throws Exception if the snapshot can not be read
+     */
+    private List<Item<Element>> read(final byte[] snapshot) throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        new DOMSnapshotReader(getParserPool()).read(new ByteArrayInputStream(snapshot), items);
+        return items;
+    }
+
+    /**
+     * Write and read back a single item, checking that its DOM is unchanged.
+     *
+     * @param item the item to round-trip
+     * @return the item read back
+     * @throws Exception if something goes wrong
+     */
+    private Item<Element> roundTrip(final Item<Element> item) throws Exception {
+        final var items = read(write(List.of(item)));
+        Assert.assertEquals(items.size(), 1);
+        final var result = items.get(0);
+        Assert.assertTrue(item.unwrap().isEqualNode(result.unwrap()));
+        assertXMLIdentical(item.unwrap(), result.unwrap());
+        Assert.assertSame(result.unwrap().getOwnerDocument().getDocumentElement(), result.unwrap());
+        return result;
+    }
+
+    @Test
+    public void testFidelity() throws Exception {
+        final var result = roundTrip(readDOMItem("fidelity.xml"));
+        final Element root = result.unwrap();
+        Assert.assertEquals(root.getNamespaceURI(), "urn:example:default");
+        Assert.assertEquals(root.getAttributeNS("urn:example:p", "qualified"), "q");
+        Assert.assertEquals(root.getAttributeNS("http://www.w3.org/XML/1998/namespace", "lang"), "en");
+    }
+
+    @Test
+    public void testExistingResources() throws Exception {
+        for (final String resource : RESOURCES) {
+            roundTrip(readDOMItem(resource));
+        }
+    }
+
+    @Test
+    public void testMultipleItems() throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        for (final String resource : RESOURCES) {
+            items.add(readDOMItem(resource));
+        }
+        final var results = read(write(items));
+        Assert.assertEquals(results.size(), items.size());
+        for (int i = 0; i < items.size(); i++) {
+            Assert.assertTrue(items.get(i).unwrap().isEqualNode(results.get(i).unwrap()));
+            Assert.assertNotSame(results.get(i).unwrap().getOwnerDocument(),
+                    results.get((i + 1) % items.size()).unwrap().getOwnerDocument());
+        }
+    }
+
+    @Test
+    public void testMetadata() throws Exception {
+        final var item = readDOMItem("fidelity.xml");
+        item.getItemMetadata().put(new ItemId("id1"));
+        item.getItemMetadata().put(new ItemId("id2"));
+        item.getItemMetadata().put(new ItemTag("tag"));
+        item.getItemMetadata().put(new RegistrationAuthority("https://example.org/ra"));
+        item.getItemMetadata().put(new InfoStatus("component", "info"));
+        item.getItemMetadata().put(new WarningStatus("component", "warning"));
+        item.getItemMetadata().put(new ErrorStatus("component", "error"));
+        item.getItemMetadata().put(new ComponentInfo("stage", DOMSnapshotSerializer.class, Instant.now(),
+                Instant.now()));
+
+        final var md = roundTrip(item).getItemMetadata();
+        final var ids = md.get(ItemId.class);
+        Assert.assertEquals(ids.size(), 2);
+        Assert.assertEquals(ids.get(0).getId(), "id1");
+        Assert.assertEquals(ids.get(1).getId(), "id2");
+        Assert.assertEquals(md.get(ItemTag.class).get(0).getTag(), "tag");
+        Assert.assertEquals(md.get(RegistrationAuthority.class).get(0).getRegistrationAuthority(),
+                "https://example.org/ra");
+        Assert.assertEquals(md.get(InfoStatus.class).get(0).getStatusMessage(), "info");
+        Assert.assertEquals(md.get(WarningStatus.class).get(0).getComponentId(), "component");
+        Assert.assertEquals(md.get(ErrorStatus.class).get(0).getStatusMessage(), "error");
+        Assert.assertTrue(md.get(ComponentInfo.class).isEmpty());
+    }
+
+    @Test
+    public void testSerializedMetadata() throws Exception {
+        final var item = readDOMItem("fidelity.xml");
+        item.getItemMetadata().put(new ShardSequence(3));
+        item.getItemMetadata().put(new Note("note"));
+
+        // only classes which are allowed are written
+        var md = roundTrip(item).getItemMetadata();
+        Assert.assertEquals(md.get(ShardSequence.class).get(0).getIndex(), 3);
+        Assert.assertTrue(md.get(Note.class).isEmpty());
+
+        final var out = new ByteArrayOutputStream();
+        new DOMSnapshotSerializer(Set.of(Note.class)).serializeCollection(List.of(item), out);
+        final List<Item<Element>> items = new ArrayList<>();
+        new DOMSnapshotReader(getParserPool(), Set.of(Note.class)).read(
+                new ByteArrayInputStream(out.toByteArray()), items);
+        md = items.get(0).getItemMetadata();
+        Assert.assertEquals(md.get(Note.class).get(0).getValue(), "note");
+
+        // a reader which does not allow the class rejects it
+        try {
+            read(out.toByteArray());
+            Assert.fail("expected exception");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSerializedValueTypes() throws Exception {
+        final var item = readDOMItem("fidelity.xml");
+        item.getItemMetadata().put(new Note(new ArrayList<>(List.of("one"))));
+        final var out = new ByteArrayOutputStream();
+        new DOMSnapshotSerializer(Set.of(Note.class)).serializeCollection(List.of(item), out);
+        try {
+            new DOMSnapshotReader(getParserPool(), Set.of(Note.class)).read(
+                    new ByteArrayInputStream(out.toByteArray()), new ArrayList<>());
+            Assert.fail("expected exception");
+        } catch (final IOException e) {
+            // expected, as only specific value types are allowed
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        final var item = readDOMItem(RESOURCES.get(0));
+        final byte[] snapshot = write(List.of(item));
+        final byte[] xml;
+        try (var in = DOMSnapshotSerializerTest.class.getResourceAsStream(RESOURCES.get(0))) {
+            xml = in.readAllBytes();
+        }
+        Assert.assertTrue(snapshot.length < xml.length, snapshot.length + " >= " + xml.length);
+    }
+
+    @Test
+    public void testBadMagic() throws Exception {
+        final byte[] snapshot = write(List.of(readDOMItem("fidelity.xml")));
+        snapshot[1] = 'X';
+        try {
+            read(snapshot);
+            Assert.fail("expected exception");
+        } catch (final IOException e) {
+            Assert.assertEquals(e.getMessage(), "not a DOM snapshot");
+        }
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        final byte[] snapshot = write(List.of(readDOMItem("fidelity.xml")));
+        for (int length = 0; length < snapshot.length; length++) {
+            try {
+                read(Arrays.copyOf(snapshot, length));
+                Assert.fail("expected exception for length " + length);
+            } catch (final IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testTrailingData() throws Exception {
+        final byte[] snapshot = write(List.of(readDOMItem("fidelity.xml")));
+        try {
+            read(Arrays.copyOf(snapshot, snapshot.length + 1));
+            Assert.fail("expected exception");
+        } catch (final IOException e) {
+            Assert.assertEquals(e.getMessage(), "unexpected data after last item");
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.core.io.ByteArrayResource;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.BaseDOMTest;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+public class DOMSnapshotSourceStageTest extends BaseDOMTest {
+
+    /** Constructor. */
+    public DOMSnapshotSourceStageTest() {
+        super(DOMSnapshotSourceStage.class);
+    }
+
+    /**
+     * Build a stage reading the given snapshot.
+     *
+     * @param snapshot the snapshot to read
+     * @return the stage, not yet initialized
+     */
+    private DOMSnapshotSourceStage makeStage(final byte[] snapshot) {
+        final var stage = new DOMSnapshotSourceStage();
+        stage.setId("test");
+        stage.setParserPool(getParserPool());
+        stage.setSnapshotResource(new ByteArrayResource(snapshot));
+        return stage;
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        final var item = readDOMItem("/net/shibboleth/metadata/dom/snapshot/DOMSnapshotSerializer-fidelity.xml");
+        item.getItemMetadata().put(new ItemId("fidelity"));
+        final var out = new ByteArrayOutputStream();
+        new DOMSnapshotSerializer().serializeCollection(List.of(item, item), out);
+
+        final var stage = makeStage(out.toByteArray());
+        stage.initialize();
+        final List<Item<Element>> items = new ArrayList<>();
+        stage.execute(items);
+        stage.destroy();
+
+        Assert.assertEquals(items.size(), 2);
+        for (final var result : items) {
+            Assert.assertTrue(item.unwrap().isEqualNode(result.unwrap()));
+            Assert.assertEquals(result.getItemMetadata().get(ItemId.class).get(0).getId(), "fidelity");
+        }
+    }
+
+    @Test(expectedExceptions = StageProcessingException.class)
+    public void testFailure() throws Exception {
+        final var stage = makeStage(new byte[] {1, 2, 3});
+        stage.initialize();
+        stage.execute(new ArrayList<>());
+    }
+
+    @Test
+    public void testFailureIgnored() throws Exception {
+        final var stage = makeStage(new byte[] {1, 2, 3});
+        stage.setErrorCausesSourceFailure(false);
+        stage.initialize();
+        final List<Item<Element>> items = new ArrayList<>();
+        stage.execute(items);
+        Assert.assertTrue(items.isEmpty());
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoParserPool() throws Exception {
+        final var stage = new DOMSnapshotSourceStage();
+        stage.setId("test");
+        stage.setSnapshotResource(new ByteArrayResource(new byte[0]));
+        stage.initialize();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoResource() throws Exception {
+        final var stage = new DOMSnapshotSourceStage();
+        stage.setId("test");
+        stage.setParserPool(getParserPool());
+        stage.initialize();
+    }
+}
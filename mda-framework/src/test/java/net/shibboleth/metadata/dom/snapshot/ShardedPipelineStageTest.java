@@ -0,0 +1,207 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.dom.snapshot;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.ItemTag;
+import net.shibboleth.metadata.dom.BaseDOMTest;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.SimplePipeline;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+
+public class ShardedPipelineStageTest extends BaseDOMTest {
+
+    /**
+     * Worker process used by the tests.
+     *
+     * Tags each item with the worker's process ID. With the argument <code>fail</code> it fails instead;
+     * with <code>extra</code> it also adds a new, untagged item after each one.
+     */
+    public static final class Worker {
+
+        public static void main(final String[] args) throws Exception {
+            if (args.length > 0 && "fail".equals(args[0])) {
+                System.exit(3);
+            }
+            final boolean extra = args.length > 0 && "extra".equals(args[0]);
+
+            final var stage = new AbstractStage<Element>() {
+                @Override
+                protected void doExecute(final List<Item<Element>> items) {
+                    final List<Item<Element>> results = new ArrayList<>();
+                    for (final Item<Element> item : items) {
+                        item.getItemMetadata().put(new ItemTag("pid-" + ProcessHandle.current().pid()));
+                        results.add(item);
+                        if (extra) {
+                            results.add(new DOMElementItem(item.unwrap().getOwnerDocument()));
+                        }
+                    }
+                    items.clear();
+                    items.addAll(results);
+                }
+            };
+            stage.setId("tagger");
+            final var pipeline = new SimplePipeline<Element>();
+            pipeline.setId("worker");
+            pipeline.setStages(List.of(stage));
+            pipeline.initialize();
+
+            final var parserPool = new BasicParserPool();
+            parserPool.initialize();
+            try (var out = new FileOutputStream(FileDescriptor.out)) {
+                ShardWorker.process(pipeline, parserPool, System.in, out);
+            }
+        }
+    }
+
+    /** Constructor. */
+    public ShardedPipelineStageTest() {
+        super(ShardedPipelineStage.class);
+    }
+
+    private ShardedPipelineStage makeStage(final String... arguments) {
+        final var stage = new ShardedPipelineStage();
+        stage.setId("sharded");
+        stage.setParserPool(getParserPool());
+        stage.setWorkerClass(Worker.class.getName());
+        stage.setWorkerArguments(List.of(arguments));
+        stage.setWorkerHeap("64m");
+        return stage;
+    }
+
+    private List<Item<Element>> makeItems(final int count) throws Exception {
+        final var original = readDOMItem("/net/shibboleth/metadata/dom/snapshot/DOMSnapshotSerializer-fidelity.xml");
+        final List<Item<Element>> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Item<Element> item = original.copy();
+            item.getItemMetadata().put(new ItemId("https://entity" + i + ".example.org/"));
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static String idOf(final Item<Element> item) {
+        return item.getItemMetadata().get(ItemId.class).get(0).getId();
+    }
+
+    @Test
+    public void testOrderPreserved() throws Exception {
+        final var stage = makeStage();
+        stage.setWorkerCount(3);
+        stage.initialize();
+
+        final List<Item<Element>> items = makeItems(20);
+        final List<Item<Element>> originals = List.copyOf(items);
+        stage.execute(items);
+        stage.destroy();
+
+        Assert.assertEquals(items.size(), 20);
+        final List<String> workers = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            final Item<Element> item = items.get(i);
+            Assert.assertEquals(idOf(item), idOf(originals.get(i)));
+            Assert.assertTrue(originals.get(i).unwrap().isEqualNode(item.unwrap()));
+            Assert.assertTrue(item.getItemMetadata().get(ShardSequence.class).isEmpty());
+            final String worker = item.getItemMetadata().get(ItemTag.class).get(0).getTag();
+            if (!workers.contains(worker)) {
+                workers.add(worker);
+            }
+            // items with the same ID always go to the same shard
+            Assert.assertEquals(ShardedPipelineStage.shardOf(item, 0, 3),
+                    ShardedPipelineStage.shardOf(originals.get(i), i + 7, 3));
+        }
+        Assert.assertEquals(workers.size(), 3);
+    }
+
+    @Test
+    public void testCreatedItems() throws Exception {
+        final var stage = makeStage("extra");
+        stage.initialize();
+        final List<Item<Element>> items = makeItems(6);
+        stage.execute(items);
+
+        Assert.assertEquals(items.size(), 12);
+        for (int i = 0; i < 6; i++) {
+            Assert.assertEquals(idOf(items.get(2 * i)), "https://entity" + i + ".example.org/");
+            Assert.assertTrue(items.get(2 * i + 1).getItemMetadata().get(ItemId.class).isEmpty());
+        }
+    }
+
+    @Test
+    public void testWorkerFailure() throws Exception {
+        final var stage = makeStage("fail");
+        stage.setWorkerAttempts(2);
+        stage.initialize();
+        try {
+            stage.execute(makeItems(4));
+            Assert.fail();
+        } catch (final StageProcessingException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("status 3"), e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testWorkerFailureIgnored() throws Exception {
+        final var stage = makeStage("fail");
+        stage.setFailOnWorkerError(false);
+        stage.initialize();
+        final List<Item<Element>> items = makeItems(4);
+        final List<Item<Element>> originals = List.copyOf(items);
+        stage.execute(items);
+
+        Assert.assertEquals(items, originals);
+        for (final Item<Element> item : items) {
+            Assert.assertEquals(item.getItemMetadata().get(ErrorStatus.class).size(), 1);
+            Assert.assertTrue(item.getItemMetadata().get(ShardSequence.class).isEmpty());
+        }
+    }
+
+    @Test
+    public void testCommand() throws Exception {
+        final var stage = makeStage("a", "b");
+        stage.setJavaCommand("/opt/java/bin/java");
+        stage.setClassPath("x.jar");
+        stage.setJvmOptions(List.of("-Dfoo=bar"));
+        Assert.assertEquals(stage.workerCommand(), List.of("/opt/java/bin/java", "-Xmx64m", "-Dfoo=bar", "-cp",
+                "x.jar", Worker.class.getName(), "a", "b"));
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testBadHeap() {
+        new ShardedPipelineStage().setWorkerHeap("lots");
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testBadWorkerCount() {
+        new ShardedPipelineStage().setWorkerCount(0);
+    }
+}
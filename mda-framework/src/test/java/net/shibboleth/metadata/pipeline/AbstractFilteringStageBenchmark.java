@@ -0,0 +1,177 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.MockItem;
+
+/**
+ * Benchmark comparing bulk removal in the filtering stages with the earlier
+ * item-by-item removal from the live collection.
+ *
+ * This is not a unit test, and is not run as part of the build. Run it from the IDE
+ * or from the command line with the test classpath.
+ */
+public final class AbstractFilteringStageBenchmark {
+
+    /** Number of items in each collection. */
+    private static final int ITEM_COUNT = 50_000;
+
+    /** Percentage of items rejected by each stage. */
+    private static final int REJECT_PERCENT = 30;
+
+    /** Number of timed iterations of each benchmark. */
+    private static final int ITERATIONS = 10;
+
+    /** Constructor. */
+    private AbstractFilteringStageBenchmark() {
+    }
+
+    /** Stage rejecting items whose value falls in the rejected percentage. */
+    private static class PercentFilteringStage extends AbstractFilteringStage<String> {
+
+        @Override
+        protected boolean doExecute(@Nonnull final Item<String> item) {
+            return isRetained(item);
+        }
+    }
+
+    /**
+     * Determine whether an item should be retained.
+     *
+     * @param item the item to examine
+     * @return <code>true</code> if the item should be retained
+     */
+    private static boolean isRetained(@Nonnull final Item<String> item) {
+        return Integer.parseInt(item.unwrap()) % 100 >= REJECT_PERCENT;
+    }
+
+    /**
+     * Build the collection of items to filter.
+     *
+     * @param markErrors whether rejected items should be marked with an {@link ErrorStatus}
+     * @return the collection of items
+     */
+    private static List<Item<String>> makeItems(final boolean markErrors) {
+        final List<Item<String>> items = new ArrayList<>(ITEM_COUNT);
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            final var item = new MockItem(Integer.toString(i));
+            if (markErrors && !isRetained(item)) {
+                item.getItemMetadata().put(new ErrorStatus("benchmark", "rejected"));
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    /** A single benchmark run. */
+    private interface Run {
+
+        /**
+         * Filter the given items.
+         *
+         * @param items the items to filter
+         * @throws Exception if something goes wrong
+         */
+        void run(@Nonnull List<Item<String>> items) throws Exception;
+    }
+
+    /**
+     * Time a benchmark, after a warm-up period.
+     *
+     * @param name name of the benchmark
+     * @param markErrors whether rejected items should be marked with an {@link ErrorStatus}
+     * @param run the benchmark to run
+     * @throws Exception if something goes wrong
+     */
+    private static void time(@Nonnull final String name, final boolean markErrors, @Nonnull final Run run)
+            throws Exception {
+        for (int i = 0; i < ITERATIONS; i++) {
+            run.run(makeItems(markErrors));
+        }
+
+        long total = 0;
+        int remaining = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final var items = makeItems(markErrors);
+            final long start = System.nanoTime();
+            run.run(items);
+            total += System.nanoTime() - start;
+            remaining = items.size();
+        }
+        System.out.printf("%-40s %10.3f ms  (%d items remain)%n", name, total / 1e6 / ITERATIONS, remaining);
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param args command-line arguments (ignored)
+     * @throws Exception if something goes wrong
+     */
+    public static void main(final String[] args) throws Exception {
+        System.out.printf("%d items, %d%% rejected%n", ITEM_COUNT, REJECT_PERCENT);
+
+        time("iterator removal (previous)", false, items -> {
+            final Iterator<Item<String>> iterator = items.iterator();
+            while (iterator.hasNext()) {
+                if (!isRetained(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+        });
+
+        final var serial = new PercentFilteringStage();
+        serial.setId("serial");
+        serial.initialize();
+        time("AbstractFilteringStage, serial", false, serial::execute);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            final var parallel = new PercentFilteringStage();
+            parallel.setId("parallel");
+            parallel.setExecutorService(executor);
+            parallel.initialize();
+            time("AbstractFilteringStage, parallel", false, parallel::execute);
+        } finally {
+            executor.shutdown();
+        }
+
+        time("remove(item) per marked item (previous)", true, items -> {
+            for (final Item<String> item : new ArrayList<>(items)) {
+                if (item.getItemMetadata().containsKey(ErrorStatus.class)) {
+                    items.remove(item);
+                }
+            }
+        });
+
+        final var metadataFilter = new ItemMetadataFilterStage<String>();
+        metadataFilter.setId("metadataFilter");
+        metadataFilter.setSelectionRequirements(List.of(ErrorStatus.class));
+        metadataFilter.initialize();
+        time("ItemMetadataFilterStage", true, metadataFilter::execute);
+    }
+}
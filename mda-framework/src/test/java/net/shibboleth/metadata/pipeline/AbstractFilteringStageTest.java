@@ -0,0 +1,153 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.MockItem;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/** Unit test of {@link AbstractFilteringStage}. */
+public class AbstractFilteringStageTest {
+
+    /** Stage retaining items whose value is not a multiple of a given divisor. */
+    private static class DivisorFilteringStage extends AbstractFilteringStage<String> {
+
+        /** Items with a value divisible by this are rejected. */
+        private final int divisor;
+
+        /**
+         * Constructor.
+         *
+         * @param div items with a value divisible by this are rejected
+         */
+        DivisorFilteringStage(final int div) {
+            divisor = div;
+        }
+
+        @Override
+        protected boolean doExecute(@Nonnull final Item<String> item) throws StageProcessingException {
+            final int value = Integer.parseInt(item.unwrap());
+            if (value < 0) {
+                throw new StageProcessingException("negative value " + value);
+            }
+            return value % divisor != 0;
+        }
+    }
+
+    /**
+     * Build a list of items with consecutive values.
+     *
+     * @param count number of items to create
+     * @return list of items
+     */
+    private List<Item<String>> makeItems(final int count) {
+        final List<Item<String>> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(new MockItem(Integer.toString(i)));
+        }
+        return items;
+    }
+
+    /**
+     * Check that the items remaining are exactly those expected, in order.
+     *
+     * @param items items remaining after filtering
+     * @param count number of items originally present
+     * @param divisor divisor used to reject items
+     */
+    private void checkItems(final List<Item<String>> items, final int count, final int divisor) {
+        int index = 0;
+        for (int i = 0; i < count; i++) {
+            if (i % divisor != 0) {
+                Assert.assertEquals(items.get(index++).unwrap(), Integer.toString(i));
+            }
+        }
+        Assert.assertEquals(items.size(), index);
+    }
+
+    @Test
+    public void testExecutorService() {
+        final var stage = new DivisorFilteringStage(3);
+        Assert.assertNull(stage.getExecutorService());
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            stage.setExecutorService(executor);
+            Assert.assertSame(stage.getExecutorService(), executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSerial() throws Exception {
+        final var items = makeItems(10_000);
+        final var stage = new DivisorFilteringStage(3);
+        stage.setId("test");
+        stage.initialize();
+        stage.execute(items);
+        checkItems(items, 10_000, 3);
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final var items = makeItems(10_000);
+            final var stage = new DivisorFilteringStage(3);
+            stage.setId("test");
+            stage.setExecutorService(executor);
+            stage.initialize();
+            stage.execute(items);
+            checkItems(items, 10_000, 3);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelError() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final var items = makeItems(1_000);
+            items.add(new MockItem("-1"));
+            final var stage = new DivisorFilteringStage(3);
+            stage.setId("test");
+            stage.setExecutorService(executor);
+            stage.initialize();
+            try {
+                stage.execute(items);
+                Assert.fail("expected exception");
+            } catch (final StageProcessingException e) {
+                Assert.assertEquals(e.getMessage(), "negative value -1");
+            }
+            Assert.assertEquals(items.size(), 1_001);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -83,4 +83,31 @@ public class AbstractStageTest {
         Assert.assertEquals(stage3.getItemCount(), 0);
     }
 
+    @Test
+    public void interruptedIteration() throws Exception {
+        final List<Item<String>> seen = new ArrayList<>();
+        final AbstractIteratingStage<String> stage = new AbstractIteratingStage<>() {
+            @Override
+            protected void doExecute(final Item<String> item) {
+                seen.add(item);
+                Thread.currentThread().interrupt();
+            }
+        };
+        stage.setId("test");
+        stage.initialize();
+
+        final List<Item<String>> items = new ArrayList<>();
+        items.add(new MockItem("one"));
+        items.add(new MockItem("two"));
+        try {
+            stage.execute(items);
+            Assert.fail("expected exception not thrown");
+        } catch (final StageProcessingException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+        Assert.assertEquals(seen.size(), 1);
+    }
+
 }
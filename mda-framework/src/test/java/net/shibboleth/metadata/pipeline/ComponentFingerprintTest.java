@@ -0,0 +1,120 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.springframework.core.io.ByteArrayResource;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.dom.ElementWhitespaceTrimmingStage;
+import net.shibboleth.metadata.validate.x509.X509RSAOpenSSLBlacklistValidator;
+
+public class ComponentFingerprintTest {
+
+    private CountingStage<String> makeStage(final String id) {
+        final var stage = new CountingStage<String>();
+        stage.setId(id);
+        return stage;
+    }
+
+    @Test
+    public void testStable() {
+        final String first = ComponentFingerprint.fingerprint(List.of(makeStage("one"), makeStage("two")));
+        final String second = ComponentFingerprint.fingerprint(List.of(makeStage("one"), makeStage("two")));
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(first.length(), 64);
+    }
+
+    @Test
+    public void testPropertyChange() {
+        final String before = ComponentFingerprint.fingerprint(List.of(makeStage("one")));
+        final String after = ComponentFingerprint.fingerprint(List.of(makeStage("changed")));
+        Assert.assertNotEquals(before, after);
+    }
+
+    @Test
+    public void testOrderMatters() {
+        final String forward = ComponentFingerprint.fingerprint(List.of(makeStage("one"), makeStage("two")));
+        final String reverse = ComponentFingerprint.fingerprint(List.of(makeStage("two"), makeStage("one")));
+        Assert.assertNotEquals(forward, reverse);
+    }
+
+    @Test
+    public void testNestedPipeline() throws Exception {
+        final var pipeline = new SimplePipeline<String>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(makeStage("inner")));
+        final String description = ComponentFingerprint.describe(List.of(pipeline));
+        Assert.assertTrue(description.contains("inner"), description);
+    }
+
+    @Test
+    public void testUnreadableSetterFailsClosed() {
+        // the identification strategy can be set, but not read back under the same name
+        final var stage = new ItemMetadataFilterStage<String>();
+        stage.setId("filter");
+        Assert.assertNotEquals(ComponentFingerprint.fingerprint(List.of(stage)),
+                ComponentFingerprint.fingerprint(List.of(stage)));
+
+        final Map<Object, Integer> identities = new IdentityHashMap<>();
+        final var other = new ItemMetadataFilterStage<String>();
+        other.setId("filter");
+        Assert.assertEquals(ComponentFingerprint.describeForComparison(stage, identities),
+                ComponentFingerprint.describeForComparison(stage, identities));
+        Assert.assertNotEquals(ComponentFingerprint.describeForComparison(stage, identities),
+                ComponentFingerprint.describeForComparison(other, identities));
+    }
+
+    @Test
+    public void testSingleValueSetter() {
+        // setElementName sets a single value of the ElementNames property
+        final var stage = new ElementWhitespaceTrimmingStage();
+        stage.setId("trim");
+        stage.setElementName(new QName("urn:example", "one"));
+        Assert.assertEquals(ComponentFingerprint.fingerprint(List.of(stage)),
+                ComponentFingerprint.fingerprint(List.of(stage)));
+    }
+
+    @Test
+    public void testResourceContents() {
+        final var validator = new X509RSAOpenSSLBlacklistValidator();
+        validator.setId("validator");
+        validator.setBlacklistResource(new ByteArrayResource("one".getBytes(StandardCharsets.UTF_8)));
+        final String before = ComponentFingerprint.fingerprint(List.of(validator));
+        Assert.assertEquals(ComponentFingerprint.fingerprint(List.of(validator)), before);
+
+        final var changed = new X509RSAOpenSSLBlacklistValidator();
+        changed.setId("validator");
+        changed.setBlacklistResource(new ByteArrayResource("two".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertNotEquals(ComponentFingerprint.fingerprint(List.of(changed)), before);
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertEquals(ComponentFingerprint.fingerprint(List.of()),
+                ComponentFingerprint.fingerprint(List.of()));
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.impl.BaseIdentifiableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ComponentTreeInitializerTest {
+
+    /** Stage which takes a while to initialize, and records its initialization. */
+    private static class SlowStage extends AbstractStage<String> {
+
+        /** Where to record initialization. */
+        private final Queue<String> initialized;
+
+        /** Whether initialization should fail. */
+        private final boolean failing;
+
+        /**
+         * Constructor.
+         *
+         * @param id stage identifier
+         * @param record where to record initialization
+         * @param fail whether initialization should fail
+         */
+        SlowStage(@Nonnull final String id, @Nonnull final Queue<String> record, final boolean fail) {
+            setId(id);
+            initialized = record;
+            failing = fail;
+        }
+
+        @Override
+        protected void doExecute(@Nonnull final List<Item<String>> items) {
+        }
+
+        @Override
+        protected void doInitialize() throws ComponentInitializationException {
+            super.doInitialize();
+            try {
+                Thread.sleep(200);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failing) {
+                throw new ComponentInitializationException("failed: " + getId());
+            }
+            initialized.add(getId());
+        }
+    }
+
+    /** Container whose contained components can be set after construction. */
+    private static class Container extends BaseIdentifiableInitializableComponent implements ComponentContainer {
+
+        /** The contained components. */
+        private List<? extends InitializableComponent> contained = List.of();
+
+        /**
+         * Sets the contained components.
+         *
+         * @param components the contained components
+         */
+        void setContained(@Nonnull final List<? extends InitializableComponent> components) {
+            contained = components;
+        }
+
+        @Override
+        public List<? extends InitializableComponent> getContainedComponents() {
+            return contained;
+        }
+    }
+
+    /**
+     * Build a pipeline which contains a {@link PipelineMergeStage} merging two pipelines,
+     * each containing two slow stages, plus a shared slow stage appearing in both child pipelines.
+     *
+     * @param record where to record initialization
+     * @return the pipeline
+     */
+    private SimplePipeline<String> makePipeline(@Nonnull final Queue<String> record) {
+        final var shared = new SlowStage("shared", record, false);
+
+        final var child1 = new SimplePipeline<String>();
+        child1.setId("child1");
+        child1.setStages(List.of(new SlowStage("a", record, false), new SlowStage("b", record, false), shared));
+
+        final var child2 = new SimplePipeline<String>();
+        child2.setId("child2");
+        child2.setStages(List.of(new SlowStage("c", record, false), new SlowStage("d", record, false), shared));
+
+        final var merge = new PipelineMergeStage<String>();
+        merge.setId("merge");
+        merge.setMergedPipelines(List.of(child1, child2));
+
+        final var pipeline = new SimplePipeline<String>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(merge, new SlowStage("e", record, false)));
+        return pipeline;
+    }
+
+    @Test
+    public void testTree() throws Exception {
+        final Queue<String> record = new ConcurrentLinkedQueue<>();
+        final var pipeline = makePipeline(record);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final var report = new ComponentTreeInitializer(executor).initialize(List.of(pipeline));
+            Assert.assertTrue(pipeline.isInitialized());
+
+            // each slow stage initialized exactly once
+            Assert.assertEquals(record.size(), 6);
+            Assert.assertEquals(Collections.frequency(record, "shared"), 1);
+
+            // six slow stages, two child pipelines, the merge stage and the top-level pipeline
+            Assert.assertEquals(report.getTimings().size(), 10);
+            Assert.assertTrue(report.getTimings().get(0).getDuration().toMillis() >= 200);
+            Assert.assertTrue(report.getTotal().toMillis() >= 1200);
+
+            // the slow stages are independent, so should have been initialized in parallel
+            Assert.assertTrue(report.getElapsed().toMillis() < 1000, "elapsed " + report.getElapsed());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSimplePipeline() throws Exception {
+        final Queue<String> record = new ConcurrentLinkedQueue<>();
+        final var pipeline = makePipeline(record);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            pipeline.setInitializationExecutor(executor);
+            Assert.assertSame(pipeline.getInitializationExecutor(), executor);
+            Assert.assertNull(pipeline.getInitializationReport());
+            pipeline.initialize();
+            Assert.assertEquals(record.size(), 6);
+            Assert.assertNotNull(pipeline.getInitializationReport());
+            for (final var stage : pipeline.getStages()) {
+                Assert.assertTrue(stage.isInitialized());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAlreadyInitialized() throws Exception {
+        final Queue<String> record = new ConcurrentLinkedQueue<>();
+        final var stage = new SlowStage("a", record, false);
+        stage.initialize();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final var report = new ComponentTreeInitializer(executor).initialize(List.of(stage));
+            Assert.assertEquals(record.size(), 1);
+            Assert.assertTrue(report.getTimings().isEmpty());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final Queue<String> record = new ConcurrentLinkedQueue<>();
+        final var child = new SimplePipeline<String>();
+        child.setId("child");
+        child.setStages(List.of(new SlowStage("a", record, false), new SlowStage("bad", record, true)));
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            new ComponentTreeInitializer(executor).initialize(List.of(child));
+            Assert.fail("expected exception");
+        } catch (final ComponentInitializationException e) {
+            Assert.assertEquals(e.getMessage(), "failed: bad");
+            Assert.assertFalse(child.isInitialized());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Stage which initializes a pipeline it does not expose as a contained component. */
+    private static class OpaqueStage extends AbstractStage<String> {
+
+        /** The hidden pipeline. */
+        private final SimplePipeline<String> pipeline;
+
+        /**
+         * Constructor.
+         *
+         * @param id stage identifier
+         * @param hidden the hidden pipeline
+         */
+        OpaqueStage(@Nonnull final String id, @Nonnull final SimplePipeline<String> hidden) {
+            setId(id);
+            pipeline = hidden;
+        }
+
+        @Override
+        protected void doExecute(@Nonnull final List<Item<String>> items) {
+        }
+
+        @Override
+        protected void doInitialize() throws ComponentInitializationException {
+            super.doInitialize();
+            pipeline.initialize();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void testNestedOnBoundedExecutor() throws Exception {
+        final Queue<String> record = new ConcurrentLinkedQueue<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            final var inner = new SimplePipeline<String>();
+            inner.setId("inner");
+            inner.setStages(List.of(new SlowStage("a", record, false), new SlowStage("b", record, false)));
+            inner.setInitializationExecutor(executor);
+
+            final var outer = new SimplePipeline<String>();
+            outer.setId("outer");
+            outer.setStages(List.of(new OpaqueStage("opaque", inner), new SlowStage("c", record, false)));
+            outer.setInitializationExecutor(executor);
+
+            // the inner tree is initialized by the single worker thread rather than queued behind it
+            outer.initialize();
+            Assert.assertTrue(inner.isInitialized());
+            Assert.assertEquals(record.size(), 3);
+            Assert.assertEquals(inner.getInitializationReport().getTimings().size(), 2);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        final var outer = new Container();
+        outer.setId("outer");
+        final var inner = new Container();
+        inner.setId("inner");
+        outer.setContained(List.of(inner));
+        inner.setContained(List.of(outer));
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            new ComponentTreeInitializer(executor).initialize(List.of(outer));
+            Assert.fail("expected exception");
+        } catch (final ComponentInitializationException e) {
+            Assert.assertTrue(e.getMessage().contains("outer"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
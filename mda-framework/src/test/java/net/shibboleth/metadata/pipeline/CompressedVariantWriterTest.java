@@ -0,0 +1,237 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
+
+public class CompressedVariantWriterTest {
+
+    private static final byte[] CONTENT = "<xml>content content content content</xml>\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private Path directory;
+
+    private File file;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("variants");
+        file = directory.resolve("out.xml").toFile();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        try (var files = Files.list(directory)) {
+            for (final Path path : (Iterable<Path>) files::iterator) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private CompressedVariantWriter makeWriter(final List<CompressedVariantWriter.Format> formats)
+            throws Exception {
+        final var writer = new CompressedVariantWriter();
+        writer.setFormats(formats);
+        writer.initialize();
+        return writer;
+    }
+
+    private static byte[] readAll(final InputStream in) throws Exception {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    public void testBothFormats() throws Exception {
+        final var writer = makeWriter(List.of(CompressedVariantWriter.Format.GZIP,
+                CompressedVariantWriter.Format.DEFLATE));
+        CompressedVariantWriter.awaitAll(writer.write(CONTENT, file));
+
+        final Path gz = directory.resolve("out.xml.gz");
+        final Path zz = directory.resolve("out.xml.zz");
+        Assert.assertEquals(readAll(new GZIPInputStream(Files.newInputStream(gz))), CONTENT);
+        Assert.assertEquals(readAll(new InflaterInputStream(Files.newInputStream(zz))), CONTENT);
+
+        // no temporary files left behind
+        try (var files = Files.list(directory)) {
+            Assert.assertEquals(files.count(), 2);
+        }
+    }
+
+    @Test
+    public void testDefaultPermissions() throws Exception {
+        final var writer = makeWriter(List.of(CompressedVariantWriter.Format.GZIP));
+        CompressedVariantWriter.awaitAll(writer.write(CONTENT, file));
+
+        // variants should get the same permissions as any other new file
+        final Path plain = directory.resolve("plain");
+        Files.createFile(plain);
+        final Path gz = directory.resolve("out.xml.gz");
+        if (gz.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Assert.assertEquals(Files.getPosixFilePermissions(gz), Files.getPosixFilePermissions(plain));
+        }
+    }
+
+    @Test
+    public void testUnchangedSkipped() throws Exception {
+        final var writer = makeWriter(List.of(CompressedVariantWriter.Format.GZIP,
+                CompressedVariantWriter.Format.DEFLATE));
+        CompressedVariantWriter.awaitAll(writer.write(CONTENT, file));
+
+        final Path gz = directory.resolve("out.xml.gz");
+        final Path zz = directory.resolve("out.xml.zz");
+        final FileTime old = FileTime.fromMillis(1_000_000_000L);
+        Files.setLastModifiedTime(gz, old);
+        Files.setLastModifiedTime(zz, old);
+
+        CompressedVariantWriter.awaitAll(writer.write(CONTENT, file));
+        Assert.assertEquals(Files.getLastModifiedTime(gz), old);
+        Assert.assertEquals(Files.getLastModifiedTime(zz), old);
+
+        final byte[] changed = "<xml>changed</xml>\n".getBytes(StandardCharsets.UTF_8);
+        CompressedVariantWriter.awaitAll(writer.write(changed, file));
+        Assert.assertNotEquals(Files.getLastModifiedTime(gz), old);
+        Assert.assertNotEquals(Files.getLastModifiedTime(zz), old);
+        Assert.assertEquals(readAll(new GZIPInputStream(Files.newInputStream(gz))), changed);
+        Assert.assertEquals(readAll(new InflaterInputStream(Files.newInputStream(zz))), changed);
+    }
+
+    @Test
+    public void testDeflateChecksumCollisionRewritten() throws Exception {
+        final var writer = makeWriter(List.of(CompressedVariantWriter.Format.DEFLATE));
+        CompressedVariantWriter.awaitAll(writer.write(CONTENT, file));
+
+        // adjusting three consecutive bytes by +1, -2, +1 leaves the Adler-32 checksum unchanged
+        final byte[] collision = CONTENT.clone();
+        collision[1]++;
+        collision[2] -= 2;
+        collision[3]++;
+        final Adler32 before = new Adler32();
+        before.update(CONTENT);
+        final Adler32 after = new Adler32();
+        after.update(collision);
+        Assert.assertEquals(after.getValue(), before.getValue());
+
+        final Path zz = directory.resolve("out.xml.zz");
+        CompressedVariantWriter.awaitAll(writer.write(collision, file));
+        Assert.assertEquals(readAll(new InflaterInputStream(Files.newInputStream(zz))), collision);
+    }
+
+    @Test
+    public void testGzipChecksumCollisionRewritten() throws Exception {
+        final var writer = makeWriter(List.of(CompressedVariantWriter.Format.GZIP));
+        CompressedVariantWriter.awaitAll(writer.write(CONTENT, file));
+
+        // make the existing trailer record the checksum and length of different content of the same length
+        final byte[] other = CONTENT.clone();
+        other[1] = 'X';
+        final CRC32 crc = new CRC32();
+        crc.update(other);
+        final Path gz = directory.resolve("out.xml.gz");
+        final byte[] existing = Files.readAllBytes(gz);
+        final ByteBuffer trailer = ByteBuffer.wrap(existing, existing.length - 8, 4).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue());
+        Files.write(gz, existing);
+
+        CompressedVariantWriter.awaitAll(writer.write(other, file));
+        Assert.assertEquals(readAll(new GZIPInputStream(Files.newInputStream(gz))), other);
+    }
+
+    @Test
+    public void testExecutorShutDown() throws Exception {
+        final var writer = makeWriter(List.of(CompressedVariantWriter.Format.GZIP));
+        final ExecutorService owned = writer.getExecutorService();
+        writer.destroy();
+        Assert.assertTrue(owned.isShutdown());
+
+        final ExecutorService supplied = Executors.newSingleThreadExecutor();
+        try {
+            final var other = new CompressedVariantWriter();
+            other.setExecutorService(supplied);
+            other.initialize();
+            other.destroy();
+            Assert.assertFalse(supplied.isShutdown());
+        } finally {
+            supplied.shutdown();
+        }
+    }
+
+    @Test
+    public void testNotSkippingUnchanged() throws Exception {
+        final var writer = new CompressedVariantWriter();
+        writer.setSkippingUnchanged(false);
+        writer.initialize();
+        CompressedVariantWriter.awaitAll(writer.write(CONTENT, file));
+
+        final Path gz = directory.resolve("out.xml.gz");
+        final FileTime old = FileTime.fromMillis(1_000_000_000L);
+        Files.setLastModifiedTime(gz, old);
+        CompressedVariantWriter.awaitAll(writer.write(CONTENT, file));
+        Assert.assertNotEquals(Files.getLastModifiedTime(gz), old);
+    }
+
+    @Test
+    public void testCompressionLevel() throws Exception {
+        final byte[] big = new String(new char[100_000]).replace('\0', 'x').getBytes(StandardCharsets.UTF_8);
+
+        final var stored = new CompressedVariantWriter();
+        stored.setCompressionLevel(0);
+        stored.initialize();
+        CompressedVariantWriter.awaitAll(stored.write(big, file));
+        final long storedSize = Files.size(directory.resolve("out.xml.gz"));
+        Assert.assertTrue(storedSize > big.length);
+
+        final var best = makeWriter(List.of(CompressedVariantWriter.Format.GZIP));
+        CompressedVariantWriter.awaitAll(best.write(big, directory.resolve("best.xml").toFile()));
+        Assert.assertTrue(Files.size(directory.resolve("best.xml.gz")) < storedSize / 100);
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testBadCompressionLevel() {
+        new CompressedVariantWriter().setCompressionLevel(10);
+    }
+
+    @Test(expectedExceptions = StageProcessingException.class)
+    public void testFailure() throws Exception {
+        final var writer = makeWriter(List.of(CompressedVariantWriter.Format.GZIP));
+        CompressedVariantWriter.awaitAll(writer.write(CONTENT, new File(file, "missing/out.xml")));
+    }
+}
@@ -143,4 +143,36 @@ public class ItemMetadataFilterStageTest {
         Assert.assertTrue(metadataCollection.contains(md3));
         Assert.assertFalse(metadataCollection.contains(md4));
     }
+
+    /**
+     * Tests that a {@link ItemMetadataFilterStage} preserves the order of the retained items
+     * when many items are removed.
+     *
+     * @throws Exception if something bad happens
+     */
+    @Test
+    public void testOrderPreserved() throws Exception {
+        final List<Item<String>> metadataCollection = new ArrayList<>();
+        final List<Item<String>> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final var item = new MockItem(Integer.toString(i));
+            if (i % 3 == 0) {
+                item.getItemMetadata().put(new ErrorStatus("test", "error"));
+            } else {
+                expected.add(item);
+            }
+            metadataCollection.add(item);
+        }
+
+        final var stage = new ItemMetadataFilterStage<String>();
+        stage.setId("test");
+        stage.setSelectionRequirements(List.of(ErrorStatus.class));
+        stage.initialize();
+        stage.execute(metadataCollection);
+
+        Assert.assertEquals(metadataCollection.size(), expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertSame(metadataCollection.get(i), expected.get(i));
+        }
+    }
 }
@@ -21,10 +21,15 @@ package net.shibboleth.metadata.pipeline;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -117,4 +122,48 @@ public class MultiOutputSerializationStageTest {
         Assert.assertEquals(map.get("ccc"), "cccContent");
     }
 
+    @Test public void compressedVariantsTest() throws Exception {
+        final Path directory = Files.createTempDirectory("multi");
+        try {
+            final List<Item<String>> items = new ArrayList<>();
+            for (final String id : List.of("aaa", "bbb", "ccc")) {
+                final Item<String> item = new MockItem(id + "Content");
+                item.getItemMetadata().put(new ItemId(id));
+                items.add(item);
+            }
+
+            final var strategy = new FilesInDirectoryMultiOutputStrategy<String>();
+            strategy.setDirectory(directory.toFile());
+            strategy.setNameSuffix(".txt");
+            strategy.initialize();
+
+            final var writer = new CompressedVariantWriter();
+            writer.setExecutorService(Executors.newFixedThreadPool(2));
+
+            final MultiOutputSerializationStage<String> stage = new MultiOutputSerializationStage<>();
+            stage.setId("test");
+            stage.setOutputStrategy(strategy);
+            stage.setSerializer((item, output) -> output.write(item.unwrap().getBytes(StandardCharsets.UTF_8)));
+            stage.setCompressedVariantWriter(writer);
+            stage.initialize();
+
+            stage.execute(items);
+            stage.destroy();
+
+            for (final String id : List.of("aaa", "bbb", "ccc")) {
+                Assert.assertEquals(Files.readString(directory.resolve(id + ".txt")), id + "Content");
+                try (var in = new GZIPInputStream(Files.newInputStream(directory.resolve(id + ".txt.gz")))) {
+                    Assert.assertEquals(new String(in.readAllBytes(), StandardCharsets.UTF_8), id + "Content");
+                }
+            }
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (final Path path : (Iterable<Path>) files::iterator) {
+                    Files.delete(path);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
 }
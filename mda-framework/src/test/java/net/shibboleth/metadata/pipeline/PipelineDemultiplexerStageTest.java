@@ -17,21 +17,26 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.MockItem;
 import net.shibboleth.metadata.SimpleItemCollectionFactory;
+import net.shibboleth.metadata.TestMarker;
+import net.shibboleth.metadata.dom.saml.EntityRoleFilterStage;
 import net.shibboleth.utilities.java.support.collection.Pair;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
+import org.w3c.dom.Element;
 
 /** Unit test of {@link PipelineDemultiplexerStage}. */
 public class PipelineDemultiplexerStageTest {
@@ -80,6 +85,7 @@ public class PipelineDemultiplexerStageTest {
         stage.initialize();
         Assert.assertNotNull(stage.getCollectionFactory());
         Assert.assertNotNull(stage.getExecutorService());
+        stage.destroy();
 
         try {
             stage = new PipelineDemultiplexerStage<>();
@@ -139,6 +145,7 @@ public class PipelineDemultiplexerStageTest {
         } catch (TerminationException e) {
             // this was expected
         }
+        stage.destroy();
     }
 
     @Test public void testMDA206() throws Exception {
@@ -146,4 +153,299 @@ public class PipelineDemultiplexerStageTest {
         Assert.assertTrue(stage.isWaitingForPipelines());
     }
 
+    /** A stage processing each item independently, marking each item and counting them. */
+    public static final class MarkingStage extends AbstractIteratingStage<String> {
+
+        private String mark = "mark";
+
+        private long delay;
+
+        private final AtomicInteger processed = new AtomicInteger();
+
+        private volatile Thread lastThread;
+
+        public String getMark() {
+            return mark;
+        }
+
+        public void setMark(final String value) {
+            mark = value;
+        }
+
+        public long getDelay() {
+            return delay;
+        }
+
+        public void setDelay(final long millis) {
+            delay = millis;
+        }
+
+        int getProcessed() {
+            return processed.get();
+        }
+
+        @Override
+        protected void doExecute(final Item<String> item) throws StageProcessingException {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StageProcessingException("interrupted", e);
+                }
+            }
+            lastThread = Thread.currentThread();
+            processed.incrementAndGet();
+            item.getItemMetadata().put(new TestMarker(mark));
+        }
+    }
+
+    /** A stage processing each item independently, removing those with the given value. */
+    public static final class RemovingStage extends AbstractFilteringStage<String> {
+
+        private String value = "remove";
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(final String v) {
+            value = v;
+        }
+
+        @Override
+        protected boolean doExecute(final Item<String> item) {
+            return !value.equals(item.unwrap());
+        }
+    }
+
+    /** A stage recording the items it is given. */
+    private static final class RecordingStage extends AbstractStage<String> {
+
+        private final List<Item<String>> recorded = new ArrayList<>();
+
+        @Override
+        protected void doExecute(final List<Item<String>> items) {
+            recorded.addAll(items);
+        }
+    }
+
+    private static MarkingStage makeMarkingStage(final String id, final String mark) {
+        final var stage = new MarkingStage();
+        stage.setId(id);
+        stage.setMark(mark);
+        return stage;
+    }
+
+    private static RemovingStage makeRemovingStage(final String id) {
+        final var stage = new RemovingStage();
+        stage.setId(id);
+        return stage;
+    }
+
+    private static SimplePipeline<String> makePipeline(final String id, final List<Stage<String>> stages) {
+        final var pipeline = new SimplePipeline<String>();
+        pipeline.setId(id);
+        pipeline.setStages(stages);
+        return pipeline;
+    }
+
+    private static List<Item<String>> makeItems() {
+        final List<Item<String>> items = new ArrayList<>();
+        items.add(new MockItem("one"));
+        items.add(new MockItem("two"));
+        items.add(new MockItem("remove"));
+        items.add(new MockItem("three"));
+        return items;
+    }
+
+    private static List<String> values(final List<Item<String>> items) {
+        final List<String> values = new ArrayList<>();
+        for (final Item<String> item : items) {
+            values.add(item.unwrap());
+        }
+        return values;
+    }
+
+    @Test public void testSharedStages() throws Exception {
+        final MarkingStage markA = makeMarkingStage("markA", "common");
+        final RemovingStage removeA = makeRemovingStage("removeA");
+        final RecordingStage recordA = new RecordingStage();
+        recordA.setId("recordA");
+        // same configuration and identifiers, but different objects
+        final MarkingStage markB = makeMarkingStage("markA", "common");
+        final RemovingStage removeB = makeRemovingStage("removeA");
+        final RecordingStage recordB = new RecordingStage();
+        recordB.setId("recordB");
+        final MarkingStage markC = makeMarkingStage("markC", "different");
+        final RecordingStage recordC = new RecordingStage();
+        recordC.setId("recordC");
+
+        final PipelineDemultiplexerStage<String> stage = new PipelineDemultiplexerStage<>();
+        stage.setId("test");
+        stage.setSharingCommonStages(true);
+        stage.setPipelineAndSelectionStrategies(List.of(
+                new Pair<>(makePipeline("a", List.of(markA, removeA, recordA)), x -> true),
+                new Pair<>(makePipeline("b", List.of(markB, removeB, recordB)), x -> !"one".equals(x.unwrap())),
+                new Pair<>(makePipeline("c", List.of(markC, recordC)), x -> true)));
+        stage.initialize();
+        Assert.assertEquals(stage.getSharedStageCounts(), new int[] {2, 2, 0});
+
+        final List<Item<String>> items = makeItems();
+        stage.execute(items);
+
+        // the shared stages ran once, on the items selected for either pipeline
+        Assert.assertEquals(markA.getProcessed(), 4);
+        Assert.assertEquals(markB.getProcessed(), 0);
+        Assert.assertEquals(markC.getProcessed(), 4);
+
+        Assert.assertEquals(values(recordA.recorded), List.of("one", "two", "three"));
+        Assert.assertEquals(values(recordB.recorded), List.of("two", "three"));
+        Assert.assertEquals(values(recordC.recorded), List.of("one", "two", "remove", "three"));
+        for (final Item<String> item : recordB.recorded) {
+            Assert.assertEquals(item.getItemMetadata().get(TestMarker.class).size(), 1);
+            // each pipeline has its own copies
+            for (final Item<String> other : recordA.recorded) {
+                Assert.assertNotSame(item, other);
+            }
+        }
+
+        // the original items are unchanged
+        Assert.assertEquals(items.size(), 4);
+        for (final Item<String> item : items) {
+            Assert.assertTrue(item.getItemMetadata().get(TestMarker.class).isEmpty());
+        }
+        stage.destroy();
+    }
+
+    @Test public void testSharingDisabled() throws Exception {
+        final MarkingStage markA = makeMarkingStage("mark", "common");
+        final MarkingStage markB = makeMarkingStage("mark", "common");
+        final PipelineDemultiplexerStage<String> stage = new PipelineDemultiplexerStage<>();
+        stage.setId("test");
+        // sharing is disabled by default
+        Assert.assertFalse(stage.isSharingCommonStages());
+        stage.setPipelineAndSelectionStrategies(List.of(
+                new Pair<>(makePipeline("a", List.of(markA)), x -> true),
+                new Pair<>(makePipeline("b", List.of(markB)), x -> !"one".equals(x.unwrap()))));
+        stage.initialize();
+        Assert.assertEquals(stage.getSharedStageCounts(), new int[] {0, 0});
+
+        stage.execute(makeItems());
+        Assert.assertEquals(markA.getProcessed(), 4);
+        Assert.assertEquals(markB.getProcessed(), 3);
+        stage.destroy();
+    }
+
+    @Test public void testNotShared() throws Exception {
+        final MarkingStage mark = makeMarkingStage("mark", "common");
+        final RecordingStage record = new RecordingStage();
+        record.setId("record");
+        final PipelineDemultiplexerStage<String> stage = new PipelineDemultiplexerStage<>();
+        stage.setId("test");
+        stage.setSharingCommonStages(true);
+        stage.setPipelineAndSelectionStrategies(List.of(
+                // configured differently
+                new Pair<>(makePipeline("a", List.of(makeMarkingStage("m", "x"))), x -> true),
+                new Pair<>(makePipeline("b", List.of(makeMarkingStage("m", "y"))), x -> true),
+                // the same stage, but not one which processes each item independently
+                new Pair<>(makePipeline("c", List.of(record, mark)), x -> true),
+                new Pair<>(makePipeline("d", List.of(record, mark)), x -> true)));
+        stage.initialize();
+        Assert.assertEquals(stage.getSharedStageCounts(), new int[] {0, 0, 0, 0});
+        stage.destroy();
+    }
+
+    @Test public void testDifferentIdsNotShared() throws Exception {
+        final MarkingStage markA = makeMarkingStage("markA", "common");
+        final MarkingStage markB = makeMarkingStage("markB", "common");
+        final PipelineDemultiplexerStage<String> stage = new PipelineDemultiplexerStage<>();
+        stage.setId("test");
+        stage.setSharingCommonStages(true);
+        stage.setPipelineAndSelectionStrategies(List.of(
+                new Pair<>(makePipeline("a", List.of(markA)), x -> true),
+                new Pair<>(makePipeline("b", List.of(markB)), x -> true)));
+        stage.initialize();
+        // each stage reports itself in what it adds to the items, so each pipeline must run its own
+        Assert.assertEquals(stage.getSharedStageCounts(), new int[] {0, 0});
+
+        stage.execute(makeItems());
+        Assert.assertEquals(markA.getProcessed(), 4);
+        Assert.assertEquals(markB.getProcessed(), 4);
+        stage.destroy();
+    }
+
+    @Test public void testUnreadableConfigurationNotShared() throws Exception {
+        // removeRolelessEntities can be set, but not read back under the same name
+        final var keepRoleless = new EntityRoleFilterStage();
+        keepRoleless.setId("roles");
+        keepRoleless.setRemoveRolelessEntities(false);
+        final var removeRoleless = new EntityRoleFilterStage();
+        removeRoleless.setId("roles");
+        final var sameStage = new EntityRoleFilterStage();
+        sameStage.setId("shared");
+
+        final PipelineDemultiplexerStage<Element> stage = new PipelineDemultiplexerStage<>();
+        stage.setId("test");
+        stage.setSharingCommonStages(true);
+        stage.setPipelineAndSelectionStrategies(List.of(
+                new Pair<>(makeElementPipeline("a", keepRoleless), x -> true),
+                new Pair<>(makeElementPipeline("b", removeRoleless), x -> true),
+                // the same object is still shared
+                new Pair<>(makeElementPipeline("c", sameStage), x -> true),
+                new Pair<>(makeElementPipeline("d", sameStage), x -> true)));
+        stage.initialize();
+        Assert.assertEquals(stage.getSharedStageCounts(), new int[] {0, 0, 1, 1});
+        stage.destroy();
+    }
+
+    private static SimplePipeline<Element> makeElementPipeline(final String id, final Stage<Element> stage) {
+        final var pipeline = new SimplePipeline<Element>();
+        pipeline.setId(id);
+        pipeline.setStages(List.of(stage));
+        return pipeline;
+    }
+
+    @Test public void testSharedStagesOnExecutor() throws Exception {
+        final MarkingStage mark = makeMarkingStage("mark", "common");
+        final PipelineDemultiplexerStage<String> stage = new PipelineDemultiplexerStage<>();
+        stage.setId("test");
+        stage.setSharingCommonStages(true);
+        stage.setTimeout(Duration.ofSeconds(30));
+        stage.setPipelineAndSelectionStrategies(List.of(
+                new Pair<>(makePipeline("a", List.of(mark)), x -> true),
+                new Pair<>(makePipeline("b", List.of(mark)), x -> true)));
+        stage.initialize();
+        Assert.assertEquals(stage.getSharedStageCounts(), new int[] {1, 1});
+
+        stage.execute(makeItems());
+        Assert.assertEquals(mark.getProcessed(), 4);
+        // with a timeout, the calling thread only waits
+        Assert.assertNotSame(mark.lastThread, Thread.currentThread());
+        stage.destroy();
+    }
+
+    @Test public void testSharedStagesTimeout() throws Exception {
+        final MarkingStage mark = makeMarkingStage("mark", "common");
+        mark.setDelay(2000);
+        final PipelineDemultiplexerStage<String> stage = new PipelineDemultiplexerStage<>();
+        stage.setId("test");
+        stage.setSharingCommonStages(true);
+        stage.setTimeout(Duration.ofMillis(200));
+        stage.setPipelineAndSelectionStrategies(List.of(
+                new Pair<>(makePipeline("a", List.of(mark)), x -> true),
+                new Pair<>(makePipeline("b", List.of(mark)), x -> true)));
+        stage.initialize();
+
+        final long start = System.nanoTime();
+        try {
+            stage.execute(makeItems());
+            Assert.fail("expected the shared stages to time out");
+        } catch (final StageProcessingException e) {
+            Assert.assertTrue(e.getMessage().contains("shared stages of [a, b]"), e.getMessage());
+        }
+        Assert.assertTrue(System.nanoTime() - start < Duration.ofSeconds(2).toNanos());
+        stage.destroy();
+    }
+
 }
@@ -0,0 +1,224 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.MockItem;
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
+
+public class PipelineExecutorServiceTest {
+
+    private static PipelineExecutorService makeService(final int threads) throws Exception {
+        final var service = new PipelineExecutorService();
+        service.setThreadCount(threads);
+        service.initialize();
+        return service;
+    }
+
+    @Test
+    public void testDefaultThreadCount() {
+        Assert.assertEquals(new PipelineExecutorService().getThreadCount(),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testBadThreadCount() {
+        new PipelineExecutorService().setThreadCount(0);
+    }
+
+    @Test
+    public void testSubmitAllRunsFirstInCaller() throws Exception {
+        final var service = makeService(2);
+        try {
+            final Thread caller = Thread.currentThread();
+            final List<Callable<Thread>> tasks = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                tasks.add(Thread::currentThread);
+            }
+            final List<Future<Thread>> futures = PipelineExecutorService.submitAll(service, tasks);
+            Assert.assertEquals(futures.size(), 3);
+            Assert.assertTrue(futures.get(0).isDone());
+            Assert.assertSame(futures.get(0).get(), caller);
+            Assert.assertTrue(service.getCallerRunCount() >= 1);
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    public void testSubmitAllOtherExecutor() throws Exception {
+        final var executor = Executors.newSingleThreadExecutor();
+        try {
+            final Thread caller = Thread.currentThread();
+            final List<Callable<Thread>> tasks = List.of(Thread::currentThread);
+            final List<Future<Thread>> futures = PipelineExecutorService.submitAll(executor, tasks);
+            Assert.assertNotSame(futures.get(0).get(), caller);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWaiterRunsQueuedTask() throws Exception {
+        // with one thread, a task waiting for another queued task would deadlock without help
+        final var service = makeService(1);
+        try {
+            final Future<String> outer = service.submit(() -> service.submit(() -> "inner").get());
+            Assert.assertEquals(outer.get(10, TimeUnit.SECONDS), "inner");
+            Assert.assertEquals(service.getCallerRunCount(), 1);
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final var service = makeService(1);
+        try {
+            final var started = new CountDownLatch(1);
+            final var release = new CountDownLatch(1);
+            final Future<?> blocker = service.submit(() -> {
+                started.countDown();
+                release.await();
+                return null;
+            });
+            started.await();
+            final Future<?> queued = service.submit(() -> { });
+            Assert.assertEquals(service.getActiveCount(), 1);
+            Assert.assertEquals(service.getQueueDepth(), 1);
+            Assert.assertEquals(service.getPoolSize(), 1);
+
+            release.countDown();
+            blocker.get();
+            queued.get();
+            Assert.assertEquals(service.getQueueDepth(), 0);
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    public void testDestroyShutsDown() throws Exception {
+        final var service = makeService(1);
+        final Future<String> future = service.submit(() -> "done");
+        Assert.assertEquals(future.get(), "done");
+        Assert.assertFalse(service.isShutdown());
+        service.shutdown();
+        Assert.assertTrue(service.awaitTermination(10, TimeUnit.SECONDS));
+        service.destroy();
+        Assert.assertTrue(service.isDestroyed());
+    }
+
+    @Test
+    public void testTimedWaiterRunsQueuedTask() throws Exception {
+        // a waiter with a time limit also runs a task which can not get a thread
+        final var service = makeService(1);
+        try {
+            final Future<String> outer = service.submit(() -> service.submit(() -> "inner").get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(outer.get(10, TimeUnit.SECONDS), "inner");
+            Assert.assertEquals(service.getCallerRunCount(), 1);
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    public void testTimedFutureItemsRunsQueuedBranch() throws Exception {
+        final var service = makeService(1);
+        try {
+            final Future<List<List<Item<String>>>> outer = service.submit(() -> {
+                final Future<List<Item<String>>> branch = service.submit(() -> List.of(new MockItem("branch")));
+                return FutureSupport.futureItems(List.of(branch), List.of("branch"), Duration.ofSeconds(10));
+            });
+            Assert.assertEquals(outer.get(10, TimeUnit.SECONDS).get(0).get(0).unwrap(), "branch");
+            Assert.assertEquals(service.getCallerRunCount(), 1);
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    public void testStagesOwnService() throws Exception {
+        final var pipeline = new SimplePipeline<String>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(new CountingStage<>()));
+
+        final var stage = new PipelineMergeStage<String>();
+        stage.setId("merge");
+        stage.setMergedPipelines(List.of(pipeline));
+        stage.initialize();
+        final var service = stage.getExecutorService();
+        Assert.assertTrue(service instanceof PipelineExecutorService);
+
+        final var other = new PipelineMergeStage<String>();
+        other.setId("other");
+        other.setMergedPipelines(List.of(pipeline));
+        other.initialize();
+        Assert.assertNotSame(other.getExecutorService(), service);
+        other.destroy();
+
+        stage.execute(new ArrayList<>());
+        stage.destroy();
+        Assert.assertTrue(((PipelineExecutorService) service).isDestroyed());
+    }
+
+    @Test
+    public void testInjectedServiceShared() throws Exception {
+        final var service = makeService(2);
+        try {
+            final var pipeline = new SimplePipeline<String>();
+            pipeline.setId("pipeline");
+            pipeline.setStages(List.of(new CountingStage<>()));
+
+            final var merge = new PipelineMergeStage<String>();
+            merge.setId("merge");
+            merge.setMergedPipelines(List.of(pipeline));
+            merge.setExecutorService(service);
+            merge.initialize();
+
+            final var split = new SplitMergeStage<String>();
+            split.setId("split");
+            split.setSelectionStrategy(x -> true);
+            split.setSelectedItemPipeline(pipeline);
+            split.setExecutorService(service);
+            split.initialize();
+
+            Assert.assertSame(merge.getExecutorService(), service);
+            Assert.assertSame(split.getExecutorService(), service);
+            merge.execute(new ArrayList<>());
+            merge.destroy();
+            split.destroy();
+            Assert.assertFalse(service.isDestroyed());
+            Assert.assertEquals(service.submit(() -> "done").get(), "done");
+        } finally {
+            service.destroy();
+        }
+    }
+}
@@ -17,14 +17,20 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import net.shibboleth.metadata.DeduplicatingItemIdMergeStrategy;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemId;
 import net.shibboleth.metadata.MockItem;
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -236,4 +242,104 @@ public class PipelineMergeStageTest {
         }
     }
 
+    /** A stage which blocks until it is interrupted. */
+    private static class BlockingStage extends AbstractStage<String> {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+
+        BlockingStage() {
+            setId("blocking");
+        }
+
+        @Override
+        protected void doExecute(final List<Item<String>> items) throws StageProcessingException {
+            started.countDown();
+            try {
+                Thread.sleep(60_000);
+            } catch (final InterruptedException e) {
+                interrupted.countDown();
+                throw new StageProcessingException("interrupted", e);
+            }
+        }
+    }
+
+    private SimplePipeline<String> makePipeline(final String id, final Stage<String> stage) {
+        final SimplePipeline<String> pipeline = new SimplePipeline<>();
+        pipeline.setId(id);
+        pipeline.setStages(newSingletonList(stage));
+        return pipeline;
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final BlockingStage blocking = new BlockingStage();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final PipelineMergeStage<String> stage = new PipelineMergeStage<>();
+            stage.setId("merge");
+            stage.setExecutorService(executor);
+            stage.setTimeout(Duration.ofMillis(200));
+            stage.setMergedPipelines(newTwoElementList(makePipeline("fast", new CountingStage<>()),
+                    makePipeline("slow", blocking)));
+            stage.initialize();
+
+            try {
+                stage.execute(new ArrayList<>());
+                Assert.fail("expected exception not thrown");
+            } catch (final StageProcessingException e) {
+                // the message should say which branch went over its time
+                Assert.assertTrue(e.getMessage().contains("slow"), e.getMessage());
+                Assert.assertFalse(e.getMessage().contains("fast"), e.getMessage());
+            }
+            Assert.assertTrue(blocking.interrupted.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailFast() throws Exception {
+        final BlockingStage blocking = new BlockingStage();
+        final Stage<String> failing = new AbstractStage<>() {
+            @Override
+            protected void doExecute(final List<Item<String>> items) throws StageProcessingException {
+                try {
+                    blocking.started.await();
+                } catch (final InterruptedException e) {
+                    throw new StageProcessingException(e);
+                }
+                throw new TerminationException("failed");
+            }
+        };
+        ((AbstractStage<String>) failing).setId("failing");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final PipelineMergeStage<String> stage = new PipelineMergeStage<>();
+            stage.setId("merge");
+            stage.setExecutorService(executor);
+            stage.setMergedPipelines(newTwoElementList(makePipeline("failing", failing),
+                    makePipeline("slow", blocking)));
+            stage.initialize();
+
+            try {
+                stage.execute(new ArrayList<>());
+                Assert.fail("expected exception not thrown");
+            } catch (final TerminationException e) {
+                // expected
+            }
+            // the sibling branch should have been cancelled rather than left running
+            Assert.assertTrue(blocking.interrupted.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testNegativeTimeout() {
+        new PipelineMergeStage<String>().setTimeout(Duration.ofSeconds(-1));
+    }
+
 }
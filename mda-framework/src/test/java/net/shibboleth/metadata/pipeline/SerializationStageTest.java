@@ -6,8 +6,12 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -57,6 +61,149 @@ public class SerializationStageTest {
 
     }
     
+    @Test
+    public void testOwnedExecutorShutDown() throws Exception {
+        final var file = File.createTempFile("testOwnedExecutorShutDown", null);
+        final var path = file.toPath();
+
+        try {
+            final var synchronous = new SerializationStage<String>();
+            synchronous.setId("test");
+            synchronous.setOutputFile(file);
+            synchronous.setSerializer(new StringSerializer());
+            synchronous.initialize();
+            Assert.assertNull(synchronous.getExecutorService());
+            synchronous.destroy();
+
+            final var stage = new SerializationStage<String>();
+            stage.setId("test");
+            stage.setOutputFile(file);
+            stage.setSerializer(new StringSerializer());
+            stage.setAsynchronous(true);
+            stage.initialize();
+            final ExecutorService owned = stage.getExecutorService();
+            stage.execute(List.of(new MockItem("one")));
+            stage.destroy();
+            Assert.assertTrue(owned.isShutdown());
+            Assert.assertEquals(Files.readString(path), "one\n");
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testCompressedVariant() throws Exception {
+        final var file = File.createTempFile("testCompressedVariant", null);
+        final var path = file.toPath();
+        final var gzPath = Path.of(file.getPath() + ".gz");
+
+        try {
+            final var writer = new CompressedVariantWriter();
+            final var stage = new SerializationStage<String>();
+            stage.setId("test");
+            stage.setOutputFile(file);
+            stage.setSerializer(new StringSerializer());
+            stage.setCompressedVariantWriter(writer);
+            stage.initialize();
+            Assert.assertTrue(writer.isInitialized());
+
+            stage.execute(List.of(new MockItem("one"), new MockItem("two")));
+
+            Assert.assertEquals(Files.readString(path), "one\ntwo\n");
+            try (var in = new GZIPInputStream(Files.newInputStream(gzPath))) {
+                Assert.assertEquals(new String(in.readAllBytes(), StandardCharsets.UTF_8), "one\ntwo\n");
+            }
+
+            stage.destroy();
+        } finally {
+            Files.delete(path);
+            Files.deleteIfExists(gzPath);
+        }
+    }
+
+    @Test
+    public void testAsynchronous() throws Exception {
+        final Path directory = Files.createTempDirectory("testAsynchronous");
+        final Path path = directory.resolve("out.txt");
+
+        try {
+            final var stage = new SerializationStage<String>();
+            stage.setId("test");
+            stage.setOutputFile(path.toFile());
+            stage.setSerializer(new StringSerializer());
+            stage.setAsynchronous(true);
+            stage.initialize();
+
+            final var pipeline = new SimplePipeline<String>();
+            pipeline.setId("pipeline");
+            pipeline.setStages(List.of(stage));
+            pipeline.initialize();
+
+            final List<Item<String>> items = new ArrayList<>(List.of(new MockItem("one"), new MockItem("two")));
+            stage.execute(items);
+            // the stage should have written a copy of the items
+            items.clear();
+            stage.awaitCompletion();
+            Assert.assertEquals(Files.readString(path), "one\ntwo\n");
+
+            // the pipeline should wait for the write to complete
+            pipeline.execute(new ArrayList<>(List.of(new MockItem("three"))));
+            Assert.assertEquals(Files.readString(path), "three\n");
+
+            // no temporary files left behind
+            try (var files = Files.list(directory)) {
+                Assert.assertEquals(files.count(), 1);
+            }
+
+            pipeline.destroy();
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testAsynchronousFailure() throws Exception {
+        final Path directory = Files.createTempDirectory("testAsynchronousFailure");
+        final Path path = directory.resolve("out.txt");
+        Files.writeString(path, "original\n");
+
+        try {
+            final var stage = new SerializationStage<String>();
+            stage.setId("test");
+            stage.setOutputFile(path.toFile());
+            stage.setSerializer((items, output) -> {
+                output.write("partial".getBytes(StandardCharsets.UTF_8));
+                throw new IOException("failed");
+            });
+            stage.setAsynchronous(true);
+            stage.initialize();
+
+            final var pipeline = new SimplePipeline<String>();
+            pipeline.setId("pipeline");
+            pipeline.setStages(List.of(stage));
+            pipeline.initialize();
+
+            try {
+                pipeline.execute(new ArrayList<>(List.of(new MockItem("one"))));
+                Assert.fail("expected failure");
+            } catch (final StageProcessingException e) {
+                // expected
+            }
+
+            // the original file should be untouched, and the temporary file removed
+            Assert.assertEquals(Files.readString(path), "original\n");
+            try (var files = Files.list(directory)) {
+                Assert.assertEquals(files.count(), 1);
+            }
+
+            pipeline.destroy();
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(directory);
+        }
+    }
+
     @Test(expectedExceptions= {ComponentInitializationException.class})
     public void testNoFile() throws Exception {
         final var stage = new SerializationStage<String>();
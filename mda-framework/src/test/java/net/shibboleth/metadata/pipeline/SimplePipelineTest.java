@@ -17,11 +17,13 @@
 
 package net.shibboleth.metadata.pipeline;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.MockItem;
+import net.shibboleth.metadata.pipeline.impl.BaseIdentifiableInitializableComponent;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
 
@@ -109,6 +111,92 @@ public class SimplePipelineTest {
         pipeline.destroy();
     }
 
+    /** A stage not derived from {@link AbstractStage}, which may modify its items. */
+    private static class PlainStage extends BaseIdentifiableInitializableComponent implements Stage<String> {
+
+        @Override
+        public void execute(final List<Item<String>> items) {
+        }
+    }
+
+    /** A stage not derived from {@link AbstractStage}, which does not modify its items. */
+    private static class PlainReadOnlyStage extends BaseIdentifiableInitializableComponent
+            implements ReadOnlyStage<String> {
+
+        @Override
+        public void execute(final List<Item<String>> items) {
+        }
+    }
+
+    @Test public void testModificationMarked() throws Exception {
+        final var plain = new PlainStage();
+        plain.setId("plain");
+        final var readOnly = new PlainReadOnlyStage();
+        readOnly.setId("readOnly");
+
+        final MockItem item = new MockItem("value");
+        final List<Item<String>> items = new ArrayList<>(List.of(item));
+        for (final Stage<String> stage : List.<Stage<String>>of(plain, readOnly)) {
+            final var pipeline = new SimplePipeline<String>();
+            pipeline.setId("test");
+            pipeline.setStages(List.of(stage));
+            pipeline.initialize();
+            pipeline.execute(items);
+            pipeline.destroy();
+        }
+
+        // marked by the pipeline after the plain stage only
+        Assert.assertEquals(item.getModificationCount(), 1);
+    }
+
+    @Test public void testTimeout() throws Exception {
+        final AbstractStage<String> slow = new AbstractStage<>() {
+            @Override
+            protected void doExecute(final List<Item<String>> items) throws StageProcessingException {
+                try {
+                    Thread.sleep(100);
+                } catch (final InterruptedException e) {
+                    throw new StageProcessingException(e);
+                }
+            }
+        };
+        slow.setId("slow");
+        final CountingStage<String> after = new CountingStage<>();
+
+        final SimplePipeline<String> pipeline = new SimplePipeline<>();
+        pipeline.setId("test");
+        pipeline.setStages(List.of(slow, after));
+        pipeline.setTimeout(Duration.ofMillis(10));
+        pipeline.initialize();
+
+        try {
+            pipeline.execute(new ArrayList<>());
+            Assert.fail();
+        } catch (final PipelineProcessingException e) {
+            Assert.assertTrue(e.getMessage().contains("slow"), e.getMessage());
+        }
+        Assert.assertEquals(after.getInvocationCount(), 0);
+    }
+
+    @Test public void testInterrupted() throws Exception {
+        final List<Stage<String>> stages = buildStages();
+        final SimplePipeline<String> pipeline = new SimplePipeline<>();
+        pipeline.setId("test");
+        pipeline.setStages(stages);
+        pipeline.initialize();
+
+        Thread.currentThread().interrupt();
+        try {
+            pipeline.execute(new ArrayList<>());
+            Assert.fail();
+        } catch (final PipelineProcessingException e) {
+            // expected this
+        } finally {
+            Thread.interrupted();
+        }
+        Assert.assertEquals(((CountingStage<String>) stages.get(1)).getInvocationCount(), 0);
+    }
+
     protected List<Stage<String>> buildStages() {
         final Item<String> md1 = new MockItem("one");
         final Item<String> md2 = new MockItem("two");
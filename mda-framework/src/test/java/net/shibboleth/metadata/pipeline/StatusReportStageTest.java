@@ -0,0 +1,240 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.MockItem;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.pipeline.StatusReport.ComponentReport;
+import net.shibboleth.metadata.pipeline.StatusReport.Severity;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class StatusReportStageTest {
+
+    /**
+     * Build a collection of items with status metadata.
+     *
+     * Item <code>i</code> carries an error from component "a" if <code>i</code> is a multiple of 2,
+     * and a warning from component "b" if <code>i</code> is a multiple of 3. The first item also
+     * has an info message from component "c".
+     *
+     * @return the items
+     */
+    private List<Item<String>> makeItems() {
+        final List<Item<String>> items = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            final var item = new MockItem("item" + i);
+            item.getItemMetadata().put(new ItemId("id" + i));
+            if (i % 2 == 0) {
+                item.getItemMetadata().put(new ErrorStatus("a", "error, \"" + i + "\""));
+            }
+            if (i % 3 == 0) {
+                item.getItemMetadata().put(new WarningStatus("b", "warning " + i));
+            }
+            items.add(item);
+        }
+        items.get(1).getItemMetadata().put(new InfoStatus("c", "info"));
+        return items;
+    }
+
+    @Test
+    public void testBuildReport() throws Exception {
+        final var stage = new StatusReportStage<String>();
+        stage.setId("test");
+        stage.setOutputFile(new File("report.json"));
+        stage.setMaxEntriesPerComponent(3);
+        stage.initialize();
+
+        final StatusReport report = stage.buildReport(makeItems());
+        Assert.assertEquals(report.getItemCount(), 12);
+        Assert.assertEquals(report.getItemCount(Severity.ERROR), 6);
+        Assert.assertEquals(report.getItemCount(Severity.WARNING), 4);
+        Assert.assertEquals(report.getItemCount(Severity.INFO), 1);
+        Assert.assertEquals(report.getMessageCount(Severity.ERROR), 6);
+
+        final List<ComponentReport> components = report.getComponents();
+        Assert.assertEquals(components.size(), 3);
+        final ComponentReport a = components.get(0);
+        Assert.assertEquals(a.getComponentId(), "a");
+        Assert.assertEquals(a.getCount(Severity.ERROR), 6);
+        Assert.assertEquals(a.getCount(Severity.WARNING), 0);
+        Assert.assertEquals(a.getEntries().size(), 3);
+        Assert.assertEquals(a.getOmittedCount(), 3);
+        Assert.assertEquals(a.getEntries().get(1).getItemId(), "id2");
+        Assert.assertEquals(a.getEntries().get(1).getSeverity(), Severity.ERROR);
+        Assert.assertEquals(components.get(1).getComponentId(), "b");
+        Assert.assertEquals(components.get(1).getTotalCount(), 4);
+        Assert.assertEquals(components.get(2).getComponentId(), "c");
+        Assert.assertEquals(components.get(2).getOmittedCount(), 0);
+        stage.destroy();
+    }
+
+    @Test
+    public void testJSON() throws Exception {
+        final var file = File.createTempFile("testJSON", ".json");
+        final var path = file.toPath();
+        try {
+            final var stage = new StatusReportStage<String>();
+            stage.setId("test");
+            stage.setOutputFile(file);
+            stage.setMaxEntriesPerComponent(1);
+            stage.initialize();
+            stage.execute(makeItems());
+            stage.destroy();
+
+            final var text = Files.readString(path, StandardCharsets.UTF_8);
+            Assert.assertTrue(text.contains("\"items\":12"));
+            Assert.assertTrue(text.contains("\"id\":\"a\""));
+            Assert.assertTrue(text.contains("\"omitted\":5"));
+            Assert.assertTrue(text.contains("\"item\":\"id0\""));
+            Assert.assertFalse(text.contains("\"item\":\"id2\""));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testCSV() throws Exception {
+        final var file = File.createTempFile("testCSV", ".csv");
+        final var path = file.toPath();
+        try {
+            final var stage = new StatusReportStage<String>();
+            stage.setId("test");
+            stage.setOutputFile(file);
+            stage.setFormat(StatusReportStage.Format.CSV);
+            stage.setMaxEntriesPerComponent(2);
+            stage.initialize();
+            stage.execute(makeItems());
+            stage.destroy();
+
+            final List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            Assert.assertEquals(lines.get(0), "component,severity,count,item,message");
+            Assert.assertEquals(lines.get(1), "a,error,6,,");
+            Assert.assertEquals(lines.get(2), "a,error,,id0,\"error, \"\"0\"\"\"");
+            Assert.assertEquals(lines.get(3), "a,error,,id2,\"error, \"\"2\"\"\"");
+            Assert.assertEquals(lines.get(4), "b,warning,4,,");
+            Assert.assertEquals(lines.get(5), "b,warning,,id0,warning 0");
+            Assert.assertEquals(lines.get(7), "c,info,1,,");
+            Assert.assertEquals(lines.get(8), "c,info,,id1,info");
+            Assert.assertEquals(lines.size(), 9);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testExecutorShutDown() throws Exception {
+        final var file = File.createTempFile("testExecutorShutDown", ".json");
+        try {
+            final var stage = new StatusReportStage<String>();
+            stage.setId("test");
+            stage.setOutputFile(file);
+            stage.initialize();
+            final ExecutorService owned = stage.getExecutorService();
+            stage.execute(makeItems());
+            stage.destroy();
+            Assert.assertTrue(owned.isShutdown());
+
+            final ExecutorService supplied = Executors.newSingleThreadExecutor();
+            try {
+                final var other = new StatusReportStage<String>();
+                other.setId("test");
+                other.setOutputFile(file);
+                other.setExecutorService(supplied);
+                other.initialize();
+                other.destroy();
+                Assert.assertFalse(supplied.isShutdown());
+            } finally {
+                supplied.shutdown();
+            }
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Test
+    public void testReplacedAtomically() throws Exception {
+        final Path dir = Files.createTempDirectory("testReplacedAtomically");
+        final Path path = dir.resolve("report.json");
+        try {
+            Files.writeString(path, "old", StandardCharsets.UTF_8);
+            final var stage = new StatusReportStage<String>();
+            stage.setId("test");
+            stage.setOutputFile(path.toFile());
+            stage.initialize();
+            stage.execute(makeItems());
+            stage.awaitCompletion();
+
+            Assert.assertTrue(Files.readString(path, StandardCharsets.UTF_8).contains("\"items\":12"));
+            try (Stream<Path> files = Files.list(dir)) {
+                Assert.assertEquals(files.collect(Collectors.toList()), List.of(path));
+            }
+            stage.destroy();
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testWriteFailureFailsPipeline() throws Exception {
+        final Path dir = Files.createTempDirectory("testWriteFailureFailsPipeline");
+        final var stage = new StatusReportStage<String>();
+        stage.setId("report");
+        stage.setOutputFile(dir.resolve("report.json").toFile());
+        stage.initialize();
+        Files.delete(dir);
+
+        final var pipeline = new SimplePipeline<String>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(stage));
+        pipeline.initialize();
+        try {
+            pipeline.execute(makeItems());
+            Assert.fail("expected the pipeline to fail when the report can not be written");
+        } catch (final PipelineProcessingException e) {
+            // expected
+        }
+        pipeline.destroy();
+        stage.destroy();
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoOutputFile() throws Exception {
+        final var stage = new StatusReportStage<String>();
+        stage.setId("test");
+        stage.initialize();
+    }
+}
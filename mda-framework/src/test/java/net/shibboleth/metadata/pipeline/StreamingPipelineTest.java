@@ -0,0 +1,220 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.MockItem;
+
+public class StreamingPipelineTest {
+
+    /** Per-item stage which adds an {@link ItemId} derived from the item. */
+    private static class TaggingStage extends AbstractIteratingStage<String> {
+
+        private final String prefix;
+
+        TaggingStage(final String tag) {
+            prefix = tag;
+            setId(tag);
+        }
+
+        @Override
+        protected void doExecute(final Item<String> item) {
+            item.getItemMetadata().put(new ItemId(prefix + item.unwrap()));
+        }
+    }
+
+    /** Per-item stage which drops items containing a given string. */
+    private static class DroppingStage extends AbstractFilteringStage<String> {
+
+        private final String drop;
+
+        DroppingStage(final String s) {
+            drop = s;
+            setId("drop-" + s);
+        }
+
+        @Override
+        protected boolean doExecute(final Item<String> item) {
+            return !item.unwrap().contains(drop);
+        }
+    }
+
+    /** Per-item stage which fails on a given item. */
+    private static class FailingStage extends AbstractIteratingStage<String> {
+
+        FailingStage() {
+            setId("failing");
+        }
+
+        @Override
+        protected void doExecute(final Item<String> item) throws StageProcessingException {
+            if (item.unwrap().equals("item500")) {
+                throw new StageProcessingException("failed on " + item.unwrap());
+            }
+        }
+    }
+
+    private static List<Item<String>> makeItems(final int count) {
+        final List<Item<String>> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new MockItem("item" + i));
+        }
+        return items;
+    }
+
+    private static List<Stage<String>> makeStages() {
+        final var ordering = new ItemOrderingStage<String>();
+        ordering.setId("reverse");
+        ordering.setItemOrderingStrategy(items -> {
+            final List<Item<String>> reversed = new ArrayList<>(items);
+            Collections.reverse(reversed);
+            return reversed;
+        });
+        return List.of(new TaggingStage("a"), new DroppingStage("3"), new TaggingStage("b"), ordering,
+                new TaggingStage("c"), new DroppingStage("7"));
+    }
+
+    private static List<String> describe(final List<Item<String>> items) {
+        final List<String> result = new ArrayList<>();
+        for (final Item<String> item : items) {
+            final var ids = new ArrayList<String>();
+            for (final ItemId id : item.getItemMetadata().get(ItemId.class)) {
+                ids.add(id.getId());
+            }
+            final var stages = new ArrayList<String>();
+            for (final ComponentInfo info : item.getItemMetadata().get(ComponentInfo.class)) {
+                stages.add(info.getComponentId());
+            }
+            result.add(item.unwrap() + " " + ids + " " + stages);
+        }
+        return result;
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        final var pipeline = new StreamingPipeline<String>();
+        pipeline.setId("test");
+        pipeline.setStages(makeStages());
+        pipeline.initialize();
+
+        final var segments = pipeline.getSegments();
+        Assert.assertEquals(segments.size(), 3);
+        Assert.assertEquals(segments.get(0).size(), 3);
+        Assert.assertEquals(segments.get(1).size(), 1);
+        Assert.assertEquals(segments.get(2).size(), 2);
+        pipeline.destroy();
+    }
+
+    @Test
+    public void testCollectionPredicateIsBarrier() throws Exception {
+        final var tagging = new TaggingStage("a");
+        tagging.setCollectionPredicate(items -> items.size() > 1);
+        final var pipeline = new StreamingPipeline<String>();
+        pipeline.setId("test");
+        pipeline.setStages(List.of(new TaggingStage("x"), tagging, new TaggingStage("y")));
+        pipeline.initialize();
+        Assert.assertEquals(pipeline.getSegments().size(), 3);
+        pipeline.destroy();
+    }
+
+    @Test
+    public void testSameAsSimplePipeline() throws Exception {
+        final var simple = new SimplePipeline<String>();
+        simple.setId("test");
+        simple.setStages(makeStages());
+        simple.initialize();
+        final List<Item<String>> expected = makeItems(1000);
+        simple.execute(expected);
+
+        final var streaming = new StreamingPipeline<String>();
+        streaming.setId("test");
+        streaming.setStages(makeStages());
+        streaming.setQueueCapacity(4);
+        streaming.initialize();
+        final List<Item<String>> actual = makeItems(1000);
+        streaming.execute(actual);
+
+        Assert.assertEquals(describe(actual), describe(expected));
+        streaming.destroy();
+        simple.destroy();
+    }
+
+    @Test
+    public void testStagesOverlap() throws Exception {
+        // the first stage can only finish once the second has started
+        final var secondStarted = new CountDownLatch(1);
+        final AbstractIteratingStage<String> first = new AbstractIteratingStage<>() {
+            @Override
+            protected void doExecute(final Item<String> item) throws StageProcessingException {
+                if (item.unwrap().equals("item9")) {
+                    try {
+                        Assert.assertTrue(secondStarted.await(10, TimeUnit.SECONDS));
+                    } catch (final InterruptedException e) {
+                        throw new StageProcessingException(e);
+                    }
+                }
+            }
+        };
+        first.setId("first");
+        final AbstractIteratingStage<String> second = new AbstractIteratingStage<>() {
+            @Override
+            protected void doExecute(final Item<String> item) {
+                secondStarted.countDown();
+            }
+        };
+        second.setId("second");
+
+        final var pipeline = new StreamingPipeline<String>();
+        pipeline.setId("test");
+        pipeline.setStages(List.of(first, second));
+        pipeline.setQueueCapacity(2);
+        pipeline.initialize();
+        final List<Item<String>> items = makeItems(10);
+        pipeline.execute(items);
+        Assert.assertEquals(items.size(), 10);
+        pipeline.destroy();
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final var pipeline = new StreamingPipeline<String>();
+        pipeline.setId("test");
+        pipeline.setStages(List.of(new TaggingStage("a"), new FailingStage(), new TaggingStage("b")));
+        pipeline.setQueueCapacity(2);
+        pipeline.initialize();
+
+        final List<Item<String>> items = makeItems(1000);
+        try {
+            pipeline.execute(items);
+            Assert.fail("expected exception not thrown");
+        } catch (final StageProcessingException e) {
+            Assert.assertEquals(e.getMessage(), "failed on item500");
+        }
+        pipeline.destroy();
+    }
+}
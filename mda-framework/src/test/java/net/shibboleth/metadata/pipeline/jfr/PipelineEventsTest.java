@@ -0,0 +1,241 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.pipeline.jfr;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.MockItem;
+import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
+import net.shibboleth.metadata.pipeline.SimplePipeline;
+import net.shibboleth.metadata.pipeline.SplitMergeStage;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StreamingPipeline;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class PipelineEventsTest {
+
+    /** Stage which takes a noticeable time over items whose value starts with "slow". */
+    private static class SlowStage extends AbstractIteratingStage<String> {
+
+        @Override
+        protected void doExecute(@Nonnull final Item<String> item) {
+            if (item.unwrap().startsWith("slow")) {
+                try {
+                    Thread.sleep(30);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Build and initialize the pipeline under test.
+     *
+     * The pipeline has a {@link SlowStage} followed by a {@link SplitMergeStage} executing
+     * a child pipeline, itself containing a {@link SlowStage}, on all items.
+     *
+     * @return the pipeline
+     * @throws Exception if something goes wrong
+     */
+    private SimplePipeline<String> makePipeline() throws Exception {
+        final var childStage = new SlowStage();
+        childStage.setId("childStage");
+        final var child = new SimplePipeline<String>();
+        child.setId("child");
+        child.setStages(List.<Stage<String>>of(childStage));
+        child.initialize();
+
+        final var split = new SplitMergeStage<String>();
+        split.setId("split");
+        split.setSelectionStrategy(x -> true);
+        split.setSelectedItemPipeline(child);
+        split.setNonselectedItemPipeline(child);
+
+        final var stage = new SlowStage();
+        stage.setId("stage");
+
+        final var pipeline = new SimplePipeline<String>();
+        pipeline.setId("pipeline");
+        pipeline.setStages(List.of(stage, split));
+        pipeline.initialize();
+        return pipeline;
+    }
+
+    /**
+     * Build the items to process.
+     *
+     * @return the items
+     */
+    private List<Item<String>> makeItems() {
+        final List<Item<String>> items = new ArrayList<>();
+        for (final String value : List.of("fast1", "slow", "fast2")) {
+            final var item = new MockItem(value);
+            item.getItemMetadata().put(new ItemId("id-" + value));
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * Run the pipeline under a recording and return the events it recorded.
+     *
+     * @param recording recording, with settings applied, to run the pipeline under
+     * @return the events recorded from this package
+     * @throws Exception if something goes wrong
+     */
+    private List<RecordedEvent> record(@Nonnull final Recording recording) throws Exception {
+        final var pipeline = makePipeline();
+        final Path file = Files.createTempFile("PipelineEventsTest", ".jfr");
+        try {
+            recording.start();
+            pipeline.execute(makeItems());
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file).stream()
+                    .filter(e -> e.getEventType().getName().startsWith("net.shibboleth.metadata."))
+                    .collect(Collectors.toList());
+        } finally {
+            recording.close();
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Select the events of a given type.
+     *
+     * @param events events to select from
+     * @param name name of the event type
+     * @return the selected events
+     */
+    private List<RecordedEvent> select(@Nonnull final List<RecordedEvent> events, @Nonnull final String name) {
+        return events.stream()
+                .filter(e -> e.getEventType().getName().equals("net.shibboleth.metadata." + name))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testAllEvents() throws Exception {
+        final var recording = new Recording();
+        recording.enable(PipelineExecutionEvent.class).withThreshold(Duration.ZERO);
+        recording.enable(StageExecutionEvent.class).withThreshold(Duration.ZERO);
+        recording.enable(PipelineTaskEvent.class).withThreshold(Duration.ZERO);
+        recording.enable(ItemProcessingEvent.class).withThreshold(Duration.ZERO);
+        final var events = record(recording);
+
+        final var pipelines = select(events, "PipelineExecution");
+        Assert.assertEquals(pipelines.size(), 3);
+        final var top = pipelines.stream().filter(e -> "pipeline".equals(e.getString("pipelineId")))
+                .findFirst().orElseThrow();
+        Assert.assertEquals(top.getInt("itemsIn"), 3);
+        Assert.assertEquals(top.getInt("itemsOut"), 3);
+
+        final var stages = select(events, "StageExecution");
+        Assert.assertEquals(stages.size(), 4);
+        final var split = stages.stream().filter(e -> "split".equals(e.getString("stageId")))
+                .findFirst().orElseThrow();
+        Assert.assertTrue(split.getBoolean("executed"));
+        Assert.assertEquals(split.getInt("itemsIn"), 3);
+
+        final var tasks = select(events, "PipelineTask");
+        Assert.assertEquals(tasks.size(), 2);
+        for (final var task : tasks) {
+            Assert.assertEquals(task.getString("stageId"), "split");
+            Assert.assertEquals(task.getString("pipelineId"), "child");
+        }
+
+        // three items through the top-level stage, three through the child pipelines
+        final var itemEvents = select(events, "ItemProcessing");
+        Assert.assertEquals(itemEvents.size(), 6);
+    }
+
+    @Test
+    public void testStreamedStages() throws Exception {
+        final var first = new SlowStage();
+        first.setId("first");
+        final var second = new SlowStage();
+        second.setId("second");
+        final var pipeline = new StreamingPipeline<String>();
+        pipeline.setId("streaming");
+        pipeline.setStages(List.<Stage<String>>of(first, second));
+        pipeline.initialize();
+
+        final var recording = new Recording();
+        recording.enable(StageExecutionEvent.class).withThreshold(Duration.ZERO);
+        final Path file = Files.createTempFile("PipelineEventsTest", ".jfr");
+        final List<RecordedEvent> stages;
+        try {
+            recording.start();
+            pipeline.execute(makeItems());
+            recording.stop();
+            recording.dump(file);
+            stages = select(RecordingFile.readAllEvents(file), "StageExecution");
+        } finally {
+            recording.close();
+            Files.delete(file);
+            pipeline.destroy();
+        }
+
+        // the streamed stages are recorded as if they had been executed on the collection
+        Assert.assertEquals(stages.size(), 2);
+        for (final var stage : stages) {
+            Assert.assertTrue(stage.getBoolean("executed"));
+            Assert.assertEquals(stage.getInt("itemsIn"), 3);
+            Assert.assertEquals(stage.getInt("itemsOut"), 3);
+        }
+    }
+
+    @Test
+    public void testBundledSettings() throws Exception {
+        final Configuration config;
+        try (var reader = new InputStreamReader(
+                PipelineEventsTest.class.getResourceAsStream("/net/shibboleth/metadata/pipeline/jfr/mda.jfc"),
+                StandardCharsets.UTF_8)) {
+            config = Configuration.create(reader);
+        }
+        final var events = record(new Recording(config));
+
+        Assert.assertEquals(select(events, "PipelineExecution").size(), 3);
+        Assert.assertEquals(select(events, "StageExecution").size(), 4);
+        Assert.assertEquals(select(events, "PipelineTask").size(), 2);
+
+        // only the slow item is recorded, once at the top level and once in the child pipeline
+        final var itemEvents = select(events, "ItemProcessing");
+        Assert.assertEquals(itemEvents.size(), 2);
+        for (final var event : itemEvents) {
+            Assert.assertEquals(event.getString("itemId"), "id-slow");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.validate.string;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.MockItem;
+import net.shibboleth.metadata.validate.RejectAllValidator;
+import net.shibboleth.metadata.validate.Validator;
+import net.shibboleth.metadata.validate.Validator.Action;
+import net.shibboleth.metadata.validate.ValidatorSequence;
+
+public class StringValidatorSequenceTest {
+
+    private static final List<String> INPUTS = List.of("", "a", "ab", "aab", "abab", "b", "ABC", "abc", "x y",
+            "http://example.org/", "https://example.org/path", "a(b)");
+
+    private Validator<String> accept(final String regex) throws Exception {
+        final var v = new AcceptStringRegexValidator();
+        v.setId("accept " + regex);
+        v.setRegex(regex);
+        return v;
+    }
+
+    private Validator<String> reject(final String regex) throws Exception {
+        final var v = new RejectStringRegexValidator();
+        v.setId("reject " + regex);
+        v.setRegex(regex);
+        v.setMessage(regex + ": %s");
+        return v;
+    }
+
+    private List<String> errors(final Item<String> item) {
+        final List<String> result = new ArrayList<>();
+        for (final ErrorStatus err : item.getItemMetadata().get(ErrorStatus.class)) {
+            result.add(err.getComponentId() + " " + err.getStatusMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Check that a {@link StringValidatorSequence} behaves exactly as a {@link ValidatorSequence}
+     * built from the same validators.
+     */
+    private StringValidatorSequence checkEquivalent(final List<Validator<String>> validators) throws Exception {
+        final ValidatorSequence<String> plain = new ValidatorSequence<>();
+        plain.setId("plain");
+        plain.setValidators(validators);
+        plain.initialize();
+
+        final StringValidatorSequence combined = new StringValidatorSequence();
+        combined.setId("combined");
+        combined.setValidators(validators);
+        combined.initialize();
+
+        for (final String input : INPUTS) {
+            final Item<String> plainItem = new MockItem("content");
+            final Item<String> combinedItem = new MockItem("content");
+            Assert.assertEquals(combined.validate(input, combinedItem, "stage"),
+                    plain.validate(input, plainItem, "stage"), input);
+            Assert.assertEquals(errors(combinedItem), errors(plainItem), input);
+        }
+        return combined;
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final var seq = checkEquivalent(List.of());
+        Assert.assertEquals(seq.getSegmentCount(), 0);
+    }
+
+    @Test
+    public void testCombined() throws Exception {
+        final var seq = checkEquivalent(List.of(
+                reject(".*\\s.*"),
+                accept("https?://.*"),
+                reject("a*b"),
+                accept("(a|b)+"),
+                reject("(?i)abc"),
+                reject(".*")));
+        Assert.assertEquals(seq.getSegmentCount(), 1);
+    }
+
+    @Test
+    public void testFirstMatchWins() throws Exception {
+        final var seq = checkEquivalent(List.of(reject("a.*"), reject("ab"), accept("ab")));
+        Assert.assertEquals(seq.getSegmentCount(), 1);
+
+        final Item<String> item = new MockItem("content");
+        Assert.assertEquals(seq.validate("ab", item, "stage"), Action.DONE);
+        final List<String> errs = errors(item);
+        Assert.assertEquals(errs.size(), 1);
+        Assert.assertTrue(errs.get(0).contains("reject a.*"));
+    }
+
+    @Test
+    public void testGroupsInExpressions() throws Exception {
+        final var seq = checkEquivalent(List.of(reject("(a)(b)"), accept("((a)b)+"), reject("a\\(b\\)"),
+                reject("\\Q(\\1)\\E"), accept(".*")));
+        Assert.assertEquals(seq.getSegmentCount(), 1);
+    }
+
+    @Test
+    public void testUncombinable() throws Exception {
+        final var rejectAll = new RejectAllValidator<String>();
+        rejectAll.setId("all");
+        final var seq = checkEquivalent(List.of(
+                reject("a*"),
+                reject("(a)\\1"),
+                reject("(?<n>a)b\\k<n>"),
+                reject("(?x) a b # comment"),
+                accept("x y"),
+                reject("b"),
+                rejectAll,
+                accept("ab")));
+        Assert.assertEquals(seq.getSegmentCount(), 7);
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.validate.x509;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.springframework.core.io.FileSystemResource;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.BaseTest;
+
+public class KeyListCompilerTest extends BaseTest {
+
+    public KeyListCompilerTest() {
+        super(X509RSAOpenSSLBlacklistValidator.class);
+    }
+
+    @Test
+    public void testMatchesCommittedBinary() throws Exception {
+        final Path directory = Files.createTempDirectory("keylists");
+        final Path text = directory.resolve("1024.txt");
+        final Path binary = directory.resolve("1024.bin");
+        try {
+            Files.write(text, readBytes("1024.txt"));
+            KeyListCompiler.compile(text);
+            Assert.assertEquals(Files.readAllBytes(binary), readBytes("1024.bin"));
+        } finally {
+            Files.deleteIfExists(binary);
+            Files.delete(text);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testMappedTableSurvivesRecompilation() throws Exception {
+        final Path directory = Files.createTempDirectory("keylists");
+        final Path text = directory.resolve("list.txt");
+        final Path binary = directory.resolve("list.bin");
+        try {
+            Files.write(text, "00000000000000000001\n00000000000000000002\n".getBytes(StandardCharsets.US_ASCII));
+            Assert.assertEquals(KeyListCompiler.compile(text), 2);
+            final var mapped = OpenSSLFingerprintTable.forResource(new FileSystemResource(binary.toFile()));
+
+            // a shorter list replaces the file rather than truncating the mapped one
+            Files.write(text, "00000000000000000003\n".getBytes(StandardCharsets.US_ASCII));
+            Assert.assertEquals(KeyListCompiler.compile(text), 1);
+            Assert.assertEquals(mapped.size(), 2);
+            final byte[] digest = new byte[20];
+            digest[19] = 2;
+            Assert.assertTrue(mapped.contains(digest));
+            Assert.assertEquals(Files.size(binary), OpenSSLFingerprintTable.MAGIC.length + 10);
+            try (var files = Files.list(directory)) {
+                Assert.assertEquals(files.count(), 2);
+            }
+        } finally {
+            Files.deleteIfExists(binary);
+            Files.delete(text);
+            Files.delete(directory);
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testNotText() throws Exception {
+        KeyListCompiler.compile(Path.of("list.bin"));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.metadata.validate.x509;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.BaseTest;
+
+public class OpenSSLFingerprintTableTest extends BaseTest {
+
+    public OpenSSLFingerprintTableTest() {
+        super(X509RSAOpenSSLBlacklistValidator.class);
+    }
+
+    /** Build a 20-byte digest whose low 80 bits are given in hex. */
+    private byte[] digest(final String hex) {
+        final byte[] digest = new byte[20];
+        for (int i = 0; i < hex.length(); i += 2) {
+            digest[10 + i / 2] = (byte) Integer.parseInt(hex.substring(i, i + 2), 16);
+        }
+        return digest;
+    }
+
+    @Test
+    public void testText() throws Exception {
+        final String text = "# comment\n\nffff0000000000000001\n0000000000000000ffff\n" +
+                "8000000000000000abcd\n0000000000000000ffff\nFFFF0000000000000002\n ffff0000000000000003\n";
+        final var table = OpenSSLFingerprintTable.forResource(
+                new ByteArrayResource(text.getBytes(StandardCharsets.US_ASCII)));
+        // duplicates removed, upper-case and indented lines could never match
+        Assert.assertEquals(table.size(), 3);
+        Assert.assertTrue(table.contains(digest("ffff0000000000000001")));
+        Assert.assertTrue(table.contains(digest("0000000000000000ffff")));
+        Assert.assertTrue(table.contains(digest("8000000000000000abcd")));
+        Assert.assertFalse(table.contains(digest("ffff0000000000000002")));
+        Assert.assertFalse(table.contains(digest("ffff0000000000000003")));
+        Assert.assertFalse(table.contains(digest("8000000000000000abce")));
+        Assert.assertFalse(table.contains(digest("00000000000000000000")));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final var table = OpenSSLFingerprintTable.forResource(
+                new ByteArrayResource("# nothing here\n".getBytes(StandardCharsets.US_ASCII)));
+        Assert.assertEquals(table.size(), 0);
+        Assert.assertFalse(table.contains(digest("00000000000000000000")));
+    }
+
+    @Test
+    public void testBinaryMatchesText() throws Exception {
+        final var text = OpenSSLFingerprintTable.forResource(getClasspathResource("1024.txt"));
+        final var binary = OpenSSLFingerprintTable.forResource(getClasspathResource("1024.bin"));
+        Assert.assertEquals(binary.size(), text.size());
+        for (final String line : new String(readBytes("1024.txt"), StandardCharsets.US_ASCII).split("\n")) {
+            if (line.length() == 20 && line.charAt(0) != '#') {
+                Assert.assertTrue(binary.contains(digest(line)), line);
+                Assert.assertTrue(text.contains(digest(line)), line);
+            }
+        }
+        Assert.assertFalse(binary.contains(digest("00000000000000000000")));
+    }
+
+    @Test
+    public void testMappedAndShared() throws Exception {
+        final Path file = Files.createTempFile("fingerprints", ".bin");
+        try {
+            final byte[] contents = new byte[OpenSSLFingerprintTable.MAGIC.length + 2 * 10];
+            System.arraycopy(OpenSSLFingerprintTable.MAGIC, 0, contents, 0, OpenSSLFingerprintTable.MAGIC.length);
+            contents[OpenSSLFingerprintTable.MAGIC.length + 9] = 1;
+            contents[OpenSSLFingerprintTable.MAGIC.length + 10] = (byte) 0xff;
+            Files.write(file, contents);
+
+            final var table = OpenSSLFingerprintTable.forResource(new FileSystemResource(file.toFile()));
+            Assert.assertEquals(table.size(), 2);
+            Assert.assertTrue(table.contains(digest("00000000000000000001")));
+            Assert.assertTrue(table.contains(digest("ff000000000000000000")));
+            Assert.assertFalse(table.contains(digest("00000000000000000000")));
+
+            Assert.assertSame(OpenSSLFingerprintTable.forResource(new FileSystemResource(file.toFile())), table);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testUpdatedResourceReplacesTable() throws Exception {
+        final Path file = Files.createTempFile("fingerprints", ".txt");
+        try {
+            Files.write(file, "00000000000000000001\n".getBytes(StandardCharsets.US_ASCII));
+            file.toFile().setLastModified(1_000_000L);
+            final var first = OpenSSLFingerprintTable.forResource(new FileSystemResource(file.toFile()));
+            Assert.assertTrue(first.contains(digest("00000000000000000001")));
+
+            Files.write(file, "00000000000000000002\n".getBytes(StandardCharsets.US_ASCII));
+            file.toFile().setLastModified(2_000_000L);
+            final var second = OpenSSLFingerprintTable.forResource(new FileSystemResource(file.toFile()));
+            Assert.assertNotSame(second, first);
+            Assert.assertFalse(second.contains(digest("00000000000000000001")));
+            Assert.assertTrue(second.contains(digest("00000000000000000002")));
+            Assert.assertSame(OpenSSLFingerprintTable.forResource(new FileSystemResource(file.toFile())), second);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}
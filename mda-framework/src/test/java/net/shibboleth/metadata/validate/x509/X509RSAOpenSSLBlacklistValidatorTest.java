@@ -65,6 +65,24 @@ public class X509RSAOpenSSLBlacklistValidatorTest extends BaseX509ValidatorTest
         val.destroy();
     }
 
+    @Test
+    public void test1024on1024Binary() throws Exception {
+        final X509RSAOpenSSLBlacklistValidator val = new X509RSAOpenSSLBlacklistValidator();
+        val.setBlacklistResource(getClasspathResource("1024.bin"));
+        val.setId("test");
+        val.initialize();
+
+        final Item<String> item = new MockItem("foo");
+        final X509Certificate cert = getCertificate("1024.pem");
+        Assert.assertEquals(val.validate(cert, item, "stage"), Validator.Action.CONTINUE);
+        errorsAndWarnings(item, 1, 0);
+
+        final Item<String> okItem = new MockItem("foo");
+        Assert.assertEquals(val.validate(getCertificate("ok.pem"), okItem, "stage"), Validator.Action.CONTINUE);
+        errorsAndWarnings(okItem, 0, 0);
+        val.destroy();
+    }
+
     @Test
     public void test1024on1024Restricted() throws Exception {
         final X509RSAOpenSSLBlacklistValidator val = new X509RSAOpenSSLBlacklistValidator();
@@ -90,10 +90,10 @@ public class MDA183Test extends BaseTest {
         super(MDA183Test.class);
     }
 
-    private Validator<X509Certificate> getValidator(final int keySize) throws Exception {
+    private Validator<X509Certificate> getValidator(final int keySize, final String format) throws Exception {
         // pick up the blacklist resource
         final Resource blacklistResource =
-                new ClassPathResource("net/shibboleth/metadata/validate/x509/compromised-" + keySize + ".txt");
+                new ClassPathResource("net/shibboleth/metadata/validate/x509/compromised-" + keySize + "." + format);
 
         // create a validator
         final X509RSAOpenSSLBlacklistValidator val = new X509RSAOpenSSLBlacklistValidator();
@@ -126,10 +126,9 @@ public class MDA183Test extends BaseTest {
         }
     }
 
-    @Test
-    public void testMDA183jetty() throws Exception {
-        final Validator<X509Certificate> validator1024 = getValidator(1024);
-        final Validator<X509Certificate> validator2048 = getValidator(2048);
+    private void checkJettyKeys(final String format) throws Exception {
+        final Validator<X509Certificate> validator1024 = getValidator(1024, format);
+        final Validator<X509Certificate> validator2048 = getValidator(2048, format);
 
         // grab the keystore
         final Resource keystoreResource = getClasspathResource("keystore.jks");
@@ -141,4 +140,15 @@ public class MDA183Test extends BaseTest {
         verifyKey(ks, "mykey", "keypwd", validator1024, 1024);
     }
 
+    @Test
+    public void testMDA183jetty() throws Exception {
+        checkJettyKeys("txt");
+    }
+
+    @Test
+    public void testMDA183jettyBinary() throws Exception {
+        // binary form of the key lists, generated during the build
+        checkJettyKeys("bin");
+    }
+
 }